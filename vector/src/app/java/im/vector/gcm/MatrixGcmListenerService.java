@@ -18,6 +18,8 @@
 
 package im.vector.gcm;
 
+import android.content.Context;
+
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 import com.google.gson.JsonParser;
@@ -29,24 +31,68 @@ import org.matrix.androidsdk.util.Log;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import im.vector.Matrix;
 import im.vector.VectorApp;
 import im.vector.activity.CommonActivityUtils;
 import im.vector.services.EventStreamService;
+import im.vector.util.AppExecutors;
 import im.vector.util.VectorUtils;
 
 /**
  * Class implementing GcmListenerService.
+ * The pushes are processed on a dedicated worker thread.
+ * The bursts of pushes are coalesced by PushesCoalescer.
  */
 public class MatrixGcmListenerService extends FirebaseMessagingService {
     private static final String LOG_TAG = MatrixGcmListenerService.class.getSimpleName();
 
+    // the pushes are processed in order
+    private static final Executor sPushExecutor = AppExecutors.newSerialExecutor(LOG_TAG);
+
     // Tells if the events service running state has been tested
-    private Boolean mCheckLaunched = false;
+    private static boolean sCheckLaunched = false;
+
+    // the bursts of pushes coalescer, created at first push
+    private static PushesCoalescer sPushesCoalescer = null;
+
+    /**
+     * Provides the pushes coalescer.
+     *
+     * @param context the application context
+     * @return the pushes coalescer
+     */
+    private static synchronized PushesCoalescer getPushesCoalescer(final Context context) {
+        if (null == sPushesCoalescer) {
+            sPushesCoalescer = new PushesCoalescer(sPushExecutor, new PushesCoalescer.Listener() {
+                @Override
+                public void onUnreadCountUpdate(int unreadCount) {
+                    CommonActivityUtils.updateBadgeCount(context, unreadCount);
+                }
+
+                @Override
+                public void onCatchupRequest() {
+                    AppExecutors.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            // check if the application has been launched once
+                            // the first GCM event could have been triggered whereas the application is not yet launched.
+                            // so it is required to create the sessions and to start/resume event stream
+                            if (!sCheckLaunched && (null != Matrix.getInstance(context).getDefaultSession())) {
+                                CommonActivityUtils.startEventStreamService(context);
+                                sCheckLaunched = true;
+                            }
+
+                            CommonActivityUtils.catchupEventStream(context);
+                        }
+                    });
+                }
+            });
+        }
 
-    // UI handler
-    private android.os.Handler mUIHandler = null;
+        return sPushesCoalescer;
+    }
 
     /**
      * Try to create an event from the GCM data
@@ -54,7 +100,7 @@ public class MatrixGcmListenerService extends FirebaseMessagingService {
      * @param data the GCM data
      * @return the event
      */
-    private Event parseEvent(Map<String, String> data) {
+    private static Event parseEvent(Map<String, String> data) {
         // accept only event with room id.
         if ((null == data) || !data.containsKey("room_id") || !data.containsKey("event_id")) {
             return null;
@@ -80,12 +126,13 @@ public class MatrixGcmListenerService extends FirebaseMessagingService {
     }
 
     /**
-     * Internal receive method
+     * Internal receive method, called on the push executor thread.
      *
-     * @param data Data map containing message data as key/value pairs.
-     *             For Set of keys use data.keySet().
+     * @param context the application context
+     * @param data    Data map containing message data as key/value pairs.
+     *                For Set of keys use data.keySet().
      */
-    private void onMessageReceivedInternal(final Map<String, String> data) {
+    private static void onMessageReceivedInternal(final Context context, final Map<String, String> data) {
         try {
             int unreadCount = 0;
             String roomId = null;
@@ -107,50 +154,58 @@ public class MatrixGcmListenerService extends FirebaseMessagingService {
 
             Log.d(LOG_TAG, "## onMessageReceivedInternal() : roomId " + roomId + " eventId " + eventId + " unread " + unreadCount);
 
-            // update the badge counter
-            CommonActivityUtils.updateBadgeCount(getApplicationContext(), unreadCount);
+            PushesCoalescer pushesCoalescer = getPushesCoalescer(context);
 
-            GcmRegistrationManager gcmManager = Matrix.getInstance(getApplicationContext()).getSharedGCMRegistrationManager();
+            // update the badge counter with the latest value of the burst
+            pushesCoalescer.onUnreadCount(unreadCount);
+
+            GcmRegistrationManager gcmManager = Matrix.getInstance(context).getSharedGCMRegistrationManager();
 
             if (!gcmManager.areDeviceNotificationsAllowed()) {
                 Log.d(LOG_TAG, "## onMessageReceivedInternal() : the notifications are disabled");
                 return;
             }
             if (!gcmManager.isBackgroundSyncAllowed() && VectorApp.isAppInBackground()) {
-                EventStreamService eventStreamService = EventStreamService.getInstance();
-                Event event = parseEvent(data);
+                final Event event = parseEvent(data);
 
                 String roomName = data.get("room_name");
                 if ((null == roomName) && (null != roomId)) {
-                    MXSession session = Matrix.getInstance(getApplicationContext()).getDefaultSession();
+                    MXSession session = Matrix.getInstance(context).getDefaultSession();
 
                     if ((null != session) && session.getDataHandler().getStore().isReady()) {
                         Room room = session.getDataHandler().getStore().getRoom(roomId);
                         if (null != room) {
-                            roomName = VectorUtils.getRoomDisplayName(MatrixGcmListenerService.this, session, room);
+                            roomName = VectorUtils.getRoomDisplayName(context, session, room);
                         }
                     }
                 }
 
-                Log.d(LOG_TAG, "## onMessageReceivedInternal() : the background sync is disabled with eventStreamService " + eventStreamService);
+                Log.d(LOG_TAG, "## onMessageReceivedInternal() : the background sync is disabled with eventStreamService "
+                        + EventStreamService.getInstance());
 
-                EventStreamService.onStaticNotifiedEvent(getApplicationContext(), event, roomName, data.get("sender_display_name"), unreadCount);
-                return;
-            }
+                final String fRoomName = roomName;
+                final int fUnreadCount = unreadCount;
 
-            // check if the application has been launched once
-            // the first GCM event could have been triggered whereas the application is not yet launched.
-            // so it is required to create the sessions and to start/resume event stream
-            if (!mCheckLaunched && (null != Matrix.getInstance(getApplicationContext()).getDefaultSession())) {
-                CommonActivityUtils.startEventStreamService(MatrixGcmListenerService.this);
-                mCheckLaunched = true;
+                AppExecutors.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        EventStreamService.onStaticNotifiedEvent(context, event, fRoomName, data.get("sender_display_name"), fUnreadCount);
+                    }
+                });
+                return;
             }
 
             // check if the event was not yet received
             // a previous catchup might have already retrieved the notified event
             if ((null != eventId) && (null != roomId)) {
+                // the same event is pushed several times
+                if (pushesCoalescer.isDuplicatedPush(eventId)) {
+                    Log.d(LOG_TAG, "## onMessageReceivedInternal() : ignore the duplicated push of " + eventId);
+                    return;
+                }
+
                 try {
-                    Collection<MXSession> sessions = Matrix.getInstance(getApplicationContext()).getSessions();
+                    Collection<MXSession> sessions = Matrix.getInstance(context).getSessions();
 
                     if ((null != sessions) && (sessions.size() > 0)) {
                         for (MXSession session : sessions) {
@@ -168,7 +223,7 @@ public class MatrixGcmListenerService extends FirebaseMessagingService {
                 }
             }
 
-            CommonActivityUtils.catchupEventStream(MatrixGcmListenerService.this);
+            pushesCoalescer.onCatchupRequest();
         } catch (Exception e) {
             Log.d(LOG_TAG, "## onMessageReceivedInternal() failed : " + e.getMessage(), e);
         }
@@ -182,15 +237,12 @@ public class MatrixGcmListenerService extends FirebaseMessagingService {
     @Override
     public void onMessageReceived(RemoteMessage message) {
         final Map<String, String> data = message.getData();
+        final Context context = getApplicationContext();
 
-        if (null == mUIHandler) {
-            mUIHandler = new android.os.Handler(VectorApp.getInstance().getMainLooper());
-        }
-
-        mUIHandler.post(new Runnable() {
+        sPushExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                onMessageReceivedInternal(data);
+                onMessageReceivedInternal(context, data);
             }
         });
     }
@@ -31,8 +31,6 @@ import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.crypto.IncomingRoomKeyRequest;
 import org.matrix.androidsdk.crypto.IncomingRoomKeyRequestCancellation;
 import org.matrix.androidsdk.crypto.MXCrypto;
-import org.matrix.androidsdk.data.Room;
-import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.data.metrics.MetricsListener;
 import org.matrix.androidsdk.data.store.IMXStore;
 import org.matrix.androidsdk.data.store.MXFileStore;
@@ -43,12 +41,10 @@ import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.client.LoginRestClient;
-import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.ssl.Fingerprint;
 import org.matrix.androidsdk.ssl.UnrecognizedCertificateException;
-import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.Log;
 
 import java.util.ArrayList;
@@ -64,9 +60,13 @@ import im.vector.activity.SplashActivity;
 import im.vector.analytics.MetricsListenerProxy;
 import im.vector.analytics.PiwikAnalytics;
 import im.vector.gcm.GcmRegistrationManager;
+import im.vector.notifications.BadgeCountService;
 import im.vector.services.EventStreamService;
 import im.vector.store.LoginStorage;
+import im.vector.store.MessageSearchIndex;
+import im.vector.store.RoomMediaIndex;
 import im.vector.util.PreferencesManager;
+import im.vector.util.RoomInvitationsIndex;
 import im.vector.widgets.WidgetsManager;
 
 /**
@@ -108,66 +108,18 @@ public class Matrix {
             mClearCacheRequired = true;
         }
 
-        private boolean mRefreshUnreadCounter = false;
-
-        @Override
-        public void onLiveEvent(Event event, RoomState roomState) {
-            mRefreshUnreadCounter |= Event.EVENT_TYPE_MESSAGE.equals(event.getType()) || Event.EVENT_TYPE_RECEIPT.equals(event.getType());
-
-            // TODO update to manage multisessions
-            WidgetsManager.getSharedInstance().onLiveEvent(instance.getDefaultSession(), event);
-        }
-
         @Override
         public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
-            // when the client does not use GCM (ie. FDroid),
-            // we need to compute the application badge values
-
             if ((null != instance) && (null != instance.mMXSessions)) {
                 if (mClearCacheRequired && !VectorApp.isAppInBackground()) {
                     mClearCacheRequired = false;
                     instance.reloadSessions(VectorApp.getInstance());
-                } else if (mRefreshUnreadCounter) {
-                    GcmRegistrationManager gcmMgr = instance.getSharedGCMRegistrationManager();
-
-                    // perform update: if the GCM is not yet available or if GCM registration failed
-                    if ((null != gcmMgr) && (!gcmMgr.useGCM() || !gcmMgr.hasRegistrationToken())) {
-                        int roomCount = 0;
-
-                        for (MXSession session : instance.mMXSessions) {
-                            if (session.isAlive()) {
-                                BingRulesManager bingRulesManager = session.getDataHandler().getBingRulesManager();
-                                Collection<Room> rooms = session.getDataHandler().getStore().getRooms();
-
-                                for (Room room : rooms) {
-                                    if (room.isInvited()) {
-                                        roomCount++;
-                                    } else {
-                                        int notificationCount = room.getNotificationCount();
-
-                                        if (bingRulesManager.isRoomMentionOnly(room.getRoomId())) {
-                                            notificationCount = room.getHighlightCount();
-                                        }
-
-                                        if (notificationCount > 0) {
-                                            roomCount++;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-
-                        // update the badge counter
-                        CommonActivityUtils.updateBadgeCount(instance.mAppContext, roomCount);
-                    }
                 }
 
                 // TODO find a way to detect which session is synced
                 VectorApp.clearSyncingSessions();
             }
 
-            mRefreshUnreadCounter = false;
-
             Log.d(LOG_TAG, "onLiveEventsChunkProcessed ");
             EventStreamService.checkDisplayedNotifications();
         }
@@ -493,8 +445,17 @@ public class Matrix {
                 mLoginStorage.removeCredentials(session.getHomeServerConfig());
 
                 session.getDataHandler().removeListener(mLiveEventListener);
+                session.getDataHandler().removeListener(RoomMediaIndex.getInstance(context, session.getMyUserId()).getLiveEventListener());
+                session.getDataHandler().removeListener(MessageSearchIndex.getInstance(context, session.getMyUserId()).getLiveEventListener());
+                session.getDataHandler().removeListener(BadgeCountService.getInstance(context).getLiveEventListener(session));
+                session.getDataHandler().removeListener(WidgetsManager.getSharedInstance().getLiveEventListener(session));
 
                 VectorApp.removeSyncingSession(session);
+                RoomMediaIndex.deleteIndex(context, session.getMyUserId());
+                MessageSearchIndex.deleteIndex(context, session.getMyUserId());
+                BadgeCountService.getInstance(context).removeSession(session.getMyUserId());
+                RoomInvitationsIndex.removeInstance(session);
+                WidgetsManager.getSharedInstance().removeSession(session.getMyUserId());
 
                 synchronized (LOG_TAG) {
                     mMXSessions.remove(session);
@@ -528,12 +489,26 @@ public class Matrix {
         }
 
         session.getDataHandler().removeListener(mLiveEventListener);
+        session.getDataHandler().removeListener(RoomMediaIndex.getInstance(context, session.getMyUserId()).getLiveEventListener());
+        session.getDataHandler().removeListener(MessageSearchIndex.getInstance(context, session.getMyUserId()).getLiveEventListener());
+        session.getDataHandler().removeListener(BadgeCountService.getInstance(context).getLiveEventListener(session));
+        session.getDataHandler().removeListener(WidgetsManager.getSharedInstance().getLiveEventListener(session));
 
         SimpleApiCallback<Void> callback = new SimpleApiCallback<Void>() {
             @Override
             public void onSuccess(Void info) {
                 VectorApp.removeSyncingSession(session);
 
+                // the local indexes survive a cache clear, the events are indexed again after the initial sync
+                if (clearCredentials) {
+                    RoomMediaIndex.deleteIndex(context, session.getMyUserId());
+                    MessageSearchIndex.deleteIndex(context, session.getMyUserId());
+                }
+
+                BadgeCountService.getInstance(context).removeSession(session.getMyUserId());
+                RoomInvitationsIndex.removeInstance(session);
+                WidgetsManager.getSharedInstance().removeSession(session.getMyUserId());
+
                 synchronized (LOG_TAG) {
                     mMXSessions.remove(session);
                 }
@@ -692,12 +667,18 @@ public class Matrix {
 
         dataHandler.addListener(mLiveEventListener);
         dataHandler.addListener(VectorApp.getInstance().getDecryptionFailureTracker());
+        dataHandler.addListener(RoomMediaIndex.getInstance(context, credentials.userId).getLiveEventListener());
+        dataHandler.addListener(MessageSearchIndex.getInstance(context, credentials.userId).getLiveEventListener());
+        dataHandler.addListener(BadgeCountService.getInstance(context).getLiveEventListener(session));
+        dataHandler.addListener(WidgetsManager.getSharedInstance().getLiveEventListener(session));
 
         session.setUseDataSaveMode(PreferencesManager.useDataSaveMode(context));
 
         dataHandler.addListener(new MXEventListener() {
             @Override
             public void onInitialSyncComplete(String toToken) {
+                MessageSearchIndex.getInstance(context, credentials.userId).indexStoredMessages(session.getDataHandler());
+
                 if (null != session.getCrypto()) {
                     session.getCrypto().addRoomKeysRequestListener(new MXCrypto.IRoomKeysRequestListener() {
                         @Override
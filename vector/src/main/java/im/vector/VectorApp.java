@@ -30,11 +30,11 @@ import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.multidex.MultiDex;
 import android.support.multidex.MultiDexApplication;
@@ -78,16 +78,20 @@ import im.vector.activity.WidgetActivity;
 import im.vector.analytics.Analytics;
 import im.vector.analytics.AppAnalytics;
 import im.vector.analytics.PiwikAnalytics;
+import im.vector.analytics.TrackingEvent;
 import im.vector.analytics.e2e.DecryptionFailureTracker;
 import im.vector.contacts.ContactsManager;
 import im.vector.contacts.PIDsRetriever;
 import im.vector.gcm.GcmRegistrationManager;
 import im.vector.services.EventStreamService;
 import im.vector.settings.FontScale;
+import im.vector.store.MediaCacheJournal;
+import im.vector.util.AppExecutors;
 import im.vector.util.CallsManager;
 import im.vector.util.PhoneNumberUtils;
 import im.vector.util.PreferencesManager;
 import im.vector.util.RageShake;
+import im.vector.util.StartupTaskGraph;
 import im.vector.util.ThemeUtils;
 import im.vector.util.VectorMarkdownParser;
 
@@ -170,7 +174,7 @@ public class VectorApp extends MultiDexApplication {
     public static File mLogsDirectoryFile = null;
 
     /**
-     * The last time that removeMediasBefore has been called.
+     * The last time that the medias have been evicted.
      */
     private long mLastMediasCheck = 0;
 
@@ -202,151 +206,228 @@ public class VectorApp extends MultiDexApplication {
         Log.d(LOG_TAG, "onCreate");
         super.onCreate();
 
-        if (BuildConfig.DEBUG) {
-            Stetho.initializeWithDefaults(this);
-        }
-
         instance = this;
-        mCallsManager = new CallsManager(this);
-        mAppAnalytics = new AppAnalytics(this, new PiwikAnalytics(this));
-        mDecryptionFailureTracker = new DecryptionFailureTracker(mAppAnalytics);
-
-        mActivityTransitionTimer = null;
-        mActivityTransitionTimerTask = null;
-
-        VECTOR_VERSION_STRING = Matrix.getInstance(this).getVersion(true, true);
-        // not the first launch
-        if (null != Matrix.getInstance(this).getDefaultSession()) {
-            SDK_VERSION_STRING = Matrix.getInstance(this).getDefaultSession().getVersion(true);
-        } else {
-            SDK_VERSION_STRING = "";
-        }
-        mLogsDirectoryFile = new File(getCacheDir().getAbsolutePath() + "/logs");
-
-        org.matrix.androidsdk.util.Log.setLogDirectory(mLogsDirectoryFile);
-        org.matrix.androidsdk.util.Log.init("RiotLog");
-
-        // log the application version to trace update
-        // useful to track backward compatibility issues
-
-        Log.d(LOG_TAG, "----------------------------------------------------------------");
-        Log.d(LOG_TAG, "----------------------------------------------------------------");
-        Log.d(LOG_TAG, " Application version: " + VECTOR_VERSION_STRING);
-        Log.d(LOG_TAG, " SDK version: " + SDK_VERSION_STRING);
-        Log.d(LOG_TAG, " Local time: " + (new SimpleDateFormat("MM-dd HH:mm:ss.SSSZ", Locale.US)).format(new Date()));
-        Log.d(LOG_TAG, "----------------------------------------------------------------");
-        Log.d(LOG_TAG, "----------------------------------------------------------------\n\n\n\n");
-
-        mRageShake = new RageShake(this);
-
-        // init the REST client
-        MXSession.initUserAgent(getApplicationContext());
-
-        registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
-            final Map<String, String> mLocalesByActivity = new HashMap<>();
-
-            @Override
-            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-                Log.d(LOG_TAG, "onActivityCreated " + activity);
-                mCreatedActivities.add(activity.toString());
-                // piwik
-                onNewScreen(activity);
-            }
-
-            @Override
-            public void onActivityStarted(Activity activity) {
-                Log.d(LOG_TAG, "onActivityStarted " + activity);
-            }
-
-            /**
-             * Compute the locale status value
-             * @param activity the activity
-             * @return the local status value
-             */
-            private String getActivityLocaleStatus(Activity activity) {
-                return getApplicationLocale().toString()
-                        + "_" + FontScale.INSTANCE.getFontScalePrefValue()
-                        + "_" + ThemeUtils.INSTANCE.getApplicationTheme(activity);
-            }
-
-            @Override
-            public void onActivityResumed(final Activity activity) {
-                Log.d(LOG_TAG, "onActivityResumed " + activity);
-                setCurrentActivity(activity);
 
-                String activityKey = activity.toString();
+        final long startTime = SystemClock.elapsedRealtime();
 
-                if (mLocalesByActivity.containsKey(activityKey)) {
-                    String prevActivityLocale = mLocalesByActivity.get(activityKey);
-
-                    if (!TextUtils.equals(prevActivityLocale, getActivityLocaleStatus(activity))) {
-                        Log.d(LOG_TAG, "## onActivityResumed() : restart the activity " + activity
-                                + " because of the locale update from " + prevActivityLocale + " to " + getActivityLocaleStatus(activity));
-                        restartActivity(activity);
-                        return;
+        new StartupTaskGraph()
+                .add("analytics", StartupTaskGraph.Mode.MAIN, new Runnable() {
+                    @Override
+                    public void run() {
+                        mAppAnalytics = new AppAnalytics(VectorApp.this, new PiwikAnalytics(VectorApp.this));
+                        mDecryptionFailureTracker = new DecryptionFailureTracker(mAppAnalytics);
                     }
-                }
-
-                // it should never happen as there is a broadcast receiver (mLanguageReceiver)
-                if (!TextUtils.equals(Locale.getDefault().toString(), getApplicationLocale().toString())) {
-                    Log.d(LOG_TAG, "## onActivityResumed() : the locale has been updated to " + Locale.getDefault().toString()
-                            + ", restore the expected value " + getApplicationLocale().toString());
-                    updateApplicationSettings(getApplicationLocale(),
-                            FontScale.INSTANCE.getFontScalePrefValue(),
-                            ThemeUtils.INSTANCE.getApplicationTheme(activity));
-                    restartActivity(activity);
-                }
-
-                listPermissionStatuses();
-            }
-
-            @Override
-            public void onActivityPaused(Activity activity) {
-                Log.d(LOG_TAG, "onActivityPaused " + activity);
-                mLocalesByActivity.put(activity.toString(), getActivityLocaleStatus(activity));
-                setCurrentActivity(null);
-                onAppPause();
-            }
-
-            @Override
-            public void onActivityStopped(Activity activity) {
-                Log.d(LOG_TAG, "onActivityStopped " + activity);
-            }
-
-            @Override
-            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
-                Log.d(LOG_TAG, "onActivitySaveInstanceState " + activity);
-            }
+                })
+                .add("callsManager", StartupTaskGraph.Mode.MAIN, new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallsManager = new CallsManager(VectorApp.this);
+
+                        mActivityTransitionTimer = null;
+                        mActivityTransitionTimerTask = null;
+                    }
+                })
+                .add("matrix", StartupTaskGraph.Mode.MAIN, new Runnable() {
+                    @Override
+                    public void run() {
+                        VECTOR_VERSION_STRING = Matrix.getInstance(VectorApp.this).getVersion(true, true);
+                        // not the first launch
+                        if (null != Matrix.getInstance(VectorApp.this).getDefaultSession()) {
+                            SDK_VERSION_STRING = Matrix.getInstance(VectorApp.this).getDefaultSession().getVersion(true);
+                        } else {
+                            SDK_VERSION_STRING = "";
+                        }
+                    }
+                })
+                .add("logs", StartupTaskGraph.Mode.MAIN, new Runnable() {
+                    @Override
+                    public void run() {
+                        mLogsDirectoryFile = new File(getCacheDir().getAbsolutePath() + "/logs");
+
+                        org.matrix.androidsdk.util.Log.setLogDirectory(mLogsDirectoryFile);
+                        org.matrix.androidsdk.util.Log.init("RiotLog");
+
+                        // log the application version to trace update
+                        // useful to track backward compatibility issues
+
+                        Log.d(LOG_TAG, "----------------------------------------------------------------");
+                        Log.d(LOG_TAG, "----------------------------------------------------------------");
+                        Log.d(LOG_TAG, " Application version: " + VECTOR_VERSION_STRING);
+                        Log.d(LOG_TAG, " SDK version: " + SDK_VERSION_STRING);
+                        Log.d(LOG_TAG, " Local time: " + (new SimpleDateFormat("MM-dd HH:mm:ss.SSSZ", Locale.US)).format(new Date()));
+                        Log.d(LOG_TAG, "----------------------------------------------------------------");
+                        Log.d(LOG_TAG, "----------------------------------------------------------------\n\n\n\n");
+                    }
+                }, "matrix")
+                .add("rageShake", StartupTaskGraph.Mode.MAIN, new Runnable() {
+                    @Override
+                    public void run() {
+                        mRageShake = new RageShake(VectorApp.this);
+
+                        // init the REST client
+                        MXSession.initUserAgent(getApplicationContext());
+                    }
+                })
+                .add("activityCallbacks", StartupTaskGraph.Mode.MAIN, new Runnable() {
+                    @Override
+                    public void run() {
+                        registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
+                            final Map<String, String> mLocalesByActivity = new HashMap<>();
+
+                            @Override
+                            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                                Log.d(LOG_TAG, "onActivityCreated " + activity);
+                                mCreatedActivities.add(activity.toString());
+                                // piwik
+                                onNewScreen(activity);
+                            }
+
+                            @Override
+                            public void onActivityStarted(Activity activity) {
+                                Log.d(LOG_TAG, "onActivityStarted " + activity);
+                            }
+
+                            /**
+                             * Compute the locale status value
+                             * @param activity the activity
+                             * @return the local status value
+                             */
+                            private String getActivityLocaleStatus(Activity activity) {
+                                return getApplicationLocale().toString()
+                                        + "_" + FontScale.INSTANCE.getFontScalePrefValue()
+                                        + "_" + ThemeUtils.INSTANCE.getApplicationTheme(activity);
+                            }
+
+                            @Override
+                            public void onActivityResumed(final Activity activity) {
+                                Log.d(LOG_TAG, "onActivityResumed " + activity);
+                                setCurrentActivity(activity);
+
+                                String activityKey = activity.toString();
+
+                                if (mLocalesByActivity.containsKey(activityKey)) {
+                                    String prevActivityLocale = mLocalesByActivity.get(activityKey);
+
+                                    if (!TextUtils.equals(prevActivityLocale, getActivityLocaleStatus(activity))) {
+                                        Log.d(LOG_TAG, "## onActivityResumed() : restart the activity " + activity
+                                                + " because of the locale update from " + prevActivityLocale + " to " + getActivityLocaleStatus(activity));
+                                        restartActivity(activity);
+                                        return;
+                                    }
+                                }
+
+                                // it should never happen as there is a broadcast receiver (mLanguageReceiver)
+                                if (!TextUtils.equals(Locale.getDefault().toString(), getApplicationLocale().toString())) {
+                                    Log.d(LOG_TAG, "## onActivityResumed() : the locale has been updated to " + Locale.getDefault().toString()
+                                            + ", restore the expected value " + getApplicationLocale().toString());
+                                    updateApplicationSettings(getApplicationLocale(),
+                                            FontScale.INSTANCE.getFontScalePrefValue(),
+                                            ThemeUtils.INSTANCE.getApplicationTheme(activity));
+                                    restartActivity(activity);
+                                }
+
+                                listPermissionStatuses();
+                            }
+
+                            @Override
+                            public void onActivityPaused(Activity activity) {
+                                Log.d(LOG_TAG, "onActivityPaused " + activity);
+                                mLocalesByActivity.put(activity.toString(), getActivityLocaleStatus(activity));
+                                setCurrentActivity(null);
+                                onAppPause();
+                            }
+
+                            @Override
+                            public void onActivityStopped(Activity activity) {
+                                Log.d(LOG_TAG, "onActivityStopped " + activity);
+                            }
+
+                            @Override
+                            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+                                Log.d(LOG_TAG, "onActivitySaveInstanceState " + activity);
+                            }
+
+                            @Override
+                            public void onActivityDestroyed(Activity activity) {
+                                Log.d(LOG_TAG, "onActivityDestroyed " + activity);
+                                mCreatedActivities.remove(activity.toString());
+                                mLocalesByActivity.remove(activity.toString());
+
+                                if (mCreatedActivities.size() > 1) {
+                                    Log.d(LOG_TAG, "onActivityDestroyed : \n" + mCreatedActivities);
+                                }
+                            }
+                        });
+                    }
+                }, "analytics")
+                .add("locale", StartupTaskGraph.Mode.MAIN, new Runnable() {
+                    @Override
+                    public void run() {
+                        // track external language updates
+                        // local update from the settings
+                        // or screen rotation !
+                        registerReceiver(mLanguageReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+                        registerReceiver(mLanguageReceiver, new IntentFilter(Intent.ACTION_CONFIGURATION_CHANGED));
+
+                        PreferencesManager.fixMigrationIssues(VectorApp.this);
+                        initApplicationLocale();
+                    }
+                })
+                // the known locales are only used by the settings
+                .add("knownLocales", StartupTaskGraph.Mode.BACKGROUND, new Runnable() {
+                    @Override
+                    public void run() {
+                        getApplicationLocales(VectorApp.this);
+                    }
+                }, "locale")
+                // the markdown parser is a WebView, whose creation is slow
+                .add("markdownParser", StartupTaskGraph.Mode.DEFERRED, new Runnable() {
+                    @Override
+                    public void run() {
+                        initMarkdownParser();
+                    }
+                })
+                .add("analyticsVariables", StartupTaskGraph.Mode.DEFERRED, new Runnable() {
+                    @Override
+                    public void run() {
+                        visitSessionVariables();
+                    }
+                }, "analytics", "matrix", "locale")
+                .add("stetho", StartupTaskGraph.Mode.DEFERRED, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (BuildConfig.DEBUG) {
+                            Stetho.initializeWithDefaults(VectorApp.this);
+                        }
+                    }
+                })
+                .start(new StartupTaskGraph.Listener() {
+                    @Override
+                    public void onCompleted(Map<String, Long> durations) {
+                        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+                            mAppAnalytics.trackEvent(new TrackingEvent.StartupTask(entry.getKey(), entry.getValue()));
+                        }
+                    }
+                });
 
-            @Override
-            public void onActivityDestroyed(Activity activity) {
-                Log.d(LOG_TAG, "onActivityDestroyed " + activity);
-                mCreatedActivities.remove(activity.toString());
-                mLocalesByActivity.remove(activity.toString());
+        long duration = SystemClock.elapsedRealtime() - startTime;
+        Log.d(LOG_TAG, "## onCreate() : done in " + duration + " ms");
+        mAppAnalytics.trackEvent(new TrackingEvent.StartupTask("onCreate", duration));
+    }
 
-                if (mCreatedActivities.size() > 1) {
-                    Log.d(LOG_TAG, "onActivityDestroyed : \n" + mCreatedActivities);
-                }
+    /**
+     * Create the markdown parser if it is not yet created.
+     * It must be called on the main thread.
+     */
+    private void initMarkdownParser() {
+        if (null == mMarkdownParser) {
+            try {
+                mMarkdownParser = new VectorMarkdownParser(this);
+            } catch (Exception e) {
+                // reported by GA
+                Log.e(LOG_TAG, "cannot create the mMarkdownParser " + e.getMessage(), e);
             }
-        });
-
-        // create the markdown parser
-        try {
-            mMarkdownParser = new VectorMarkdownParser(this);
-        } catch (Exception e) {
-            // reported by GA
-            Log.e(LOG_TAG, "cannot create the mMarkdownParser " + e.getMessage(), e);
         }
-
-        // track external language updates
-        // local update from the settings
-        // or screen rotation !
-        registerReceiver(mLanguageReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
-        registerReceiver(mLanguageReceiver, new IntentFilter(Intent.ACTION_CONFIGURATION_CHANGED));
-
-        PreferencesManager.fixMigrationIssues(this);
-        initApplicationLocale();
-        visitSessionVariables();
     }
 
     @Override
@@ -368,6 +449,11 @@ public class VectorApp extends MultiDexApplication {
      * @param listener the result listener
      */
     public static void markdownToHtml(final String text, final VectorMarkdownParser.IVectorMarkdownParserListener listener) {
+        // the parser creation is deferred after the first frame
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            getInstance().initMarkdownParser();
+        }
+
         if (null != getInstance().mMarkdownParser) {
             getInstance().mMarkdownParser.markdownToHtml(text, listener);
         } else {
@@ -404,18 +490,18 @@ public class VectorApp extends MultiDexApplication {
                 session.setSyncDelay(gcmRegistrationManager.isBackgroundSyncAllowed() ? gcmRegistrationManager.getBackgroundSyncDelay() : 0);
                 session.setSyncTimeout(gcmRegistrationManager.getBackgroundSyncTimeOut());
 
-                // remove older medias
-                if ((System.currentTimeMillis() - mLastMediasCheck) < (24 * 60 * 60 * 1000)) {
-                    mLastMediasCheck = System.currentTimeMillis();
-                    session.removeMediasBefore(VectorApp.this, PreferencesManager.getMinMediasLastAccessTime(getApplicationContext()));
-                }
-
                 if (session.getDataHandler().areLeftRoomsSynced()) {
                     session.getDataHandler().releaseLeftRooms();
                 }
             }
         }
 
+        // remove older medias
+        if ((System.currentTimeMillis() - mLastMediasCheck) > (24 * 60 * 60 * 1000)) {
+            mLastMediasCheck = System.currentTimeMillis();
+            evictMedias(sessions);
+        }
+
         clearSyncingSessions();
 
         PIDsRetriever.getInstance().onAppBackgrounded();
@@ -427,6 +513,31 @@ public class VectorApp extends MultiDexApplication {
         onAppPause();
     }
 
+    /**
+     * Delete the medias which have not been accessed during the saving period,
+     * and the least recently used ones when the media cache is larger than its budget.
+     *
+     * @param sessions the sessions
+     */
+    private void evictMedias(final List<MXSession> sessions) {
+        final long maxSize = PreferencesManager.getMediasCacheMaxSize(this);
+        final long minAccessTime = PreferencesManager.getMinMediasLastAccessTime(this);
+
+        AppExecutors.execute(AppExecutors.Pool.IO, "evictMedias", new Runnable() {
+            @Override
+            public void run() {
+                // the pending uploads must be kept
+                Set<String> pathsToKeep = new HashSet<>();
+
+                for (MXSession session : sessions) {
+                    pathsToKeep.addAll(MediaCacheJournal.getLocalMediaPaths(session));
+                }
+
+                MediaCacheJournal.getInstance(VectorApp.this).evict(maxSize, minAccessTime, pathsToKeep);
+            }
+        });
+    }
+
     /**
      * Test if application is put in background.
      * i.e wait 2s before assuming that the application is put in background.
@@ -813,18 +924,6 @@ public class VectorApp extends MultiDexApplication {
 
         // init the theme
         ThemeUtils.INSTANCE.setApplicationTheme(context, theme);
-
-        // init the known locales in background
-        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                getApplicationLocales(VectorApp.getInstance());
-                return null;
-            }
-        };
-
-        // should never crash
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     /**
@@ -53,7 +53,6 @@ import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.matrix.androidsdk.MXDataHandler;
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
 import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
@@ -90,11 +89,13 @@ import im.vector.contacts.ContactsManager;
 import im.vector.contacts.PIDsRetriever;
 import im.vector.fragments.VectorUnknownDevicesFragment;
 import im.vector.gcm.GcmRegistrationManager;
+import im.vector.notifications.BadgeCountService;
 import im.vector.services.EventStreamService;
 import im.vector.util.MatrixSdkExtensionsKt;
+import im.vector.util.MemoryPressureCoordinator;
 import im.vector.util.PreferencesManager;
 import im.vector.util.VectorUtils;
-import me.leolin.shortcutbadger.ShortcutBadger;
+import im.vector.widgets.WidgetsManager;
 
 /**
  * Contains useful functions which are called in multiple activities.
@@ -337,11 +338,7 @@ public class CommonActivityUtils {
         EventStreamService.removeNotification();
         stopEventStream(context);
 
-        try {
-            ShortcutBadger.setBadge(context, 0);
-        } catch (Exception e) {
-            Log.d(LOG_TAG, "## logout(): Exception Msg=" + e.getMessage(), e);
-        }
+        BadgeCountService.getInstance(context).clearBadgeCount();
 
         // warn that the user logs out
         Collection<MXSession> sessions = Matrix.getMXSessions(context);
@@ -353,6 +350,7 @@ public class CommonActivityUtils {
 
         // clear the preferences
         PreferencesManager.clearPreferences(context);
+        WidgetsManager.clearScalarTokens(context);
 
         // reset the GCM
         Matrix.getInstance(context).getSharedGCMRegistrationManager().resetGCMRegistration();
@@ -425,11 +423,7 @@ public class CommonActivityUtils {
                 EventStreamService.removeNotification();
                 stopEventStream(context);
 
-                try {
-                    ShortcutBadger.setBadge(context, 0);
-                } catch (Exception e) {
-                    Log.d(LOG_TAG, "## logout(): Exception Msg=" + e.getMessage(), e);
-                }
+                BadgeCountService.getInstance(context).clearBadgeCount();
 
                 // Publish to the server that we're now offline
                 MyPresenceManager.getInstance(context, mxSession).advertiseOffline();
@@ -437,6 +431,7 @@ public class CommonActivityUtils {
 
                 // clear the preferences
                 PreferencesManager.clearPreferences(context);
+                WidgetsManager.clearScalarTokens(context);
 
                 // reset the GCM
                 Matrix.getInstance(context).getSharedGCMRegistrationManager().resetGCMRegistration();
@@ -1638,8 +1633,6 @@ public class CommonActivityUtils {
     // Application badge (displayed in the launcher)
     //==============================================================================================================
 
-    private static int mBadgeValue = 0;
-
     /**
      * Update the application badge value.
      *
@@ -1647,12 +1640,7 @@ public class CommonActivityUtils {
      * @param badgeValue the new badge value
      */
     public static void updateBadgeCount(Context context, int badgeValue) {
-        try {
-            mBadgeValue = badgeValue;
-            ShortcutBadger.setBadge(context, badgeValue);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## updateBadgeCount(): Exception Msg=" + e.getMessage(), e);
-        }
+        BadgeCountService.getInstance(context).setBadgeCount(badgeValue);
     }
 
     /**
@@ -1660,18 +1648,17 @@ public class CommonActivityUtils {
      * The refresh is only effective if the device is:
      * <ul><li>offline</li><li>does not support GCM</li>
      * <li>GCM registration failed</li>
-     * <br>Notifications rooms are parsed to track the notification count value.
+     * <br>The unread state of the room is updated in the session unread rooms count.
      *
      * @param aSession session value
+     * @param aRoomId  the updated room id
      * @param aContext App context
      */
-    public static void specificUpdateBadgeUnreadCount(MXSession aSession, Context aContext) {
-        MXDataHandler dataHandler;
-
+    public static void specificUpdateBadgeUnreadCount(MXSession aSession, String aRoomId, Context aContext) {
         // sanity check
         if ((null == aContext) || (null == aSession)) {
             Log.w(LOG_TAG, "## specificUpdateBadgeUnreadCount(): invalid input null values");
-        } else if ((null == (dataHandler = aSession.getDataHandler()))) {
+        } else if (null == aSession.getDataHandler()) {
             Log.w(LOG_TAG, "## specificUpdateBadgeUnreadCount(): invalid DataHandler instance");
         } else {
             if (aSession.isAlive()) {
@@ -1683,37 +1670,13 @@ public class CommonActivityUtils {
                 isRefreshRequired |= (null != gcmMgr) && (!gcmMgr.useGCM() || !gcmMgr.hasRegistrationToken());
 
                 if (isRefreshRequired) {
-                    updateBadgeCount(aContext, dataHandler);
-                }
-            }
-        }
-    }
+                    BadgeCountService badgeCountService = BadgeCountService.getInstance(aContext);
+                    badgeCountService.onRoomUpdate(aSession, aRoomId);
 
-    /**
-     * Update the badge count value according to the rooms content.
-     *
-     * @param aContext     App context
-     * @param aDataHandler data handler instance
-     */
-    private static void updateBadgeCount(Context aContext, MXDataHandler aDataHandler) {
-        //sanity check
-        if ((null == aContext) || (null == aDataHandler)) {
-            Log.w(LOG_TAG, "## updateBadgeCount(): invalid input null values");
-        } else if (null == aDataHandler.getStore()) {
-            Log.w(LOG_TAG, "## updateBadgeCount(): invalid store instance");
-        } else {
-            List<Room> roomCompleteList = new ArrayList<>(aDataHandler.getStore().getRooms());
-            int unreadRoomsCount = 0;
-
-            for (Room room : roomCompleteList) {
-                if (room.getNotificationCount() > 0) {
-                    unreadRoomsCount++;
+                    Log.d(LOG_TAG, "## specificUpdateBadgeUnreadCount(): badge update count=" + badgeCountService.getUnreadRoomsCount());
+                    badgeCountService.setBadgeCount(badgeCountService.getUnreadRoomsCount());
                 }
             }
-
-            // update the badge counter
-            Log.d(LOG_TAG, "## updateBadgeCount(): badge update count=" + unreadRoomsCount);
-            CommonActivityUtils.updateBadgeCount(aContext, unreadRoomsCount);
         }
     }
 
@@ -1777,6 +1740,8 @@ public class CommonActivityUtils {
             String activityName = (null != activity) ? activity.getClass().getSimpleName() : "NotAvailable";
             Log.e(LOW_MEMORY_LOG_TAG, "Active application : onLowMemory from " + activityName);
 
+            MemoryPressureCoordinator.onLowMemory();
+
             // it seems that onLowMemory is called whereas the device is seen on low memory condition
             // so, test if the both conditions
             if (displayMemoryInformation(activity, "onLowMemory test")) {
@@ -1806,7 +1771,8 @@ public class CommonActivityUtils {
     public static void onTrimMemory(Activity activity, int level) {
         String activityName = (null != activity) ? activity.getClass().getSimpleName() : "NotAvailable";
         Log.e(LOW_MEMORY_LOG_TAG, "Active application : onTrimMemory from " + activityName + " level=" + level);
-        // TODO implement things to reduce memory usage
+
+        MemoryPressureCoordinator.onTrimMemory(level);
 
         displayMemoryInformation(activity, "onTrimMemory");
     }
@@ -19,7 +19,6 @@ package im.vector.activity;
 
 import android.app.SearchManager;
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.v7.widget.DividerItemDecoration;
@@ -54,6 +53,7 @@ import im.vector.Matrix;
 import im.vector.R;
 import im.vector.adapters.AbsAdapter;
 import im.vector.adapters.HomeRoomAdapter;
+import im.vector.util.AppExecutors;
 import im.vector.util.RoomUtils;
 import im.vector.util.ThemeUtils;
 import im.vector.view.EmptyViewItemDecoration;
@@ -89,7 +89,7 @@ public class HistoricalRoomsActivity extends RiotAppCompatActivity implements
     private HomeRoomAdapter mHistoricalAdapter;
 
     // pending tasks
-    private final List<AsyncTask> mSortingAsyncTasks = new ArrayList<>();
+    private final AppExecutors.TaskGroup mSortingTasks = new AppExecutors.TaskGroup();
 
     // sessions
     private MXSession mSession;
@@ -155,9 +155,7 @@ public class HistoricalRoomsActivity extends RiotAppCompatActivity implements
         super.onStop();
 
         // Cancel running async tasks to prevent memory leaks
-        for (AsyncTask asyncTask : mSortingAsyncTasks) {
-            asyncTask.cancel(true);
-        }
+        mSortingTasks.cancelAll();
     }
 
     /*
@@ -267,32 +265,22 @@ public class HistoricalRoomsActivity extends RiotAppCompatActivity implements
             }
         }
 
-        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+        mSortingTasks.execute(AppExecutors.Pool.COMPUTE, "initHistoricalRoomsData", new AppExecutors.Task<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
-                if (!isCancelled()) {
-                    try {
-                        Collections.sort(historicalRooms, RoomUtils.getHistoricalRoomsComparator(mSession, false));
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "## initHistoricalRoomsData() : sort failed " + e.getMessage(), e);
-                    }
+            protected Void doInBackground() {
+                try {
+                    Collections.sort(historicalRooms, RoomUtils.getHistoricalRoomsComparator(mSession, false));
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## initHistoricalRoomsData() : sort failed " + e.getMessage(), e);
                 }
                 return null;
             }
 
             @Override
-            protected void onPostExecute(Void args) {
+            protected void onResult(Void result) {
                 mHistoricalAdapter.setRooms(historicalRooms);
             }
-        };
-
-        try {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-            mSortingAsyncTasks.add(task);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## initHistoricalRoomsData() failed " + e.getMessage(), e);
-            task.cancel(true);
-        }
+        });
     }
 
     /*
@@ -35,7 +35,7 @@ import im.vector.VectorApp
 import im.vector.activity.interfaces.Restorable
 import im.vector.dialogs.ConsentNotGivenHelper
 import im.vector.receiver.DebugReceiver
-import im.vector.util.AssetReader
+import im.vector.util.MemoryPressureCoordinator
 import im.vector.util.ThemeUtils
 import org.matrix.androidsdk.util.Log
 
@@ -72,7 +72,7 @@ abstract class RiotAppCompatActivity : AppCompatActivity() {
     override fun onLowMemory() {
         super.onLowMemory()
 
-        AssetReader.clearCache()
+        MemoryPressureCoordinator.onLowMemory()
     }
 
     override fun attachBaseContext(base: Context) {
@@ -58,13 +58,13 @@ import org.matrix.androidsdk.util.Log;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 import im.vector.Matrix;
 import im.vector.R;
 import im.vector.VectorApp;
 import im.vector.util.CallsManager;
+import im.vector.util.SharedScheduledExecutor;
 import im.vector.util.VectorUtils;
 import im.vector.util.ViewUtilKt;
 import im.vector.view.VectorPendingCallView;
@@ -102,8 +102,7 @@ public class VectorCallViewActivity extends RiotAppCompatActivity implements Sen
     private View mAcceptIncomingCallButton;
 
     // video screen management
-    private Timer mVideoFadingEdgesTimer;
-    private TimerTask mVideoFadingEdgesTimerTask;
+    private ScheduledFuture<?> mVideoFadingEdgesFuture;
     private static final int FADE_IN_DURATION = 250;
     private static final int FADE_OUT_DURATION = 2000;
     private static final int VIDEO_FADING_TIMER = 5000;
@@ -817,10 +816,9 @@ public class VectorCallViewActivity extends RiotAppCompatActivity implements Sen
      * Stop the video fading timer.
      */
     private void stopVideoFadingEdgesScreenTimer() {
-        if (null != mVideoFadingEdgesTimer) {
-            mVideoFadingEdgesTimer.cancel();
-            mVideoFadingEdgesTimer = null;
-            mVideoFadingEdgesTimerTask = null;
+        if (null != mVideoFadingEdgesFuture) {
+            SharedScheduledExecutor.cancel(mVideoFadingEdgesFuture);
+            mVideoFadingEdgesFuture = null;
         }
     }
 
@@ -836,25 +834,20 @@ public class VectorCallViewActivity extends RiotAppCompatActivity implements Sen
         // stop current timer in progress
         stopVideoFadingEdgesScreenTimer();
 
-        try {
-            mVideoFadingEdgesTimer = new Timer();
-            mVideoFadingEdgesTimerTask = new TimerTask() {
-                public void run() {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            stopVideoFadingEdgesScreenTimer();
-                            fadeOutVideoEdge();
-                        }
-                    });
-                }
-            };
-
-            mVideoFadingEdgesTimer.schedule(mVideoFadingEdgesTimerTask, VIDEO_FADING_TIMER);
-        } catch (Throwable throwable) {
-            Log.e(LOG_TAG, "## startVideoFadingEdgesScreenTimer() " + throwable.getMessage());
+        mVideoFadingEdgesFuture = SharedScheduledExecutor.schedule(new Runnable() {
+            public void run() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopVideoFadingEdgesScreenTimer();
+                        fadeOutVideoEdge();
+                    }
+                });
+            }
+        }, VIDEO_FADING_TIMER);
 
-            stopVideoFadingEdgesScreenTimer();
+        if (null == mVideoFadingEdgesFuture) {
+            Log.e(LOG_TAG, "## startVideoFadingEdgesScreenTimer() : cannot start the timer");
             fadeOutVideoEdge();
         }
     }
@@ -75,7 +75,6 @@ import com.getbase.floatingactionbutton.FloatingActionButton;
 import com.getbase.floatingactionbutton.FloatingActionsMenu;
 
 import org.jetbrains.annotations.NotNull;
-import org.matrix.androidsdk.MXDataHandler;
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.call.IMXCall;
 import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
@@ -85,22 +84,17 @@ import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomPreviewData;
 import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.data.RoomSummary;
-import org.matrix.androidsdk.data.RoomTag;
-import org.matrix.androidsdk.data.store.IMXStore;
 import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
-import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.Log;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -127,8 +121,9 @@ import im.vector.services.EventStreamService;
 import im.vector.util.BugReporter;
 import im.vector.util.CallsManager;
 import im.vector.util.PreferencesManager;
-import im.vector.util.RoomUtils;
+import im.vector.util.RoomInvitationsIndex;
 import im.vector.util.ThemeUtils;
+import im.vector.util.UnreadBadgeCounters;
 import im.vector.util.VectorUtils;
 import im.vector.view.UnreadCounterBadgeView;
 import im.vector.view.VectorPendingCallView;
@@ -264,9 +259,6 @@ public class VectorHomeActivity extends RiotAppCompatActivity implements SearchV
     // the current displayed fragment
     private String mCurrentFragmentTag;
 
-    private List<Room> mDirectChatInvitations;
-    private List<Room> mRoomInvitations;
-
     /*
      * *********************************************************************************************
      * Static methods
@@ -320,6 +312,9 @@ public class VectorHomeActivity extends RiotAppCompatActivity implements SearchV
 
         mSession = Matrix.getInstance(this).getDefaultSession();
 
+        // the badges are refreshed while initialising the views
+        mUnreadBadgeCounters = new UnreadBadgeCounters(mSession);
+
         // track if the application update
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         int version = preferences.getInt(PreferencesManager.VERSION_BUILD, 0);
@@ -1542,64 +1537,22 @@ public class VectorHomeActivity extends RiotAppCompatActivity implements SearchV
      * *********************************************************************************************
      */
 
+    /**
+     * Provides the invitations to display in the current tab, sorted from the oldest to the more recent one.
+     *
+     * @return the invitations list
+     */
     public List<Room> getRoomInvitations() {
-        if (mRoomInvitations == null) {
-            mRoomInvitations = new ArrayList<>();
-        } else {
-            mRoomInvitations.clear();
-        }
-        if (mDirectChatInvitations == null) {
-            mDirectChatInvitations = new ArrayList<>();
-        } else {
-            mDirectChatInvitations.clear();
-        }
-
-        if (null == mSession.getDataHandler().getStore()) {
-            Log.e(LOG_TAG, "## getRoomInvitations() : null store");
-            return new ArrayList<>();
-        }
-
-        Collection<RoomSummary> roomSummaries = mSession.getDataHandler().getStore().getSummaries();
-        for (RoomSummary roomSummary : roomSummaries) {
-            // reported by rageshake
-            // i don't see how it is possible to have a null roomSummary
-            if (null != roomSummary) {
-                String roomSummaryId = roomSummary.getRoomId();
-                Room room = mSession.getDataHandler().getStore().getRoom(roomSummaryId);
-
-                // check if the room exists
-                // the user conference rooms are not displayed.
-                if (room != null && !room.isConferenceUserRoom() && room.isInvited()) {
-                    if (room.isDirectChatInvitation()) {
-                        mDirectChatInvitations.add(room);
-                    } else {
-                        mRoomInvitations.add(room);
-                    }
-                }
-            }
-        }
+        RoomInvitationsIndex invitationsIndex = RoomInvitationsIndex.getInstance(mSession);
 
-        // the invitations are sorted from the oldest to the more recent one
-        Comparator<Room> invitationComparator = RoomUtils.getRoomsDateComparator(mSession, true);
-        Collections.sort(mDirectChatInvitations, invitationComparator);
-        Collections.sort(mRoomInvitations, invitationComparator);
-
-        List<Room> roomInvites = new ArrayList<>();
         switch (mCurrentMenuId) {
             case R.id.bottom_action_people:
-                roomInvites.addAll(mDirectChatInvitations);
-                break;
+                return invitationsIndex.getDirectChatInvitations();
             case R.id.bottom_action_rooms:
-                roomInvites.addAll(mRoomInvitations);
-                break;
+                return invitationsIndex.getRoomInvitations();
             default:
-                roomInvites.addAll(mDirectChatInvitations);
-                roomInvites.addAll(mRoomInvitations);
-                Collections.sort(roomInvites, invitationComparator);
-                break;
+                return invitationsIndex.getAllInvitations();
         }
-
-        return roomInvites;
     }
 
     public void onPreviewRoom(MXSession session, String roomId) {
@@ -1992,6 +1945,9 @@ public class VectorHomeActivity extends RiotAppCompatActivity implements SearchV
     // Badge view <-> menu entry id
     private final Map<Integer, UnreadCounterBadgeView> mBadgeViewByIndex = new HashMap<>();
 
+    // the tabs unread counters
+    private UnreadBadgeCounters mUnreadBadgeCounters;
+
     // events listener to track required refresh
     private final MXEventListener mBadgeEventsListener = new MXEventListener() {
         private boolean mRefreshBadgeOnChunkEnd = false;
@@ -1999,7 +1955,7 @@ public class VectorHomeActivity extends RiotAppCompatActivity implements SearchV
         @Override
         public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
             if (mRefreshBadgeOnChunkEnd) {
-                refreshUnreadBadges();
+                updateUnreadBadges();
                 mRefreshBadgeOnChunkEnd = false;
             }
         }
@@ -2009,42 +1965,72 @@ public class VectorHomeActivity extends RiotAppCompatActivity implements SearchV
             String eventType = event.getType();
 
             // refresh the UI at the end of the next events chunk
-            mRefreshBadgeOnChunkEnd |= ((event.roomId != null) && RoomSummary.isSupportedEvent(event)) ||
+            boolean isBadgeEvent = ((event.roomId != null) && RoomSummary.isSupportedEvent(event)) ||
                     Event.EVENT_TYPE_STATE_ROOM_MEMBER.equals(eventType) ||
                     Event.EVENT_TYPE_REDACTION.equals(eventType) ||
                     Event.EVENT_TYPE_TAGS.equals(eventType) ||
                     Event.EVENT_TYPE_STATE_ROOM_THIRD_PARTY_INVITE.equals(eventType);
 
+            if (isBadgeEvent) {
+                if (null != event.roomId) {
+                    mUnreadBadgeCounters.onRoomUpdate(event.roomId);
+                } else {
+                    mUnreadBadgeCounters.invalidate();
+                }
+
+                mRefreshBadgeOnChunkEnd = true;
+            }
         }
 
         @Override
         public void onReceiptEvent(String roomId, List<String> senderIds) {
             // refresh only if the current user read some messages (to update the unread messages counters)
-            mRefreshBadgeOnChunkEnd |= (senderIds.indexOf(mSession.getCredentials().userId) >= 0);
+            if (senderIds.indexOf(mSession.getCredentials().userId) >= 0) {
+                mUnreadBadgeCounters.onRoomUpdate(roomId);
+                mRefreshBadgeOnChunkEnd = true;
+            }
+        }
+
+        @Override
+        public void onNotificationCountUpdate(String roomId) {
+            mUnreadBadgeCounters.onRoomUpdate(roomId);
+            mRefreshBadgeOnChunkEnd = true;
         }
 
         @Override
         public void onLeaveRoom(final String roomId) {
+            mUnreadBadgeCounters.onRoomUpdate(roomId);
             mRefreshBadgeOnChunkEnd = true;
         }
 
         @Override
         public void onNewRoom(String roomId) {
+            mUnreadBadgeCounters.onRoomUpdate(roomId);
             mRefreshBadgeOnChunkEnd = true;
         }
 
         @Override
         public void onJoinRoom(String roomId) {
+            mUnreadBadgeCounters.onRoomUpdate(roomId);
             mRefreshBadgeOnChunkEnd = true;
         }
 
         @Override
         public void onDirectMessageChatRoomsListUpdate() {
+            mUnreadBadgeCounters.onDirectChatRoomsUpdate();
             mRefreshBadgeOnChunkEnd = true;
         }
 
         @Override
         public void onRoomTagEvent(String roomId) {
+            mUnreadBadgeCounters.onRoomUpdate(roomId);
+            mRefreshBadgeOnChunkEnd = true;
+        }
+
+        @Override
+        public void onBingRulesUpdate() {
+            // the mention only rooms may have changed
+            mUnreadBadgeCounters.invalidate();
             mRefreshBadgeOnChunkEnd = true;
         }
     };
@@ -2147,107 +2133,42 @@ public class VectorHomeActivity extends RiotAppCompatActivity implements SearchV
     }
 
     /**
-     * Refresh the badges
+     * Refresh the badges after computing again all the rooms contributions.
      */
     public void refreshUnreadBadges() {
-        MXDataHandler dataHandler = mSession.getDataHandler();
-        // fix a crash reported by GA
-        if (null == dataHandler) {
-            return;
-        }
+        mUnreadBadgeCounters.invalidate();
+        updateUnreadBadges();
+    }
 
-        IMXStore store = dataHandler.getStore();
-        // fix a crash reported by GA
-        if (null == store) {
+    /**
+     * Refresh the badges with the pending rooms updates.
+     */
+    private void updateUnreadBadges() {
+        if (!mUnreadBadgeCounters.refresh()) {
             return;
         }
 
-        BingRulesManager bingRulesManager = dataHandler.getBingRulesManager();
-        Collection<RoomSummary> summaries2 = store.getSummaries();
-        Map<Room, RoomSummary> roomSummaryByRoom = new HashMap<>();
-        Set<String> directChatInvitations = new HashSet<>();
-
-        for (RoomSummary summary : summaries2) {
-            Room room = store.getRoom(summary.getRoomId());
-
-            if (null != room) {
-                roomSummaryByRoom.put(room, summary);
-
-                if (!room.isConferenceUserRoom() && room.isInvited() && room.isDirectChatInvitation()) {
-                    directChatInvitations.add(room.getRoomId());
-                }
-            }
-        }
-
         Set<Integer> menuIndexes = new HashSet<>(mBadgeViewByIndex.keySet());
 
         // the badges are not anymore displayed on the home tab
         menuIndexes.remove(R.id.bottom_action_home);
 
         for (Integer id : menuIndexes) {
-            // use a map because contains is faster
-            Set<String> filteredRoomIdsSet = new HashSet<>();
+            int tab;
 
             if (id == R.id.bottom_action_favourites) {
-                List<Room> favRooms = mSession.roomsWithTag(RoomTag.ROOM_TAG_FAVOURITE);
-
-                for (Room room : favRooms) {
-                    filteredRoomIdsSet.add(room.getRoomId());
-                }
+                tab = UnreadBadgeCounters.TAB_FAVOURITES;
             } else if (id == R.id.bottom_action_people) {
-                filteredRoomIdsSet.addAll(mSession.getDataHandler().getDirectChatRoomIdsList());
-                // Add direct chat invitations
-                for (Room room : roomSummaryByRoom.keySet()) {
-                    if (room.isDirectChatInvitation() && !room.isConferenceUserRoom()) {
-                        filteredRoomIdsSet.add(room.getRoomId());
-                    }
-                }
-
-                // remove the low priority rooms
-                List<Room> lowPriorRooms = mSession.roomsWithTag(RoomTag.ROOM_TAG_LOW_PRIORITY);
-                for (Room room : lowPriorRooms) {
-                    filteredRoomIdsSet.remove(room.getRoomId());
-                }
+                tab = UnreadBadgeCounters.TAB_PEOPLE;
             } else if (id == R.id.bottom_action_rooms) {
-                Set<String> directChatRoomIds = new HashSet<>(mSession.getDataHandler().getDirectChatRoomIdsList());
-                Set<String> lowPriorityRoomIds = new HashSet<>(mSession.roomIdsWithTag(RoomTag.ROOM_TAG_LOW_PRIORITY));
-
-                directChatRoomIds.addAll(directChatInvitations);
-
-                for (Room room : roomSummaryByRoom.keySet()) {
-                    if (!room.isConferenceUserRoom() && // not a VOIP conference room
-                            !directChatRoomIds.contains(room.getRoomId()) && // not a direct chat
-                            !lowPriorityRoomIds.contains(room.getRoomId())) {
-                        filteredRoomIdsSet.add(room.getRoomId());
-                    }
-                }
+                tab = UnreadBadgeCounters.TAB_ROOMS;
+            } else {
+                tab = -1;
             }
 
             // compute the badge value and its displays
-            int highlightCount = 0;
-            int roomCount = 0;
-
-            for (String roomId : filteredRoomIdsSet) {
-                Room room = store.getRoom(roomId);
-
-                if (null != room) {
-                    highlightCount += room.getHighlightCount();
-
-                    if (room.isInvited()) {
-                        roomCount++;
-                    } else {
-                        int notificationCount = room.getNotificationCount();
-
-                        if (bingRulesManager.isRoomMentionOnly(roomId)) {
-                            notificationCount = room.getHighlightCount();
-                        }
-
-                        if (notificationCount > 0) {
-                            roomCount++;
-                        }
-                    }
-                }
-            }
+            int highlightCount = (tab < 0) ? 0 : mUnreadBadgeCounters.getHighlightCount(tab);
+            int roomCount = (tab < 0) ? 0 : mUnreadBadgeCounters.getUnreadRoomCount(tab);
 
             int status = (0 != highlightCount) ? UnreadCounterBadgeView.HIGHLIGHTED :
                     ((0 != roomCount) ? UnreadCounterBadgeView.NOTIFIED : UnreadCounterBadgeView.DEFAULT);
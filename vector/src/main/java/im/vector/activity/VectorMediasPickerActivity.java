@@ -18,6 +18,7 @@
 package im.vector.activity;
 
 import android.annotation.SuppressLint;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -31,6 +32,7 @@ import android.graphics.ImageFormat;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.graphics.drawable.BitmapDrawable;
 import android.hardware.Camera;
@@ -43,17 +45,18 @@ import android.net.Uri;
 import android.opengl.GLES20;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.HandlerThread;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TableLayout;
@@ -88,6 +91,8 @@ import javax.microedition.khronos.egl.EGLSurface;
 
 import im.vector.R;
 import im.vector.VectorApp;
+import im.vector.util.AppExecutors;
+import im.vector.util.MemoryPressureCoordinator;
 import im.vector.util.ViewUtilKt;
 import im.vector.view.RecentMediaLayout;
 import im.vector.view.VideoRecordView;
@@ -129,6 +134,37 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
     private static final double SURFACE_VIEW_HEIGHT_RATIO = 0.95;
     private static final int GALLERY_TABLE_ITEM_SIZE = (GALLERY_COLUMN_COUNT * GALLERY_RAW_COUNT);
 
+    // the max side of the thumbnails decoded from the image files (MediaStore MINI_KIND size)
+    private static final int GALLERY_THUMBNAIL_MAX_SIDE = 512;
+
+    // the gallery thumbnails cache, shared by the activity instances
+    private static final LruCache<String, Bitmap> sThumbnailsCache = new LruCache<String, Bitmap>((int) Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    };
+
+    static {
+        MemoryPressureCoordinator.register("gallery thumbnails", MemoryPressureCoordinator.PRIORITY_LOW, MemoryPressureCoordinator.RELEASE_POLICY_TRIM,
+                new MemoryPressureCoordinator.MemoryCache() {
+                    @Override
+                    public long getSize() {
+                        return sThumbnailsCache.size();
+                    }
+
+                    @Override
+                    public long getMaxSize() {
+                        return sThumbnailsCache.maxSize();
+                    }
+
+                    @Override
+                    public void trimToSize(long maxSize) {
+                        sThumbnailsCache.trimToSize((int) maxSize);
+                    }
+                });
+    }
+
     private static final int IMAGE_ORIGIN_CAMERA = 1;
     private static final int IMAGE_ORIGIN_GALLERY = 2;
 
@@ -148,6 +184,9 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         // the media thumbnail
         public Bitmap mThumbnail;
 
+        // true when the thumbnail cannot be loaded, it is not requested again
+        public boolean mIsThumbnailUnavailable;
+
         // tell if the media is a video
         public boolean mIsVideo;
 
@@ -155,9 +194,26 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         public String mMimeType = "";
     }
 
+    /**
+     * A gallery cell
+     */
+    private class GalleryCell {
+        // the cell view
+        public RecentMediaLayout mView;
+
+        // the displayed media
+        public MediaStoreMedia mMedia;
+
+        // the pending thumbnail load
+        public AppExecutors.Task<Bitmap> mThumbnailTask;
+    }
+
     // recents medias list
     private final List<MediaStoreMedia> mMediaStoreMediasList = new ArrayList<>();
 
+    // the displayed gallery cells
+    private final List<GalleryCell> mGalleryCells = new ArrayList<>();
+
     //
     private MediaStoreMedia mSelectedGalleryImage;
 
@@ -213,10 +269,20 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
     private int mPreviewTextureheight;
 
     /**
-     * The recent requests are performed in a dedicated thread
+     * The gallery requests and the thumbnails loads are cancelled when the activity is destroyed
      */
-    private HandlerThread mHandlerThread;
-    private android.os.Handler mFileHandler;
+    private final AppExecutors.TaskGroup mGalleryTasks = new AppExecutors.TaskGroup();
+    private AppExecutors.Task<List<MediaStoreMedia>> mListMediasTask;
+
+    private final Rect mVisibleRect = new Rect();
+
+    // load the thumbnails of the cells which are scrolled into view
+    private final ViewTreeObserver.OnScrollChangedListener mOnScrollChangedListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            refreshGalleryThumbnails();
+        }
+    };
 
     private VideoRecordView mRecordAnimationView;
 
@@ -346,10 +412,7 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
 
         initCameraLayout();
 
-        // setup separate thread for image gallery update
-        mHandlerThread = new HandlerThread("VectorMediasPickerActivityThread");
-        mHandlerThread.start();
-        mFileHandler = new android.os.Handler(mHandlerThread.getLooper());
+        mPreviewScrollView.getViewTreeObserver().addOnScrollChangedListener(mOnScrollChangedListener);
 
         if (isFirstCreation()) {
             // default UI: if a taken image is not in preview, then display: live camera preview + "take picture"/switch/exit buttons
@@ -375,10 +438,8 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
     protected void onDestroy() {
         super.onDestroy();
 
-        if (null != mHandlerThread) {
-            mHandlerThread.quit();
-            mHandlerThread = null;
-        }
+        mPreviewScrollView.getViewTreeObserver().removeOnScrollChangedListener(mOnScrollChangedListener);
+        mGalleryTasks.cancelAll();
     }
 
     @Override
@@ -981,6 +1042,14 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
             mPreviewScrollView.setVisibility(View.VISIBLE);
             mPreviewLayout.setVisibility(View.GONE);
         }
+
+        // start or cancel the gallery thumbnails loads
+        mPreviewScrollView.post(new Runnable() {
+            @Override
+            public void run() {
+                refreshGalleryThumbnails();
+            }
+        });
     }
 
     /**
@@ -1811,6 +1880,7 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
     /**
      * Populate mMediaStoreImagesList with the images retrieved from the MediaStore.
      * Max number of retrieved medias is set to GALLERY_TABLE_ITEM_SIZE.
+     * Only the medias descriptions are retrieved, the thumbnails are loaded when the cells are displayed.
      *
      * @return the medias list
      */
@@ -1847,24 +1917,8 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                         recentMedia.mMimeType = imagesThumbnailsCursor.getString(mimeTypeIndex);
                         recentMedia.mCreationTime = Long.parseLong(dateAsString);
 
-                        recentMedia.mThumbnail = MediaStore.Images.Thumbnails.getThumbnail(getContentResolver(),
-                                Long.parseLong(id), MediaStore.Images.Thumbnails.MINI_KIND, null);
                         recentMedia.mFileUri = Uri.parse(MediaStore.Images.Media.EXTERNAL_CONTENT_URI.toString() + "/" + id);
 
-                        int rotationAngle = ImageUtils.getRotationAngleForBitmap(VectorMediasPickerActivity.this, recentMedia.mFileUri);
-
-                        if (0 != rotationAngle) {
-                            android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
-                            bitmapMatrix.postRotate(rotationAngle);
-                            recentMedia.mThumbnail = Bitmap.createBitmap(recentMedia.mThumbnail,
-                                    0,
-                                    0,
-                                    recentMedia.mThumbnail.getWidth(),
-                                    recentMedia.mThumbnail.getHeight(),
-                                    bitmapMatrix,
-                                    false);
-                        }
-
                         mediasList.add(recentMedia);
                     } catch (Exception e) {
                         Log.e(LOG_TAG, "## listLatestMedias(): Msg=" + e.getMessage(), e);
@@ -1906,8 +1960,6 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                             recentMedia.mMimeType = videoThumbnailsCursor.getString(mimeTypeIndex);
                             recentMedia.mCreationTime = Long.parseLong(dateAsString);
 
-                            recentMedia.mThumbnail = MediaStore.Video.Thumbnails.getThumbnail(getContentResolver(),
-                                    Long.parseLong(id), MediaStore.Video.Thumbnails.MINI_KIND, null);
                             recentMedia.mFileUri = Uri.parse(MediaStore.Video.Media.EXTERNAL_CONTENT_URI.toString() + "/" + id);
 
                             mediasList.add(recentMedia);
@@ -1947,44 +1999,48 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
      * @return the number of displayed medias
      */
     private int getMediaStoreMediasCount() {
-        int retValue = 0;
-        Cursor imageThumbnailsCursor = null;
+        int retValue = countMediaStoreRows(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, MediaStore.Images.ImageColumns._ID);
 
-        try {
-            imageThumbnailsCursor = getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                    null, // no projection
-                    null,
-                    null,
-                    null);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## getMediaStoreImageCount() Exception Msg=" + e.getMessage(), e);
+        if (mIsVideoRecordingSupported) {
+            retValue += countMediaStoreRows(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, MediaStore.Video.VideoColumns._ID);
         }
 
-        if (null != imageThumbnailsCursor) {
-            retValue += imageThumbnailsCursor.getCount();
-            imageThumbnailsCursor.close();
-        }
+        return Math.min(retValue, GALLERY_TABLE_ITEM_SIZE);
+    }
 
-        if (mIsVideoRecordingSupported) {
-            Cursor videoThumbnailsCursor = null;
+    /**
+     * Count the rows of a media store table, up to GALLERY_TABLE_ITEM_SIZE.
+     * The limit is given to the provider from Android O, the older providers return the whole table.
+     *
+     * @param uri      the table URI
+     * @param idColumn the id column
+     * @return the rows count
+     */
+    private int countMediaStoreRows(Uri uri, String idColumn) {
+        Cursor cursor = null;
+        int count = 0;
 
-            try {
-                videoThumbnailsCursor = getContentResolver().query(MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
-                        null, // no projection
-                        null,
-                        null,
-                        null);
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "## getMediaStoreImageCount() Exception Msg=" + e.getMessage(), e);
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                Bundle queryArgs = new Bundle();
+                queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, GALLERY_TABLE_ITEM_SIZE);
+                cursor = getContentResolver().query(uri, new String[]{idColumn}, queryArgs, null);
+            } else {
+                cursor = getContentResolver().query(uri, new String[]{idColumn}, null, null, null);
             }
 
-            if (null != videoThumbnailsCursor) {
-                retValue += videoThumbnailsCursor.getCount();
-                videoThumbnailsCursor.close();
+            if (null != cursor) {
+                count = Math.min(cursor.getCount(), GALLERY_TABLE_ITEM_SIZE);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## countMediaStoreRows() Exception Msg=" + e.getMessage(), e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
             }
         }
 
-        return Math.min(retValue, GALLERY_TABLE_ITEM_SIZE);
+        return count;
     }
 
     /**
@@ -2018,26 +2074,169 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
 
         mMediaStoreMediasList.clear();
 
+        if (null != mListMediasTask) {
+            mListMediasTask.cancel();
+        }
+
         // run away from the UI thread
-        mFileHandler.post(new Runnable() {
+        mListMediasTask = mGalleryTasks.execute(AppExecutors.Pool.IO, LOG_TAG + "_listLatestMedias", new AppExecutors.Task<List<MediaStoreMedia>>() {
             @Override
-            public void run() {
-                // populate the image thumbnails from multimedia store
-                final List<MediaStoreMedia> medias = listLatestMedias();
+            protected List<MediaStoreMedia> doInBackground() {
+                return listLatestMedias();
+            }
+
+            @Override
+            protected void onResult(List<MediaStoreMedia> medias) {
+                mListMediasTask = null;
+                mMediaStoreMediasList.addAll(medias);
+                buildGalleryTableLayout();
+                progressBar.setVisibility(View.GONE);
+                mTakeImageView.setEnabled(true);
+                mTakeImageView.setAlpha(ViewUtilKt.UTILS_OPACITY_FULL);
+            }
+        });
+    }
 
-                // update the UI part
-                runOnUiThread(new Runnable() {
+    /**
+     * Load the thumbnail of a gallery media.
+     * It must be called in a background thread.
+     *
+     * @param media the media
+     * @return the thumbnail, null if it cannot be retrieved
+     */
+    private Bitmap loadThumbnail(MediaStoreMedia media) {
+        Bitmap thumbnail = null;
+
+        try {
+            long id = Long.parseLong(media.mFileUri.getLastPathSegment());
+
+            // the MediaStore keeps the generated thumbnails on disk
+            if (media.mIsVideo) {
+                thumbnail = MediaStore.Video.Thumbnails.getThumbnail(getContentResolver(), id, MediaStore.Video.Thumbnails.MINI_KIND, null);
+            } else {
+                thumbnail = MediaStore.Images.Thumbnails.getThumbnail(getContentResolver(), id, MediaStore.Images.Thumbnails.MINI_KIND, null);
+
+                // the MediaStore cannot always generate it
+                if (null == thumbnail) {
+                    thumbnail = decodeThumbnail(media.mFileUri);
+                }
+
+                int rotationAngle = ImageUtils.getRotationAngleForBitmap(VectorMediasPickerActivity.this, media.mFileUri);
+
+                if ((null != thumbnail) && (0 != rotationAngle)) {
+                    android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
+                    bitmapMatrix.postRotate(rotationAngle);
+                    thumbnail = Bitmap.createBitmap(thumbnail,
+                            0,
+                            0,
+                            thumbnail.getWidth(),
+                            thumbnail.getHeight(),
+                            bitmapMatrix,
+                            false);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## loadThumbnail(): Msg=" + e.getMessage(), e);
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## loadThumbnail(): oom " + oom.getMessage(), oom);
+        }
+
+        if (null != thumbnail) {
+            sThumbnailsCache.put(media.mFileUri.toString(), thumbnail);
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Decode a subsampled bitmap from an image file.
+     * It must be called in a background thread.
+     *
+     * @param uri the image uri
+     * @return the bitmap, null if it cannot be decoded
+     * @throws IOException if the file cannot be read
+     */
+    private Bitmap decodeThumbnail(Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+
+        InputStream stream = getContentResolver().openInputStream(uri);
+
+        if (null == stream) {
+            return null;
+        }
+
+        try {
+            BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            stream.close();
+        }
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        options.inSampleSize = 1;
+
+        while ((Math.max(options.outWidth, options.outHeight) / (options.inSampleSize * 2)) >= GALLERY_THUMBNAIL_MAX_SIDE) {
+            options.inSampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        stream = getContentResolver().openInputStream(uri);
+
+        if (null == stream) {
+            return null;
+        }
+
+        try {
+            return BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Start the thumbnails loads of the visible gallery cells
+     * and cancel the pending ones of the cells which have been scrolled out.
+     */
+    private void refreshGalleryThumbnails() {
+        boolean isGalleryVisible = (View.VISIBLE == mPreviewScrollView.getVisibility());
+
+        for (final GalleryCell cell : mGalleryCells) {
+            if ((null != cell.mMedia.mThumbnail) || cell.mMedia.mIsThumbnailUnavailable) {
+                continue;
+            }
+
+            boolean isVisible = isGalleryVisible && cell.mView.getLocalVisibleRect(mVisibleRect);
+
+            if (!isVisible) {
+                if (null != cell.mThumbnailTask) {
+                    cell.mThumbnailTask.cancel();
+                    cell.mThumbnailTask = null;
+                }
+            } else if (null == cell.mThumbnailTask) {
+                cell.mThumbnailTask = mGalleryTasks.execute(AppExecutors.Pool.IO, LOG_TAG + "_loadThumbnail", new AppExecutors.Task<Bitmap>() {
                     @Override
-                    public void run() {
-                        mMediaStoreMediasList.addAll(medias);
-                        buildGalleryTableLayout();
-                        progressBar.setVisibility(View.GONE);
-                        mTakeImageView.setEnabled(true);
-                        mTakeImageView.setAlpha(ViewUtilKt.UTILS_OPACITY_FULL);
+                    protected Bitmap doInBackground() {
+                        return loadThumbnail(cell.mMedia);
+                    }
+
+                    @Override
+                    protected void onResult(Bitmap thumbnail) {
+                        cell.mThumbnailTask = null;
+
+                        if (null != thumbnail) {
+                            cell.mMedia.mThumbnail = thumbnail;
+                            cell.mView.setThumbnail(thumbnail);
+                        } else {
+                            // do not load it again at each scroll
+                            cell.mMedia.mIsThumbnailUnavailable = true;
+                        }
                     }
                 });
             }
-        });
+        }
     }
 
     /**
@@ -2056,6 +2255,13 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         TableLayout.LayoutParams tableLayoutParams = new TableLayout.LayoutParams();
 
         if (null != mGalleryTableLayout) {
+            for (GalleryCell cell : mGalleryCells) {
+                if (null != cell.mThumbnailTask) {
+                    cell.mThumbnailTask.cancel();
+                }
+            }
+            mGalleryCells.clear();
+
             mGalleryTableLayout.removeAllViews();
             mGalleryTableLayout.setBackgroundColor(Color.WHITE);
 
@@ -2100,12 +2306,20 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                 if (null != recentMedia) {
                     recentMediaView = new RecentMediaLayout(this);
 
+                    if (null == recentMedia.mThumbnail) {
+                        recentMedia.mThumbnail = sThumbnailsCache.get(recentMedia.mFileUri.toString());
+                    }
+
+                    // the missing thumbnails are loaded when the cell is displayed
                     if (null != recentMedia.mThumbnail) {
                         recentMediaView.setThumbnail(recentMedia.mThumbnail);
-                    } else {
-                        recentMediaView.setThumbnailByUri(recentMedia.mFileUri);
                     }
 
+                    GalleryCell cell = new GalleryCell();
+                    cell.mView = recentMediaView;
+                    cell.mMedia = recentMedia;
+                    mGalleryCells.add(cell);
+
                     recentMediaView.setBackgroundColor(Color.BLACK);
                     recentMediaView.setThumbnailScaleType(scaleType);
                     final MediaStoreMedia finalRecentMedia = recentMedia;
@@ -2158,6 +2372,14 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
             if (null != tableRow)
                 mGalleryTableLayout.addView(tableRow, tableLayoutParams);
 
+            // the cells visibility is known after the layout
+            mGalleryTableLayout.post(new Runnable() {
+                @Override
+                public void run() {
+                    refreshGalleryThumbnails();
+                }
+            });
+
         } else {
             Log.w(LOG_TAG, "## buildGalleryImageTableLayout(): failure - TableLayout widget missing");
         }
@@ -101,8 +101,6 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import butterknife.BindView;
 import butterknife.OnClick;
@@ -122,9 +120,11 @@ import im.vector.util.MatrixSdkExtensionsKt;
 import im.vector.util.MatrixURLSpan;
 import im.vector.util.PreferencesManager;
 import im.vector.util.ReadMarkerManager;
+import im.vector.util.RoomMembersStatus;
 import im.vector.util.RoomUtils;
 import im.vector.util.SlashCommandsParser;
 import im.vector.util.ThemeUtils;
+import im.vector.util.TypingNotificationsHandler;
 import im.vector.util.VectorMarkdownParser;
 import im.vector.util.VectorRoomMediasSender;
 import im.vector.util.VectorUtils;
@@ -350,10 +350,21 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
 
     private String mCallId = null;
 
+    // joined / active members counters displayed in the header
+    private final RoomMembersStatus mRoomMembersStatus = new RoomMembersStatus();
+
     // typing event management
-    private Timer mTypingTimer = null;
-    private TimerTask mTypingTimerTask;
-    private long mLastTypingDate = 0;
+    private final TypingNotificationsHandler mTypingNotificationsHandler = new TypingNotificationsHandler(TYPING_TIMEOUT_MS,
+            new TypingNotificationsHandler.TypingNotificationSender() {
+                @Override
+                public void sendTypingNotification(boolean isTyping, int timeoutMs) {
+                    if (null != mRoom) {
+                        // do not send again on error
+                        // assume that the typing event is optional
+                        mRoom.sendTypingNotification(isTyping, timeoutMs, new SimpleApiCallback<Void>());
+                    }
+                }
+            });
 
     // scroll to a dedicated index
     private int mScrollToIndex = -1;
@@ -406,8 +417,13 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
     private final MXEventListener mGlobalEventListener = new MXEventListener() {
         @Override
         public void onPresenceUpdate(Event event, User user) {
+            int activeMembersCount = mRoomMembersStatus.getActiveMembersCount();
+            mRoomMembersStatus.onPresenceUpdate(user);
+
             // the header displays active members
-            updateRoomHeaderMembersStatus();
+            if (activeMembersCount != mRoomMembersStatus.getActiveMembersCount()) {
+                updateRoomHeaderMembersStatus();
+            }
         }
 
         @Override
@@ -449,6 +465,7 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
                 @Override
                 public void run() {
                     updateActionBarTitleAndTopic();
+                    mRoomMembersStatus.invalidate();
                     updateRoomHeaderMembersStatus();
                     updateRoomHeaderAvatar();
                 }
@@ -494,6 +511,12 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
                         case Event.EVENT_TYPE_STATE_ROOM_ALIASES:
                         case Event.EVENT_TYPE_STATE_ROOM_MEMBER:
                             setTitle();
+                            if (Event.EVENT_TYPE_STATE_ROOM_MEMBER.equals(eventType)) {
+                                RoomMember member = JsonUtils.toRoomMember(event.getContent());
+                                mRoomMembersStatus.onMembershipUpdate(event.stateKey,
+                                        (null != member) ? member.membership : null,
+                                        mSession.getDataHandler().getStore().getUser(event.stateKey));
+                            }
                             updateRoomHeaderMembersStatus();
                             updateRoomHeaderAvatar();
                             break;
@@ -1113,6 +1136,9 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
             // because it is displayed.
             ViewedRoomTracker.getInstance().setViewedRoomId(mRoom.getRoomId());
 
+            // the membership and presence updates were not listened while paused
+            mRoomMembersStatus.invalidate();
+
             // listen for room name or topic changes
             mRoom.addEventListener(mRoomEventListener);
 
@@ -1971,115 +1997,7 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
 
         Log.d(LOG_TAG, "##handleTypingNotification() : isTyping " + isTyping);
 
-        int notificationTimeoutMS = -1;
-        if (isTyping) {
-            // Check whether a typing event has been already reported to server (We wait for the end of the local timeout before considering this new event)
-            if (null != mTypingTimer) {
-                // Refresh date of the last observed typing
-                System.currentTimeMillis();
-                mLastTypingDate = System.currentTimeMillis();
-                return;
-            }
-
-            int timerTimeoutInMs = TYPING_TIMEOUT_MS;
-
-            if (0 != mLastTypingDate) {
-                long lastTypingAge = System.currentTimeMillis() - mLastTypingDate;
-                if (lastTypingAge < timerTimeoutInMs) {
-                    // Subtract the time interval since last typing from the timer timeout
-                    timerTimeoutInMs -= lastTypingAge;
-                } else {
-                    timerTimeoutInMs = 0;
-                }
-            } else {
-                // Keep date of this typing event
-                mLastTypingDate = System.currentTimeMillis();
-            }
-
-            if (timerTimeoutInMs > 0) {
-
-                try {
-                    mTypingTimerTask = new TimerTask() {
-                        public void run() {
-                            synchronized (LOG_TAG) {
-                                if (mTypingTimerTask != null) {
-                                    mTypingTimerTask.cancel();
-                                    mTypingTimerTask = null;
-                                }
-
-                                if (mTypingTimer != null) {
-                                    mTypingTimer.cancel();
-                                    mTypingTimer = null;
-                                }
-
-                                Log.d(LOG_TAG, "##handleTypingNotification() : send end of typing");
-
-                                // Post a new typing notification
-                                handleTypingNotification(0 != mLastTypingDate);
-                            }
-                        }
-                    };
-                } catch (Throwable throwable) {
-                    Log.e(LOG_TAG, "## mTypingTimerTask creation failed " + throwable.getMessage());
-                    return;
-                }
-
-                try {
-                    synchronized (LOG_TAG) {
-                        mTypingTimer = new Timer();
-                        mTypingTimer.schedule(mTypingTimerTask, TYPING_TIMEOUT_MS);
-                    }
-                } catch (Throwable throwable) {
-                    Log.e(LOG_TAG, "fails to launch typing timer " + throwable.getMessage());
-                    mTypingTimer = null;
-                    mTypingTimerTask = null;
-                }
-
-                // Compute the notification timeout in ms (consider the double of the local typing timeout)
-                notificationTimeoutMS = TYPING_TIMEOUT_MS * 2;
-            } else {
-                // This typing event is too old, we will ignore it
-                isTyping = false;
-            }
-        } else {
-            // Cancel any typing timer
-            if (mTypingTimerTask != null) {
-                mTypingTimerTask.cancel();
-                mTypingTimerTask = null;
-            }
-
-            if (mTypingTimer != null) {
-                mTypingTimer.cancel();
-                mTypingTimer = null;
-            }
-            // Reset last typing date
-            mLastTypingDate = 0;
-        }
-
-        final boolean typingStatus = isTyping;
-
-        mRoom.sendTypingNotification(typingStatus, notificationTimeoutMS, new SimpleApiCallback<Void>(VectorRoomActivity.this) {
-            @Override
-            public void onSuccess(Void info) {
-                // Reset last typing date
-                mLastTypingDate = 0;
-            }
-
-            @Override
-            public void onNetworkError(Exception e) {
-                if (mTypingTimerTask != null) {
-                    mTypingTimerTask.cancel();
-                    mTypingTimerTask = null;
-                }
-
-                if (mTypingTimer != null) {
-                    mTypingTimer.cancel();
-                    mTypingTimer = null;
-                }
-                // do not send again
-                // assume that the typing event is optional
-            }
-        });
+        mTypingNotificationsHandler.onTypingUpdate(isTyping);
     }
 
     private void cancelTypingNotification() {
@@ -2087,20 +2005,7 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
             return;
         }
 
-        if (0 != mLastTypingDate) {
-            if (mTypingTimerTask != null) {
-                mTypingTimerTask.cancel();
-                mTypingTimerTask = null;
-            }
-            if (mTypingTimer != null) {
-                mTypingTimer.cancel();
-                mTypingTimer = null;
-            }
-
-            mLastTypingDate = 0;
-
-            mRoom.sendTypingNotification(false, -1, new SimpleApiCallback<Void>(this));
-        }
+        mTypingNotificationsHandler.stop();
     }
 
     //================================================================================
@@ -3018,26 +2923,16 @@ public class VectorRoomActivity extends MXCActionBarActivity implements
             // refresh only if the action bar is hidden
             if (mActionBarCustomTitle.getVisibility() == View.GONE) {
                 if ((null != mRoom) || (null != sRoomPreviewData)) {
-                    // update the members status: "active members"/"members"
-                    int joinedMembersCount = 0;
-                    int activeMembersCount = 0;
-
                     RoomState roomState = (null != sRoomPreviewData) ? sRoomPreviewData.getRoomState() : mRoom.getState();
 
                     if (null != roomState) {
-                        Collection<RoomMember> members = roomState.getDisplayableMembers();
-
-                        for (RoomMember member : members) {
-                            if (TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_JOIN)) {
-                                joinedMembersCount++;
+                        // the members list is only parsed when the room state is updated
+                        // the counters are then updated from the presence and membership events
+                        mRoomMembersStatus.refreshIfNeeded(roomState, mSession.getDataHandler().getStore());
 
-                                User user = mSession.getDataHandler().getStore().getUser(member.getUserId());
-
-                                if ((null != user) && user.isActive()) {
-                                    activeMembersCount++;
-                                }
-                            }
-                        }
+                        // update the members status: "active members"/"members"
+                        int joinedMembersCount = mRoomMembersStatus.getJoinedMembersCount();
+                        int activeMembersCount = mRoomMembersStatus.getActiveMembersCount();
 
                         // in preview mode, the room state might be a publicRoom
                         // so try to use the public room info.
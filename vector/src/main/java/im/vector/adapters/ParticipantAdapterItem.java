@@ -405,7 +405,7 @@ public class ParticipantAdapterItem implements java.io.Serializable {
             imageView.setImageBitmap(getAvatarBitmap());
         } else {
             if ((null != mUserId) && (android.util.Patterns.EMAIL_ADDRESS.matcher(mUserId).matches()) || !mIsValid) {
-                imageView.setImageBitmap(VectorUtils.getAvatar(imageView.getContext(), VectorUtils.getAvatarColor(mIsValid ? mUserId : ""), "@@", true));
+                imageView.setImageDrawable(VectorUtils.getAvatarPlaceholder(VectorUtils.getAvatarColor(mIsValid ? mUserId : ""), "@@"));
             } else {
                 if (TextUtils.isEmpty(mUserId)) {
                     VectorUtils.loadUserAvatar(imageView.getContext(), session, imageView, mAvatarUrl, mDisplayName, mDisplayName);
@@ -32,6 +32,7 @@ import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.view.WindowManager;
 import android.webkit.MimeTypeMap;
 import android.webkit.WebView;
@@ -62,6 +63,7 @@ import java.util.List;
 import im.vector.R;
 import im.vector.activity.CommonActivityUtils;
 import im.vector.util.SlidableMediaInfo;
+import im.vector.view.TiledImageView;
 
 /**
  * An images slider
@@ -69,6 +71,8 @@ import im.vector.util.SlidableMediaInfo;
 public class VectorMediasViewerAdapter extends PagerAdapter {
     private static final String LOG_TAG = VectorMediasViewerAdapter.class.getSimpleName();
 
+    private static final String MIME_TYPE_IMAGE_GIF = "image/gif";
+
     private final Context mContext;
 
     private final LayoutInflater mLayoutInflater;
@@ -120,6 +124,13 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
             mLatestPrimaryItemPosition = position;
 
             final View view = (View) object;
+
+            // release the zoomed regions of the previous page
+            if (null != mLatestPrimaryView) {
+                TiledImageView previousImageView = mLatestPrimaryView.findViewById(R.id.media_slider_image_view);
+                previousImageView.resetZoom();
+            }
+
             mLatestPrimaryView = view;
 
             view.findViewById(R.id.media_download_failed).setVisibility(View.GONE);
@@ -317,12 +328,10 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
      * @param position the item position
      */
     private void downloadHighResImage(final View view, final int position) {
-        final WebView webView = view.findViewById(R.id.media_slider_image_webview);
         final PieFractionView pieFractionView = view.findViewById(R.id.media_slider_piechart);
         final View downloadFailedView = view.findViewById(R.id.media_download_failed);
 
         final SlidableMediaInfo imageInfo = mMediasMessagesList.get(position);
-        final String viewportContent = "width=640";
         final String loadingUri = imageInfo.mMediaUrl;
         final String downloadId = mMediasCache.loadBitmap(mContext,
                 mSession.getHomeServerConfig(),
@@ -332,8 +341,6 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
                 imageInfo.mMimeType,
                 imageInfo.mEncryptedFileInfo);
 
-        webView.getSettings().setDisplayZoomControls(false);
-
         if (null != downloadId) {
             pieFractionView.setVisibility(View.VISIBLE);
             pieFractionView.setFraction(mMediasCache.getProgressValueForDownloadId(downloadId));
@@ -368,22 +375,15 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
                         if (mMediasCache.isMediaCached(loadingUri, imageInfo.mMimeType)) {
                             mMediasCache.createTmpMediaFile(loadingUri, imageInfo.mMimeType, imageInfo.mEncryptedFileInfo, new SimpleApiCallback<File>() {
                                 @Override
-                                public void onSuccess(File mediaFile) {
+                                public void onSuccess(final File mediaFile) {
                                     if (null != mediaFile) {
                                         mHighResMediaIndex.add(position);
 
-                                        Uri uri = Uri.fromFile(mediaFile);
-                                        final String newHighResUri = uri.toString();
-
-                                        webView.post(new Runnable() {
+                                        view.post(new Runnable() {
                                             @Override
                                             public void run() {
-                                                Uri mediaUri = Uri.parse(newHighResUri);
                                                 // refresh the UI
-                                                loadImageIntoWebView(webView,
-                                                        mediaUri,
-                                                        viewportContent,
-                                                        computeCss(newHighResUri, mMaxImageWidth, mMaxImageHeight, imageInfo.mRotationAngle));
+                                                displayImage(view, imageInfo, mediaFile);
                                             }
                                         });
                                     }
@@ -413,13 +413,11 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
 
         view.findViewById(R.id.media_download_failed).setVisibility(View.GONE);
 
-        final WebView imageWebView = view.findViewById(R.id.media_slider_image_webview);
+        final TiledImageView imageView = view.findViewById(R.id.media_slider_image_view);
         final View videoLayout = view.findViewById(R.id.media_slider_videolayout);
         final ImageView thumbView = view.findViewById(R.id.media_slider_video_thumbnail);
 
-        imageWebView.getSettings().setDisplayZoomControls(false);
-
-        imageWebView.setOnLongClickListener(new View.OnLongClickListener() {
+        imageView.setOnLongClickListener(new View.OnLongClickListener() {
             @Override
             public boolean onLongClick(View v) {
                 onLongClickOnMedia();
@@ -437,25 +435,15 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
 
         // black background
         view.setBackgroundColor(0xFF000000);
-        imageWebView.setBackgroundColor(0xFF000000);
         videoLayout.setBackgroundColor(0xFF000000);
 
         final SlidableMediaInfo mediaInfo = mMediasMessagesList.get(position);
         String mediaUrl = mediaInfo.mMediaUrl;
 
         if (mediaInfo.mMessageType.equals(Message.MSGTYPE_IMAGE)) {
-            imageWebView.setVisibility(View.VISIBLE);
-            // Do not set layer type, it prevent gif from being played
-            // imageWebView.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
-            imageWebView.getSettings().setJavaScriptEnabled(true);
-            imageWebView.getSettings().setLoadWithOverviewMode(true);
-            imageWebView.getSettings().setUseWideViewPort(true);
-            imageWebView.getSettings().setBuiltInZoomControls(true);
-
+            imageView.setVisibility(View.VISIBLE);
             videoLayout.setVisibility(View.GONE);
 
-            final int rotationAngle = mediaInfo.mRotationAngle;
-
             if (TextUtils.isEmpty(mediaInfo.mMimeType)) {
                 mediaInfo.mMimeType = "image/jpeg";
             }
@@ -485,16 +473,13 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
                 @Override
                 public void onSuccess(File mediaFile) {
                     if (null != mediaFile) {
-                        String mediaUri = "file://" + mediaFile.getPath();
-
-                        String css = computeCss(mediaUri, mMaxImageWidth, mMaxImageHeight, rotationAngle);
-                        final String viewportContent = "width=640";
-                        loadImageIntoWebView(imageWebView, Uri.parse(mediaUri), viewportContent, css);
+                        displayImage(view, mediaInfo, mediaFile);
                         container.addView(view, 0);
                     }
                 }
             });
         } else {
+            imageView.setVisibility(View.GONE);
             loadVideo(position, view, mediaInfo.mThumbnailUrl, mediaUrl, mediaInfo.mMimeType, mediaInfo.mEncryptedFileInfo);
             container.addView(view, 0);
         }
@@ -792,6 +777,66 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
         });
     }
 
+    /**
+     * Display an image file in a slider page.
+     * The animated images are rendered by a webview, the other ones are decoded by regions.
+     *
+     * @param pageView  the page view
+     * @param imageInfo the image description
+     * @param imageFile the image file
+     */
+    private void displayImage(View pageView, SlidableMediaInfo imageInfo, File imageFile) {
+        TiledImageView imageView = pageView.findViewById(R.id.media_slider_image_view);
+
+        if (MIME_TYPE_IMAGE_GIF.equals(imageInfo.mMimeType)) {
+            imageView.setVisibility(View.GONE);
+
+            String mediaUri = "file://" + imageFile.getPath();
+            loadImageIntoWebView(getImageWebView(pageView),
+                    Uri.parse(mediaUri),
+                    "width=640",
+                    computeCss(mediaUri, mMaxImageWidth, mMaxImageHeight, imageInfo.mRotationAngle));
+        } else {
+            imageView.setImage(imageFile, imageInfo.mRotationAngle);
+        }
+    }
+
+    /**
+     * Provides the webview of a slider page.
+     * The webview is only inflated when it is required.
+     *
+     * @param pageView the page view
+     * @return the webview
+     */
+    private WebView getImageWebView(View pageView) {
+        ViewStub webViewStub = pageView.findViewById(R.id.media_slider_image_webview_stub);
+
+        if (null == webViewStub) {
+            return pageView.findViewById(R.id.media_slider_image_webview);
+        }
+
+        WebView webView = (WebView) webViewStub.inflate();
+
+        // Do not set layer type, it prevent gif from being played
+        // webView.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+        webView.getSettings().setDisplayZoomControls(false);
+        webView.getSettings().setJavaScriptEnabled(true);
+        webView.getSettings().setLoadWithOverviewMode(true);
+        webView.getSettings().setUseWideViewPort(true);
+        webView.getSettings().setBuiltInZoomControls(true);
+        webView.setBackgroundColor(0xFF000000);
+
+        webView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                onLongClickOnMedia();
+                return true;
+            }
+        });
+
+        return webView;
+    }
+
     /**
      * Update the image page: build an Html page to display the image.
      *
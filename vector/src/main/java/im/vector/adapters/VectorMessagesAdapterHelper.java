@@ -69,6 +69,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -77,6 +78,7 @@ import im.vector.VectorApp;
 import im.vector.listeners.IMessagesAdapterActionsListener;
 import im.vector.util.MatrixLinkMovementMethod;
 import im.vector.util.MatrixURLSpan;
+import im.vector.util.MemoryPressureCoordinator;
 import im.vector.util.RiotEventDisplay;
 import im.vector.util.ThemeUtils;
 import im.vector.util.VectorImageGetter;
@@ -110,11 +112,86 @@ class VectorMessagesAdapterHelper {
 
     private VectorImageGetter mImageGetter;
 
+    // the estimated size of a pill drawable, in bytes
+    private static final int ESTIMATED_PILL_SIZE = 4 * 1024;
+
+    // the living helpers, their rendering caches are released under memory pressure
+    private static final Map<VectorMessagesAdapterHelper, Boolean> sHelpers = new WeakHashMap<>();
+
+    static {
+        MemoryPressureCoordinator.register("messages rendering", MemoryPressureCoordinator.PRIORITY_NORMAL, MemoryPressureCoordinator.RELEASE_POLICY_CLEAR,
+                new MemoryPressureCoordinator.MemoryCache() {
+                    @Override
+                    public long getSize() {
+                        long size = 0;
+
+                        for (VectorMessagesAdapterHelper helper : new ArrayList<>(sHelpers.keySet())) {
+                            size += helper.getCachesSize();
+                        }
+
+                        return size;
+                    }
+
+                    @Override
+                    public long getMaxSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public void trimToSize(long maxSize) {
+                        for (VectorMessagesAdapterHelper helper : new ArrayList<>(sHelpers.keySet())) {
+                            helper.clearCaches();
+                        }
+                    }
+                });
+    }
 
     VectorMessagesAdapterHelper(Context context, MXSession session, VectorMessagesAdapter adapter) {
         mContext = context;
         mSession = session;
         mAdapter = adapter;
+
+        sHelpers.put(this, Boolean.TRUE);
+    }
+
+    /**
+     * @return the estimated size of the rendering caches, in bytes
+     */
+    private long getCachesSize() {
+        long size = (long) mPillsDrawableCache.size() * ESTIMATED_PILL_SIZE;
+
+        // the strings are UTF-16 encoded
+        for (Map.Entry<String, String[]> entry : mCodeBlocksMap.entrySet()) {
+            size += 2 * entry.getKey().length();
+
+            for (String codeBlock : entry.getValue()) {
+                size += 2 * codeBlock.length();
+            }
+        }
+
+        for (Map.Entry<String, String> entry : mHtmlMap.entrySet()) {
+            size += 2 * (entry.getKey().length() + ((null != entry.getValue()) ? entry.getValue().length() : 0));
+        }
+
+        for (Map.Entry<String, List<String>> entry : mExtractedUrls.entrySet()) {
+            size += 2 * entry.getKey().length();
+
+            for (String url : entry.getValue()) {
+                size += 2 * url.length();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Clear the rendering caches, they are built again when the messages are displayed.
+     */
+    private void clearCaches() {
+        mPillsDrawableCache.clear();
+        mCodeBlocksMap.clear();
+        mHtmlMap.clear();
+        mExtractedUrls.clear();
     }
 
     /**
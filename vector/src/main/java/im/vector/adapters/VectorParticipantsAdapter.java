@@ -20,8 +20,6 @@ package im.vector.adapters;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Handler;
-import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
@@ -61,6 +59,7 @@ import im.vector.activity.CommonActivityUtils;
 import im.vector.contacts.Contact;
 import im.vector.contacts.ContactsManager;
 import im.vector.contacts.PIDsRetriever;
+import im.vector.util.AppExecutors;
 import im.vector.util.VectorUtils;
 
 /**
@@ -491,14 +490,13 @@ public class VectorParticipantsAdapter extends BaseExpandableListAdapter {
         if (!TextUtils.isEmpty(mPattern)) {
             // the list members are refreshed in background to avoid UI locks
             if (null == mUnusedParticipants) {
-                Thread t = new Thread(new Runnable() {
+                AppExecutors.execute(AppExecutors.Pool.COMPUTE, "listOtherMembers", new Runnable() {
+                    @Override
                     public void run() {
                         // populate full contact list
                         listOtherMembers();
 
-                        Handler handler = new Handler(Looper.getMainLooper());
-
-                        handler.post(new Runnable() {
+                        AppExecutors.runOnUiThread(new Runnable() {
                             @Override
                             public void run() {
                                 searchAccountKnownContacts(theFirstEntry, participantItemList, sortRoomContactsList, searchListener);
@@ -507,9 +505,6 @@ public class VectorParticipantsAdapter extends BaseExpandableListAdapter {
                     }
                 });
 
-                t.setPriority(Thread.MIN_PRIORITY);
-                t.start();
-
                 return;
             }
 
@@ -531,7 +526,8 @@ public class VectorParticipantsAdapter extends BaseExpandableListAdapter {
 
             // display only the contacts
             if (null == mContactsParticipants) {
-                Thread t = new Thread(new Runnable() {
+                AppExecutors.execute(AppExecutors.Pool.COMPUTE, "fillUsedMembersList", new Runnable() {
+                    @Override
                     public void run() {
                         fillUsedMembersList();
 
@@ -542,8 +538,7 @@ public class VectorParticipantsAdapter extends BaseExpandableListAdapter {
                             mContactsParticipants = list;
                         }
 
-                        Handler handler = new Handler(Looper.getMainLooper());
-                        handler.post(new Runnable() {
+                        AppExecutors.runOnUiThread(new Runnable() {
                             @Override
                             public void run() {
                                 refresh(theFirstEntry, searchListener);
@@ -552,9 +547,6 @@ public class VectorParticipantsAdapter extends BaseExpandableListAdapter {
                     }
                 });
 
-                t.setPriority(Thread.MIN_PRIORITY);
-                t.start();
-
                 return;
             } else {
                 List<ParticipantAdapterItem> contactsParticipants = new ArrayList<>();
@@ -734,11 +734,11 @@ public class VectorRoomSummaryAdapter extends BaseExpandableListAdapter {
                     }
                 }
 
-                avatarImageView.setImageBitmap(VectorUtils.getAvatar(avatarImageView.getContext(), VectorUtils.getAvatarColor(null), null, true));
+                avatarImageView.setImageDrawable(VectorUtils.getAvatarPlaceholder(VectorUtils.getAvatarColor(null), null));
             } else {
                 roomNameTxtView.setText(mSearchedPattern);
                 roomMsgTxtView.setText("");
-                avatarImageView.setImageBitmap(VectorUtils.getAvatar(avatarImageView.getContext(), VectorUtils.getAvatarColor(null), "@", true));
+                avatarImageView.setImageDrawable(VectorUtils.getAvatarPlaceholder(VectorUtils.getAvatarColor(null), "@"));
             }
             return convertView;
         }
@@ -33,6 +33,7 @@ sealed class TrackingEvent(val category: Category, val action: Action, val title
     data class IncrementalSync(val duration: Long) : TrackingEvent(Category.METRICS, Action.STARTUP, "incrementalSync", duration.toFloat())
     data class StorePreload(val duration: Long) : TrackingEvent(Category.METRICS, Action.STARTUP, "storePreload", duration.toFloat())
     data class LaunchScreen(val duration: Long) : TrackingEvent(Category.METRICS, Action.STARTUP, "launchScreen", duration.toFloat())
+    data class StartupTask(val name: String, val duration: Long) : TrackingEvent(Category.METRICS, Action.STARTUP, "startupTask.$name", duration.toFloat())
     data class Rooms(val nbOfRooms: Int) : TrackingEvent(Category.METRICS, Action.STATS, "rooms", nbOfRooms.toFloat())
 
     data class DecryptionFailure(private val reason: DecryptionFailureReason,
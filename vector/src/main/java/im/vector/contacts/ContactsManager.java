@@ -48,6 +48,7 @@ import java.util.Set;
 
 import im.vector.Matrix;
 import im.vector.VectorApp;
+import im.vector.util.AppExecutors;
 import im.vector.util.PhoneNumberUtils;
 
 /**
@@ -413,7 +414,8 @@ public class ContactsManager implements SharedPreferences.OnSharedPreferenceChan
         }
 
         // refresh the contacts list in background
-        Thread t = new Thread(new Runnable() {
+        AppExecutors.execute(AppExecutors.Pool.IO, "refreshLocalContactsSnapshot", new Runnable() {
+            @Override
             public void run() {
                 long t0 = System.currentTimeMillis();
                 ContentResolver cr = mContext.getContentResolver();
@@ -600,9 +602,6 @@ public class ContactsManager implements SharedPreferences.OnSharedPreferenceChan
                 });
             }
         });
-
-        t.setPriority(Thread.MIN_PRIORITY);
-        t.start();
     }
 
     //================================================================================
@@ -334,7 +334,7 @@ public abstract class AbsHomeFragment extends VectorBaseFragment implements
             }
 
             // Update badge unread count in case device is offline
-            CommonActivityUtils.specificUpdateBadgeUnreadCount(mSession, getContext());
+            CommonActivityUtils.specificUpdateBadgeUnreadCount(mSession, roomId, getContext());
 
             // Launch corresponding room activity
             Map<String, Object> params = new HashMap<>();
@@ -232,7 +232,7 @@ public class VectorRecentsListFragment extends VectorBaseFragment implements
                         session.getDataHandler().getStore().flushSummary(roomSummary);
                     }
                     // update badge unread count in case device is offline
-                    CommonActivityUtils.specificUpdateBadgeUnreadCount(mSession, getContext());
+                    CommonActivityUtils.specificUpdateBadgeUnreadCount(mSession, roomSummary.getRoomId(), getContext());
 
                     // launch corresponding room activity
                     if (null != roomId) {
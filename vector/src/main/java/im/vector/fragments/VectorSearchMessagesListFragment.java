@@ -32,17 +32,30 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import org.matrix.androidsdk.adapters.AbstractMessagesAdapter;
+import org.matrix.androidsdk.adapters.MessageRow;
 import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.search.SearchResponse;
+import org.matrix.androidsdk.rest.model.search.SearchResult;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import im.vector.R;
+import im.vector.VectorApp;
 import im.vector.activity.VectorRoomActivity;
 
 import im.vector.adapters.VectorSearchMessagesListAdapter;
+import im.vector.store.MessageSearchIndex;
+import im.vector.util.AppExecutors;
 
 public class VectorSearchMessagesListFragment extends VectorMessageListFragment {
     private static final String LOG_TAG = VectorSearchMessagesListFragment.class.getSimpleName();
@@ -55,6 +68,34 @@ public class VectorSearchMessagesListFragment extends VectorMessageListFragment
 
     String mRoomId;
 
+    // the number of messages read from the local index per page
+    private static final int LOCAL_SEARCH_PAGE_SIZE = 30;
+
+    // the local index reads
+    private final AppExecutors.TaskGroup mIndexTasks = new AppExecutors.TaskGroup();
+
+    // true when the displayed results come from the local index
+    private boolean mIsLocalSearch = false;
+
+    // true when there could be older results in the local index
+    private boolean mCanPaginateLocalSearch = true;
+
+    // the timestamp of the oldest local result
+    private long mOldestLocalResultTs = Long.MAX_VALUE;
+    private String mOldestLocalResultEventId = null;
+
+    // true when the server search can provide older results than the local ones
+    private boolean mCanPaginateServerSearch = false;
+
+    // the server search pagination token
+    private String mServerNextBatch = null;
+
+    // the displayed event ids, to avoid displaying twice a result found locally and by the server
+    private final Set<String> mDisplayedEventIds = new HashSet<>();
+
+    // crypto management
+    private final String mTimeLineId = System.currentTimeMillis() + "";
+
     /**
      * static constructor
      *
@@ -97,6 +138,9 @@ public class VectorSearchMessagesListFragment extends VectorMessageListFragment
 
         if (mSession.isAlive()) {
             cancelSearch();
+            mIndexTasks.cancelAll();
+            mIsBackPaginating = false;
+            mSession.getDataHandler().resetReplayAttackCheckInTimeline(mTimeLineId);
 
             if (mIsMediaSearch) {
                 mSession.cancelSearchMediasByText();
@@ -257,7 +301,7 @@ public class VectorSearchMessagesListFragment extends VectorMessageListFragment
                     ((VectorSearchMessagesListAdapter) mAdapter).setTextToHighlight(pattern);
                 }
 
-                super.searchPattern(pattern, mIsMediaSearch, new OnSearchResultListener() {
+                OnSearchResultListener searchResultListener = new OnSearchResultListener() {
                     @Override
                     public void onSearchSucceed(int nbrMessages) {
                         // the pattern has been updated while search
@@ -307,8 +351,230 @@ public class VectorSearchMessagesListFragment extends VectorMessageListFragment
                         mSearchListeners.clear();
                         mSearchingPattern = null;
                     }
-                });
+                };
+
+                if (mIsMediaSearch) {
+                    super.searchPattern(pattern, true, searchResultListener);
+                } else {
+                    searchLocalMessages(pattern, searchResultListener);
+                }
+            }
+        }
+    }
+
+    //==============================================================================================================
+    // local search
+    //==============================================================================================================
+
+    /**
+     * Search the messages in the local index.
+     * The server search is used when no message is found locally,
+     * and it continues the local results of the unencrypted rooms once they are exhausted.
+     *
+     * @param pattern  the searched pattern
+     * @param listener the search listener
+     */
+    private void searchLocalMessages(final String pattern, final OnSearchResultListener listener) {
+        mIndexTasks.cancelAll();
+        mIsBackPaginating = false;
+        mIsLocalSearch = false;
+        mCanPaginateLocalSearch = true;
+        mOldestLocalResultTs = Long.MAX_VALUE;
+        mOldestLocalResultEventId = null;
+        mServerNextBatch = null;
+        mDisplayedEventIds.clear();
+
+        // the server cannot search in the encrypted rooms
+        Room room = (null != mRoomId) ? mSession.getDataHandler().getRoom(mRoomId, false) : null;
+        mCanPaginateServerSearch = (null == room) || !room.isEncrypted();
+
+        loadLocalMessages(pattern, new SimpleApiCallback<List<MessageRow>>() {
+            @Override
+            public void onSuccess(List<MessageRow> messageRows) {
+                if (messageRows.isEmpty()) {
+                    // the index may not contain the oldest messages
+                    VectorSearchMessagesListFragment.super.searchPattern(pattern, false, listener);
+                } else {
+                    mIsLocalSearch = true;
+                    mPattern = pattern;
+                    mAdapter.addAll(messageRows);
+                    listener.onSearchSucceed(messageRows.size());
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the next page of local search results, older than the displayed ones.
+     *
+     * @param pattern  the searched pattern
+     * @param callback the result callback, the rows are sorted from the oldest one
+     */
+    private void loadLocalMessages(final String pattern, final ApiCallback<List<MessageRow>> callback) {
+        final String roomId = mRoomId;
+        final long beforeTs = mOldestLocalResultTs;
+        final String beforeEventId = mOldestLocalResultEventId;
+
+        mIndexTasks.execute(AppExecutors.Pool.IO, LOG_TAG + "_loadLocalMessages", new AppExecutors.Task<List<Event>>() {
+            @Override
+            protected List<Event> doInBackground() {
+                return MessageSearchIndex.getInstance(VectorApp.getInstance(), mSession.getMyUserId())
+                        .search(pattern, roomId, null, beforeTs, beforeEventId, LOCAL_SEARCH_PAGE_SIZE);
+            }
+
+            @Override
+            protected void onResult(List<Event> events) {
+                if (!mSession.isAlive() || !TextUtils.equals(pattern, (null != mSearchingPattern) ? mSearchingPattern : mPattern)) {
+                    return;
+                }
+
+                if (events.size() < LOCAL_SEARCH_PAGE_SIZE) {
+                    mCanPaginateLocalSearch = false;
+                }
+
+                List<MessageRow> messageRows = new ArrayList<>(events.size());
+
+                for (Event event : events) {
+                    // the events are sorted from the most recent one
+                    mOldestLocalResultTs = event.getOriginServerTs();
+                    mOldestLocalResultEventId = event.eventId;
+
+                    Room room = mSession.getDataHandler().getRoom(event.roomId, false);
+
+                    // the room has been left
+                    if (null == room) {
+                        continue;
+                    }
+
+                    // the encrypted events are indexed encrypted
+                    if (event.isEncrypted()) {
+                        mSession.getDataHandler().decryptEvent(event, mTimeLineId);
+                    }
+
+                    // from the oldest one
+                    messageRows.add(0, new MessageRow(event, room.getState()));
+                    mDisplayedEventIds.add(event.eventId);
+                }
+
+                callback.onSuccess(messageRows);
+            }
+        });
+    }
+
+    /**
+     * Load the next page of server search results, older than the local ones.
+     *
+     * @param pattern  the searched pattern
+     * @param callback the result callback, the rows are sorted from the oldest one
+     */
+    private void loadServerMessages(final String pattern, final ApiCallback<List<MessageRow>> callback) {
+        List<String> roomIds = (null != mRoomId) ? Arrays.asList(mRoomId) : null;
+
+        mSession.searchMessagesByText(pattern, roomIds, mServerNextBatch, new ApiCallback<SearchResponse>() {
+            @Override
+            public void onSuccess(SearchResponse searchResponse) {
+                if (!mSession.isAlive() || !TextUtils.equals(pattern, mPattern)) {
+                    return;
+                }
+
+                List<MessageRow> messageRows = new ArrayList<>();
+
+                mServerNextBatch = searchResponse.searchCategories.roomEvents.nextBatch;
+                mCanPaginateServerSearch = !TextUtils.isEmpty(mServerNextBatch);
+
+                // the results are sorted from the most recent one
+                for (SearchResult searchResult : searchResponse.searchCategories.roomEvents.results) {
+                    Event event = searchResult.result;
+
+                    // the most recent results have been found in the local index
+                    if ((null == event) || (event.getOriginServerTs() > mOldestLocalResultTs) || mDisplayedEventIds.contains(event.eventId)) {
+                        continue;
+                    }
+
+                    Room room = mSession.getDataHandler().getRoom(event.roomId, false);
+
+                    // the room has been left
+                    if (null == room) {
+                        continue;
+                    }
+
+                    messageRows.add(0, new MessageRow(event, room.getState()));
+                    mDisplayedEventIds.add(event.eventId);
+                }
+
+                callback.onSuccess(messageRows);
+            }
+
+            private void onError(String errorMessage) {
+                Log.e(LOG_TAG, "## loadServerMessages() : failed " + errorMessage);
+                mCanPaginateServerSearch = false;
+                callback.onSuccess(new ArrayList<MessageRow>());
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                onError(e.getMessage());
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                onError(e.getMessage());
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                onError(e.getMessage());
             }
+        });
+    }
+
+    @Override
+    public void backPaginate(final boolean fillHistory) {
+        if (!mIsLocalSearch) {
+            super.backPaginate(fillHistory);
+            return;
+        }
+
+        if (mIsBackPaginating || (!mCanPaginateLocalSearch && !mCanPaginateServerSearch)) {
+            return;
+        }
+
+        mIsBackPaginating = true;
+        showLoadingBackProgress();
+
+        final boolean isLocalPage = mCanPaginateLocalSearch;
+
+        ApiCallback<List<MessageRow>> callback = new SimpleApiCallback<List<MessageRow>>() {
+            @Override
+            public void onSuccess(List<MessageRow> messageRows) {
+                mIsBackPaginating = false;
+                hideLoadingBackProgress();
+
+                if (messageRows.isEmpty()) {
+                    // the local results are exhausted or the server page only contains displayed results
+                    backPaginate(fillHistory);
+                    return;
+                }
+
+                final int firstPos = mMessageListView.getFirstVisiblePosition();
+
+                mAdapter.setNotifyOnChange(false);
+
+                for (int i = messageRows.size() - 1; i >= 0; i--) {
+                    mAdapter.insert(messageRows.get(i), 0);
+                }
+
+                mAdapter.notifyDataSetChanged();
+
+                // keep the current position
+                mMessageListView.setSelection(firstPos + messageRows.size());
+            }
+        };
+
+        if (isLocalPage) {
+            loadLocalMessages(mPattern, callback);
+        } else {
+            loadServerMessages(mPattern, callback);
         }
     }
 
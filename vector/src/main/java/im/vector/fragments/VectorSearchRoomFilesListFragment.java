@@ -20,6 +20,7 @@ package im.vector.fragments;
 
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.Pair;
 import android.view.View;
 import android.widget.Toast;
 
@@ -29,25 +30,55 @@ import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
-import org.matrix.androidsdk.rest.model.message.Message;
-import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import im.vector.VectorApp;
+import im.vector.store.RoomMediaIndex;
+import im.vector.util.AppExecutors;
+
 public class VectorSearchRoomFilesListFragment extends VectorSearchRoomsFilesListFragment {
     private static final String LOG_TAG = VectorSearchRoomFilesListFragment.class.getSimpleName();
 
     private static final int MESSAGES_PAGINATION_LIMIT = 50;
 
+    // number of indexed events read at once
+    private static final int INDEXED_EVENTS_PAGE_SIZE = 50;
+
+    // a search displays at least this number of files if the room has them
+    private static final int MIN_SEARCH_RESULTS_COUNT = 10;
+
+    // max number of history pages indexed in the background while the files are displayed
+    private static final int MAX_BACKFILL_PAGES_COUNT = 20;
+
     // set to false when there is no more available message in the room history
     private boolean mCanPaginateBack = true;
 
     // crypto management
     private final String mTimeLineId = System.currentTimeMillis() + "";
 
+    // the media index reads and writes
+    private final AppExecutors.TaskGroup mIndexTasks = new AppExecutors.TaskGroup();
+
+    // the timestamp and the id of the oldest displayed event
+    private long mOldestDisplayedTs = Long.MAX_VALUE;
+    private String mOldestDisplayedEventId = null;
+
+    // the room history backfill state, null until it is read from the index
+    private RoomMediaIndex.BackfillState mBackfillState;
+
+    // true when a history page is requested
+    private boolean mIsBackfilling = false;
+
+    // the history pages requested in the background
+    private int mBackfillPagesCount = 0;
+
+    // called when the pending history page is indexed
+    private Runnable mOnBackfillPageDone;
+
     /**
      * static constructor
      *
@@ -85,6 +116,10 @@ public class VectorSearchRoomFilesListFragment extends VectorSearchRoomsFilesLis
         super.cancelCatchingRequests();
         mIsBackPaginating = false;
         mCanPaginateBack = true;
+        mIndexTasks.cancelAll();
+        mIsBackfilling = false;
+        mOnBackfillPageDone = null;
+        mBackfillPagesCount = 0;
         if (null != mRoom) {
             mRoom.cancelRemoteHistoryRequest();
             mNextBatch = mRoom.getState().getToken();
@@ -123,7 +158,11 @@ public class VectorSearchRoomFilesListFragment extends VectorSearchRoomsFilesLis
         mIsBackPaginating = true;
         mMessageListView.setVisibility(View.GONE);
 
-        remoteRoomHistoryRequest(new ArrayList<Event>(), new ApiCallback<ArrayList<Event>>() {
+        mOldestDisplayedTs = Long.MAX_VALUE;
+        mOldestDisplayedEventId = null;
+        mCanPaginateBack = true;
+
+        loadMediaEvents(new ArrayList<Event>(), new ApiCallback<ArrayList<Event>>() {
             @Override
             public void onSuccess(ArrayList<Event> eventsChunk) {
                 List<MessageRow> messageRows = new ArrayList<>(eventsChunk.size());
@@ -149,12 +188,15 @@ public class VectorSearchRoomFilesListFragment extends VectorSearchRoomsFilesLis
                     try {
                         listener.onSearchSucceed(messageRows.size());
                     } catch (Exception e) {
-                        Log.e(LOG_TAG, "## remoteRoomHistoryRequest() : onSearchSucceed failed " + e.getMessage(), e);
+                        Log.e(LOG_TAG, "## startFilesSearch() : onSearchSucceed failed " + e.getMessage(), e);
                     }
                 }
 
                 mIsBackPaginating = false;
                 mSearchListeners.clear();
+
+                // index the older files while they are displayed
+                backfill();
             }
 
             private void onError() {
@@ -167,7 +209,7 @@ public class VectorSearchRoomFilesListFragment extends VectorSearchRoomsFilesLis
                     try {
                         listener.onSearchFailed();
                     } catch (Exception e) {
-                        Log.e(LOG_TAG, "## remoteRoomHistoryRequest() : onSearchFailed failed " + e.getMessage(), e);
+                        Log.e(LOG_TAG, "## startFilesSearch() : onSearchFailed failed " + e.getMessage(), e);
                     }
                 }
 
@@ -216,7 +258,7 @@ public class VectorSearchRoomFilesListFragment extends VectorSearchRoomsFilesLis
             showLoadingBackProgress();
         }
 
-        remoteRoomHistoryRequest(new ArrayList<Event>(), new ApiCallback<ArrayList<Event>>() {
+        loadMediaEvents(new ArrayList<Event>(), new ApiCallback<ArrayList<Event>>() {
             @Override
             public void onSuccess(final ArrayList<Event> eventChunks) {
                 getActivity().runOnUiThread(new Runnable() {
@@ -322,89 +364,230 @@ public class VectorSearchRoomFilesListFragment extends VectorSearchRoomsFilesLis
     }
 
     /**
-     * Filter and append the found events
+     * @return the media index of the session
+     */
+    private RoomMediaIndex getMediaIndex() {
+        return RoomMediaIndex.getInstance(VectorApp.getInstance(), mSession.getMyUserId());
+    }
+
+    /**
+     * Load the files older than the displayed ones until finding at least MIN_SEARCH_RESULTS_COUNT files.
+     * The files are read from the media index, the room history is only requested when the index is exhausted.
      *
-     * @param events         the matched events list
-     * @param eventsToAppend the retrieved events list.
+     * @param events   the result events lists, from the most recent one
+     * @param callback the result callback
      */
-    private void appendEvents(ArrayList<Event> events, List<Event> eventsToAppend) {
-        // filter
-        List<Event> filteredEvents = new ArrayList<>(eventsToAppend.size());
-        for (Event event : eventsToAppend) {
-            if (Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
-                Message message = JsonUtils.toMessage(event.getContent());
-
-                if (Message.MSGTYPE_FILE.equals(message.msgtype) ||
-                        Message.MSGTYPE_IMAGE.equals(message.msgtype) ||
-                        Message.MSGTYPE_VIDEO.equals(message.msgtype) ||
-                        Message.MSGTYPE_AUDIO.equals(message.msgtype)) {
-                    filteredEvents.add(event);
+    private void loadMediaEvents(final ArrayList<Event> events, final ApiCallback<ArrayList<Event>> callback) {
+        final String roomId = mRoom.getRoomId();
+        final long beforeTs = mOldestDisplayedTs;
+        final String beforeEventId = mOldestDisplayedEventId;
+
+        mIndexTasks.execute(AppExecutors.Pool.IO, LOG_TAG + "_loadMediaEvents", new AppExecutors.Task<Pair<List<Event>, RoomMediaIndex.BackfillState>>() {
+            @Override
+            protected Pair<List<Event>, RoomMediaIndex.BackfillState> doInBackground() {
+                RoomMediaIndex mediaIndex = getMediaIndex();
+                return new Pair<>(mediaIndex.getMediaEvents(roomId, beforeTs, beforeEventId, INDEXED_EVENTS_PAGE_SIZE), mediaIndex.getBackfillState(roomId));
+            }
+
+            @Override
+            protected void onResult(Pair<List<Event>, RoomMediaIndex.BackfillState> result) {
+                List<Event> indexedEvents = result.first;
+
+                // the in-memory state is updated by the history requests
+                if (null == mBackfillState) {
+                    mBackfillState = result.second;
+                }
+
+                // the encrypted events are indexed encrypted
+                if (mRoom.isEncrypted()) {
+                    for (Event event : indexedEvents) {
+                        mSession.getDataHandler().decryptEvent(event, mTimeLineId);
+                    }
+                }
+
+                if (!indexedEvents.isEmpty()) {
+                    events.addAll(indexedEvents);
+                    Event oldestEvent = indexedEvents.get(indexedEvents.size() - 1);
+                    mOldestDisplayedTs = oldestEvent.getOriginServerTs();
+                    mOldestDisplayedEventId = oldestEvent.eventId;
+                }
+
+                if (events.size() >= MIN_SEARCH_RESULTS_COUNT) {
+                    callback.onSuccess(events);
+                } else if (indexedEvents.size() == INDEXED_EVENTS_PAGE_SIZE) {
+                    loadMediaEvents(events, callback);
+                } else if (mBackfillState.isDone()) {
+                    // no more file in the history
+                    mCanPaginateBack = false;
+                    callback.onSuccess(events);
+                } else {
+                    requestHistoryPage(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadMediaEvents(events, callback);
+                        }
+                    }, new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSuccess(events);
+                        }
+                    });
                 }
             }
+        });
+    }
+
+    /**
+     * Index the older history pages in the background, while the files list is displayed.
+     */
+    private void backfill() {
+        if (mIsBackfilling || (null == mBackfillState) || mBackfillState.isDone()
+                || (mBackfillPagesCount >= MAX_BACKFILL_PAGES_COUNT) || !isResumed()) {
+            return;
         }
 
-        events.addAll(filteredEvents);
+        mBackfillPagesCount++;
+
+        requestHistoryPage(new Runnable() {
+            @Override
+            public void run() {
+                backfill();
+            }
+        }, null);
     }
 
     /**
-     * Search some files until find out at least 10 matching messages.
+     * Request the next room history page and index its files.
+     * The gap left by a limited sync is requested before the older history.
+     * If a page is already requested, onDone is called when it is indexed.
      *
-     * @param events   the result events lists
-     * @param callback the result callback
+     * @param onDone  called when the page is indexed
+     * @param onError called when the request fails, the error is only displayed if it is not null
      */
-    private void remoteRoomHistoryRequest(final ArrayList<Event> events, final ApiCallback<ArrayList<Event>> callback) {
+    private void requestHistoryPage(final Runnable onDone, final Runnable onError) {
+        if (mIsBackfilling) {
+            mOnBackfillPageDone = onDone;
+            return;
+        }
+
+        mIsBackfilling = true;
+
+        final boolean isGapPage = mBackfillState.mHasGap;
+        final long gapTs = mBackfillState.mGapTs;
+
+        if (isGapPage) {
+            mNextBatch = (null != mBackfillState.mGapToken) ? mBackfillState.mGapToken : mRoom.getState().getToken();
+        } else {
+            mNextBatch = (null != mBackfillState.mToken) ? mBackfillState.mToken : mRoom.getState().getToken();
+        }
+
+        final String roomId = mRoom.getRoomId();
+
         mRoom.requestServerRoomHistory(mNextBatch, MESSAGES_PAGINATION_LIMIT, new ApiCallback<TokensChunkResponse<Event>>() {
             @Override
-            public void onSuccess(TokensChunkResponse<Event> eventsChunk) {
-                if ((null == mNextBatch) || TextUtils.equals(eventsChunk.start, mNextBatch)) {
-                    // no more message in the history
-                    if (TextUtils.equals(eventsChunk.start, eventsChunk.end)) {
-                        mCanPaginateBack = false;
-                        callback.onSuccess(events);
-                    } else {
-                        // decrypt the encrypted events
-                        if (mRoom.isEncrypted()) {
-                            for (Event event : eventsChunk.chunk) {
-                                mSession.getDataHandler().decryptEvent(event, mTimeLineId);
-                            }
-                        }
+            public void onSuccess(final TokensChunkResponse<Event> eventsChunk) {
+                // the request has been cancelled
+                if (!mIsBackfilling || ((null != mNextBatch) && !TextUtils.equals(eventsChunk.start, mNextBatch))) {
+                    return;
+                }
 
-                        // append the retrieved one
-                        appendEvents(events, eventsChunk.chunk);
-                        mNextBatch = eventsChunk.end;
+                // no more message in the history
+                final boolean isComplete = TextUtils.equals(eventsChunk.start, eventsChunk.end);
 
-                        if (events.size() >= 10) {
-                            callback.onSuccess(events);
+                // the page reaches the events received before the gap
+                boolean reachesGapStart = false;
+
+                if (isGapPage) {
+                    for (Event event : eventsChunk.chunk) {
+                        reachesGapStart |= (event.getOriginServerTs() <= gapTs);
+                    }
+                }
+
+                final boolean isGapFilled = reachesGapStart;
+
+                // decrypt the encrypted events
+                if (mRoom.isEncrypted()) {
+                    for (Event event : eventsChunk.chunk) {
+                        mSession.getDataHandler().decryptEvent(event, mTimeLineId);
+                    }
+                }
+
+                mIndexTasks.execute(AppExecutors.Pool.IO, LOG_TAG + "_addHistoryPage", new AppExecutors.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() {
+                        if (isGapPage) {
+                            getMediaIndex().addGapPage(roomId, eventsChunk.chunk, eventsChunk.end, isGapFilled, isComplete);
                         } else {
-                            remoteRoomHistoryRequest(events, callback);
+                            getMediaIndex().addHistoryPage(roomId, eventsChunk.chunk, eventsChunk.end, isComplete);
                         }
+                        return null;
                     }
-                }
+
+                    @Override
+                    protected void onResult(Void result) {
+                        if (isGapPage) {
+                            mBackfillState.mHasGap = !isGapFilled && !isComplete;
+                            mBackfillState.mGapToken = mBackfillState.mHasGap ? eventsChunk.end : null;
+                        }
+
+                        if (!isGapPage || isComplete) {
+                            mBackfillState.mToken = eventsChunk.end;
+                            mBackfillState.mIsComplete = isComplete;
+                        }
+
+                        mNextBatch = eventsChunk.end;
+
+                        onRequestDone(onDone);
+                    }
+                });
             }
 
-            private void onError() {
-                callback.onSuccess(events);
+            private void onError(Exception e) {
+                if (!mIsBackfilling) {
+                    return;
+                }
+
+                if ((null != onError) && (null != getActivity())) {
+                    Toast.makeText(getActivity(), e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+                }
+
+                onRequestDone(onError);
             }
 
             @Override
             public void onNetworkError(Exception e) {
-                Toast.makeText(getActivity(), e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                onError();
+                onError(e);
             }
 
             @Override
             public void onMatrixError(MatrixError e) {
-                Toast.makeText(getActivity(), e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                onError();
+                onError(new Exception(e.getLocalizedMessage()));
             }
 
             @Override
             public void onUnexpectedError(Exception e) {
-                Toast.makeText(getActivity(), e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                onError();
+                onError(e);
             }
         });
     }
 
+    /**
+     * A history page request is done.
+     *
+     * @param callback the request callback
+     */
+    private void onRequestDone(Runnable callback) {
+        mIsBackfilling = false;
+
+        Runnable pendingCallback = mOnBackfillPageDone;
+        mOnBackfillPageDone = null;
+
+        if (null != callback) {
+            callback.run();
+        }
 
+        if (null != pendingCallback) {
+            pendingCallback.run();
+        }
+    }
 }
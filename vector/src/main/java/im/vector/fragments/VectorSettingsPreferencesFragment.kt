@@ -57,13 +57,13 @@ import im.vector.contacts.ContactsManager
 import im.vector.gcm.GcmRegistrationManager
 import im.vector.preference.*
 import im.vector.settings.FontScale
+import im.vector.store.MediaCacheJournal
 import im.vector.util.*
 import org.matrix.androidsdk.MXSession
 import org.matrix.androidsdk.crypto.data.MXDeviceInfo
 import org.matrix.androidsdk.data.MyUser
 import org.matrix.androidsdk.data.Pusher
 import org.matrix.androidsdk.data.RoomMediaMessage
-import org.matrix.androidsdk.db.MXMediasCache
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener
 import org.matrix.androidsdk.listeners.MXEventListener
 import org.matrix.androidsdk.listeners.MXMediaUploadListener
@@ -685,7 +685,7 @@ class VectorSettingsPreferencesFragment : PreferenceFragment(), SharedPreference
 
         // clear medias cache
         findPreference(PreferencesManager.SETTINGS_CLEAR_MEDIA_CACHE_PREFERENCE_KEY).let {
-            MXMediasCache.getCachesSize(activity, object : SimpleApiCallback<Long>() {
+            MediaCacheJournal.getInstance(activity).getSize(object : SimpleApiCallback<Long>() {
                 override fun onSuccess(size: Long) {
                     if (null != activity) {
                         it.summary = android.text.format.Formatter.formatFileSize(activity, size)
@@ -706,7 +706,7 @@ class VectorSettingsPreferencesFragment : PreferenceFragment(), SharedPreference
                     override fun onPostExecute(result: Void?) {
                         hideLoadingView()
 
-                        MXMediasCache.getCachesSize(activity, object : SimpleApiCallback<Long>() {
+                        MediaCacheJournal.getInstance(activity).getSize(object : SimpleApiCallback<Long>() {
                             override fun onSuccess(size: Long) {
                                 it.summary = android.text.format.Formatter.formatFileSize(activity, size)
                             }
@@ -728,7 +728,7 @@ class VectorSettingsPreferencesFragment : PreferenceFragment(), SharedPreference
 
         // clear cache
         findPreference(PreferencesManager.SETTINGS_CLEAR_CACHE_PREFERENCE_KEY).let {
-            MXSession.getApplicationSizeCaches(activity, object : SimpleApiCallback<Long>() {
+            MediaCacheJournal.getInstance(activity).getApplicationSize(object : SimpleApiCallback<Long>() {
                 override fun onSuccess(size: Long) {
                     if (null != activity) {
                         it.summary = android.text.format.Formatter.formatFileSize(activity, size)
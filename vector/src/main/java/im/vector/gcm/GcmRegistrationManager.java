@@ -24,8 +24,6 @@ import android.content.pm.PackageInfo;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
 import android.text.TextUtils;
 
 import org.matrix.androidsdk.HomeServerConnectionConfig;
@@ -64,9 +62,7 @@ public final class GcmRegistrationManager {
     private static final String PREFS_ALLOW_BACKGROUND_SYNC = "GcmRegistrationManager.PREFS_ALLOW_BACKGROUND_SYNC";
     private static final String PREFS_ALLOW_SENDING_CONTENT_TO_GCM = "GcmRegistrationManager.PREFS_ALLOW_SENDING_CONTENT_TO_GCM";
 
-    private static final String PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM = "PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM";
     private static final String PREFS_PUSHER_REGISTRATION_TOKEN_KEY = "PREFS_PUSHER_REGISTRATION_TOKEN_KEY";
-    private static final String PREFS_PUSHER_REGISTRATION_STATUS = "PREFS_PUSHER_REGISTRATION_STATUS";
 
     private static final String PREFS_SYNC_TIMEOUT = "GcmRegistrationManager.PREFS_SYNC_TIMEOUT";
     private static final String PREFS_SYNC_DELAY = "GcmRegistrationManager.PREFS_SYNC_DELAY";
@@ -142,6 +138,12 @@ public final class GcmRegistrationManager {
     // pusher rest client
     private Map<String, PushersRestClient> mPushersRestClients = new HashMap<>();
 
+    // the persistent registration data
+    private final PushersRegistrationStore mRegistrationStore;
+
+    // the generation of the latest pushers registration
+    private int mPushersRegistrationGeneration = 0;
+
     /**
      * Constructor
      *
@@ -149,6 +151,7 @@ public final class GcmRegistrationManager {
      */
     public GcmRegistrationManager(final Context appContext) {
         mContext = appContext.getApplicationContext();
+        mRegistrationStore = new PushersRegistrationStore(getGcmSharedPreferences());
         // TODO customise it ?
         mBasePusherDeviceName = Build.MODEL.trim();
 
@@ -561,34 +564,27 @@ public final class GcmRegistrationManager {
     }
 
     /**
-     * Register the session to the 3rd-party app server
+     * Register the session pusher to the 3rd-party app server
      *
      * @param session  the session to register.
-     * @param listener the registration listener
+     * @param append   false to replace the pushers using the same push key
+     * @param callback the asynchronous callback
      */
-    private void registerToThirdPartyServer(final MXSession session, final boolean append, final ThirdPartyRegistrationListener listener) {
+    private void addHttpPusher(final MXSession session, final boolean append, final ApiCallback<Void> callback) {
         // test if the push server registration is allowed
         if (!areDeviceNotificationsAllowed() || !useGCM() || !session.isAlive()) {
+            String reason;
+
             if (!areDeviceNotificationsAllowed()) {
-                Log.d(LOG_TAG, "registerPusher : the user disabled it.");
+                reason = "the user disabled it.";
             } else if (!session.isAlive()) {
-                Log.d(LOG_TAG, "registerPusher : the session is not anymore alive");
+                reason = "the session is not anymore alive";
             } else {
-                Log.d(LOG_TAG, "registerPusher : GCM is disabled.");
-            }
-
-            if (null != listener) {
-                try {
-                    listener.onThirdPartyRegistrationFailed();
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "registerToThirdPartyServer failed " + e.getMessage(), e);
-                }
+                reason = "GCM is disabled.";
             }
 
-            // fallback to the GCM_REGISTRED state
-            // thus, the client will try again to register with checkRegistrations.
-            mRegistrationState = setStoredRegistrationState(RegistrationState.GCM_REGISTRED);
-
+            Log.d(LOG_TAG, "registerPusher : " + reason);
+            callback.onUnexpectedError(new Exception(reason));
             return;
         }
 
@@ -602,66 +598,7 @@ public final class GcmRegistrationManager {
         getPushersRestClient(session)
                 .addHttpPusher(mRegistrationToken, DEFAULT_PUSHER_APP_ID, computePushTag(session),
                         mPusherLang, mPusherAppName, mBasePusherDeviceName,
-                        DEFAULT_PUSHER_URL, append, eventIdOnlyPushes, new ApiCallback<Void>() {
-                            @Override
-                            public void onSuccess(Void info) {
-                                Log.d(LOG_TAG, "registerToThirdPartyServer succeeded");
-
-                                if (null != listener) {
-                                    try {
-                                        listener.onThirdPartyRegistered();
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "onSessionRegistered failed " + e.getMessage(), e);
-                                    }
-                                }
-                            }
-
-                            private void onError(final String message) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer failed" + session.getMyUserId() + " (" + message + ")");
-
-                                // fallback to the GCM_REGISTRED state
-                                // thus, the client will try again to register with checkRegistrations.
-                                mRegistrationState = setStoredRegistrationState(RegistrationState.GCM_REGISTRED);
-
-                                if (null != listener) {
-                                    try {
-                                        listener.onThirdPartyRegistrationFailed();
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "onThirdPartyRegistrationFailed failed " + e.getMessage(), e);
-                                    }
-                                }
-                            }
-
-                            @Override
-                            public void onNetworkError(Exception e) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer onNetworkError " + e.getMessage(), e);
-                                new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (mRegistrationState == RegistrationState.SERVER_REGISTRATING) {
-                                            Log.e(LOG_TAG, "registerToThirdPartyServer onNetworkError -> retry");
-                                            registerToThirdPartyServer(session, append, listener);
-                                        }
-                                    }
-                                }, 30 * 1000);
-                            }
-
-                            @Override
-                            public void onMatrixError(MatrixError e) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer onMatrixError " + e.errcode);
-                                onError(e.getMessage());
-
-                                if (MatrixError.UNKNOWN.equals(e.errcode)) {
-                                    manage500Error();
-                                }
-                            }
-
-                            @Override
-                            public void onUnexpectedError(Exception e) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer onUnexpectedError " + e.getMessage(), e);
-                                onError(e.getMessage());
-                            }
-                        });
+                        DEFAULT_PUSHER_URL, append, eventIdOnlyPushes, callback);
     }
 
     /**
@@ -784,7 +721,7 @@ public final class GcmRegistrationManager {
             // check if the notifications must be displayed
             if (useGCM() && areDeviceNotificationsAllowed() && !TextUtils.isEmpty(mRegistrationToken)) {
                 mRegistrationState = setStoredRegistrationState(RegistrationState.SERVER_REGISTRATING);
-                registerToThirdPartyServer(new ArrayList<>(Matrix.getInstance(mContext).getSessions()), 0);
+                registerToThirdPartyServer(new ArrayList<>(Matrix.getInstance(mContext).getSessions()));
             } else {
                 dispatchOnThirdPartyRegistrationFailed();
             }
@@ -792,59 +729,87 @@ public final class GcmRegistrationManager {
     }
 
     /**
-     * Recursive method to register a MXSessions list.
+     * Register a MXSessions list.
      *
      * @param sessions the sessions list.
-     * @param index    the index of the MX sessions to register.
      */
-    private void registerToThirdPartyServer(final ArrayList<MXSession> sessions, final int index) {
-        // reach this end of the list ?
-        if (index >= sessions.size()) {
-            Log.d(LOG_TAG, "registerSessions : all the sessions are registered");
-            mRegistrationState = setStoredRegistrationState(RegistrationState.SERVER_REGISTERED);
-            dispatchOnThirdPartyRegistered();
-
-            // get the pushers list
-            refreshPushersList(sessions, null);
+    private void registerToThirdPartyServer(final ArrayList<MXSession> sessions) {
+        // the results of the previous registrations are ignored
+        final int generation = ++mPushersRegistrationGeneration;
 
-            // the notifications have been disabled while registering them
-            if (useGCM() && !areDeviceNotificationsAllowed()) {
-                // remove them
-                unregister(null);
-            } else {
-                CommonActivityUtils.onGcmUpdate(mContext);
-            }
+        final Map<String, MXSession> sessionByUserId = new HashMap<>();
+        List<String> userIds = new ArrayList<>();
 
-            return;
+        for (MXSession session : sessions) {
+            sessionByUserId.put(session.getMyUserId(), session);
+            userIds.add(session.getMyUserId());
         }
 
-        final MXSession session = sessions.get(index);
-
-        registerToThirdPartyServer(session, (index > 0), new ThirdPartyRegistrationListener() {
+        new PushersRegistrationCoordinator(new PushersRegistrationCoordinator.PusherRegistrar() {
             @Override
-            public void onThirdPartyRegistered() {
-                Log.d(LOG_TAG, "registerSessions : session " + session.getMyUserId() + " is registred");
-                registerToThirdPartyServer(sessions, index + 1);
+            public void addPusher(String userId, boolean append, ApiCallback<Void> callback) {
+                addHttpPusher(sessionByUserId.get(userId), append, callback);
             }
 
             @Override
-            public void onThirdPartyRegistrationFailed() {
-                Log.d(LOG_TAG, "registerSessions : onSessionRegistrationFailed " + session.getMyUserId());
-
-                mRegistrationState = setStoredRegistrationState(RegistrationState.GCM_REGISTRED);
-                dispatchOnThirdPartyRegistrationFailed();
+            public boolean isRegistrationActive(String userId) {
+                return isActiveRegistration(generation) && sessionByUserId.get(userId).isAlive();
             }
-
+        }).register(userIds, new PushersRegistrationCoordinator.RegistrationListener() {
             @Override
-            public void onThirdPartyUnregistered() {
+            public void onRegistered() {
+                if (!isActiveRegistration(generation)) {
+                    Log.d(LOG_TAG, "registerSessions : ignore an outdated registration result");
+                    return;
+                }
+
+                Log.d(LOG_TAG, "registerSessions : all the sessions are registered");
+                mRegistrationState = setStoredRegistrationState(RegistrationState.SERVER_REGISTERED);
+                dispatchOnThirdPartyRegistered();
+
+                // get the pushers list
+                refreshPushersList(sessions, null);
+
+                // the notifications have been disabled while registering them
+                if (useGCM() && !areDeviceNotificationsAllowed()) {
+                    // remove them
+                    unregister(null);
+                } else {
+                    CommonActivityUtils.onGcmUpdate(mContext);
+                }
             }
 
             @Override
-            public void onThirdPartyUnregistrationFailed() {
+            public void onRegistrationFailed(MatrixError matrixError) {
+                if (!isActiveRegistration(generation)) {
+                    Log.d(LOG_TAG, "registerSessions : ignore an outdated registration failure");
+                    return;
+                }
+
+                Log.d(LOG_TAG, "registerSessions : onSessionRegistrationFailed");
+
+                // fallback to the GCM_REGISTRED state
+                // thus, the client will try again to register with checkRegistrations.
+                mRegistrationState = setStoredRegistrationState(RegistrationState.GCM_REGISTRED);
+                dispatchOnThirdPartyRegistrationFailed();
+
+                if ((null != matrixError) && MatrixError.UNKNOWN.equals(matrixError.errcode)) {
+                    manage500Error();
+                }
             }
         });
     }
 
+    /**
+     * Tell if a pushers registration is still the active one.
+     *
+     * @param generation the registration generation
+     * @return true if the registration result must update the registration state
+     */
+    private boolean isActiveRegistration(int generation) {
+        return (generation == mPushersRegistrationGeneration) && (mRegistrationState == RegistrationState.SERVER_REGISTRATING);
+    }
+
     /**
      * Unregister the current sessions from the 3rd party server.
      *
@@ -1111,6 +1076,8 @@ public final class GcmRegistrationManager {
                 .edit()
                 .clear()
                 .apply();
+
+        mRegistrationStore.reset();
     }
 
     /**
@@ -1348,7 +1315,7 @@ public final class GcmRegistrationManager {
      * @return the GCM registration stored for this version of the app or null if none is stored.
      */
     private String getStoredRegistrationToken() {
-        return getGcmSharedPreferences().getString(PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM, null);
+        return mRegistrationStore.getRegistrationToken();
     }
 
     /**
@@ -1378,17 +1345,14 @@ public final class GcmRegistrationManager {
     private void setStoredRegistrationToken(String registrationToken) {
         Log.d(LOG_TAG, "Saving registration token");
 
-        getGcmSharedPreferences()
-                .edit()
-                .putString(PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM, registrationToken)
-                .apply();
+        mRegistrationStore.setRegistrationToken(registrationToken);
     }
 
     /**
      * @return the registration status
      */
     private RegistrationState getStoredRegistrationState() {
-        return RegistrationState.values()[getGcmSharedPreferences().getInt(PREFS_PUSHER_REGISTRATION_STATUS, RegistrationState.UNREGISTRATED.ordinal())];
+        return RegistrationState.values()[mRegistrationStore.getRegistrationState(RegistrationState.UNREGISTRATED.ordinal())];
     }
 
     /**
@@ -1403,10 +1367,7 @@ public final class GcmRegistrationManager {
                 (RegistrationState.SERVER_REGISTRATING != state) &&
                 (RegistrationState.SERVER_UNREGISTRATING != state)) {
 
-            getGcmSharedPreferences()
-                    .edit()
-                    .putInt(PREFS_PUSHER_REGISTRATION_STATUS, state.ordinal())
-                    .apply();
+            mRegistrationStore.setRegistrationState(state.ordinal());
         }
 
         return state;
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.gcm;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Register the pushers of several sessions.
+ * The first session is registered alone because it replaces the pushers using the same push key,
+ * then the other sessions are registered concurrently.
+ * A session registration is retried with an exponential backoff after a network error,
+ * the backoff starts again with each registration.
+ * The registration is dropped without any result when the registrar is no longer active before a retry.
+ * The methods and the callbacks are called on the UI thread.
+ */
+class PushersRegistrationCoordinator {
+    private static final String LOG_TAG = PushersRegistrationCoordinator.class.getSimpleName();
+
+    // the delay before retrying after the first network error, it is doubled after each failure
+    static final long RETRY_DELAY_MS = 5 * 1000;
+    static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    /**
+     * Register the pusher of a session.
+     */
+    interface PusherRegistrar {
+        /**
+         * Register the pusher of a session.
+         *
+         * @param userId   the session user id
+         * @param append   false to replace the pushers using the same push key
+         * @param callback the asynchronous callback
+         */
+        void addPusher(String userId, boolean append, ApiCallback<Void> callback);
+
+        /**
+         * @param userId the session user id
+         * @return true if the session registration must go on, false to drop the registration silently
+         */
+        boolean isRegistrationActive(String userId);
+    }
+
+    /**
+     * The registration result listener
+     */
+    interface RegistrationListener {
+        /**
+         * All the sessions are registered.
+         */
+        void onRegistered();
+
+        /**
+         * At least a session cannot be registered.
+         *
+         * @param matrixError the latest matrix error, null if there is none
+         */
+        void onRegistrationFailed(MatrixError matrixError);
+    }
+
+    private final PusherRegistrar mRegistrar;
+    private final Handler mUIHandler = new Handler(Looper.getMainLooper());
+
+    // the sessions registration progress
+    private int mPendingCount;
+    private boolean mHasFailed;
+    private MatrixError mLatestMatrixError;
+    private RegistrationListener mListener;
+    private boolean mIsCancelled;
+
+    // the consecutive network failures by session user id
+    private final Map<String, Integer> mFailuresCounts = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param registrar the pushers registrar
+     */
+    PushersRegistrationCoordinator(PusherRegistrar registrar) {
+        mRegistrar = registrar;
+    }
+
+    /**
+     * Register the pushers of a sessions list.
+     *
+     * @param userIds  the sessions user ids
+     * @param listener the result listener
+     */
+    void register(final List<String> userIds, final RegistrationListener listener) {
+        mListener = listener;
+        mHasFailed = false;
+        mLatestMatrixError = null;
+        mIsCancelled = false;
+
+        // the retries backoff starts again
+        mFailuresCounts.clear();
+
+        if (userIds.isEmpty()) {
+            listener.onRegistered();
+            return;
+        }
+
+        // the first registration removes the other pushers using the same push key
+        mPendingCount = 1;
+
+        registerSession(userIds.get(0), false, new Runnable() {
+            @Override
+            public void run() {
+                if (mHasFailed || (1 == userIds.size())) {
+                    dispatchResult();
+                    return;
+                }
+
+                mPendingCount = userIds.size() - 1;
+
+                Log.d(LOG_TAG, "## register() : register " + mPendingCount + " other sessions");
+
+                for (int i = 1; i < userIds.size(); i++) {
+                    registerSession(userIds.get(i), true, new Runnable() {
+                        @Override
+                        public void run() {
+                            mPendingCount--;
+
+                            if (0 == mPendingCount) {
+                                dispatchResult();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Dispatch the registration result.
+     */
+    private void dispatchResult() {
+        if (mIsCancelled) {
+            Log.d(LOG_TAG, "## dispatchResult() : the registration has been cancelled");
+        } else if (mHasFailed) {
+            mListener.onRegistrationFailed(mLatestMatrixError);
+        } else {
+            mListener.onRegistered();
+        }
+    }
+
+    /**
+     * Schedule a registration retry on the UI thread.
+     *
+     * @param task    the retry task
+     * @param delayMs the delay before running it, in milliseconds
+     */
+    void scheduleRetry(Runnable task, long delayMs) {
+        mUIHandler.postDelayed(task, delayMs);
+    }
+
+    /**
+     * Register a session pusher, with retries after the network errors.
+     *
+     * @param userId the session user id
+     * @param append false to replace the pushers using the same push key
+     * @param onDone called when the registration succeeds or definitely fails
+     */
+    private void registerSession(final String userId, final boolean append, final Runnable onDone) {
+        Log.d(LOG_TAG, "## registerSession() : " + userId);
+
+        mRegistrar.addPusher(userId, append, new ApiCallback<Void>() {
+            @Override
+            public void onSuccess(Void info) {
+                Log.d(LOG_TAG, "## registerSession() : " + userId + " is registered");
+
+                mFailuresCounts.remove(userId);
+
+                onDone.run();
+            }
+
+            private void onError(MatrixError matrixError) {
+                mHasFailed = true;
+
+                if (null != matrixError) {
+                    mLatestMatrixError = matrixError;
+                }
+
+                onDone.run();
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                Integer previousFailuresCount = mFailuresCounts.get(userId);
+                int failuresCount = (null == previousFailuresCount) ? 1 : previousFailuresCount + 1;
+                mFailuresCounts.put(userId, failuresCount);
+
+                long delay = Math.min(RETRY_DELAY_MS << Math.min(failuresCount - 1, 16), MAX_RETRY_DELAY_MS);
+
+                Log.e(LOG_TAG, "## registerSession() : " + userId + " onNetworkError " + e.getMessage() + " -> retry in " + delay + " ms", e);
+
+                scheduleRetry(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mIsCancelled) {
+                            return;
+                        }
+
+                        if (mRegistrar.isRegistrationActive(userId)) {
+                            registerSession(userId, append, onDone);
+                        } else {
+                            // a newer registration or an unregistration owns the registration state
+                            Log.d(LOG_TAG, "## registerSession() : " + userId + " the registration is cancelled");
+                            mIsCancelled = true;
+                        }
+                    }
+                }, delay);
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                Log.e(LOG_TAG, "## registerSession() : " + userId + " onMatrixError " + e.errcode);
+                onError(e);
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                Log.e(LOG_TAG, "## registerSession() : " + userId + " onUnexpectedError " + e.getMessage(), e);
+                onError(null);
+            }
+        });
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.gcm;
+
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+
+/**
+ * Persistent pushers registration data: the registration token and the registration state.
+ * They are saved as a single versioned JSON record in the GCM preferences.
+ */
+class PushersRegistrationStore {
+    private static final String LOG_TAG = PushersRegistrationStore.class.getSimpleName();
+
+    private static final String PREFS_PUSHERS_REGISTRATION = "PREFS_PUSHERS_REGISTRATION";
+
+    private static final int VERSION = 1;
+
+    // the keys used before the record
+    private static final String PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM = "PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM";
+    private static final String PREFS_PUSHER_REGISTRATION_STATUS = "PREFS_PUSHER_REGISTRATION_STATUS";
+
+    /**
+     * The saved record
+     */
+    private static class Record {
+        int mVersion = VERSION;
+        String mRegistrationToken;
+        // -1 when it is not defined
+        int mRegistrationState = -1;
+    }
+
+    private final SharedPreferences mPreferences;
+    private Record mRecord;
+
+    /**
+     * Constructor
+     *
+     * @param preferences the GCM preferences
+     */
+    PushersRegistrationStore(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Load the record, the data saved with the former keys are migrated.
+     */
+    private void loadIfNeeded() {
+        if (null != mRecord) {
+            return;
+        }
+
+        String json = mPreferences.getString(PREFS_PUSHERS_REGISTRATION, null);
+
+        if (!TextUtils.isEmpty(json)) {
+            try {
+                mRecord = JsonUtils.getGson(false).fromJson(json, Record.class);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## loadIfNeeded() : invalid record " + e.getMessage(), e);
+            }
+
+            if ((null != mRecord) && (VERSION != mRecord.mVersion)) {
+                Log.e(LOG_TAG, "## loadIfNeeded() : unsupported version " + mRecord.mVersion);
+                mRecord = null;
+            }
+        }
+
+        if (null == mRecord) {
+            mRecord = new Record();
+
+            if (mPreferences.contains(PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM) || mPreferences.contains(PREFS_PUSHER_REGISTRATION_STATUS)) {
+                Log.d(LOG_TAG, "## loadIfNeeded() : migrate the former keys");
+
+                mRecord.mRegistrationToken = mPreferences.getString(PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM, null);
+                mRecord.mRegistrationState = mPreferences.getInt(PREFS_PUSHER_REGISTRATION_STATUS, -1);
+
+                save();
+
+                mPreferences
+                        .edit()
+                        .remove(PREFS_PUSHER_REGISTRATION_TOKEN_KEY_FCM)
+                        .remove(PREFS_PUSHER_REGISTRATION_STATUS)
+                        .apply();
+            }
+        }
+    }
+
+    /**
+     * Save the record.
+     */
+    private void save() {
+        mPreferences
+                .edit()
+                .putString(PREFS_PUSHERS_REGISTRATION, JsonUtils.getGson(false).toJson(mRecord))
+                .apply();
+    }
+
+    /**
+     * Forget the loaded record, after clearing the preferences for example.
+     */
+    synchronized void reset() {
+        mRecord = null;
+    }
+
+    /**
+     * @return the registration token, null if there is none
+     */
+    synchronized String getRegistrationToken() {
+        loadIfNeeded();
+        return mRecord.mRegistrationToken;
+    }
+
+    /**
+     * Update the registration token.
+     *
+     * @param registrationToken the registration token
+     */
+    synchronized void setRegistrationToken(String registrationToken) {
+        loadIfNeeded();
+        mRecord.mRegistrationToken = registrationToken;
+        save();
+    }
+
+    /**
+     * @param defaultValue the value to return when it is not defined
+     * @return the registration state ordinal
+     */
+    synchronized int getRegistrationState(int defaultValue) {
+        loadIfNeeded();
+        return (mRecord.mRegistrationState < 0) ? defaultValue : mRecord.mRegistrationState;
+    }
+
+    /**
+     * Update the registration state.
+     *
+     * @param registrationState the registration state ordinal
+     */
+    synchronized void setRegistrationState(int registrationState) {
+        loadIfNeeded();
+
+        if (mRecord.mRegistrationState != registrationState) {
+            mRecord.mRegistrationState = registrationState;
+            save();
+        }
+    }
+}
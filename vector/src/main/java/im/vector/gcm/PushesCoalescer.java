@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.gcm;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+
+import im.vector.util.SharedScheduledExecutor;
+
+/**
+ * Coalesce the bursts of pushes: the badge is updated with the latest unread count
+ * and the event stream is caught up once per burst.
+ * The duplicated pushes of a recently pushed event are ignored.
+ * The methods are called on the push executor, the listener is called on it too.
+ */
+class PushesCoalescer {
+    private static final String LOG_TAG = PushesCoalescer.class.getSimpleName();
+
+    // the delay during which the pushes are coalesced
+    static final long COALESCING_DELAY_MS = 500;
+
+    // the max number of recently pushed event ids
+    static final int MAX_RECENT_EVENT_IDS = 100;
+
+    /**
+     * The coalesced pushes listener
+     */
+    interface Listener {
+        /**
+         * Update the badge.
+         *
+         * @param unreadCount the latest pushed unread count
+         */
+        void onUnreadCountUpdate(int unreadCount);
+
+        /**
+         * Catch up the event stream.
+         */
+        void onCatchupRequest();
+    }
+
+    private final Executor mPushExecutor;
+    private final Listener mListener;
+
+    // the recently pushed event ids, to ignore the duplicated pushes of a burst
+    private final Map<String, Boolean> mRecentEventIds = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RECENT_EVENT_IDS;
+        }
+    };
+
+    // the coalesced pushes state
+    private ScheduledFuture<?> mFlushFuture = null;
+    private Integer mPendingUnreadCount = null;
+    private boolean mIsCatchupPending = false;
+
+    /**
+     * Constructor
+     *
+     * @param pushExecutor the serial executor processing the pushes
+     * @param listener     the listener
+     */
+    PushesCoalescer(Executor pushExecutor, Listener listener) {
+        mPushExecutor = pushExecutor;
+        mListener = listener;
+    }
+
+    /**
+     * A push has been received with an unread count.
+     *
+     * @param unreadCount the unread count
+     */
+    void onUnreadCount(int unreadCount) {
+        mPendingUnreadCount = unreadCount;
+        scheduleFlush();
+    }
+
+    /**
+     * Tell if an event has been pushed recently, and remember it.
+     *
+     * @param eventId the event id
+     * @return true if the push is a duplicate
+     */
+    boolean isDuplicatedPush(String eventId) {
+        return null != mRecentEventIds.put(eventId, Boolean.TRUE);
+    }
+
+    /**
+     * A pushed event must be retrieved from the event stream.
+     */
+    void onCatchupRequest() {
+        mIsCatchupPending = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Schedule a task, it can be overridden for the tests.
+     *
+     * @param task    the task
+     * @param delayMs the delay in milliseconds
+     * @return the scheduled future, null if the task cannot be scheduled
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return SharedScheduledExecutor.schedule(task, delayMs);
+    }
+
+    /**
+     * Schedule the coalesced pushes processing if it is not yet scheduled.
+     */
+    private void scheduleFlush() {
+        if (null != mFlushFuture) {
+            return;
+        }
+
+        mFlushFuture = schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPushExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }, COALESCING_DELAY_MS);
+
+        // cannot be scheduled
+        if (null == mFlushFuture) {
+            Log.e(LOG_TAG, "## scheduleFlush() : cannot be scheduled, flush now");
+            flush();
+        }
+    }
+
+    /**
+     * Apply the coalesced pushes: update the badge and catch up the event stream once.
+     */
+    private void flush() {
+        mFlushFuture = null;
+
+        if (null != mPendingUnreadCount) {
+            mListener.onUnreadCountUpdate(mPendingUnreadCount);
+            mPendingUnreadCount = null;
+        }
+
+        if (mIsCatchupPending) {
+            mIsCatchupPending = false;
+            mListener.onCatchupRequest();
+        }
+    }
+}
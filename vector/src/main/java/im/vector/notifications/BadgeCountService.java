@@ -0,0 +1,546 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.notifications;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.BingRulesManager;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import im.vector.Matrix;
+import im.vector.gcm.GcmRegistrationManager;
+import im.vector.util.SharedScheduledExecutor;
+import me.leolin.shortcutbadger.ShortcutBadger;
+
+/**
+ * Application badge (displayed in the launcher) manager.
+ * It maintains the unread rooms count of each session from the updated rooms,
+ * and limits the launcher badge writes to one per MIN_WRITE_INTERVAL_MS.
+ * The unread rooms count is used as badge value when the pushes do not provide it (no GCM, GCM registration failure).
+ */
+public class BadgeCountService {
+    private static final String LOG_TAG = BadgeCountService.class.getSimpleName();
+
+    // the min delay between two launcher badge writes
+    static final long MIN_WRITE_INTERVAL_MS = 1000;
+
+    /**
+     * Badge value listener
+     */
+    public interface BadgeCountListener {
+        /**
+         * The badge value has been updated.
+         *
+         * @param badgeCount the new badge value
+         */
+        void onBadgeCountUpdate(int badgeCount);
+    }
+
+    private static BadgeCountService sInstance = null;
+
+    private final Context mContext;
+
+    // the unread rooms counter by user id
+    private final Map<String, SessionCounter> mCounterByUserId = new HashMap<>();
+
+    // the sum of the sessions unread rooms counts
+    private int mUnreadRoomsCount = 0;
+
+    // the badge value
+    private int mBadgeCount = 0;
+
+    // the launcher badge writes
+    private int mWrittenBadgeCount = -1;
+    private long mLastWriteTime = 0;
+    private ScheduledFuture<?> mPendingWriteFuture = null;
+
+    private final List<BadgeCountListener> mListeners = new ArrayList<>();
+
+    /**
+     * Provides the shared instance.
+     *
+     * @param context the context
+     * @return the shared instance
+     */
+    public static synchronized BadgeCountService getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new BadgeCountService(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context the application context
+     */
+    BadgeCountService(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Provides the live events listener which maintains the unread rooms count of a session.
+     *
+     * @param session the session
+     * @return the events listener
+     */
+    public MXEventListener getLiveEventListener(MXSession session) {
+        return getLiveEventListener(session.getMyUserId(), session.getDataHandler());
+    }
+
+    /**
+     * Provides the live events listener which maintains the unread rooms count of a session.
+     *
+     * @param userId      the session user id
+     * @param dataHandler the session data handler
+     * @return the events listener
+     */
+    synchronized MXEventListener getLiveEventListener(String userId, MXDataHandler dataHandler) {
+        SessionCounter counter = mCounterByUserId.get(userId);
+
+        if (null == counter) {
+            counter = new SessionCounter(userId, dataHandler);
+            mCounterByUserId.put(userId, counter);
+        }
+
+        return counter;
+    }
+
+    /**
+     * Forget a session unread rooms.
+     *
+     * @param userId the session user id
+     */
+    public void removeSession(String userId) {
+        synchronized (this) {
+            SessionCounter counter = mCounterByUserId.remove(userId);
+
+            if (null != counter) {
+                mUnreadRoomsCount -= counter.mCountedUnreadRoomsCount;
+            }
+        }
+
+        refreshBadgeCount();
+    }
+
+    /**
+     * @return the unread rooms count of all the sessions
+     */
+    public synchronized int getUnreadRoomsCount() {
+        return mUnreadRoomsCount;
+    }
+
+    /**
+     * @return the badge value
+     */
+    public synchronized int getBadgeCount() {
+        return mBadgeCount;
+    }
+
+    /**
+     * Add a badge value listener.
+     *
+     * @param listener the listener
+     */
+    public synchronized void addListener(BadgeCountListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a badge value listener.
+     *
+     * @param listener the listener
+     */
+    public synchronized void removeListener(BadgeCountListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Update at once the unread state of a room, the room is read locally for example.
+     *
+     * @param session the session
+     * @param roomId  the room id
+     */
+    public void onRoomUpdate(MXSession session, String roomId) {
+        onRoomUpdate(session.getMyUserId(), roomId);
+    }
+
+    /**
+     * Update at once the unread state of a room.
+     *
+     * @param userId the session user id
+     * @param roomId the room id
+     */
+    void onRoomUpdate(String userId, String roomId) {
+        SessionCounter counter;
+
+        synchronized (this) {
+            counter = mCounterByUserId.get(userId);
+        }
+
+        if (null != counter) {
+            counter.onRoomUpdate(roomId);
+            counter.applyUpdates();
+        }
+    }
+
+    /**
+     * Use the unread rooms count as badge value if the pushes do not provide it.
+     */
+    public void refreshBadgeCount() {
+        if (!isBadgeCountPushed()) {
+            setBadgeCount(getUnreadRoomsCount());
+        }
+    }
+
+    /**
+     * Tell if the pushes provide the badge value, it can be overridden for the tests.
+     *
+     * @return true when GCM is registered
+     */
+    boolean isBadgeCountPushed() {
+        GcmRegistrationManager gcmMgr = Matrix.getInstance(mContext).getSharedGCMRegistrationManager();
+        return (null == gcmMgr) || (gcmMgr.useGCM() && gcmMgr.hasRegistrationToken());
+    }
+
+    /**
+     * The elapsed time clock, it can be overridden for the tests.
+     *
+     * @return the elapsed time since boot in milliseconds
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Schedule a task, it can be overridden for the tests.
+     *
+     * @param task    the task
+     * @param delayMs the delay in milliseconds
+     * @return the scheduled future, null if the task cannot be scheduled
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return SharedScheduledExecutor.schedule(task, delayMs);
+    }
+
+    /**
+     * Cancel a scheduled task, it can be overridden for the tests.
+     *
+     * @param future the scheduled future, can be null
+     */
+    void cancel(ScheduledFuture<?> future) {
+        SharedScheduledExecutor.cancel(future);
+    }
+
+    /**
+     * Write the badge value to the launcher, it can be overridden for the tests.
+     *
+     * @param badgeCount the badge value
+     */
+    void writeToLauncher(int badgeCount) {
+        ShortcutBadger.setBadge(mContext, badgeCount);
+    }
+
+    /**
+     * Update the badge value.
+     * The launcher badge is written at once if the previous write is older than MIN_WRITE_INTERVAL_MS,
+     * else it is written at the end of this interval.
+     *
+     * @param badgeCount the new badge value
+     */
+    public void setBadgeCount(int badgeCount) {
+        List<BadgeCountListener> listeners = null;
+        boolean writeNow = false;
+
+        synchronized (this) {
+            if (mBadgeCount != badgeCount) {
+                mBadgeCount = badgeCount;
+                listeners = new ArrayList<>(mListeners);
+            }
+
+            if ((mWrittenBadgeCount != mBadgeCount) && (null == mPendingWriteFuture)) {
+                long delay = mLastWriteTime + MIN_WRITE_INTERVAL_MS - elapsedRealtime();
+
+                if (delay <= 0) {
+                    writeNow = true;
+                } else {
+                    mPendingWriteFuture = schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (BadgeCountService.this) {
+                                mPendingWriteFuture = null;
+                            }
+
+                            writeBadgeCount();
+                        }
+                    }, delay);
+
+                    // cannot be scheduled
+                    writeNow = (null == mPendingWriteFuture);
+                }
+            }
+        }
+
+        if (writeNow) {
+            writeBadgeCount();
+        }
+
+        if (null != listeners) {
+            for (BadgeCountListener listener : listeners) {
+                try {
+                    listener.onBadgeCountUpdate(badgeCount);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## setBadgeCount() : onBadgeCountUpdate failed " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reset the badge value and write it at once (logout).
+     */
+    public void clearBadgeCount() {
+        synchronized (this) {
+            cancel(mPendingWriteFuture);
+            mPendingWriteFuture = null;
+            // force the write
+            mWrittenBadgeCount = -1;
+            mLastWriteTime = 0;
+        }
+
+        setBadgeCount(0);
+    }
+
+    /**
+     * Write the badge value to the launcher.
+     */
+    private void writeBadgeCount() {
+        int badgeCount;
+
+        synchronized (this) {
+            badgeCount = mBadgeCount;
+
+            if (badgeCount == mWrittenBadgeCount) {
+                return;
+            }
+
+            mWrittenBadgeCount = badgeCount;
+            mLastWriteTime = elapsedRealtime();
+        }
+
+        try {
+            Log.d(LOG_TAG, "## writeBadgeCount() : " + badgeCount);
+            writeToLauncher(badgeCount);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## writeBadgeCount() : Exception Msg=" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Update the sessions unread rooms count.
+     *
+     * @param counter the updated session counter
+     * @param delta   the delta
+     */
+    private synchronized void addToUnreadRoomsCount(SessionCounter counter, int delta) {
+        // ignore the removed sessions
+        if (counter == mCounterByUserId.get(counter.mUserId)) {
+            counter.mCountedUnreadRoomsCount += delta;
+            mUnreadRoomsCount += delta;
+        }
+    }
+
+    /**
+     * The unread rooms of a session, updated at the end of each events chunk.
+     * The callbacks are called on the UI thread.
+     */
+    private class SessionCounter extends MXEventListener {
+        private final String mUserId;
+        private final MXDataHandler mDataHandler;
+
+        // the unread rooms
+        private final Set<String> mUnreadRoomIds = new HashSet<>();
+
+        // the unread rooms count added to mUnreadRoomsCount, updated with the BadgeCountService lock
+        private int mCountedUnreadRoomsCount = 0;
+
+        // the rooms to check at the end of the events chunk
+        private final Set<String> mUpdatedRoomIds = new HashSet<>();
+        private boolean mIsFullRefreshRequired = true;
+
+        SessionCounter(String userId, MXDataHandler dataHandler) {
+            mUserId = userId;
+            mDataHandler = dataHandler;
+        }
+
+        /**
+         * Check the room unread state at the next update.
+         *
+         * @param roomId the room id
+         */
+        synchronized void onRoomUpdate(String roomId) {
+            if (null != roomId) {
+                mUpdatedRoomIds.add(roomId);
+            }
+        }
+
+        /**
+         * Update the unread rooms with the pending rooms updates, then the sessions unread rooms count.
+         */
+        void applyUpdates() {
+            int delta = updateUnreadRooms();
+
+            if (0 != delta) {
+                addToUnreadRoomsCount(this, delta);
+            }
+        }
+
+        /**
+         * Update the unread rooms with the pending rooms updates.
+         *
+         * @return the unread rooms count delta
+         */
+        private synchronized int updateUnreadRooms() {
+            MXDataHandler dataHandler = mDataHandler;
+
+            if ((null == dataHandler) || !dataHandler.isAlive() || (null == dataHandler.getStore())) {
+                return 0;
+            }
+
+            int previousCount = mUnreadRoomIds.size();
+
+            if (mIsFullRefreshRequired) {
+                mIsFullRefreshRequired = false;
+                mUpdatedRoomIds.clear();
+                mUnreadRoomIds.clear();
+
+                for (Room room : dataHandler.getStore().getRooms()) {
+                    if (isUnread(dataHandler.getBingRulesManager(), room)) {
+                        mUnreadRoomIds.add(room.getRoomId());
+                    }
+                }
+            } else {
+                for (String roomId : mUpdatedRoomIds) {
+                    if (isUnread(dataHandler.getBingRulesManager(), dataHandler.getStore().getRoom(roomId))) {
+                        mUnreadRoomIds.add(roomId);
+                    } else {
+                        mUnreadRoomIds.remove(roomId);
+                    }
+                }
+
+                mUpdatedRoomIds.clear();
+            }
+
+            return mUnreadRoomIds.size() - previousCount;
+        }
+
+        /**
+         * Tell if a room is counted in the badge.
+         *
+         * @param bingRulesManager the bing rules manager
+         * @param room             the room
+         * @return true if the room is an invitation or has unread notified messages
+         */
+        private boolean isUnread(BingRulesManager bingRulesManager, Room room) {
+            if (null == room) {
+                return false;
+            }
+
+            if (room.isInvited()) {
+                return true;
+            }
+
+            int notificationCount = room.getNotificationCount();
+
+            if ((null != bingRulesManager) && bingRulesManager.isRoomMentionOnly(room.getRoomId())) {
+                notificationCount = room.getHighlightCount();
+            }
+
+            return notificationCount > 0;
+        }
+
+        @Override
+        public void onLiveEvent(Event event, RoomState roomState) {
+            onRoomUpdate(event.roomId);
+        }
+
+        @Override
+        public void onReceiptEvent(String roomId, List<String> senderIds) {
+            onRoomUpdate(roomId);
+        }
+
+        @Override
+        public void onNotificationCountUpdate(String roomId) {
+            onRoomUpdate(roomId);
+        }
+
+        @Override
+        public void onNewRoom(String roomId) {
+            onRoomUpdate(roomId);
+        }
+
+        @Override
+        public void onJoinRoom(String roomId) {
+            onRoomUpdate(roomId);
+        }
+
+        @Override
+        public void onLeaveRoom(String roomId) {
+            onRoomUpdate(roomId);
+        }
+
+        @Override
+        public synchronized void onBingRulesUpdate() {
+            // the mention only rooms may have changed
+            mIsFullRefreshRequired = true;
+        }
+
+        @Override
+        public void onInitialSyncComplete(String toToken) {
+            synchronized (this) {
+                mIsFullRefreshRequired = true;
+            }
+
+            applyUpdates();
+            refreshBadgeCount();
+        }
+
+        @Override
+        public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
+            applyUpdates();
+            refreshBadgeCount();
+        }
+    }
+}
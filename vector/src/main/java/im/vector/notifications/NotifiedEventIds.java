@@ -0,0 +1,260 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.notifications;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import im.vector.util.SharedScheduledExecutor;
+
+/**
+ * Bounded set of the recently notified event ids, used to ignore the duplicated pushes.
+ * The ids are kept in a ring buffer, from the oldest one: the oldest id is forgotten when the buffer is full,
+ * and the ids older than MAX_AGE_MS are forgotten when a new id is added.
+ * The ids are saved in a dedicated shared preferences file to also ignore the duplicated pushes after a restart.
+ * The saves are batched: the ids are written SAVE_DELAY_MS after the first unsaved id,
+ * or as soon as SAVE_BATCH_SIZE ids are unsaved.
+ */
+public class NotifiedEventIds {
+    private static final String LOG_TAG = NotifiedEventIds.class.getSimpleName();
+
+    private static final String PREFS_NAME = "NotifiedEventIds";
+    private static final String PREFS_KEY_IDS = "NOTIFIED_EVENT_IDS";
+
+    // the max number of tracked ids
+    static final int MAX_COUNT = 500;
+
+    // the max tracking duration
+    static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    // the saves batching
+    static final long SAVE_DELAY_MS = 2000;
+    static final int SAVE_BATCH_SIZE = 20;
+
+    private final SharedPreferences mPreferences;
+
+    // the ids added since the latest save
+    private int mUnsavedCount = 0;
+    private ScheduledFuture<?> mSaveFuture;
+
+    // the ring buffer
+    private final String[] mIds = new String[MAX_COUNT];
+    private final long[] mTimestamps = new long[MAX_COUNT];
+    private int mOldestIndex = 0;
+    private int mCount = 0;
+
+    // the ids of the ring buffer, for the lookups
+    private final Set<String> mIdsSet = new HashSet<>();
+
+    /**
+     * Constructor
+     *
+     * @param context the context
+     */
+    public NotifiedEventIds(Context context) {
+        this(context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param preferences the preferences in which the ids are saved
+     */
+    NotifiedEventIds(SharedPreferences preferences) {
+        mPreferences = preferences;
+        load();
+    }
+
+    /**
+     * Add an event id.
+     *
+     * @param eventId the event id
+     * @return false if the event id is already tracked
+     */
+    public synchronized boolean add(String eventId) {
+        long now = currentTimeMillis();
+
+        // an expired id is not a duplicate
+        removeExpiredIds(now);
+
+        if (mIdsSet.contains(eventId)) {
+            return false;
+        }
+
+        append(eventId, now);
+        mUnsavedCount++;
+
+        if (mUnsavedCount >= SAVE_BATCH_SIZE) {
+            flush();
+        } else if (null == mSaveFuture) {
+            mSaveFuture = scheduleSave(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, SAVE_DELAY_MS);
+
+            // cannot batch the save
+            if (null == mSaveFuture) {
+                flush();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Save the unsaved ids now.
+     */
+    public synchronized void flush() {
+        cancelSave(mSaveFuture);
+        mSaveFuture = null;
+
+        if (mUnsavedCount > 0) {
+            mUnsavedCount = 0;
+            save();
+        }
+    }
+
+    /**
+     * @return the number of tracked ids
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the current time in milliseconds
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Schedule a batched save.
+     *
+     * @param task    the save task
+     * @param delayMs the delay before running it, in milliseconds
+     * @return the scheduled future, null if the save cannot be scheduled
+     */
+    ScheduledFuture<?> scheduleSave(Runnable task, long delayMs) {
+        return SharedScheduledExecutor.schedule(task, delayMs);
+    }
+
+    /**
+     * Cancel a batched save.
+     *
+     * @param future the future returned by scheduleSave(), can be null
+     */
+    void cancelSave(ScheduledFuture<?> future) {
+        SharedScheduledExecutor.cancel(future);
+    }
+
+    /**
+     * Append an id to the ring buffer, the oldest id is forgotten when it is full.
+     *
+     * @param eventId the event id
+     * @param ts      the tracking timestamp
+     */
+    private void append(String eventId, long ts) {
+        if (MAX_COUNT == mCount) {
+            removeOldestId();
+        }
+
+        int index = (mOldestIndex + mCount) % MAX_COUNT;
+        mIds[index] = eventId;
+        mTimestamps[index] = ts;
+        mCount++;
+        mIdsSet.add(eventId);
+    }
+
+    /**
+     * Forget the ids older than MAX_AGE_MS.
+     *
+     * @param now the current time
+     */
+    private void removeExpiredIds(long now) {
+        while ((mCount > 0) && (mTimestamps[mOldestIndex] < (now - MAX_AGE_MS))) {
+            removeOldestId();
+        }
+    }
+
+    /**
+     * Forget the oldest id.
+     */
+    private void removeOldestId() {
+        mIdsSet.remove(mIds[mOldestIndex]);
+        mIds[mOldestIndex] = null;
+        mOldestIndex = (mOldestIndex + 1) % MAX_COUNT;
+        mCount--;
+    }
+
+    /**
+     * Save the ids, from the oldest one, as "timestamp id" lines.
+     */
+    private void save() {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < mCount; i++) {
+            int index = (mOldestIndex + i) % MAX_COUNT;
+            builder.append(mTimestamps[index]).append(' ').append(mIds[index]).append('\n');
+        }
+
+        mPreferences
+                .edit()
+                .putString(PREFS_KEY_IDS, builder.toString())
+                .apply();
+    }
+
+    /**
+     * Load the saved ids.
+     */
+    private void load() {
+        String savedIds = mPreferences.getString(PREFS_KEY_IDS, null);
+
+        if ((null == savedIds) || savedIds.isEmpty()) {
+            return;
+        }
+
+        long minTs = currentTimeMillis() - MAX_AGE_MS;
+
+        for (String line : savedIds.split("\n")) {
+            int separatorPos = line.indexOf(' ');
+
+            if (separatorPos <= 0) {
+                continue;
+            }
+
+            try {
+                long ts = Long.parseLong(line.substring(0, separatorPos));
+                String eventId = line.substring(separatorPos + 1);
+
+                if ((ts >= minTs) && !mIdsSet.contains(eventId)) {
+                    append(eventId, ts);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## load() : invalid line " + e.getMessage(), e);
+            }
+        }
+    }
+}
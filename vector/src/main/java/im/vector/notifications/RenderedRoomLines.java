@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.notifications;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The rendered multi rooms notification lines, by session user id then by room id.
+ * A line is only rendered again when the data it was rendered from has been updated.
+ */
+class RenderedRoomLines {
+
+    /**
+     * A rendered multi rooms notification line and the data it was rendered from.
+     */
+    static class RenderedRoomLine {
+        String mLatestEventId;
+        boolean mIsLatestEventRedacted;
+        // true while the latest event cannot be decrypted
+        boolean mIsLatestEventUndecrypted;
+        String mSenderName;
+        int mNotifiedEventsCount;
+        String mRoomName;
+        boolean mIsInvited;
+
+        // null if the line must not be displayed
+        RoomNotifications mRoomNotifications;
+
+        /**
+         * Tell if the line must be rendered again.
+         */
+        boolean isOutdated(Event latestEvent, String senderName, int notifiedEventsCount, String roomName, boolean isInvited) {
+            return !equals(mLatestEventId, latestEvent.eventId)
+                    || (mIsLatestEventRedacted != latestEvent.isRedacted())
+                    || (mIsLatestEventUndecrypted != isUndecrypted(latestEvent))
+                    || !equals(mSenderName, senderName)
+                    || (mNotifiedEventsCount != notifiedEventsCount)
+                    || !equals(mRoomName, roomName)
+                    || (mIsInvited != isInvited);
+        }
+
+        /**
+         * Tell if an event is encrypted and not yet decrypted.
+         */
+        static boolean isUndecrypted(Event event) {
+            return event.isEncrypted() && (null == event.getClearEvent());
+        }
+
+        private static boolean equals(String lhs, String rhs) {
+            return (null == lhs) ? (null == rhs) : lhs.equals(rhs);
+        }
+    }
+
+    /**
+     * Render a room line.
+     */
+    interface Renderer {
+        /**
+         * @return the rendered line
+         */
+        RenderedRoomLine render();
+    }
+
+    // user id -> room id -> rendered line
+    private final Map<String, Map<String, RenderedRoomLine>> mLinesByUserId = new HashMap<>();
+
+    /**
+     * Forget the lines of the rooms which are no more notified.
+     *
+     * @param userId  the session user id
+     * @param roomIds the notified rooms ids
+     */
+    synchronized void retainRooms(String userId, Collection<String> roomIds) {
+        Map<String, RenderedRoomLine> lines = mLinesByUserId.get(userId);
+
+        if (null != lines) {
+            lines.keySet().retainAll(roomIds);
+
+            if (lines.isEmpty()) {
+                mLinesByUserId.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Provides the line of a room, it is rendered if it is missing or outdated.
+     *
+     * @param userId              the session user id
+     * @param roomId              the room id
+     * @param latestEvent         the latest notified event
+     * @param senderName          the display name of the latest notified event sender
+     * @param notifiedEventsCount the number of notified events in the room
+     * @param roomName            the room name
+     * @param isInvited           true if the user is invited to the room
+     * @param renderer            the renderer
+     * @return the line
+     */
+    synchronized RenderedRoomLine getLine(String userId,
+                                          String roomId,
+                                          Event latestEvent,
+                                          String senderName,
+                                          int notifiedEventsCount,
+                                          String roomName,
+                                          boolean isInvited,
+                                          Renderer renderer) {
+        Map<String, RenderedRoomLine> lines = mLinesByUserId.get(userId);
+
+        if (null == lines) {
+            lines = new HashMap<>();
+            mLinesByUserId.put(userId, lines);
+        }
+
+        RenderedRoomLine line = lines.get(roomId);
+
+        if ((null == line) || line.isOutdated(latestEvent, senderName, notifiedEventsCount, roomName, isInvited)) {
+            line = renderer.render();
+            lines.put(roomId, line);
+        }
+
+        return line;
+    }
+
+    /**
+     * Forget all the lines.
+     */
+    synchronized void clear() {
+        mLinesByUserId.clear();
+    }
+}
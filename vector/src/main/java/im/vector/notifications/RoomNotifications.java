@@ -20,6 +20,9 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Comparator;
 
 /**
@@ -59,6 +62,51 @@ public class RoomNotifications implements Parcelable {
     public RoomNotifications() {
     }
 
+    /*
+     * *********************************************************************************************
+     * Serialisation
+     * *********************************************************************************************
+     */
+
+    /**
+     * Write the instance content.
+     *
+     * @param out the output stream
+     * @throws IOException if the write fails
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        RoomsNotifications.writeString(out, mRoomId);
+        RoomsNotifications.writeString(out, mRoomName);
+        RoomsNotifications.writeString(out, mMessageHeader);
+        RoomsNotifications.writeCharSequence(out, mMessagesSummary);
+        out.writeLong(mLatestEventTs);
+
+        RoomsNotifications.writeString(out, mSenderName);
+        out.writeInt(mUnreadMessagesCount);
+    }
+
+    /**
+     * Create an instance from the content written by writeTo().
+     *
+     * @param in the input stream
+     * @return the instance
+     * @throws IOException if the read fails or if the content is invalid
+     */
+    static RoomNotifications readFrom(DataInputStream in) throws IOException {
+        RoomNotifications roomNotifications = new RoomNotifications();
+
+        roomNotifications.mRoomId = RoomsNotifications.readString(in);
+        roomNotifications.mRoomName = RoomsNotifications.readString(in);
+        roomNotifications.mMessageHeader = RoomsNotifications.readString(in);
+        roomNotifications.mMessagesSummary = RoomsNotifications.readCharSequence(in);
+        roomNotifications.mLatestEventTs = in.readLong();
+
+        roomNotifications.mSenderName = RoomsNotifications.readString(in);
+        roomNotifications.mUnreadMessagesCount = in.readInt();
+
+        return roomNotifications;
+    }
+
     /*
      * *********************************************************************************************
      * Parcelable
@@ -20,7 +20,9 @@ package im.vector.notifications;
 import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.text.Html;
 import android.text.SpannableString;
+import android.text.Spanned;
 import android.text.TextUtils;
 import android.widget.ImageView;
 
@@ -33,12 +35,18 @@ import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.util.EventDisplay;
 import org.matrix.androidsdk.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -98,6 +106,9 @@ public class RoomsNotifications implements Parcelable {
     // messages list
     List<CharSequence> mReversedMessagesList = new ArrayList<>();
 
+    // the rendered multi rooms notification lines
+    private static final RenderedRoomLines sRenderedRoomLines = new RenderedRoomLines();
+
     /****** others items ********/
     // notified event
     private NotifiedEvent mEventToNotify;
@@ -256,7 +267,8 @@ public class RoomsNotifications implements Parcelable {
     }
 
     /**
-     * Init for multi rooms notifications
+     * Init for multi rooms notifications.
+     * A room line is only rendered again when its notified events have been updated.
      */
     private void initMultiRooms() {
         IMXStore store = mSession.getDataHandler().getStore();
@@ -264,65 +276,103 @@ public class RoomsNotifications implements Parcelable {
         int sum = 0;
         int roomsCount = 0;
 
+        // forget the rooms without notified events
+        sRenderedRoomLines.retainRooms(mSessionId, mNotifiedEventsByRoomId.keySet());
+
         for (String roomId : mNotifiedEventsByRoomId.keySet()) {
-            Room room = mSession.getDataHandler().getRoom(roomId);
-            String roomName = getRoomName(mContext, mSession, room, null);
+            final Room room = mSession.getDataHandler().getRoom(roomId);
+            final String roomName = getRoomName(mContext, mSession, room, null);
+
+            final List<NotifiedEvent> notifiedEvents = mNotifiedEventsByRoomId.get(roomId);
+            final Event latestEvent = store.getEvent(notifiedEvents.get(notifiedEvents.size() - 1).mEventId, roomId);
+            final String senderName = room.getState().getMemberName(latestEvent.getSender());
+
+            RenderedRoomLines.RenderedRoomLine renderedRoomLine = sRenderedRoomLines.getLine(mSessionId, roomId,
+                    latestEvent, senderName, notifiedEvents.size(), roomName, room.isInvited(), new RenderedRoomLines.Renderer() {
+                        @Override
+                        public RenderedRoomLines.RenderedRoomLine render() {
+                            return renderRoomLine(room, roomName, senderName, latestEvent, notifiedEvents.size());
+                        }
+                    });
+
+            // add the line if it makes sense
+            if (null != renderedRoomLine.mRoomNotifications) {
+                mRoomNotifications.add(renderedRoomLine.mRoomNotifications);
+                sum += notifiedEvents.size();
+                roomsCount++;
+            }
+        }
 
-            List<NotifiedEvent> notifiedEvents = mNotifiedEventsByRoomId.get(roomId);
-            Event latestEvent = store.getEvent(notifiedEvents.get(notifiedEvents.size() - 1).mEventId, roomId);
+        Collections.sort(mRoomNotifications, RoomNotifications.mRoomNotificationsComparator);
 
-            String text;
-            String header;
+        if (mRoomNotifications.size() > MAX_NUMBER_NOTIFICATION_LINES) {
+            mRoomNotifications = mRoomNotifications.subList(0, MAX_NUMBER_NOTIFICATION_LINES);
+        }
+
+        mSummaryText = mContext.getString(R.string.notification_unread_notified_messages_in_room,
+                mContext.getResources().getQuantityString(R.plurals.notification_unread_notified_messages_in_room_msgs, sum, sum),
+                mContext.getResources().getQuantityString(R.plurals.notification_unread_notified_messages_in_room_rooms, roomsCount, roomsCount));
+    }
+
+    /**
+     * Render the multi rooms notification line of a room.
+     *
+     * @param room                the room
+     * @param roomName            the room name
+     * @param senderName          the display name of the latest notified event sender
+     * @param latestEvent         the latest notified event
+     * @param notifiedEventsCount the number of notified events in the room
+     * @return the rendered line
+     */
+    private RenderedRoomLines.RenderedRoomLine renderRoomLine(Room room, String roomName, String senderName, Event latestEvent, int notifiedEventsCount) {
+        String text;
+        String header;
 
+        if (room.isInvited()) {
             EventDisplay eventDisplay = new RiotEventDisplay(mContext, latestEvent, room.getState());
             eventDisplay.setPrependMessagesWithAuthor(false);
 
-            if (room.isInvited()) {
-                header = roomName + ": ";
-                CharSequence textualDisplay = eventDisplay.getTextualDisplay();
-                text = !TextUtils.isEmpty(textualDisplay) ? textualDisplay.toString() : "";
-            } else if (1 == notifiedEvents.size()) {
-                eventDisplay = new RiotEventDisplay(mContext, latestEvent, room.getState());
-                eventDisplay.setPrependMessagesWithAuthor(false);
+            header = roomName + ": ";
+            CharSequence textualDisplay = eventDisplay.getTextualDisplay();
+            text = !TextUtils.isEmpty(textualDisplay) ? textualDisplay.toString() : "";
+        } else if (1 == notifiedEventsCount) {
+            EventDisplay eventDisplay = new RiotEventDisplay(mContext, latestEvent, room.getState());
+            eventDisplay.setPrependMessagesWithAuthor(false);
 
-                header = roomName + ": " + room.getState().getMemberName(latestEvent.getSender()) + " ";
+            header = roomName + ": " + senderName + " ";
 
-                CharSequence textualDisplay = eventDisplay.getTextualDisplay();
+            CharSequence textualDisplay = eventDisplay.getTextualDisplay();
 
-                // the event might have been redacted
-                if (!TextUtils.isEmpty(textualDisplay)) {
-                    text = textualDisplay.toString();
-                } else {
-                    text = "";
-                }
+            // the event might have been redacted
+            if (!TextUtils.isEmpty(textualDisplay)) {
+                text = textualDisplay.toString();
             } else {
-                header = roomName + ": ";
-                text = mContext.getResources().getQuantityString(R.plurals.notification_unread_notified_messages, notifiedEvents.size(), notifiedEvents.size());
-            }
-
-            // ad the line if it makes sense
-            if (!TextUtils.isEmpty(text)) {
-                RoomNotifications roomNotifications = new RoomNotifications();
-                mRoomNotifications.add(roomNotifications);
-
-                roomNotifications.mRoomId = roomId;
-                roomNotifications.mLatestEventTs = latestEvent.getOriginServerTs();
-                roomNotifications.mMessageHeader = header;
-                roomNotifications.mMessagesSummary = header + text;
-                sum += notifiedEvents.size();
-                roomsCount++;
+                text = "";
             }
+        } else {
+            header = roomName + ": ";
+            text = mContext.getResources().getQuantityString(R.plurals.notification_unread_notified_messages, notifiedEventsCount, notifiedEventsCount);
         }
 
-        Collections.sort(mRoomNotifications, RoomNotifications.mRoomNotificationsComparator);
-
-        if (mRoomNotifications.size() > MAX_NUMBER_NOTIFICATION_LINES) {
-            mRoomNotifications = mRoomNotifications.subList(0, MAX_NUMBER_NOTIFICATION_LINES);
+        RenderedRoomLines.RenderedRoomLine renderedRoomLine = new RenderedRoomLines.RenderedRoomLine();
+        renderedRoomLine.mLatestEventId = latestEvent.eventId;
+        renderedRoomLine.mIsLatestEventRedacted = latestEvent.isRedacted();
+        renderedRoomLine.mIsLatestEventUndecrypted = RenderedRoomLines.RenderedRoomLine.isUndecrypted(latestEvent);
+        renderedRoomLine.mSenderName = senderName;
+        renderedRoomLine.mNotifiedEventsCount = notifiedEventsCount;
+        renderedRoomLine.mRoomName = roomName;
+        renderedRoomLine.mIsInvited = room.isInvited();
+
+        if (!TextUtils.isEmpty(text)) {
+            RoomNotifications roomNotifications = new RoomNotifications();
+            roomNotifications.mRoomId = room.getRoomId();
+            roomNotifications.mLatestEventTs = latestEvent.getOriginServerTs();
+            roomNotifications.mMessageHeader = header;
+            roomNotifications.mMessagesSummary = header + text;
+            renderedRoomLine.mRoomNotifications = roomNotifications;
         }
 
-        mSummaryText = mContext.getString(R.string.notification_unread_notified_messages_in_room,
-                mContext.getResources().getQuantityString(R.plurals.notification_unread_notified_messages_in_room_msgs, sum, sum),
-                mContext.getResources().getQuantityString(R.plurals.notification_unread_notified_messages_in_room_rooms, roomsCount, roomsCount));
+        return renderedRoomLine;
     }
 
     /**
@@ -444,31 +494,197 @@ public class RoomsNotifications implements Parcelable {
      */
 
     private static final String ROOMS_NOTIFICATIONS_FILE_NAME = "ROOMS_NOTIFICATIONS_FILE_NAME";
+    private static final String ROOMS_NOTIFICATIONS_TMP_FILE_NAME = "ROOMS_NOTIFICATIONS_FILE_NAME.tmp";
+
+    // the file header, the file is ignored when it does not match
+    private static final int FILE_MAGIC = 0x524E4F54;
+    private static final int FILE_VERSION = 1;
+
+    // the max length of a saved string in bytes, a longer length means that the file is corrupted
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    // CharSequence encoding
+    private static final int CHAR_SEQUENCE_NULL = 0;
+    private static final int CHAR_SEQUENCE_TEXT = 1;
+    private static final int CHAR_SEQUENCE_HTML = 2;
+
+    // the hash of the saved file content, null if it is unknown
+    private static byte[] sSavedContentHash = null;
+
+    /**
+     * Write a string which can be null.
+     *
+     * @param out    the output stream
+     * @param string the string
+     * @throws IOException if the write fails
+     */
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        if (null == string) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a string written by writeString().
+     *
+     * @param in the input stream
+     * @return the string
+     * @throws IOException if the read fails or if the content is invalid
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        // sanity check
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Write a CharSequence, the styles are kept with their HTML representation.
+     *
+     * @param out          the output stream
+     * @param charSequence the char sequence
+     * @throws IOException if the write fails
+     */
+    static void writeCharSequence(DataOutputStream out, CharSequence charSequence) throws IOException {
+        if (null == charSequence) {
+            out.writeByte(CHAR_SEQUENCE_NULL);
+        } else if (charSequence instanceof Spanned) {
+            out.writeByte(CHAR_SEQUENCE_HTML);
+            writeString(out, Html.toHtml((Spanned) charSequence));
+        } else {
+            out.writeByte(CHAR_SEQUENCE_TEXT);
+            writeString(out, charSequence.toString());
+        }
+    }
+
+    /**
+     * Read a CharSequence written by writeCharSequence().
+     *
+     * @param in the input stream
+     * @return the char sequence
+     * @throws IOException if the read fails or if the content is invalid
+     */
+    static CharSequence readCharSequence(DataInputStream in) throws IOException {
+        int type = in.readByte();
+
+        switch (type) {
+            case CHAR_SEQUENCE_NULL:
+                return null;
+            case CHAR_SEQUENCE_TEXT:
+                return readString(in);
+            case CHAR_SEQUENCE_HTML:
+                String html = readString(in);
+                // Html.toHtml() adds a paragraph
+                return (null == html) ? null : TextUtils.concat(trimTrailingNewLines(Html.fromHtml(html)));
+            default:
+                throw new IOException("Invalid char sequence type " + type);
+        }
+    }
+
+    /**
+     * Remove the trailing new lines.
+     *
+     * @param charSequence the char sequence
+     * @return the trimmed char sequence
+     */
+    private static CharSequence trimTrailingNewLines(CharSequence charSequence) {
+        int end = charSequence.length();
+
+        while ((end > 0) && ('\n' == charSequence.charAt(end - 1))) {
+            end--;
+        }
 
+        return charSequence.subSequence(0, end);
+    }
 
     /**
-     * @return byte[] from the class
+     * Write the instance content.
+     *
+     * @param out the output stream
+     * @throws IOException if the write fails
      */
-    private byte[] marshall() {
-        Parcel parcel = Parcel.obtain();
-        writeToParcel(parcel, 0);
-        byte[] bytes = parcel.marshall();
-        parcel.recycle();
-        return bytes;
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+
+        writeString(out, mSessionId);
+        writeString(out, mRoomId);
+        writeString(out, mSummaryText);
+        writeString(out, mQuickReplyBody);
+        writeString(out, mWearableMessage);
+        out.writeBoolean(mIsInvitationEvent);
+        writeString(out, mRoomAvatarPath);
+        out.writeLong(mContentTs);
+
+        writeString(out, mContentTitle);
+        writeString(out, mContentText);
+        writeString(out, mSenderName);
+
+        out.writeInt(mRoomNotifications.size());
+        for (RoomNotifications roomNotifications : mRoomNotifications) {
+            roomNotifications.writeTo(out);
+        }
+
+        out.writeInt(mReversedMessagesList.size());
+        for (CharSequence sequence : mReversedMessagesList) {
+            writeCharSequence(out, sequence);
+        }
     }
 
     /**
-     * Create a RoomsNotifications instance from a bytes[].
+     * Read the instance content written by writeTo().
      *
-     * @param bytes the bytes array
+     * @param in the input stream
+     * @throws IOException if the read fails or if the content is invalid
      */
-    private RoomsNotifications(byte[] bytes) {
-        Parcel parcel = Parcel.obtain();
-        parcel.unmarshall(bytes, 0, bytes.length);
-        parcel.setDataPosition(0);
+    void readFrom(DataInputStream in) throws IOException {
+        if (FILE_MAGIC != in.readInt()) {
+            throw new IOException("Invalid file header");
+        }
+
+        int version = in.readInt();
+
+        if (FILE_VERSION != version) {
+            throw new IOException("Unsupported file version " + version);
+        }
+
+        mSessionId = readString(in);
+        mRoomId = readString(in);
+        mSummaryText = readString(in);
+        mQuickReplyBody = readString(in);
+        mWearableMessage = readString(in);
+        mIsInvitationEvent = in.readBoolean();
+        mRoomAvatarPath = readString(in);
+        mContentTs = in.readLong();
 
-        init(parcel);
-        parcel.recycle();
+        mContentTitle = readString(in);
+        mContentText = readString(in);
+        mSenderName = readString(in);
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            mRoomNotifications.add(RoomNotifications.readFrom(in));
+        }
+
+        count = in.readInt();
+        mReversedMessagesList = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            mReversedMessagesList.add(readCharSequence(in));
+        }
     }
 
     /**
@@ -477,64 +693,93 @@ public class RoomsNotifications implements Parcelable {
      * @param context the context
      */
     public static void deleteCachedRoomNotifications(Context context) {
+        sRenderedRoomLines.clear();
+
+        deleteRoomNotificationsFile(context);
+    }
+
+    /**
+     * Delete the saved RoomNotifications file
+     *
+     * @param context the context
+     */
+    private static synchronized void deleteRoomNotificationsFile(Context context) {
         File file = new File(context.getApplicationContext().getCacheDir(), ROOMS_NOTIFICATIONS_FILE_NAME);
 
         if (file.exists()) {
             file.delete();
         }
+
+        sSavedContentHash = null;
     }
 
     /**
      * Save the roomsNotifications instance into the file system.
+     * The file is written in a temporary file which is renamed when it is complete,
+     * it is not written again when its content is unchanged.
      *
      * @param context            the context
      * @param roomsNotifications the roomsNotifications instance
      */
-    public static void saveRoomNotifications(Context context, RoomsNotifications roomsNotifications) {
-        deleteCachedRoomNotifications(context);
-
+    public static synchronized void saveRoomNotifications(Context context, RoomsNotifications roomsNotifications) {
         // no notified messages
         if (roomsNotifications.mRoomNotifications.isEmpty()) {
+            deleteRoomNotificationsFile(context);
             return;
         }
 
-        ByteArrayInputStream fis = null;
-        FileOutputStream fos = null;
+        File cacheDir = context.getApplicationContext().getCacheDir();
+        File file = new File(cacheDir, ROOMS_NOTIFICATIONS_FILE_NAME);
+        File tmpFile = new File(cacheDir, ROOMS_NOTIFICATIONS_TMP_FILE_NAME);
 
         try {
-            fis = new ByteArrayInputStream(roomsNotifications.marshall());
-            fos = new FileOutputStream(new File(context.getApplicationContext().getCacheDir(), ROOMS_NOTIFICATIONS_FILE_NAME));
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+            roomsNotifications.writeTo(dataOutputStream);
+            dataOutputStream.flush();
 
-            byte[] readData = new byte[1024];
-            int len;
+            byte[] content = byteArrayOutputStream.toByteArray();
+            byte[] contentHash = MessageDigest.getInstance("SHA-1").digest(content);
 
-            while ((len = fis.read(readData, 0, 1024)) > 0) {
-                fos.write(readData, 0, len);
+            if (file.exists() && Arrays.equals(contentHash, sSavedContentHash)) {
+                Log.d(LOG_TAG, "## saveRoomNotifications() : unchanged content");
+                return;
             }
-        } catch (Throwable t) {
-            Log.e(LOG_TAG, "## saveRoomNotifications() failed " + t.getMessage(), t);
-        }
 
-        try {
-            if (null != fis) {
-                fis.close();
+            FileOutputStream fileOutputStream = null;
+
+            try {
+                fileOutputStream = new FileOutputStream(tmpFile);
+                fileOutputStream.write(content);
+
+                // the content must be on the disk before the rename, else a crash could leave an empty file
+                fileOutputStream.getFD().sync();
+            } finally {
+                if (null != fileOutputStream) {
+                    fileOutputStream.close();
+                }
             }
 
-            if (null != fos) {
-                fos.close();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile);
             }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## saveRoomNotifications() failed " + e.getMessage(), e);
+
+            sSavedContentHash = contentHash;
+        } catch (Throwable t) {
+            Log.e(LOG_TAG, "## saveRoomNotifications() failed " + t.getMessage(), t);
+            tmpFile.delete();
+            deleteRoomNotificationsFile(context);
         }
     }
 
     /**
-     * Load a saved RoomsNotifications from the file system
+     * Load a saved RoomsNotifications from the file system.
+     * An invalid file is deleted.
      *
      * @param context the context
      * @return a RoomsNotifications instance if found
      */
-    public static RoomsNotifications loadRoomsNotifications(Context context) {
+    public static synchronized RoomsNotifications loadRoomsNotifications(Context context) {
         File file = new File(context.getApplicationContext().getCacheDir(), ROOMS_NOTIFICATIONS_FILE_NAME);
 
         // test if the file exits
@@ -543,38 +788,37 @@ public class RoomsNotifications implements Parcelable {
         }
 
         RoomsNotifications roomsNotifications = null;
-        FileInputStream fis = null;
-        ByteArrayOutputStream fos = null;
+        DataInputStream dataInputStream = null;
 
         try {
-            fis = new FileInputStream(file);
-            fos = new ByteArrayOutputStream();
+            dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
 
+            byte[] content = new byte[(int) file.length()];
+            dataInputStream.readFully(content);
 
-            byte[] readData = new byte[1024];
-            int len;
-
-            while ((len = fis.read(readData, 0, 1024)) > 0) {
-                fos.write(readData, 0, len);
-            }
+            roomsNotifications = new RoomsNotifications();
+            roomsNotifications.readFrom(new DataInputStream(new ByteArrayInputStream(content)));
 
-            roomsNotifications = new RoomsNotifications(fos.toByteArray());
+            // the file is not written again until its content changes
+            sSavedContentHash = MessageDigest.getInstance("SHA-1").digest(content);
         } catch (Throwable t) {
             Log.e(LOG_TAG, "## loadRoomsNotifications() failed " + t.getMessage(), t);
+            roomsNotifications = null;
         }
 
         try {
-            if (null != fis) {
-                fis.close();
-            }
-
-            if (null != fos) {
-                fos.close();
+            if (null != dataInputStream) {
+                dataInputStream.close();
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "## loadRoomsNotifications() failed " + e.getMessage(), e);
         }
 
+        // corrupted or written by another version
+        if (null == roomsNotifications) {
+            deleteRoomNotificationsFile(context);
+        }
+
         return roomsNotifications;
     }
 
@@ -51,14 +51,11 @@ import org.matrix.androidsdk.util.Log;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 
 import im.vector.Matrix;
 import im.vector.R;
@@ -67,6 +64,7 @@ import im.vector.ViewedRoomTracker;
 import im.vector.gcm.GcmRegistrationManager;
 import im.vector.notifications.NotificationUtils;
 import im.vector.notifications.NotifiedEvent;
+import im.vector.notifications.NotifiedEventIds;
 import im.vector.notifications.RoomsNotifications;
 import im.vector.receiver.DismissNotificationReceiver;
 import im.vector.util.CallsManager;
@@ -158,12 +156,15 @@ public class EventStreamService extends Service {
      */
     private final LinkedHashMap<String, NotifiedEvent> mPendingNotifications = new LinkedHashMap<>();
     private Map<String, List<NotifiedEvent>> mNotifiedEventsByRoomId = null;
+    // the unread pending notifications to add to mNotifiedEventsByRoomId, from the oldest one
+    private final List<NotifiedEvent> mNewNotifiedEvents = new ArrayList<>();
     private static HandlerThread mNotificationHandlerThread = null;
     private static android.os.Handler mNotificationsHandler = null;
 
     // get the text to display when the background sync is disabled
     private static final List<CharSequence> mBackgroundNotificationStrings = new ArrayList<>();
-    private static final Set<String> mBackgroundNotificationEventIds = new HashSet<>();
+    private static NotifiedEventIds mBackgroundNotificationEventIds = null;
+    private static int mBackgroundNotificationEventsCount = 0;
     private static String mLastBackgroundNotificationRoomId = null;
     private static int mLastBackgroundNotificationUnreadCount = 0;
 
@@ -1140,6 +1141,20 @@ public class EventStreamService extends Service {
         });
     }
 
+    /**
+     * Provides the recently notified event ids, loaded at first call.
+     *
+     * @param context the context
+     * @return the notified event ids
+     */
+    private static synchronized NotifiedEventIds getBackgroundNotificationEventIds(Context context) {
+        if (null == mBackgroundNotificationEventIds) {
+            mBackgroundNotificationEventIds = new NotifiedEventIds(context);
+        }
+
+        return mBackgroundNotificationEventIds;
+    }
+
     /**
      * Try to trigger a notification when the event stream is not created.
      *
@@ -1150,8 +1165,8 @@ public class EventStreamService extends Service {
      * @param unreadMessagesCount the unread messages count
      */
     public static void onStaticNotifiedEvent(Context context, Event event, String roomName, String senderDisplayName, int unreadMessagesCount) {
-        if ((null != event) && !mBackgroundNotificationEventIds.contains(event.eventId)) {
-            mBackgroundNotificationEventIds.add(event.eventId);
+        if ((null != event) && getBackgroundNotificationEventIds(context).add(event.eventId)) {
+            mBackgroundNotificationEventsCount++;
             String header = (TextUtils.isEmpty(roomName) ? "" : roomName + ": ");
             String text;
 
@@ -1171,8 +1186,8 @@ public class EventStreamService extends Service {
                 } else {
                     // Reset the current notification string, only one notification will be displayed.
                     mBackgroundNotificationStrings.clear();
-                    // Reset the unread count by considering the size of the event ids array.
-                    mLastBackgroundNotificationUnreadCount = mBackgroundNotificationEventIds.size();
+                    // Reset the unread count by considering the number of notified events.
+                    mLastBackgroundNotificationUnreadCount = mBackgroundNotificationEventsCount;
                 }
                 text = context.getResources().getQuantityString(R.plurals.room_new_messages_notification,
                         mLastBackgroundNotificationUnreadCount, mLastBackgroundNotificationUnreadCount);
@@ -1244,7 +1259,8 @@ public class EventStreamService extends Service {
         mBackgroundNotificationStrings.clear();
         mLastBackgroundNotificationUnreadCount = 0;
         mLastBackgroundNotificationRoomId = null;
-        mBackgroundNotificationEventIds.clear();
+        // the notified event ids are kept to ignore the duplicated pushes
+        mBackgroundNotificationEventsCount = 0;
 
         NotifiedEvent eventToNotify = getEventToNotify();
         if (!mGcmRegistrationManager.areDeviceNotificationsAllowed()) {
@@ -1301,7 +1317,12 @@ public class EventStreamService extends Service {
                 }
 
                 final NotifiedEvent fEventToNotify = eventToNotify;
-                final Map<String, List<NotifiedEvent>> fNotifiedEventsByRoomId = new HashMap<>(mNotifiedEventsByRoomId);
+                // the rooms lists are updated on this thread while the notification is built on the main thread
+                final Map<String, List<NotifiedEvent>> fNotifiedEventsByRoomId = new HashMap<>();
+
+                for (Map.Entry<String, List<NotifiedEvent>> entry : mNotifiedEventsByRoomId.entrySet()) {
+                    fNotifiedEventsByRoomId.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+                }
 
                 if (null != fEventToNotify) {
                     DismissNotificationReceiver.setLatestNotifiedMessageTs(this, fEventToNotify.mOriginServerTs);
@@ -1336,53 +1357,100 @@ public class EventStreamService extends Service {
     /**
      * Check if the current displayed notification must be cleared
      * because it doesn't make sense anymore.
+     * The unread pending notifications are kept in mNewNotifiedEvents to be added to the notified messages list.
      */
     private NotifiedEvent getEventToNotify() {
+        mNewNotifiedEvents.clear();
+
         if (mPendingNotifications.size() > 0) {
             // TODO add multi sessions
             MXSession session = Matrix.getInstance(getBaseContext()).getDefaultSession();
             IMXStore store = session.getDataHandler().getStore();
 
-            // notified only the latest unread message
-            List<NotifiedEvent> eventsToNotify = new ArrayList<>(mPendingNotifications.values());
+            NotifiedEvent eventToNotifyFound = null;
 
-            Collections.reverse(eventsToNotify);
-
-            for (NotifiedEvent eventToNotify : eventsToNotify) {
+            // keep the unread messages, in the notifications order
+            for (NotifiedEvent eventToNotify : mPendingNotifications.values()) {
                 Room room = store.getRoom(eventToNotify.mRoomId);
 
                 // test if the message has not been read
                 if ((null != room) && !room.isEventRead(eventToNotify.mEventId)) {
-                    String body = null;
-                    Event event = store.getEvent(eventToNotify.mEventId, eventToNotify.mRoomId);
+                    mNewNotifiedEvents.add(eventToNotify);
+                }
+            }
 
-                    if (null != event) {
-                        // test if the message is displayable
-                        EventDisplay eventDisplay = new RiotEventDisplay(getApplicationContext(), event, room.getState());
-                        eventDisplay.setPrependMessagesWithAuthor(false);
+            // notified only the latest displayable unread message
+            for (int index = mNewNotifiedEvents.size() - 1; (index >= 0) && (null == eventToNotifyFound); index--) {
+                NotifiedEvent eventToNotify = mNewNotifiedEvents.get(index);
+                Event event = store.getEvent(eventToNotify.mEventId, eventToNotify.mRoomId);
 
-                        CharSequence textualDisplay = eventDisplay.getTextualDisplay();
+                if (null != event) {
+                    // test if the message is displayable
+                    EventDisplay eventDisplay = new RiotEventDisplay(getApplicationContext(), event, store.getRoom(eventToNotify.mRoomId).getState());
+                    eventDisplay.setPrependMessagesWithAuthor(false);
 
-                        // reported by GA
-                        if (null != textualDisplay) {
-                            body = textualDisplay.toString();
-                        }
-                    }
+                    CharSequence textualDisplay = eventDisplay.getTextualDisplay();
 
-                    if (!TextUtils.isEmpty(body)) {
-                        mPendingNotifications.clear();
-                        mNotifiedEventsByRoomId = null;
-                        return eventToNotify;
+                    // reported by GA
+                    if (!TextUtils.isEmpty(textualDisplay)) {
+                        eventToNotifyFound = eventToNotify;
                     }
                 }
             }
 
             // clear the list
             mPendingNotifications.clear();
+
+            if (null == eventToNotifyFound) {
+                mNewNotifiedEvents.clear();
+            }
+
+            return eventToNotifyFound;
         }
         return null;
     }
 
+    /**
+     * Add the new notified events to the notified messages list.
+     *
+     * @param minTs the min notified message TS
+     * @return true if there is an update
+     */
+    private boolean addNewNotifiedEvents(long minTs) {
+        boolean isUpdated = false;
+
+        for (NotifiedEvent notifiedEvent : mNewNotifiedEvents) {
+            if (notifiedEvent.mOriginServerTs <= minTs) {
+                continue;
+            }
+
+            List<NotifiedEvent> events = mNotifiedEventsByRoomId.get(notifiedEvent.mRoomId);
+
+            if (null == events) {
+                events = new ArrayList<>();
+                mNotifiedEventsByRoomId.put(notifiedEvent.mRoomId, events);
+            }
+
+            boolean isKnown = false;
+
+            for (NotifiedEvent event : events) {
+                if (TextUtils.equals(event.mEventId, notifiedEvent.mEventId)) {
+                    isKnown = true;
+                    break;
+                }
+            }
+
+            if (!isKnown) {
+                events.add(notifiedEvent);
+                isUpdated = true;
+            }
+        }
+
+        mNewNotifiedEvents.clear();
+
+        return isUpdated;
+    }
+
     /**
      * Refresh the notified messages list.
      *
@@ -1417,6 +1485,9 @@ public class EventStreamService extends Service {
         if (null == mNotifiedEventsByRoomId) {
             Log.d(LOG_TAG, "##refreshNotifiedMessagesList() : min message TS " + minTs);
 
+            // the new notified events are read from the store
+            mNewNotifiedEvents.clear();
+
             mNotifiedEventsByRoomId = new HashMap<>();
             Collection<Room> rooms = store.getRooms();
 
@@ -1481,7 +1552,8 @@ public class EventStreamService extends Service {
 
             return true;
         } else { // test if there is an update (if some messages have been read for example)
-            boolean isUpdated = false;
+            // only the rooms of the new notified events are updated
+            boolean isUpdated = addNewNotifiedEvents(minTs);
 
             try {
                 List<String> roomIds = new ArrayList<>(mNotifiedEventsByRoomId.keySet());
@@ -27,54 +27,158 @@ import org.matrix.androidsdk.HomeServerConnectionConfig;
 import org.matrix.androidsdk.util.Log;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Stores login credentials in SharedPreferences.
+ * Each account is stored in its own record, keyed by its user id, and an ordered index lists the user ids.
+ * The records are loaded once in memory, so the preferences are not parsed again at each read,
+ * and an update only serializes the updated config.
+ * SharedPreferences still writes its whole file at each update.
+ * A record and the index are written in the same editor, so they are updated atomically.
  */
 public class LoginStorage {
     private static final String LOG_TAG = LoginStorage.class.getSimpleName();
 
     private static final String PREFS_LOGIN = "Vector.LoginStorage";
 
-    // multi accounts + home server config
+    // multi accounts + home server config, the former format: all the configs in a JSON array
     private static final String PREFS_KEY_CONNECTION_CONFIGS = "PREFS_KEY_CONNECTION_CONFIGS";
 
+    // the former configs without credentials, which cannot be keyed by a user id
+    static final String PREFS_KEY_CONNECTION_CONFIGS_WITHOUT_CREDENTIALS = "PREFS_KEY_CONNECTION_CONFIGS_WITHOUT_CREDENTIALS";
+
+    // the ordered user ids of the stored accounts
+    private static final String PREFS_KEY_CONNECTION_CONFIG_IDS = "PREFS_KEY_CONNECTION_CONFIG_IDS";
+    // the prefix of the account records keys
+    private static final String PREFS_KEY_CONNECTION_CONFIG_PREFIX = "PREFS_KEY_CONNECTION_CONFIG_RECORD_";
+
     private final Context mContext;
 
+    // the serialized home server configs by user id, in storage order
+    // the configs are deserialized at each read, so the callers cannot update the stored ones
+    private LinkedHashMap<String, String> mRecords = null;
+
     public LoginStorage(Context appContext) {
         mContext = appContext.getApplicationContext();
 
     }
 
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(PREFS_LOGIN, Context.MODE_PRIVATE);
+    }
+
+    private static String getRecordKey(String userId) {
+        return PREFS_KEY_CONNECTION_CONFIG_PREFIX + userId;
+    }
+
     /**
-     * @return the list of home server configurations.
+     * Deserialize a home server config, it can be overridden for the tests.
+     *
+     * @param json the JSON config
+     * @return the config
+     * @throws JSONException if the JSON is not a config
+     */
+    HomeServerConnectionConfig fromJson(JSONObject json) throws JSONException {
+        return HomeServerConnectionConfig.fromJson(json);
+    }
+
+    /**
+     * Serialize a home server config, it can be overridden for the tests.
+     *
+     * @param config the config
+     * @return the JSON config
+     * @throws JSONException if the config cannot be serialized
      */
-    public List<HomeServerConnectionConfig> getCredentialsList() {
-        SharedPreferences prefs = mContext.getSharedPreferences(PREFS_LOGIN, Context.MODE_PRIVATE);
+    JSONObject toJson(HomeServerConnectionConfig config) throws JSONException {
+        return config.toJson();
+    }
+
+    /**
+     * Load the records in memory, migrating the former format if needed.
+     */
+    private void loadRecordsIfNeeded() {
+        if (null != mRecords) {
+            return;
+        }
+
+        SharedPreferences prefs = getPreferences();
+        mRecords = new LinkedHashMap<>();
 
         String connectionConfigsString = prefs.getString(PREFS_KEY_CONNECTION_CONFIGS, null);
 
-        Log.d(LOG_TAG, "Got connection json: ");
+        if (null != connectionConfigsString) {
+            migrateConfigs(prefs, connectionConfigsString);
+            return;
+        }
+
+        String idsString = prefs.getString(PREFS_KEY_CONNECTION_CONFIG_IDS, null);
 
-        if (connectionConfigsString == null) {
-            return new ArrayList<>();
+        if (null == idsString) {
+            return;
         }
 
         try {
-            JSONArray connectionConfigsStrings = new JSONArray(connectionConfigsString);
+            JSONArray ids = new JSONArray(idsString);
 
-            List<HomeServerConnectionConfig> configList = new ArrayList<>(
-                    connectionConfigsStrings.length()
-            );
+            for (int i = 0; i < ids.length(); i++) {
+                String userId = ids.getString(i);
+                String recordString = prefs.getString(getRecordKey(userId), null);
+
+                if (null == recordString) {
+                    Log.e(LOG_TAG, "## loadRecordsIfNeeded() : no record for " + userId);
+                    continue;
+                }
+
+                mRecords.put(userId, recordString);
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to deserialize accounts " + e.getMessage(), e);
+            throw new RuntimeException("Failed to deserialize accounts");
+        }
+    }
+
+    /**
+     * Convert the former JSON array into records.
+     * The configs without credentials are kept in another JSON array.
+     * The records are written and the array is removed in the same editor, so an interrupted migration is done again.
+     *
+     * @param prefs                   the shared preferences
+     * @param connectionConfigsString the former JSON array
+     */
+    private void migrateConfigs(SharedPreferences prefs, String connectionConfigsString) {
+        try {
+            JSONArray connectionConfigsStrings = new JSONArray(connectionConfigsString);
+            JSONArray configsWithoutCredentials = new JSONArray();
+            SharedPreferences.Editor editor = prefs.edit();
 
             for (int i = 0; i < connectionConfigsStrings.length(); i++) {
-                configList.add(
-                        HomeServerConnectionConfig.fromJson(connectionConfigsStrings.getJSONObject(i))
-                );
+                JSONObject json = connectionConfigsStrings.getJSONObject(i);
+                HomeServerConnectionConfig config = fromJson(json);
+
+                if ((null == config.getCredentials()) || (null == config.getCredentials().userId)) {
+                    Log.e(LOG_TAG, "## migrateConfigs() : the config " + i + " has no credentials, it is kept aside");
+                    configsWithoutCredentials.put(json);
+                    continue;
+                }
+
+                String userId = config.getCredentials().userId;
+
+                mRecords.put(userId, json.toString());
+                editor.putString(getRecordKey(userId), json.toString());
+            }
+
+            if (configsWithoutCredentials.length() > 0) {
+                editor.putString(PREFS_KEY_CONNECTION_CONFIGS_WITHOUT_CREDENTIALS, configsWithoutCredentials.toString());
             }
 
-            return configList;
+            editor.putString(PREFS_KEY_CONNECTION_CONFIG_IDS, new JSONArray(mRecords.keySet()).toString());
+            editor.remove(PREFS_KEY_CONNECTION_CONFIGS);
+            editor.apply();
+
+            Log.d(LOG_TAG, "## migrateConfigs() : " + mRecords.size() + " migrated credentials");
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Failed to deserialize accounts " + e.getMessage(), e);
             throw new RuntimeException("Failed to deserialize accounts");
@@ -82,35 +186,78 @@ public class LoginStorage {
     }
 
     /**
-     * Add a credentials to the credentials list
+     * Write a record and the index.
      *
-     * @param config the home server config to add.
+     * @param userId the user id
+     * @param record the serialized config to store, null to remove the record
      */
-    public void addCredentials(HomeServerConnectionConfig config) {
-        if (null != config && config.getCredentials() != null) {
-            SharedPreferences prefs = mContext.getSharedPreferences(PREFS_LOGIN, Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = prefs.edit();
+    private void writeRecord(String userId, String record) {
+        SharedPreferences.Editor editor = getPreferences().edit();
 
-            List<HomeServerConnectionConfig> configs = getCredentialsList();
+        if (null != record) {
+            editor.putString(getRecordKey(userId), record);
+        } else {
+            editor.remove(getRecordKey(userId));
+        }
 
-            configs.add(config);
+        editor.putString(PREFS_KEY_CONNECTION_CONFIG_IDS, new JSONArray(mRecords.keySet()).toString());
+        editor.apply();
 
-            List<JSONObject> serialized = new ArrayList<>(configs.size());
+        Log.d(LOG_TAG, "Storing " + mRecords.size() + " credentials");
+    }
 
+    /**
+     * Serialize a config to store.
+     *
+     * @param config the config
+     * @return the serialized config
+     */
+    private String serialize(HomeServerConnectionConfig config) {
+        try {
+            return toJson(config).toString();
+        } catch (JSONException e) {
+            throw new RuntimeException("Failed to serialize connection config");
+        }
+    }
+
+    /**
+     * The configs are new instances at each call, the sessions can update them.
+     *
+     * @return the list of home server configurations.
+     */
+    public synchronized List<HomeServerConnectionConfig> getCredentialsList() {
+        loadRecordsIfNeeded();
+
+        List<HomeServerConnectionConfig> configs = new ArrayList<>(mRecords.size());
+
+        for (Map.Entry<String, String> entry : mRecords.entrySet()) {
             try {
-                for (HomeServerConnectionConfig c : configs) {
-                    serialized.add(c.toJson());
-                }
+                configs.add(fromJson(new JSONObject(entry.getValue())));
             } catch (JSONException e) {
-                throw new RuntimeException("Failed to serialize connection config");
+                // only this account is lost
+                Log.e(LOG_TAG, "## getCredentialsList() : failed to deserialize the account " + entry.getKey() + " " + e.getMessage(), e);
             }
+        }
 
-            String ser = new JSONArray(serialized).toString();
+        return configs;
+    }
+
+    /**
+     * Add a credentials to the credentials list
+     *
+     * @param config the home server config to add.
+     */
+    public synchronized void addCredentials(HomeServerConnectionConfig config) {
+        if (null != config && config.getCredentials() != null) {
+            loadRecordsIfNeeded();
 
-            Log.d(LOG_TAG, "Storing " + serialized.size() + " credentials");
+            String userId = config.getCredentials().userId;
+            String record = serialize(config);
 
-            editor.putString(PREFS_KEY_CONNECTION_CONFIGS, ser);
-            editor.apply();
+            // an account is stored once, at the end of the list
+            mRecords.remove(userId);
+            mRecords.put(userId, record);
+            writeRecord(userId, record);
         }
     }
 
@@ -119,37 +266,17 @@ public class LoginStorage {
      *
      * @param config the credentials to remove
      */
-    public void removeCredentials(HomeServerConnectionConfig config) {
+    public synchronized void removeCredentials(HomeServerConnectionConfig config) {
         if (null != config && config.getCredentials() != null) {
             Log.d(LOG_TAG, "Removing account: " + config.getCredentials().userId);
 
-            SharedPreferences prefs = mContext.getSharedPreferences(PREFS_LOGIN, Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = prefs.edit();
+            loadRecordsIfNeeded();
 
-            List<HomeServerConnectionConfig> configs = getCredentialsList();
-            List<JSONObject> serialized = new ArrayList<>(configs.size());
+            String userId = config.getCredentials().userId;
 
-            boolean found = false;
-            try {
-                for (HomeServerConnectionConfig c : configs) {
-                    if (c.getCredentials().userId.equals(config.getCredentials().userId)) {
-                        found = true;
-                    } else {
-                        serialized.add(c.toJson());
-                    }
-                }
-            } catch (JSONException e) {
-                throw new RuntimeException("Failed to serialize connection config");
-            }
-
-            if (!found) return;
-
-            String ser = new JSONArray(serialized).toString();
+            if (null == mRecords.remove(userId)) return;
 
-            Log.d(LOG_TAG, "Storing " + serialized.size() + " credentials");
-
-            editor.putString(PREFS_KEY_CONNECTION_CONFIGS, ser);
-            editor.apply();
+            writeRecord(userId, null);
         }
     }
 
@@ -159,46 +286,40 @@ public class LoginStorage {
      *
      * @param config the credentials to insert
      */
-    public void replaceCredentials(HomeServerConnectionConfig config) {
+    public synchronized void replaceCredentials(HomeServerConnectionConfig config) {
         if (null != config && config.getCredentials() != null) {
-            SharedPreferences prefs = mContext.getSharedPreferences(PREFS_LOGIN, Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = prefs.edit();
+            loadRecordsIfNeeded();
 
-            List<HomeServerConnectionConfig> configs = getCredentialsList();
-            List<JSONObject> serialized = new ArrayList<>(configs.size());
+            String userId = config.getCredentials().userId;
 
-            boolean found = false;
-            try {
-                for (HomeServerConnectionConfig c : configs) {
-                    if (c.getCredentials().userId.equals(config.getCredentials().userId)) {
-                        serialized.add(config.toJson());
-                        found = true;
-                    } else {
-                        serialized.add(c.toJson());
-                    }
-                }
-            } catch (JSONException e) {
-                throw new RuntimeException("Failed to serialize connection config");
-            }
-
-            if (!found) return;
-
-            String ser = new JSONArray(serialized).toString();
+            if (!mRecords.containsKey(userId)) return;
 
-            Log.d(LOG_TAG, "Storing " + serialized.size() + " credentials");
+            String record = serialize(config);
 
-            editor.putString(PREFS_KEY_CONNECTION_CONFIGS, ser);
-            editor.apply();
+            // keep the account position
+            mRecords.put(userId, record);
+            writeRecord(userId, record);
         }
     }
 
     /**
      * Clear the stored values
      */
-    public void clear() {
-        SharedPreferences prefs = mContext.getSharedPreferences(PREFS_LOGIN, Context.MODE_PRIVATE);
+    public synchronized void clear() {
+        SharedPreferences prefs = getPreferences();
         SharedPreferences.Editor editor = prefs.edit();
+
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(PREFS_KEY_CONNECTION_CONFIG_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+
         editor.remove(PREFS_KEY_CONNECTION_CONFIGS);
+        editor.remove(PREFS_KEY_CONNECTION_CONFIGS_WITHOUT_CREDENTIALS);
+        editor.remove(PREFS_KEY_CONNECTION_CONFIG_IDS);
         editor.apply();
+
+        mRecords = new LinkedHashMap<>();
     }
-}
\ No newline at end of file
+}
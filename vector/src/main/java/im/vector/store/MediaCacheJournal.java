@@ -0,0 +1,600 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.store;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.message.MediaMessage;
+import org.matrix.androidsdk.rest.model.message.Message;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import im.vector.util.AppExecutors;
+
+/**
+ * Persistent journal of the media cache files (the MXMediaStore3 directory filled by the SDK),
+ * with their size, their last modification time and their last access time.
+ * The directories are stored with their last modification time, so the journal is reconciled
+ * by listing only the directories whose content has changed, instead of walking the whole tree.
+ * A listed file is journaled again when its size or its last modification time has changed.
+ * The cache size is then a sum of the journal, and the eviction picks the least recently used files from it.
+ * The methods must be called from a background thread, except the asynchronous ones.
+ */
+public class MediaCacheJournal extends SQLiteOpenHelper {
+    private static final String LOG_TAG = MediaCacheJournal.class.getSimpleName();
+
+    private static final int DB_VERSION = 2;
+    private static final String DB_NAME = "media_cache_journal.db";
+
+    // the SDK media cache root directory
+    private static final String MEDIA_CACHE_DIRECTORY = "MXMediaStore3";
+
+    private static final String TABLE_FILES = "files";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_DIRECTORY = "directory";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_ACCESS_TIME = "access_time";
+
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+    private static final String TABLE_DIRECTORIES = "directories";
+    private static final String COLUMN_PARENT = "parent";
+
+    // the modification time has a coarse granularity on some file systems,
+    // so a directory or a file modified during the last seconds is checked again at the next reconciliation
+    static final long UNSTABLE_LAST_MODIFIED = -1;
+    static final long LAST_MODIFIED_GRANULARITY_MS = 2000;
+
+    private static MediaCacheJournal mInstance = null;
+
+    private final Context mContext;
+    private final File mRootDirectory;
+
+    /**
+     * Provides the media cache journal.
+     *
+     * @param context the context
+     * @return the journal
+     */
+    public static synchronized MediaCacheJournal getInstance(Context context) {
+        if (null == mInstance) {
+            mInstance = new MediaCacheJournal(context.getApplicationContext());
+        }
+
+        return mInstance;
+    }
+
+    private MediaCacheJournal(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        mContext = context;
+        mRootDirectory = new File(context.getFilesDir(), MEDIA_CACHE_DIRECTORY);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_FILES + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY, "
+                + COLUMN_DIRECTORY + " TEXT NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_ACCESS_TIME + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX files_directory ON " + TABLE_FILES + " (" + COLUMN_DIRECTORY + ")");
+        db.execSQL("CREATE INDEX files_access_time ON " + TABLE_FILES + " (" + COLUMN_ACCESS_TIME + ")");
+
+        db.execSQL("CREATE TABLE " + TABLE_DIRECTORIES + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY, "
+                + COLUMN_PARENT + " TEXT, "
+                + COLUMN_LAST_MODIFIED + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the journal can be rebuilt
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DIRECTORIES);
+        onCreate(db);
+    }
+
+    /**
+     * Update the journal with the media cache changes.
+     * Only the directories whose modification time has changed are listed.
+     */
+    public synchronized void reconcile() {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+
+            try {
+                // the known directories
+                Map<String, Long> lastModifiedByDirectory = new HashMap<>();
+                Map<String, List<String>> childrenByDirectory = new HashMap<>();
+                Cursor cursor = db.query(TABLE_DIRECTORIES, new String[]{COLUMN_PATH, COLUMN_PARENT, COLUMN_LAST_MODIFIED}, null, null, null, null, null);
+
+                try {
+                    while (cursor.moveToNext()) {
+                        String path = cursor.getString(0);
+                        String parent = cursor.getString(1);
+
+                        lastModifiedByDirectory.put(path, cursor.getLong(2));
+
+                        if (null != parent) {
+                            List<String> children = childrenByDirectory.get(parent);
+
+                            if (null == children) {
+                                children = new ArrayList<>();
+                                childrenByDirectory.put(parent, children);
+                            }
+
+                            children.add(path);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                Set<String> visitedDirectories = new HashSet<>();
+                ArrayDeque<File> directories = new ArrayDeque<>();
+                directories.add(mRootDirectory);
+
+                long now = System.currentTimeMillis();
+                int listedCount = 0;
+
+                while (!directories.isEmpty()) {
+                    File directory = directories.poll();
+                    String path = directory.getPath();
+
+                    if (!directory.isDirectory() || !visitedDirectories.add(path)) {
+                        continue;
+                    }
+
+                    long lastModified = directory.lastModified();
+                    Long knownLastModified = lastModifiedByDirectory.get(path);
+
+                    if ((null != knownLastModified) && (UNSTABLE_LAST_MODIFIED != knownLastModified) && (knownLastModified == lastModified)) {
+                        // unchanged content, the subdirectories are the known ones
+                        List<String> children = childrenByDirectory.get(path);
+
+                        if (null != children) {
+                            for (String child : children) {
+                                directories.add(new File(child));
+                            }
+                        }
+                    } else {
+                        listDirectory(db, directory, directories, now);
+                        listedCount++;
+
+                        ContentValues values = new ContentValues();
+                        values.put(COLUMN_PATH, path);
+                        values.put(COLUMN_PARENT, (directory.equals(mRootDirectory)) ? null : directory.getParent());
+                        values.put(COLUMN_LAST_MODIFIED, getStableLastModified(lastModified, now));
+                        db.insertWithOnConflict(TABLE_DIRECTORIES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                }
+
+                // the deleted directories
+                for (String path : lastModifiedByDirectory.keySet()) {
+                    if (!visitedDirectories.contains(path)) {
+                        db.delete(TABLE_FILES, COLUMN_DIRECTORY + " = ?", new String[]{path});
+                        db.delete(TABLE_DIRECTORIES, COLUMN_PATH + " = ?", new String[]{path});
+                    }
+                }
+
+                db.setTransactionSuccessful();
+
+                Log.d(LOG_TAG, "## reconcile() : " + listedCount + " listed directories / " + visitedDirectories.size()
+                        + " in " + (System.currentTimeMillis() - now) + " ms");
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## reconcile() failed " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Update the journal entries of a directory with its content.
+     *
+     * @param db          the database
+     * @param directory   the directory
+     * @param directories the directories to visit, the subdirectories are added to it
+     * @param now         the reconciliation time
+     */
+    private void listDirectory(SQLiteDatabase db, File directory, ArrayDeque<File> directories, long now) {
+        String path = directory.getPath();
+
+        // the journal entries
+        Map<String, JournaledFile> knownFiles = new HashMap<>();
+        Cursor cursor = db.query(TABLE_FILES, new String[]{COLUMN_PATH, COLUMN_SIZE, COLUMN_LAST_MODIFIED},
+                COLUMN_DIRECTORY + " = ?", new String[]{path}, null, null, null);
+
+        try {
+            while (cursor.moveToNext()) {
+                knownFiles.put(cursor.getString(0), new JournaledFile(cursor.getLong(1), cursor.getLong(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (File file : getUpdatedFiles(directory.listFiles(), knownFiles, directories)) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_PATH, file.getPath());
+            values.put(COLUMN_DIRECTORY, path);
+            values.put(COLUMN_SIZE, file.length());
+            values.put(COLUMN_LAST_MODIFIED, getStableLastModified(file.lastModified(), now));
+            values.put(COLUMN_ACCESS_TIME, ContentUtils.getLastAccessTime(file));
+            db.insertWithOnConflict(TABLE_FILES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+
+        // the deleted files
+        for (String deletedPath : knownFiles.keySet()) {
+            db.delete(TABLE_FILES, COLUMN_PATH + " = ?", new String[]{deletedPath});
+        }
+    }
+
+    /**
+     * A journaled file.
+     */
+    static final class JournaledFile {
+        final long mSize;
+        final long mLastModified;
+
+        JournaledFile(long size, long lastModified) {
+            mSize = size;
+            mLastModified = lastModified;
+        }
+    }
+
+    /**
+     * Compare the content of a directory with its journal entries.
+     * The listed files are removed from the journal entries, so the remaining ones are the deleted files.
+     *
+     * @param files       the directory content, null if it cannot be listed
+     * @param knownFiles  the journal entries of the directory, by path
+     * @param directories the directories to visit, the subdirectories are added to it
+     * @return the new files, and the files whose size or last modification time has changed
+     */
+    static List<File> getUpdatedFiles(File[] files, Map<String, JournaledFile> knownFiles, Collection<File> directories) {
+        List<File> updatedFiles = new ArrayList<>();
+
+        if (null == files) {
+            return updatedFiles;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                directories.add(file);
+                continue;
+            }
+
+            JournaledFile knownFile = knownFiles.remove(file.getPath());
+
+            if ((null == knownFile)
+                    || (UNSTABLE_LAST_MODIFIED == knownFile.mLastModified)
+                    || (knownFile.mSize != file.length())
+                    || (knownFile.mLastModified != file.lastModified())) {
+                updatedFiles.add(file);
+            }
+        }
+
+        return updatedFiles;
+    }
+
+    /**
+     * Provides the modification time to journal.
+     *
+     * @param lastModified the modification time
+     * @param now          the current time
+     * @return the modification time, UNSTABLE_LAST_MODIFIED if it is too recent to be trusted
+     */
+    static long getStableLastModified(long lastModified, long now) {
+        return (lastModified > now - LAST_MODIFIED_GRANULARITY_MS) ? UNSTABLE_LAST_MODIFIED : lastModified;
+    }
+
+    /**
+     * Provides the media cache size.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        reconcile();
+
+        long size = 0;
+        Cursor cursor = null;
+
+        try {
+            cursor = getReadableDatabase().rawQuery("SELECT SUM(" + COLUMN_SIZE + ") FROM " + TABLE_FILES, null);
+
+            if (cursor.moveToFirst()) {
+                size = cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## getSize() failed " + e.getMessage(), e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Provides asynchronously the media cache size.
+     *
+     * @param callback the callback, called on the UI thread
+     */
+    public void getSize(final SimpleApiCallback<Long> callback) {
+        AppExecutors.execute(AppExecutors.Pool.IO, LOG_TAG + ".getSize", new Runnable() {
+            @Override
+            public void run() {
+                final long size = getSize();
+
+                AppExecutors.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(size);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Provides asynchronously the application storage size.
+     * The media cache size is read from the journal, only the other directories are walked.
+     *
+     * @param callback the callback, called on the UI thread
+     */
+    public void getApplicationSize(final SimpleApiCallback<Long> callback) {
+        AppExecutors.execute(AppExecutors.Pool.IO, LOG_TAG + ".getApplicationSize", new Runnable() {
+            @Override
+            public void run() {
+                long size = getSize();
+
+                File dataDirectory = mContext.getFilesDir().getParentFile();
+                ArrayDeque<File> files = new ArrayDeque<>();
+                files.add(dataDirectory);
+
+                while (!files.isEmpty()) {
+                    File file = files.poll();
+
+                    if (file.equals(mRootDirectory)) {
+                        continue;
+                    }
+
+                    // walk only the directories containing the media cache
+                    if (file.isDirectory() && mRootDirectory.getPath().startsWith(file.getPath() + File.separator)) {
+                        File[] children = file.listFiles();
+
+                        if (null != children) {
+                            for (File child : children) {
+                                files.add(child);
+                            }
+                        }
+                    } else if (file.isDirectory()) {
+                        size += ContentUtils.getDirectorySize(mContext, file, 0);
+                    } else {
+                        size += file.length();
+                    }
+                }
+
+                final long applicationSize = size;
+
+                AppExecutors.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(applicationSize);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Delete the least recently used media files, until they are all more recent than minAccessTime
+     * and the cache size is lower than maxSize.
+     * The access time of the candidates is checked on the file system before deleting them,
+     * because the SDK reads the files without updating the journal.
+     *
+     * @param maxSize       the max cache size in bytes, 0 if it is not bounded
+     * @param minAccessTime the min last access time of the kept files (in seconds, see ContentUtils.getLastAccessTime())
+     * @param pathsToKeep   the paths of the files which must not be deleted
+     * @return the released bytes
+     */
+    public synchronized long evict(long maxSize, long minAccessTime, Set<String> pathsToKeep) {
+        reconcile();
+
+        long releasedSize = 0;
+
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+
+            try {
+                long size = 0;
+                Cursor cursor = db.rawQuery("SELECT SUM(" + COLUMN_SIZE + ") FROM " + TABLE_FILES, null);
+
+                try {
+                    if (cursor.moveToFirst()) {
+                        size = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                Map<String, Long> sizeByDeletedPath = new HashMap<>();
+                Map<String, Long> accessTimeByUpdatedPath = new HashMap<>();
+
+                cursor = db.query(TABLE_FILES, new String[]{COLUMN_PATH, COLUMN_SIZE, COLUMN_ACCESS_TIME}, null, null, null, null, COLUMN_ACCESS_TIME + " ASC");
+
+                try {
+                    while (cursor.moveToNext()) {
+                        long accessTime = cursor.getLong(2);
+
+                        if ((accessTime >= minAccessTime) && ((maxSize <= 0) || (size <= maxSize))) {
+                            break;
+                        }
+
+                        String path = cursor.getString(0);
+
+                        if ((null != pathsToKeep) && pathsToKeep.contains(path)) {
+                            continue;
+                        }
+
+                        File file = new File(path);
+
+                        if (file.exists()) {
+                            long fileAccessTime = ContentUtils.getLastAccessTime(file);
+
+                            if (fileAccessTime > accessTime) {
+                                // the file has been read since it was journaled, it is not a least recently used one anymore
+                                accessTimeByUpdatedPath.put(path, fileAccessTime);
+
+                                if (fileAccessTime >= minAccessTime) {
+                                    continue;
+                                }
+                            }
+                        }
+
+                        sizeByDeletedPath.put(path, cursor.getLong(1));
+                        size -= cursor.getLong(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                Set<File> updatedDirectories = new HashSet<>();
+
+                for (Map.Entry<String, Long> entry : sizeByDeletedPath.entrySet()) {
+                    File file = new File(entry.getKey());
+
+                    if (!file.exists() || file.delete()) {
+                        db.delete(TABLE_FILES, COLUMN_PATH + " = ?", new String[]{entry.getKey()});
+                        accessTimeByUpdatedPath.remove(entry.getKey());
+                        updatedDirectories.add(file.getParentFile());
+                        releasedSize += entry.getValue();
+                    } else {
+                        Log.e(LOG_TAG, "## evict() : cannot delete " + entry.getKey());
+                    }
+                }
+
+                for (Map.Entry<String, Long> entry : accessTimeByUpdatedPath.entrySet()) {
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_ACCESS_TIME, entry.getValue());
+                    db.update(TABLE_FILES, values, COLUMN_PATH + " = ?", new String[]{entry.getKey()});
+                }
+
+                // the deletions are already journaled, so the directories do not need to be listed again
+                long now = System.currentTimeMillis();
+
+                for (File directory : updatedDirectories) {
+                    long lastModified = directory.lastModified();
+
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_LAST_MODIFIED, getStableLastModified(lastModified, now));
+                    db.update(TABLE_DIRECTORIES, values, COLUMN_PATH + " = ?", new String[]{directory.getPath()});
+                }
+
+                db.setTransactionSuccessful();
+
+                Log.d(LOG_TAG, "## evict() : " + sizeByDeletedPath.size() + " deleted files, " + releasedSize + " released bytes");
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## evict() failed " + e.getMessage(), e);
+        }
+
+        return releasedSize;
+    }
+
+    /**
+     * Provides the paths of the media files referenced by the local events of a session (i.e. the pending uploads).
+     * These files must not be evicted.
+     * It reads the store copies of the rooms messages lists, it can be called from a background thread.
+     *
+     * @param session the session
+     * @return the file paths
+     */
+    public static Set<String> getLocalMediaPaths(MXSession session) {
+        Set<String> paths = new HashSet<>();
+
+        if (!session.isAlive()) {
+            return paths;
+        }
+
+        IMXStore store = session.getDataHandler().getStore();
+
+        if (null == store) {
+            return paths;
+        }
+
+        for (Room room : store.getRooms()) {
+            Collection<Event> events = store.getRoomMessages(room.getRoomId());
+
+            if (null == events) {
+                continue;
+            }
+
+            for (Event event : events) {
+                Message message = null;
+
+                if (TextUtils.equals(Event.EVENT_TYPE_MESSAGE, event.getType())) {
+                    message = JsonUtils.toMessage(event.getContent());
+                } else if (TextUtils.equals(Event.EVENT_TYPE_STICKER, event.getType())) {
+                    message = JsonUtils.toStickerMessage(event.getContent());
+                }
+
+                if (message instanceof MediaMessage) {
+                    MediaMessage mediaMessage = (MediaMessage) message;
+
+                    if (mediaMessage.isThumbnailLocalContent()) {
+                        paths.add(Uri.parse(mediaMessage.getThumbnailUrl()).getPath());
+                    }
+
+                    if (mediaMessage.isLocalContent()) {
+                        paths.add(Uri.parse(mediaMessage.getUrl()).getPath());
+                    }
+                }
+            }
+        }
+
+        return paths;
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.store;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.text.TextUtils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.message.Message;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+
+import im.vector.util.AppExecutors;
+import im.vector.util.SharedScheduledExecutor;
+
+/**
+ * Persistent full-text index of the text messages of the rooms of a session.
+ * It is filled with the live events, with the events decrypted after their reception
+ * and with the messages already stored in the session store when the application starts
+ * (the stored encrypted messages are indexed when they are decrypted).
+ * The searches can be restricted to a room and to a sender.
+ * <p>
+ * The encrypted events are stored encrypted, but their decrypted body is indexed:
+ * the database is private to the application and it is deleted when the session is logged out.
+ * The number of indexed messages is bounded, the oldest ones are removed first.
+ * The read methods must be called from a background thread.
+ */
+public class MessageSearchIndex extends SQLiteOpenHelper {
+    private static final String LOG_TAG = MessageSearchIndex.class.getSimpleName();
+
+    private static final int DB_VERSION = 1;
+    private static final String DB_NAME_PREFIX = "message_index_";
+
+    private static final String TABLE_EVENTS = "events";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_EVENT_ID = "event_id";
+    private static final String COLUMN_ROOM_ID = "room_id";
+    private static final String COLUMN_SENDER = "sender";
+    private static final String COLUMN_TS = "ts";
+    private static final String COLUMN_EVENT = "event";
+
+    // the FTS rows docid is the events table row id
+    private static final String TABLE_FTS = "messages_fts";
+    private static final String COLUMN_DOCID = "docid";
+    private static final String COLUMN_BODY = "body";
+
+    // the live events are written by batches
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final int MAX_PENDING_EVENTS = 100;
+
+    // the stored messages are indexed by small batches to let the live events go first
+    private static final int STORED_MESSAGES_BATCH_SIZE = 200;
+    private static final long STORED_MESSAGES_BATCH_DELAY_MS = 250;
+
+    // the size budget, the index is trimmed to TRIMMED_INDEXED_MESSAGES when it is reached
+    private static final int MAX_INDEXED_MESSAGES = 100000;
+    private static final int TRIMMED_INDEXED_MESSAGES = 90000;
+
+    // the indexes by matrix id
+    private static final Map<String, MessageSearchIndex> mInstances = new HashMap<>();
+
+    // the writes are done in order
+    private final Executor mWriteExecutor = AppExecutors.newSerialExecutor(LOG_TAG);
+
+    // the live events waiting to be indexed
+    private final List<Event> mPendingEvents = new ArrayList<>();
+    private ScheduledFuture<?> mFlushFuture;
+
+    // the number of indexed messages, -1 until it is read from the database
+    private int mIndexedMessagesCount = -1;
+
+    // true when the stored messages are being indexed
+    private boolean mIsIndexingStoredMessages = false;
+
+    // true when the database has been deleted, it must not be opened again
+    private boolean mIsDeleted = false;
+
+    // index the live messages
+    private final MXEventListener mLiveEventListener = new MXEventListener() {
+        @Override
+        public void onLiveEvent(final Event event, RoomState roomState) {
+            if (Event.EVENT_TYPE_REDACTION.equals(event.getType())) {
+                mWriteExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeEvent(event.getRedacts());
+                    }
+                });
+            } else {
+                addPendingEvent(event);
+            }
+        }
+
+        @Override
+        public void onEventDecrypted(Event event) {
+            // the keys were received after the event
+            addPendingEvent(event);
+        }
+    };
+
+    /**
+     * Provides the message index of a session.
+     *
+     * @param context  the context
+     * @param matrixId the session user id
+     * @return the index
+     */
+    public static synchronized MessageSearchIndex getInstance(Context context, String matrixId) {
+        MessageSearchIndex index = mInstances.get(matrixId);
+
+        if (null == index) {
+            index = new MessageSearchIndex(context.getApplicationContext(), getDatabaseName(matrixId));
+            mInstances.put(matrixId, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Delete the message index of a session, when it is logged out.
+     *
+     * @param context  the context
+     * @param matrixId the session user id
+     */
+    public static synchronized void deleteIndex(Context context, String matrixId) {
+        MessageSearchIndex index = mInstances.remove(matrixId);
+
+        if (null != index) {
+            synchronized (index.mPendingEvents) {
+                SharedScheduledExecutor.cancel(index.mFlushFuture);
+                index.mFlushFuture = null;
+                index.mPendingEvents.clear();
+            }
+
+            // the pending writes must not create the database again
+            synchronized (index) {
+                index.mIsDeleted = true;
+                index.close();
+            }
+        }
+
+        context.deleteDatabase(getDatabaseName(matrixId));
+    }
+
+    private static String getDatabaseName(String matrixId) {
+        return DB_NAME_PREFIX + matrixId.replaceAll("[^a-zA-Z0-9]", "_") + ".db";
+    }
+
+    private MessageSearchIndex(Context context, String dbName) {
+        super(context, dbName, null, DB_VERSION);
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (mIsDeleted) {
+            throw new IllegalStateException("the index has been deleted");
+        }
+
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        if (mIsDeleted) {
+            throw new IllegalStateException("the index has been deleted");
+        }
+
+        return super.getReadableDatabase();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_EVENTS + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_EVENT_ID + " TEXT NOT NULL UNIQUE, "
+                + COLUMN_ROOM_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER + " TEXT, "
+                + COLUMN_TS + " INTEGER, "
+                + COLUMN_EVENT + " TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX events_room_ts ON " + TABLE_EVENTS + " (" + COLUMN_ROOM_ID + ", " + COLUMN_TS + ")");
+        db.execSQL("CREATE INDEX events_ts ON " + TABLE_EVENTS + " (" + COLUMN_TS + ")");
+
+        // the unicode61 tokenizer folds the case and the diacritics of the non ASCII characters,
+        // it is only available with the SQLite versions embedded since Lollipop.
+        String tokenizer = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) ? ", tokenize=unicode61" : "";
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_FTS + " USING fts4(" + COLUMN_BODY + tokenizer + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the index can be rebuilt
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FTS);
+        onCreate(db);
+    }
+
+    /**
+     * @return the listener to register to the session data handler to index the live events.
+     */
+    public MXEventListener getLiveEventListener() {
+        return mLiveEventListener;
+    }
+
+    /**
+     * Provides the indexable body of an event.
+     *
+     * @param event the event (decrypted if it is encrypted)
+     * @return the message body, null if the event is not an indexable message
+     */
+    private static String getIndexableBody(Event event) {
+        if ((null == event.eventId) || (null == event.roomId) || !Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
+            return null;
+        }
+
+        Message message = JsonUtils.toMessage(event.getContent());
+
+        return TextUtils.isEmpty(message.body) ? null : message.body;
+    }
+
+    /**
+     * Queue a live event to index it with the next batch.
+     *
+     * @param event the event
+     */
+    private void addPendingEvent(Event event) {
+        if (null == getIndexableBody(event)) {
+            return;
+        }
+
+        synchronized (mPendingEvents) {
+            mPendingEvents.add(event);
+
+            if (mPendingEvents.size() >= MAX_PENDING_EVENTS) {
+                SharedScheduledExecutor.cancel(mFlushFuture);
+                mFlushFuture = null;
+                flushPendingEvents();
+            } else if (null == mFlushFuture) {
+                mFlushFuture = SharedScheduledExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mPendingEvents) {
+                            mFlushFuture = null;
+                            flushPendingEvents();
+                        }
+                    }
+                }, FLUSH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Index the pending events in a single transaction.
+     * It must be called with the mPendingEvents lock.
+     */
+    private void flushPendingEvents() {
+        if (mPendingEvents.isEmpty()) {
+            return;
+        }
+
+        final List<Event> events = new ArrayList<>(mPendingEvents);
+        mPendingEvents.clear();
+
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                addEvents(events);
+            }
+        });
+    }
+
+    /**
+     * Index the messages already saved in the session store.
+     * The rooms are indexed by small batches, the already indexed messages are ignored.
+     *
+     * @param dataHandler the session data handler
+     */
+    public void indexStoredMessages(final MXDataHandler dataHandler) {
+        synchronized (this) {
+            if (mIsIndexingStoredMessages) {
+                return;
+            }
+            mIsIndexingStoredMessages = true;
+        }
+
+        final List<String> roomIds = new ArrayList<>();
+
+        for (Room room : dataHandler.getStore().getRooms()) {
+            roomIds.add(room.getRoomId());
+        }
+
+        Log.d(LOG_TAG, "## indexStoredMessages() : " + roomIds.size() + " rooms");
+
+        indexStoredMessagesBatch(dataHandler, roomIds, new ArrayList<Event>());
+    }
+
+    /**
+     * Index the next batch of stored messages and schedule the next one.
+     *
+     * @param dataHandler the session data handler
+     * @param roomIds     the rooms which have not been read yet
+     * @param events      the read messages which have not been indexed yet
+     */
+    private void indexStoredMessagesBatch(final MXDataHandler dataHandler, final List<String> roomIds, final List<Event> events) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!dataHandler.isAlive()) {
+                    // the index survives a cache clear, the next session indexes its stored messages again
+                    synchronized (MessageSearchIndex.this) {
+                        mIsIndexingStoredMessages = false;
+                    }
+                    return;
+                }
+
+                while ((events.size() < STORED_MESSAGES_BATCH_SIZE) && !roomIds.isEmpty()) {
+                    Collection<Event> roomMessages = dataHandler.getStore().getRoomMessages(roomIds.remove(0));
+
+                    if (null != roomMessages) {
+                        events.addAll(roomMessages);
+                    }
+                }
+
+                List<Event> batch = new ArrayList<>(events.subList(0, Math.min(events.size(), STORED_MESSAGES_BATCH_SIZE)));
+                events.subList(0, batch.size()).clear();
+
+                // the stored events are shared with the UI thread, they are not decrypted here:
+                // the undecrypted ones are indexed when they are decrypted to be displayed
+                for (Iterator<Event> it = batch.iterator(); it.hasNext(); ) {
+                    Event event = it.next();
+
+                    if (event.isEncrypted() && (null == event.getClearEvent())) {
+                        it.remove();
+                    }
+                }
+
+                addEvents(batch);
+
+                if (events.isEmpty() && roomIds.isEmpty()) {
+                    Log.d(LOG_TAG, "## indexStoredMessages() : done");
+
+                    synchronized (MessageSearchIndex.this) {
+                        mIsIndexingStoredMessages = false;
+                    }
+                } else {
+                    SharedScheduledExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            indexStoredMessagesBatch(dataHandler, roomIds, events);
+                        }
+                    }, STORED_MESSAGES_BATCH_DELAY_MS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Index the text messages of an events list.
+     * The other events and the already indexed messages are ignored.
+     *
+     * @param events the events (decrypted if they are encrypted)
+     */
+    public void addEvents(List<Event> events) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            int addedCount = 0;
+
+            db.beginTransaction();
+
+            try {
+                SQLiteStatement ftsStatement = db.compileStatement("INSERT INTO " + TABLE_FTS
+                        + " (" + COLUMN_DOCID + ", " + COLUMN_BODY + ") VALUES (?, ?)");
+
+                for (Event event : events) {
+                    String body = getIndexableBody(event);
+
+                    if (null == body) {
+                        continue;
+                    }
+
+                    JsonObject json = event.toJsonObject();
+
+                    if (event.isEncrypted()) {
+                        // keep the event as it was received
+                        json.addProperty("type", event.getWireType());
+                        json.add("content", event.getWireContent());
+                    }
+
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_EVENT_ID, event.eventId);
+                    values.put(COLUMN_ROOM_ID, event.roomId);
+                    values.put(COLUMN_SENDER, event.getSender());
+                    values.put(COLUMN_TS, event.getOriginServerTs());
+                    values.put(COLUMN_EVENT, json.toString());
+
+                    long rowId = db.insertWithOnConflict(TABLE_EVENTS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+
+                    // already indexed
+                    if (-1 == rowId) {
+                        continue;
+                    }
+
+                    ftsStatement.bindLong(1, rowId);
+                    ftsStatement.bindString(2, body);
+                    ftsStatement.executeInsert();
+                    addedCount++;
+                }
+
+                ftsStatement.close();
+
+                if (addedCount > 0) {
+                    trimIfNeeded(db, addedCount);
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## addEvents() failed " + e.getMessage(), e);
+            // read it again
+            mIndexedMessagesCount = -1;
+        }
+    }
+
+    /**
+     * Remove the oldest messages when the size budget is exceeded.
+     *
+     * @param db         the database
+     * @param addedCount the number of messages which have just been indexed
+     */
+    private void trimIfNeeded(SQLiteDatabase db, int addedCount) {
+        if (mIndexedMessagesCount < 0) {
+            mIndexedMessagesCount = (int) DatabaseUtils.queryNumEntries(db, TABLE_EVENTS);
+        } else {
+            mIndexedMessagesCount += addedCount;
+        }
+
+        if (mIndexedMessagesCount <= MAX_INDEXED_MESSAGES) {
+            return;
+        }
+
+        int removedCount = mIndexedMessagesCount - TRIMMED_INDEXED_MESSAGES;
+        String oldestRows = "SELECT " + COLUMN_ID + " FROM " + TABLE_EVENTS + " ORDER BY " + COLUMN_TS + " ASC LIMIT " + removedCount;
+
+        Log.d(LOG_TAG, "## trimIfNeeded() : remove " + removedCount + " messages");
+
+        db.execSQL("DELETE FROM " + TABLE_FTS + " WHERE " + COLUMN_DOCID + " IN (" + oldestRows + ")");
+        db.execSQL("DELETE FROM " + TABLE_EVENTS + " WHERE " + COLUMN_ID + " IN (" + oldestRows + ")");
+
+        mIndexedMessagesCount = TRIMMED_INDEXED_MESSAGES;
+    }
+
+    /**
+     * Remove an event from the index.
+     *
+     * @param eventId the event id
+     */
+    public void removeEvent(String eventId) {
+        if (null == eventId) {
+            return;
+        }
+
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+
+            try {
+                String[] args = new String[]{eventId};
+                db.execSQL("DELETE FROM " + TABLE_FTS + " WHERE " + COLUMN_DOCID + " IN (SELECT " + COLUMN_ID + " FROM " + TABLE_EVENTS
+                        + " WHERE " + COLUMN_EVENT_ID + " = ?)", args);
+
+                if (db.delete(TABLE_EVENTS, COLUMN_EVENT_ID + " = ?", args) > 0) {
+                    if (mIndexedMessagesCount > 0) {
+                        mIndexedMessagesCount--;
+                    }
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## removeEvent() failed " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Convert a user pattern into a FTS query.
+     * Each word must be found, the last one can be a prefix.
+     *
+     * @param pattern the user pattern
+     * @return the FTS query, null if the pattern has no word
+     */
+    private static String toMatchQuery(String pattern) {
+        StringBuilder builder = new StringBuilder();
+
+        for (String word : pattern.replace("\"", " ").trim().split("\\s+")) {
+            if (!TextUtils.isEmpty(word)) {
+                if (builder.length() > 0) {
+                    builder.append(" ");
+                }
+                builder.append("\"").append(word).append("\"");
+            }
+        }
+
+        if (0 == builder.length()) {
+            return null;
+        }
+
+        // prefix search on the last word
+        builder.insert(builder.length() - 1, "*");
+
+        return builder.toString();
+    }
+
+    /**
+     * Search the messages matching a pattern, from the most recent one.
+     * The events are sorted by timestamp then by insertion order, the pages start after the latest returned event,
+     * so the events sharing a timestamp are neither skipped nor duplicated across the pages.
+     * The encrypted events are returned encrypted.
+     *
+     * @param pattern       the searched words
+     * @param roomId        the room id, null to search in all the rooms
+     * @param sender        the sender id, null to search the messages of any sender
+     * @param beforeTs      the timestamp of the latest returned event, Long.MAX_VALUE for the first page
+     * @param beforeEventId the id of the latest returned event, null for the first page
+     * @param limit         the max number of events
+     * @return the events list
+     */
+    public List<Event> search(String pattern, String roomId, String sender, long beforeTs, String beforeEventId, int limit) {
+        List<Event> events = new ArrayList<>();
+        String matchQuery = toMatchQuery(pattern);
+
+        if (null == matchQuery) {
+            return events;
+        }
+
+        StringBuilder query = new StringBuilder("SELECT " + TABLE_EVENTS + "." + COLUMN_EVENT
+                + " FROM " + TABLE_FTS + " JOIN " + TABLE_EVENTS + " ON " + TABLE_EVENTS + "." + COLUMN_ID + " = " + TABLE_FTS + "." + COLUMN_DOCID
+                + " WHERE " + TABLE_FTS + " MATCH ?");
+        List<String> args = new ArrayList<>();
+        args.add(matchQuery);
+
+        if (null == beforeEventId) {
+            query.append(" AND " + TABLE_EVENTS + "." + COLUMN_TS + " < ?");
+            args.add(String.valueOf(beforeTs));
+        } else {
+            // several events can have the same timestamp, the row id gives their order
+            query.append(" AND (" + TABLE_EVENTS + "." + COLUMN_TS + " < ? OR (" + TABLE_EVENTS + "." + COLUMN_TS + " = ? AND "
+                    + TABLE_EVENTS + "." + COLUMN_ID + " < (SELECT " + COLUMN_ID + " FROM " + TABLE_EVENTS + " WHERE " + COLUMN_EVENT_ID + " = ?)))");
+            args.add(String.valueOf(beforeTs));
+            args.add(String.valueOf(beforeTs));
+            args.add(beforeEventId);
+        }
+
+        if (null != roomId) {
+            query.append(" AND " + TABLE_EVENTS + "." + COLUMN_ROOM_ID + " = ?");
+            args.add(roomId);
+        }
+
+        if (null != sender) {
+            query.append(" AND " + TABLE_EVENTS + "." + COLUMN_SENDER + " = ?");
+            args.add(sender);
+        }
+
+        query.append(" ORDER BY " + TABLE_EVENTS + "." + COLUMN_TS + " DESC, " + TABLE_EVENTS + "." + COLUMN_ID + " DESC LIMIT " + limit);
+
+        Cursor cursor = null;
+
+        try {
+            cursor = getReadableDatabase().rawQuery(query.toString(), args.toArray(new String[args.size()]));
+
+            JsonParser parser = new JsonParser();
+
+            while (cursor.moveToNext()) {
+                Event event = JsonUtils.toEvent(parser.parse(cursor.getString(0)));
+
+                if (null != event) {
+                    events.add(event);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## search() failed " + e.getMessage(), e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        return events;
+    }
+}
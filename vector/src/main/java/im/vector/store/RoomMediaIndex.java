@@ -0,0 +1,564 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.store;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.message.FileMessage;
+import org.matrix.androidsdk.rest.model.message.Message;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import im.vector.util.AppExecutors;
+
+/**
+ * Persistent index of the media messages (files, images, videos and audio files) of the rooms of a session.
+ * It is filled with the live events, with the events decrypted after their reception
+ * and with the history pages retrieved by the files search.
+ * It keeps for each room the token from which the history backfill must resume,
+ * and the gap left in the timeline by the latest limited sync, which must be filled first.
+ * The encrypted events are stored encrypted: their name and size are not indexed.
+ * The read methods must be called from a background thread.
+ */
+public class RoomMediaIndex extends SQLiteOpenHelper {
+    private static final String LOG_TAG = RoomMediaIndex.class.getSimpleName();
+
+    private static final int DB_VERSION = 2;
+    private static final String DB_NAME_PREFIX = "media_index_";
+
+    private static final String TABLE_MEDIA = "media";
+    private static final String COLUMN_EVENT_ID = "event_id";
+    private static final String COLUMN_ROOM_ID = "room_id";
+    private static final String COLUMN_MSGTYPE = "msgtype";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_SENDER = "sender";
+    private static final String COLUMN_TS = "ts";
+    private static final String COLUMN_EVENT = "event";
+
+    private static final String TABLE_BACKFILL = "backfill";
+    private static final String COLUMN_TOKEN = "token";
+    private static final String COLUMN_COMPLETE = "complete";
+    private static final String COLUMN_HAS_GAP = "has_gap";
+    private static final String COLUMN_GAP_TOKEN = "gap_token";
+    private static final String COLUMN_GAP_TS = "gap_ts";
+
+    // the indexes by matrix id
+    private static final Map<String, RoomMediaIndex> mInstances = new HashMap<>();
+
+    // the writes are done in order
+    private final Executor mWriteExecutor = AppExecutors.newSerialExecutor(LOG_TAG);
+
+    // true when the database has been deleted, it must not be opened again
+    private boolean mIsDeleted = false;
+
+    // the timestamp of the latest live event of each room, when the previous sync was processed
+    private final Map<String, Long> mLatestLiveEventTs = new HashMap<>();
+    private final Map<String, Long> mSyncedLiveEventTs = new HashMap<>();
+
+    /**
+     * The history backfill state of a room
+     */
+    public static class BackfillState {
+        // the token from which the history must be requested, null if the backfill has not started
+        public String mToken;
+        // true when the whole history has been indexed
+        public boolean mIsComplete;
+        // true when a limited sync has left a gap in the indexed timeline
+        public boolean mHasGap;
+        // the token from which the gap must be requested, null to start from the room state token
+        public String mGapToken;
+        // the gap is filled when the history reaches this timestamp
+        public long mGapTs;
+
+        /**
+         * @return true when there is no more history page to index
+         */
+        public boolean isDone() {
+            return mIsComplete && !mHasGap;
+        }
+    }
+
+    // index the live media events
+    private final MXEventListener mLiveEventListener = new MXEventListener() {
+        @Override
+        public void onLiveEvent(final Event event, RoomState roomState) {
+            if (null != event.roomId) {
+                mLatestLiveEventTs.put(event.roomId, event.getOriginServerTs());
+            }
+
+            if (Event.EVENT_TYPE_REDACTION.equals(event.getType())) {
+                mWriteExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeEvent(event.getRedacts());
+                    }
+                });
+            } else if (Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
+                mWriteExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isMediaEvent(event)) {
+                            addEvents(event.roomId, Collections.singletonList(event));
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onEventDecrypted(final Event event) {
+            // the keys were received after the event
+            mWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isMediaEvent(event)) {
+                        addEvents(event.roomId, Collections.singletonList(event));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
+            mSyncedLiveEventTs.putAll(mLatestLiveEventTs);
+        }
+
+        @Override
+        public void onRoomFlush(final String roomId) {
+            // the sync is limited: the events received since the previous sync are not all known
+            Long syncedTs = mSyncedLiveEventTs.get(roomId);
+            final long gapTs = (null != syncedTs) ? syncedTs : 0;
+
+            mWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    addGap(roomId, gapTs);
+                }
+            });
+        }
+    };
+
+    /**
+     * Provides the media index of a session.
+     *
+     * @param context  the context
+     * @param matrixId the session user id
+     * @return the index
+     */
+    public static synchronized RoomMediaIndex getInstance(Context context, String matrixId) {
+        RoomMediaIndex index = mInstances.get(matrixId);
+
+        if (null == index) {
+            index = new RoomMediaIndex(context.getApplicationContext(), getDatabaseName(matrixId));
+            mInstances.put(matrixId, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Delete the media index of a session, when it is logged out.
+     *
+     * @param context  the context
+     * @param matrixId the session user id
+     */
+    public static synchronized void deleteIndex(Context context, String matrixId) {
+        RoomMediaIndex index = mInstances.remove(matrixId);
+
+        if (null != index) {
+            // the pending writes must not create the database again
+            synchronized (index) {
+                index.mIsDeleted = true;
+                index.close();
+            }
+        }
+
+        context.deleteDatabase(getDatabaseName(matrixId));
+    }
+
+    private static String getDatabaseName(String matrixId) {
+        return DB_NAME_PREFIX + matrixId.replaceAll("[^a-zA-Z0-9]", "_") + ".db";
+    }
+
+    private RoomMediaIndex(Context context, String dbName) {
+        super(context, dbName, null, DB_VERSION);
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (mIsDeleted) {
+            throw new IllegalStateException("the index has been deleted");
+        }
+
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        if (mIsDeleted) {
+            throw new IllegalStateException("the index has been deleted");
+        }
+
+        return super.getReadableDatabase();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MEDIA + " ("
+                + COLUMN_EVENT_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_ROOM_ID + " TEXT NOT NULL, "
+                + COLUMN_MSGTYPE + " TEXT, "
+                + COLUMN_NAME + " TEXT, "
+                + COLUMN_SIZE + " INTEGER, "
+                + COLUMN_SENDER + " TEXT, "
+                + COLUMN_TS + " INTEGER, "
+                + COLUMN_EVENT + " TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX media_room_ts ON " + TABLE_MEDIA + " (" + COLUMN_ROOM_ID + ", " + COLUMN_TS + ", " + COLUMN_EVENT_ID + ")");
+
+        db.execSQL("CREATE TABLE " + TABLE_BACKFILL + " ("
+                + COLUMN_ROOM_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_TOKEN + " TEXT, "
+                + COLUMN_COMPLETE + " INTEGER, "
+                + COLUMN_HAS_GAP + " INTEGER DEFAULT 0, "
+                + COLUMN_GAP_TOKEN + " TEXT, "
+                + COLUMN_GAP_TS + " INTEGER DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the index can be rebuilt
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MEDIA);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BACKFILL);
+        onCreate(db);
+    }
+
+    /**
+     * @return the listener to register to the session data handler to index the live events.
+     */
+    public MXEventListener getLiveEventListener() {
+        return mLiveEventListener;
+    }
+
+    /**
+     * Tell if an event is a media message.
+     *
+     * @param event the event
+     * @return true if it is a media message
+     */
+    public static boolean isMediaEvent(Event event) {
+        if (!Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
+            return false;
+        }
+
+        Message message = JsonUtils.toMessage(event.getContent());
+
+        return Message.MSGTYPE_FILE.equals(message.msgtype)
+                || Message.MSGTYPE_IMAGE.equals(message.msgtype)
+                || Message.MSGTYPE_VIDEO.equals(message.msgtype)
+                || Message.MSGTYPE_AUDIO.equals(message.msgtype);
+    }
+
+    /**
+     * Index the media messages of an events list.
+     * The other events are ignored.
+     *
+     * @param roomId the room id
+     * @param events the events (decrypted if they are encrypted)
+     */
+    public void addEvents(String roomId, List<Event> events) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+
+            try {
+                for (Event event : events) {
+                    if ((null == event.eventId) || !isMediaEvent(event)) {
+                        continue;
+                    }
+
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_EVENT_ID, event.eventId);
+                    values.put(COLUMN_ROOM_ID, roomId);
+                    values.put(COLUMN_SENDER, event.getSender());
+                    values.put(COLUMN_TS, event.getOriginServerTs());
+
+                    JsonObject json = event.toJsonObject();
+
+                    if (event.isEncrypted()) {
+                        // keep the event as it was received
+                        json.addProperty("type", event.getWireType());
+                        json.add("content", event.getWireContent());
+                    } else {
+                        FileMessage fileMessage = JsonUtils.toFileMessage(event.getContent());
+                        values.put(COLUMN_MSGTYPE, fileMessage.msgtype);
+                        values.put(COLUMN_NAME, fileMessage.body);
+
+                        if ((null != fileMessage.info) && (null != fileMessage.info.size)) {
+                            values.put(COLUMN_SIZE, fileMessage.info.size);
+                        }
+                    }
+
+                    values.put(COLUMN_EVENT, json.toString());
+                    db.insertWithOnConflict(TABLE_MEDIA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## addEvents() failed " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Remove an event from the index.
+     *
+     * @param eventId the event id
+     */
+    public void removeEvent(String eventId) {
+        if (null == eventId) {
+            return;
+        }
+
+        try {
+            getWritableDatabase().delete(TABLE_MEDIA, COLUMN_EVENT_ID + " = ?", new String[]{eventId});
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## removeEvent() failed " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Provides the indexed media events of a room, from the most recent one.
+     * The events are sorted by timestamp then by event id, the pages start after the latest returned event.
+     * The encrypted events are returned encrypted.
+     *
+     * @param roomId        the room id
+     * @param beforeTs      the timestamp of the latest returned event, Long.MAX_VALUE for the first page
+     * @param beforeEventId the id of the latest returned event, null for the first page
+     * @param limit         the max number of events
+     * @return the events list
+     */
+    public List<Event> getMediaEvents(String roomId, long beforeTs, String beforeEventId, int limit) {
+        List<Event> events = new ArrayList<>();
+        Cursor cursor = null;
+
+        try {
+            String selection;
+            String[] selectionArgs;
+
+            if (null == beforeEventId) {
+                selection = COLUMN_ROOM_ID + " = ? AND " + COLUMN_TS + " < ?";
+                selectionArgs = new String[]{roomId, String.valueOf(beforeTs)};
+            } else {
+                // several events can have the same timestamp
+                selection = COLUMN_ROOM_ID + " = ? AND (" + COLUMN_TS + " < ? OR (" + COLUMN_TS + " = ? AND " + COLUMN_EVENT_ID + " < ?))";
+                selectionArgs = new String[]{roomId, String.valueOf(beforeTs), String.valueOf(beforeTs), beforeEventId};
+            }
+
+            cursor = getReadableDatabase().query(TABLE_MEDIA,
+                    new String[]{COLUMN_EVENT},
+                    selection,
+                    selectionArgs,
+                    null,
+                    null,
+                    COLUMN_TS + " DESC, " + COLUMN_EVENT_ID + " DESC",
+                    String.valueOf(limit));
+
+            JsonParser parser = new JsonParser();
+
+            while (cursor.moveToNext()) {
+                Event event = JsonUtils.toEvent(parser.parse(cursor.getString(0)));
+
+                if (null != event) {
+                    events.add(event);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## getMediaEvents() failed " + e.getMessage(), e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * Provides the history backfill state of a room.
+     *
+     * @param roomId the room id
+     * @return the backfill state
+     */
+    public BackfillState getBackfillState(String roomId) {
+        BackfillState state = new BackfillState();
+        Cursor cursor = null;
+
+        try {
+            cursor = getReadableDatabase().query(TABLE_BACKFILL,
+                    new String[]{COLUMN_TOKEN, COLUMN_COMPLETE, COLUMN_HAS_GAP, COLUMN_GAP_TOKEN, COLUMN_GAP_TS},
+                    COLUMN_ROOM_ID + " = ?",
+                    new String[]{roomId},
+                    null,
+                    null,
+                    null);
+
+            if (cursor.moveToFirst()) {
+                state.mToken = cursor.getString(0);
+                state.mIsComplete = (0 != cursor.getInt(1));
+                state.mHasGap = (0 != cursor.getInt(2));
+                state.mGapToken = cursor.getString(3);
+                state.mGapTs = cursor.getLong(4);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## getBackfillState() failed " + e.getMessage(), e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Index a history page and update the backfill state of the room in a single transaction.
+     *
+     * @param roomId     the room id
+     * @param events     the page events (decrypted if they are encrypted)
+     * @param nextToken  the token to request the next history page
+     * @param isComplete true if there is no more history
+     */
+    public void addHistoryPage(String roomId, List<Event> events, String nextToken, boolean isComplete) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+
+            try {
+                addEvents(roomId, events);
+
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_TOKEN, nextToken);
+                values.put(COLUMN_COMPLETE, isComplete ? 1 : 0);
+                updateBackfillState(db, roomId, values);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## addHistoryPage() failed " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Index a page of the gap left by a limited sync and update the gap state of the room in a single transaction.
+     *
+     * @param roomId     the room id
+     * @param events     the page events (decrypted if they are encrypted)
+     * @param nextToken  the token to request the next gap page
+     * @param isFilled   true if the page reaches the events indexed before the gap
+     * @param isComplete true if there is no more history
+     */
+    public void addGapPage(String roomId, List<Event> events, String nextToken, boolean isFilled, boolean isComplete) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+
+            try {
+                addEvents(roomId, events);
+
+                ContentValues values = new ContentValues();
+
+                if (isFilled || isComplete) {
+                    values.put(COLUMN_HAS_GAP, 0);
+                    values.putNull(COLUMN_GAP_TOKEN);
+                } else {
+                    values.put(COLUMN_GAP_TOKEN, nextToken);
+                }
+
+                // the gap has been requested until the first event of the room
+                if (isComplete) {
+                    values.put(COLUMN_TOKEN, nextToken);
+                    values.put(COLUMN_COMPLETE, 1);
+                }
+
+                updateBackfillState(db, roomId, values);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## addGapPage() failed " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Record the gap left in the indexed timeline of a room by a limited sync.
+     * It is ignored when the history backfill has not started, because it starts from the latest events.
+     *
+     * @param roomId the room id
+     * @param gapTs  the timestamp of the latest event received before the gap, 0 if it is unknown
+     */
+    private void addGap(String roomId, long gapTs) {
+        try {
+            // the gap is requested again from the latest events, down to the oldest known gap
+            getWritableDatabase().execSQL("UPDATE " + TABLE_BACKFILL + " SET "
+                            + COLUMN_GAP_TS + " = CASE WHEN " + COLUMN_HAS_GAP + " = 1 AND " + COLUMN_GAP_TS + " < ? THEN " + COLUMN_GAP_TS + " ELSE ? END, "
+                            + COLUMN_HAS_GAP + " = 1, "
+                            + COLUMN_GAP_TOKEN + " = NULL"
+                            + " WHERE " + COLUMN_ROOM_ID + " = ?",
+                    new Object[]{gapTs, gapTs, roomId});
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## addGap() failed " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Update some columns of the backfill state of a room, the other ones are kept.
+     *
+     * @param db     the database
+     * @param roomId the room id
+     * @param values the updated columns
+     */
+    private static void updateBackfillState(SQLiteDatabase db, String roomId, ContentValues values) {
+        if (0 == db.update(TABLE_BACKFILL, values, COLUMN_ROOM_ID + " = ?", new String[]{roomId})) {
+            values.put(COLUMN_ROOM_ID, roomId);
+            db.insert(TABLE_BACKFILL, null, values);
+        }
+    }
+}
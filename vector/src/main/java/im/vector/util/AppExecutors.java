@@ -0,0 +1,423 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application wide executors.
+ * The background works must be run on these pools instead of creating raw threads, AsyncTasks or HandlerThreads.
+ * - IO : disk and network accesses.
+ * - COMPUTE : CPU bound works (sort, decode...).
+ * - SERIAL : a single thread for the UI adjacent works which must be run in order.
+ * The pools have a bounded threads count and their idle threads are released.
+ */
+public class AppExecutors {
+    private static final String LOG_TAG = AppExecutors.class.getSimpleName();
+
+    // a task running longer than this delay is logged
+    private static final long SLOW_TASK_THRESHOLD_MS = 1000;
+
+    // delay before releasing an idle thread
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final int IO_POOL_SIZE = 4;
+    private static final int COMPUTE_POOL_SIZE = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+    /**
+     * The available pools
+     */
+    public enum Pool {
+        IO,
+        COMPUTE,
+        SERIAL
+    }
+
+    private static ThreadPoolExecutor sIoExecutor = null;
+    private static ThreadPoolExecutor sComputeExecutor = null;
+    private static ThreadPoolExecutor sSerialExecutor = null;
+
+    private static Handler sUIHandler = null;
+
+    // the tasks metrics by task name
+    private static final Map<String, TaskStats> sTaskStats = new HashMap<>();
+
+    /**
+     * Task metrics
+     */
+    public static class TaskStats {
+        // number of runs
+        public int mCount;
+        // cumulated running time
+        public long mTotalDurationMs;
+        // the longest run
+        public long mMaxDurationMs;
+        // cumulated time spent in the pool queue
+        public long mTotalWaitingMs;
+
+        @Override
+        public String toString() {
+            return "count " + mCount + " total " + mTotalDurationMs + " ms max " + mMaxDurationMs + " ms waiting " + mTotalWaitingMs + " ms";
+        }
+    }
+
+    /**
+     * A cancellable background task.
+     * onResult is called on the UI thread only if the task has not been cancelled.
+     *
+     * @param <T> the result type
+     */
+    public static abstract class Task<T> {
+        private volatile Future<?> mFuture;
+        private volatile boolean mIsCancelled = false;
+
+        /**
+         * Run the task in the background.
+         *
+         * @return the result
+         */
+        protected abstract T doInBackground();
+
+        /**
+         * Called on the UI thread with the task result.
+         *
+         * @param result the result
+         */
+        protected void onResult(T result) {
+        }
+
+        /**
+         * @return true if the task has been cancelled
+         */
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Cancel the task.
+         * The running task is interrupted and onResult will not be called.
+         */
+        public void cancel() {
+            mIsCancelled = true;
+
+            if (null != mFuture) {
+                mFuture.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Group of tasks which must be cancelled together, when a screen is stopped for example.
+     */
+    public static class TaskGroup {
+        private final List<Task<?>> mTasks = new ArrayList<>();
+
+        /**
+         * Run a task and keep it in the group.
+         *
+         * @param pool the pool
+         * @param name the task name, used for the metrics
+         * @param task the task
+         * @param <T>  the result type
+         * @return the task
+         */
+        public synchronized <T> Task<T> execute(Pool pool, String name, Task<T> task) {
+            // forget the completed tasks
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                Task<?> other = mTasks.get(i);
+
+                if ((null != other.mFuture) && other.mFuture.isDone()) {
+                    mTasks.remove(i);
+                }
+            }
+
+            mTasks.add(task);
+            return AppExecutors.execute(pool, name, task);
+        }
+
+        /**
+         * Cancel all the tasks of the group.
+         */
+        public synchronized void cancelAll() {
+            for (Task<?> task : mTasks) {
+                task.cancel();
+            }
+            mTasks.clear();
+        }
+    }
+
+    /**
+     * Executor which runs its tasks one after the other on the IO pool.
+     * It provides ordering without a dedicated thread.
+     */
+    static class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private final String mName;
+        private Runnable mActive;
+
+        SerialExecutor(String name) {
+            mName = name;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable runnable) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+
+            if (null == mActive) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            while (null != (mActive = mTasks.poll())) {
+                if (null != submit(mActive)) {
+                    return;
+                }
+
+                // the task has been rejected, release the slot for the next one
+                Log.e(LOG_TAG, "## scheduleNext() : " + mName + " a task has been dropped");
+            }
+        }
+
+        /**
+         * Run a task in the IO pool.
+         *
+         * @param task the task
+         * @return the future, null if the task has been rejected
+         */
+        Future<?> submit(Runnable task) {
+            return AppExecutors.execute(Pool.IO, mName, task);
+        }
+    }
+
+    /**
+     * Thread factory providing named threads with a dedicated priority.
+     */
+    private static class PriorityThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mThreadsCount = new AtomicInteger(0);
+
+        PriorityThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(mPriority);
+                    runnable.run();
+                }
+            }, mName + "-" + mThreadsCount.incrementAndGet());
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int size, int priority) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new PriorityThreadFactory(name, priority));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Provides the executor of a pool.
+     *
+     * @param pool the pool
+     * @return the executor
+     */
+    private static synchronized ThreadPoolExecutor getExecutor(Pool pool) {
+        switch (pool) {
+            case COMPUTE:
+                if (null == sComputeExecutor) {
+                    sComputeExecutor = createExecutor("Vector-Compute", COMPUTE_POOL_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+                }
+                return sComputeExecutor;
+            case SERIAL:
+                if (null == sSerialExecutor) {
+                    sSerialExecutor = createExecutor("Vector-Serial", 1, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+                }
+                return sSerialExecutor;
+            default:
+                if (null == sIoExecutor) {
+                    sIoExecutor = createExecutor("Vector-IO", IO_POOL_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+                }
+                return sIoExecutor;
+        }
+    }
+
+    /**
+     * Run a runnable in a pool.
+     *
+     * @param pool     the pool
+     * @param name     the task name, used for the metrics
+     * @param runnable the runnable
+     * @return the future to use to cancel the runnable, null if it cannot be scheduled.
+     */
+    public static Future<?> execute(Pool pool, final String name, final Runnable runnable) {
+        final long submitTime = System.currentTimeMillis();
+
+        try {
+            return getExecutor(pool).submit(new Runnable() {
+                @Override
+                public void run() {
+                    long startTime = System.currentTimeMillis();
+
+                    try {
+                        runnable.run();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## execute() : the task " + name + " failed " + e.getMessage(), e);
+                    } finally {
+                        onTaskDone(name, startTime - submitTime, System.currentTimeMillis() - startTime);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## execute() : cannot run the task " + name + " " + e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Run a task in a pool.
+     *
+     * @param pool the pool
+     * @param name the task name, used for the metrics
+     * @param task the task
+     * @param <T>  the result type
+     * @return the task
+     */
+    public static <T> Task<T> execute(Pool pool, String name, final Task<T> task) {
+        task.mFuture = execute(pool, name, new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    return;
+                }
+
+                final T result = task.doInBackground();
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!task.isCancelled()) {
+                            task.onResult(result);
+                        }
+                    }
+                });
+            }
+        });
+
+        return task;
+    }
+
+    /**
+     * Create an executor which runs its tasks in order on the IO pool.
+     *
+     * @param name the tasks name, used for the metrics
+     * @return the executor
+     */
+    public static Executor newSerialExecutor(String name) {
+        return new SerialExecutor(name);
+    }
+
+    /**
+     * Run a runnable on the UI thread.
+     *
+     * @param runnable the runnable
+     */
+    public static void runOnUiThread(Runnable runnable) {
+        synchronized (AppExecutors.class) {
+            if (null == sUIHandler) {
+                sUIHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+
+        sUIHandler.post(runnable);
+    }
+
+    /**
+     * Update the task metrics.
+     *
+     * @param name       the task name
+     * @param waitingMs  the time spent in the queue
+     * @param durationMs the running time
+     */
+    private static void onTaskDone(String name, long waitingMs, long durationMs) {
+        if (durationMs > SLOW_TASK_THRESHOLD_MS) {
+            Log.d(LOG_TAG, "## onTaskDone() : the task " + name + " took " + durationMs + " ms");
+        }
+
+        synchronized (sTaskStats) {
+            TaskStats stats = sTaskStats.get(name);
+
+            if (null == stats) {
+                stats = new TaskStats();
+                sTaskStats.put(name, stats);
+            }
+
+            stats.mCount++;
+            stats.mTotalDurationMs += durationMs;
+            stats.mMaxDurationMs = Math.max(stats.mMaxDurationMs, durationMs);
+            stats.mTotalWaitingMs += waitingMs;
+        }
+    }
+
+    /**
+     * @return a text description of the tasks metrics
+     */
+    public static String getTaskStatsDescription() {
+        StringBuilder builder = new StringBuilder();
+
+        synchronized (sTaskStats) {
+            for (Map.Entry<String, TaskStats> entry : sTaskStats.entrySet()) {
+                builder.append(entry.getKey()).append(" : ").append(entry.getValue()).append("\n");
+            }
+        }
+
+        return builder.toString();
+    }
+}
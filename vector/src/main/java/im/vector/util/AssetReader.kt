@@ -30,6 +30,18 @@ object AssetReader {
      * ========================================================================================== */
     private val cache = HashMap<String, String>()
 
+    init {
+        MemoryPressureCoordinator.register("assets", MemoryPressureCoordinator.PRIORITY_NORMAL, MemoryPressureCoordinator.RELEASE_POLICY_CLEAR,
+                object : MemoryPressureCoordinator.MemoryCache {
+                    // the strings are UTF-16 encoded
+                    override fun getSize() = cache.values.fold(0L) { size, content -> size + 2 * content.length }
+
+                    override fun getMaxSize() = 0L
+
+                    override fun trimToSize(maxSize: Long) = clearCache()
+                })
+    }
+
     /**
      * Read an asset from resource and return a String or null in cas of error.
      *
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import org.matrix.androidsdk.MXSession;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Avatars loading pipeline.
+ * The requests are coalesced by avatar URL and size: the image views waiting for the same avatar
+ * share a single download, and keep displaying their placeholder until the avatar has been decoded.
+ * The methods must be called from the UI thread.
+ */
+public class AvatarLoader {
+    // the bitmap given to the medias cache as fallback, it flags the failed downloads.
+    // It is shared by all the requests, so no avatar is rasterised when a download fails.
+    private static Bitmap sFailureBitmap = null;
+
+    /**
+     * A pending avatar request.
+     * The medias cache loads the avatar into this image view, which is never displayed:
+     * the decoded bitmap is forwarded to the image views bound to the request.
+     */
+    private static class AvatarRequest extends ImageView {
+        final String mKey;
+        final List<ImageView> mImageViews = new ArrayList<>();
+
+        AvatarRequest(Context context, String key) {
+            super(context);
+            mKey = key;
+        }
+
+        @Override
+        public void setImageBitmap(Bitmap bitmap) {
+            // the request is completed once
+            if (this != mPendingRequests.get(mKey)) {
+                return;
+            }
+
+            mPendingRequests.remove(mKey);
+
+            // keep the placeholders if the download has failed
+            if ((null == bitmap) || (sFailureBitmap == bitmap)) {
+                return;
+            }
+
+            for (ImageView imageView : mImageViews) {
+                // ignore the image views which have been bound to another request in the meantime
+                if (mKey.equals(imageView.getTag())) {
+                    imageView.setImageBitmap(bitmap);
+                }
+            }
+        }
+    }
+
+    // the pending requests by key
+    private static final Map<String, AvatarRequest> mPendingRequests = new HashMap<>();
+
+    /**
+     * Load an avatar into an image view.
+     * The image view must already display its placeholder, which is kept if the download fails.
+     *
+     * @param context   the context
+     * @param session   the session
+     * @param imageView the image view
+     * @param avatarUrl the avatar URL
+     * @param size      the avatar size in pixels
+     */
+    public static void load(Context context,
+                            MXSession session,
+                            ImageView imageView,
+                            String avatarUrl,
+                            int size) {
+        final String key = avatarUrl + "_" + size;
+
+        // the image view is bound to this request
+        imageView.setTag(key);
+
+        AvatarRequest request = mPendingRequests.get(key);
+
+        if (null != request) {
+            if (!request.mImageViews.contains(imageView)) {
+                request.mImageViews.add(imageView);
+            }
+            return;
+        }
+
+        if (!session.isAlive()) {
+            return;
+        }
+
+        if (null == sFailureBitmap) {
+            sFailureBitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8);
+        }
+
+        // the request is held until the medias cache completes it, which can be done synchronously
+        request = new AvatarRequest(context.getApplicationContext(), key);
+        request.mImageViews.add(imageView);
+        mPendingRequests.put(key, request);
+
+        session.getMediasCache().loadAvatarThumbnail(session.getHomeServerConfig(), request, avatarUrl, size, sFailureBitmap);
+    }
+}
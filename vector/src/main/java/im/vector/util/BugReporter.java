@@ -23,7 +23,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -127,13 +126,13 @@ public class BugReporter {
                                      final boolean withScreenshot,
                                      final String theBugDescription,
                                      final IMXBugReportListener listener) {
-        new AsyncTask<Void, Integer, String>() {
+        AppExecutors.execute(AppExecutors.Pool.IO, "sendBugReport", new AppExecutors.Task<String>() {
 
             // enumerate files to delete
             final List<File> mBugReportFiles = new ArrayList<>();
 
             @Override
-            protected String doInBackground(Void... voids) {
+            protected String doInBackground() {
                 String bugDescription = theBugDescription;
                 String serverError = null;
                 String crashCallStack = getCrashDescription(context);
@@ -222,6 +221,12 @@ public class BugReporter {
                         builder.addFormDataPart("build_number", buildNumber);
                     }
 
+                    // the background tasks metrics
+                    String taskStats = AppExecutors.getTaskStatsDescription();
+                    if (withDevicesLogs && !TextUtils.isEmpty(taskStats)) {
+                        builder.addFormDataPart("task_stats", taskStats);
+                    }
+
                     // add the gzipped files
                     for (File file : gzippedFiles) {
                         builder.addFormDataPart("compressed-log", file.getName(), RequestBody.create(MediaType.parse("application/octet-stream"), file));
@@ -370,21 +375,28 @@ public class BugReporter {
                 return serverError;
             }
 
-            @Override
-            protected void onProgressUpdate(Integer... progress) {
-                super.onProgressUpdate(progress);
-
-                if (null != listener) {
-                    try {
-                        listener.onProgress((null == progress) ? 0 : progress[0]);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "## onProgress() : failed " + e.getMessage(), e);
+            /**
+             * Dispatch the upload progress on the UI thread.
+             *
+             * @param progress the progress percentage
+             */
+            private void publishProgress(final int progress) {
+                AppExecutors.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (null != listener) {
+                            try {
+                                listener.onProgress(progress);
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "## onProgress() : failed " + e.getMessage(), e);
+                            }
+                        }
                     }
-                }
+                });
             }
 
             @Override
-            protected void onPostExecute(String reason) {
+            protected void onResult(String reason) {
                 mBugReportCall = null;
 
                 // delete when the bug report has been successfully sent
@@ -402,11 +414,11 @@ public class BugReporter {
                             listener.onUploadFailed(reason);
                         }
                     } catch (Exception e) {
-                        Log.e(LOG_TAG, "## onPostExecute() : failed " + e.getMessage(), e);
+                        Log.e(LOG_TAG, "## onResult() : failed " + e.getMessage(), e);
                     }
                 }
             }
-        }.execute();
+        });
     }
 
     private static Bitmap mScreenshot = null;
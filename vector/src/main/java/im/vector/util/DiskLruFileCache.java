@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Files cache stored in a dedicated directory, bounded by its size in bytes.
+ * The least recently used files are deleted when the cache is full.
+ * The directory is only listed once, the entries are then tracked in memory.
+ */
+public class DiskLruFileCache {
+    private static final String LOG_TAG = DiskLruFileCache.class.getSimpleName();
+
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+
+    // file name -> file size, in access order
+    private LinkedHashMap<String, Long> mEntries = null;
+    private long mSizeBytes = 0;
+
+    /**
+     * Constructor
+     *
+     * @param directory    the cache directory
+     * @param maxSizeBytes the max cache size in bytes
+     */
+    public DiskLruFileCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Load the entries from the directory content.
+     */
+    private void loadEntriesIfNeeded() {
+        if (null != mEntries) {
+            return;
+        }
+
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mSizeBytes = 0;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "## loadEntriesIfNeeded() : cannot create " + mDirectory);
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+
+        if (null != files) {
+            // oldest first
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long lhsModified = lhs.lastModified();
+                    long rhsModified = rhs.lastModified();
+                    return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+                }
+            });
+
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_FILE_SUFFIX)) {
+                    // interrupted write
+                    file.delete();
+                } else {
+                    mEntries.put(file.getName(), file.length());
+                    mSizeBytes += file.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * Provides the cached file for a key.
+     *
+     * @param key the key
+     * @return the file, null if it is not cached
+     */
+    public synchronized File get(String key) {
+        loadEntriesIfNeeded();
+
+        String fileName = toFileName(key);
+
+        // update the access order
+        if (null == mEntries.get(fileName)) {
+            return null;
+        }
+
+        File file = new File(mDirectory, fileName);
+
+        if (!file.exists()) {
+            mSizeBytes -= mEntries.remove(fileName);
+            return null;
+        }
+
+        // keep the access order after a restart
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Store a stream content in the cache.
+     * The content is written in a temporary file which is renamed when it is complete.
+     * The write is aborted as soon as the content exceeds the cache size.
+     *
+     * @param key         the key
+     * @param inputStream the content, it is not closed
+     * @return the cached file
+     * @throws IOException if the content cannot be written or is larger than the cache
+     */
+    public File put(String key, InputStream inputStream) throws IOException {
+        String fileName = toFileName(key);
+        File tmpFile = new File(mDirectory, fileName + "_" + Thread.currentThread().getId() + TMP_FILE_SUFFIX);
+
+        synchronized (this) {
+            loadEntriesIfNeeded();
+        }
+
+        OutputStream outputStream = null;
+
+        try {
+            outputStream = new FileOutputStream(tmpFile);
+
+            byte[] buffer = new byte[32 * 1024];
+            long writtenBytes = 0;
+            int len;
+
+            while ((len = inputStream.read(buffer)) != -1) {
+                writtenBytes += len;
+
+                if (writtenBytes > mMaxSizeBytes) {
+                    throw new IOException("The content of " + key + " exceeds the cache size");
+                }
+
+                outputStream.write(buffer, 0, len);
+            }
+        } catch (IOException e) {
+            closeQuietly(outputStream);
+            outputStream = null;
+            tmpFile.delete();
+            throw e;
+        } finally {
+            closeQuietly(outputStream);
+        }
+
+        synchronized (this) {
+            File file = new File(mDirectory, fileName);
+
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+
+            Long previousSize = mEntries.put(fileName, file.length());
+
+            if (null != previousSize) {
+                mSizeBytes -= previousSize;
+            }
+            mSizeBytes += file.length();
+
+            trimToSize(mMaxSizeBytes);
+
+            return file;
+        }
+    }
+
+    /**
+     * Close an output stream, the errors are only logged.
+     *
+     * @param outputStream the output stream, can be null
+     */
+    private static void closeQuietly(OutputStream outputStream) {
+        if (null != outputStream) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "## put() : close failed " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache size is lower than a limit.
+     *
+     * @param maxSizeBytes the limit in bytes
+     * @return the released bytes
+     */
+    public synchronized long trimToSize(long maxSizeBytes) {
+        loadEntriesIfNeeded();
+
+        long initialSize = mSizeBytes;
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+
+        while ((mSizeBytes > maxSizeBytes) && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+
+            new File(mDirectory, entry.getKey()).delete();
+            mSizeBytes -= entry.getValue();
+            iterator.remove();
+        }
+
+        return initialSize - mSizeBytes;
+    }
+
+    /**
+     * @return the cache size in bytes
+     */
+    public synchronized long getSize() {
+        loadEntriesIfNeeded();
+        return mSizeBytes;
+    }
+
+    /**
+     * Convert a key into a file name.
+     *
+     * @param key the key
+     * @return the file name
+     */
+    private static String toFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+
+            StringBuilder builder = new StringBuilder();
+
+            for (byte b : hash) {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+
+            return builder.toString();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## toFileName() failed " + e.getMessage(), e);
+        }
+
+        return Integer.toHexString(key.hashCode());
+    }
+}
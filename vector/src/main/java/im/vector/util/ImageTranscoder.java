@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Resize and rotate an image in a single pass:
+ * the image is decoded once with the largest sample size allowed by the expected size,
+ * then the remaining scale and the rotation are applied with a single matrix before encoding it once in JPEG.
+ */
+public class ImageTranscoder {
+    private static final String LOG_TAG = ImageTranscoder.class.getSimpleName();
+
+    /**
+     * Read the image size from its header.
+     *
+     * @param filename the image file name
+     * @return the options filled with the image size, outWidth and outHeight are -1 if the image cannot be read
+     */
+    public static BitmapFactory.Options decodeBounds(String filename) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.outWidth = -1;
+        options.outHeight = -1;
+
+        try {
+            BitmapFactory.decodeFile(filename, options);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## decodeBounds() failed " + e.getMessage(), e);
+        }
+
+        return options;
+    }
+
+    /**
+     * Compute the largest power of 2 sample size which provides an image larger than the expected one.
+     *
+     * @param srcWidth  the image width
+     * @param srcHeight the image height
+     * @param dstWidth  the expected width
+     * @param dstHeight the expected height
+     * @return the sample size
+     */
+    public static int computeSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int sampleSize = 1;
+
+        if ((dstWidth > 0) && (dstHeight > 0)) {
+            while (((srcWidth / (sampleSize * 2)) >= dstWidth) && ((srcHeight / (sampleSize * 2)) >= dstHeight)) {
+                sampleSize *= 2;
+            }
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Resize and rotate an image.
+     *
+     * @param filename      the image file name
+     * @param dstWidth      the expected width before rotation, -1 to keep the image width
+     * @param dstHeight     the expected height before rotation, -1 to keep the image height
+     * @param rotationAngle the rotation angle to apply
+     * @param quality       the JPEG quality
+     * @return the JPEG stream, null if the image cannot be transcoded
+     */
+    public static InputStream transcode(String filename, int dstWidth, int dstHeight, int rotationAngle, int quality) {
+        BitmapFactory.Options options = decodeBounds(filename);
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        int srcWidth = options.outWidth;
+        int srcHeight = options.outHeight;
+
+        if ((dstWidth <= 0) || (dstHeight <= 0)) {
+            dstWidth = srcWidth;
+            dstHeight = srcHeight;
+        }
+
+        Bitmap bitmap = null;
+        Bitmap transformedBitmap = null;
+
+        try {
+            BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+            decodeOptions.inSampleSize = computeSampleSize(srcWidth, srcHeight, dstWidth, dstHeight);
+            decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+            bitmap = BitmapFactory.decodeFile(filename, decodeOptions);
+
+            if (null == bitmap) {
+                Log.e(LOG_TAG, "## transcode() : cannot decode " + filename);
+                return null;
+            }
+
+            float scaleX = (float) dstWidth / bitmap.getWidth();
+            float scaleY = (float) dstHeight / bitmap.getHeight();
+
+            if ((0 != rotationAngle) || (1.0f != scaleX) || (1.0f != scaleY)) {
+                Matrix matrix = new Matrix();
+                matrix.postScale(scaleX, scaleY);
+                matrix.postRotate(rotationAngle);
+
+                transformedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            } else {
+                transformedBitmap = bitmap;
+            }
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            transformedBitmap.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+
+            return new ByteArrayInputStream(outputStream.toByteArray());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## transcode() : out of memory " + oom.getMessage(), oom);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## transcode() : failed " + e.getMessage(), e);
+        } finally {
+            if (null != transformedBitmap) {
+                transformedBitmap.recycle();
+            }
+
+            if ((null != bitmap) && (bitmap != transformedBitmap)) {
+                bitmap.recycle();
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.content.ComponentCallbacks2;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Release the application memory caches according to the memory pressure.
+ * Each cache is registered with a priority and a release policy.
+ * The trim levels are mapped to pressure steps: at each step, the caches of a higher priority are trimmed,
+ * and the caches trimmed at the previous step are cleared.
+ */
+public class MemoryPressureCoordinator {
+    private static final String LOG_TAG = MemoryPressureCoordinator.class.getSimpleName();
+
+    // the caches priorities, the lower priority caches are released first
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    // the cache is trimmed to the half of its max size, then cleared at the next pressure step
+    public static final int RELEASE_POLICY_TRIM = 0;
+    // the cache is cleared at its first pressure step
+    public static final int RELEASE_POLICY_CLEAR = 1;
+
+    /**
+     * A releasable memory cache
+     */
+    public interface MemoryCache {
+        /**
+         * @return the cache size in bytes, it can be an estimation
+         */
+        long getSize();
+
+        /**
+         * @return the cache max size in bytes, 0 if it is not bounded
+         */
+        long getMaxSize();
+
+        /**
+         * Release the cache entries until its size is lower than or equal to maxSize.
+         *
+         * @param maxSize the max size in bytes, 0 to clear the cache
+         */
+        void trimToSize(long maxSize);
+    }
+
+    /**
+     * A registered cache
+     */
+    private static class Registration {
+        final String mName;
+        final int mPriority;
+        final int mReleasePolicy;
+        final MemoryCache mCache;
+
+        Registration(String name, int priority, int releasePolicy, MemoryCache cache) {
+            mName = name;
+            mPriority = priority;
+            mReleasePolicy = releasePolicy;
+            mCache = cache;
+        }
+    }
+
+    private static final List<Registration> sRegistrations = new ArrayList<>();
+
+    /**
+     * Register a cache.
+     *
+     * @param name          the cache name, used in the logs
+     * @param priority      the cache priority
+     * @param releasePolicy the cache release policy
+     * @param cache         the cache
+     */
+    public static void register(String name, int priority, int releasePolicy, MemoryCache cache) {
+        synchronized (sRegistrations) {
+            sRegistrations.add(new Registration(name, priority, releasePolicy, cache));
+        }
+    }
+
+    /**
+     * Unregister all the caches.
+     */
+    static void unregisterAll() {
+        synchronized (sRegistrations) {
+            sRegistrations.clear();
+        }
+    }
+
+    /**
+     * Map a trim level to a pressure step.
+     *
+     * @param level the trim level
+     * @return the pressure step, from 0 (no pressure) to 4 (release everything)
+     */
+    private static int getPressureStep(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 4;
+        } else if ((level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+            return 3;
+        } else if ((level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)) {
+            return 2;
+        } else if ((level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)) {
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Compute the size a cache can keep at a pressure step.
+     *
+     * @param registration the registered cache
+     * @param pressureStep the pressure step
+     * @return the max size in bytes, -1 if the cache is not trimmed
+     */
+    private static long getRetainedSize(Registration registration, int pressureStep) {
+        // PRIORITY_LOW caches are trimmed at the step 1, PRIORITY_NORMAL ones at the step 2...
+        int steps = pressureStep - registration.mPriority;
+
+        if (steps <= 0) {
+            return -1;
+        }
+
+        if ((1 == steps) && (RELEASE_POLICY_TRIM == registration.mReleasePolicy)) {
+            return registration.mCache.getMaxSize() / 2;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Release the caches according to a trim level.
+     *
+     * @param level the trim level (see ComponentCallbacks2)
+     * @return the released bytes
+     */
+    public static long onTrimMemory(int level) {
+        int pressureStep = getPressureStep(level);
+
+        if (0 == pressureStep) {
+            return 0;
+        }
+
+        List<Registration> registrations;
+
+        synchronized (sRegistrations) {
+            registrations = new ArrayList<>(sRegistrations);
+        }
+
+        long releasedSize = 0;
+        StringBuilder report = new StringBuilder();
+
+        for (Registration registration : registrations) {
+            long retainedSize = getRetainedSize(registration, pressureStep);
+
+            if (retainedSize < 0) {
+                continue;
+            }
+
+            try {
+                long sizeBefore = registration.mCache.getSize();
+
+                if (sizeBefore > retainedSize) {
+                    registration.mCache.trimToSize(retainedSize);
+
+                    long released = sizeBefore - registration.mCache.getSize();
+                    releasedSize += released;
+                    report.append(' ').append(registration.mName).append('=').append(released);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## onTrimMemory() : failed to trim " + registration.mName + " " + e.getMessage(), e);
+            }
+        }
+
+        Log.d(LOG_TAG, "## onTrimMemory() : level " + level + " step " + pressureStep + " released " + releasedSize + " bytes" + report);
+
+        return releasedSize;
+    }
+
+    /**
+     * Release all the caches.
+     *
+     * @return the released bytes
+     */
+    public static long onLowMemory() {
+        return onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+}
@@ -204,7 +204,7 @@ public class PhoneNumberUtils {
     /**
      * Phone numbers cache by text.
      */
-    private static final Map<String, Object> mPhoneNumberByText = new HashMap<>();
+    private static final Map<String, Object> mPhoneNumberByText = Collections.synchronizedMap(new HashMap<String, Object>());
 
     /**
      * Provide libphonenumber phonenumber from an unformatted one.
@@ -244,7 +244,31 @@ public class PhoneNumberUtils {
     /**
      * E164 phone number by unformatted phonenumber
      */
-    private static final Map<String, String> mE164PhoneNumberByText = new HashMap<>();
+    private static final Map<String, String> mE164PhoneNumberByText = Collections.synchronizedMap(new HashMap<String, String>());
+
+    // the estimated size of a phone numbers cache entry, in bytes
+    private static final int ESTIMATED_CACHE_ENTRY_SIZE = 256;
+
+    static {
+        MemoryPressureCoordinator.register("phone numbers", MemoryPressureCoordinator.PRIORITY_LOW, MemoryPressureCoordinator.RELEASE_POLICY_CLEAR,
+                new MemoryPressureCoordinator.MemoryCache() {
+                    @Override
+                    public long getSize() {
+                        return (long) (mPhoneNumberByText.size() + mE164PhoneNumberByText.size()) * ESTIMATED_CACHE_ENTRY_SIZE;
+                    }
+
+                    @Override
+                    public long getMaxSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public void trimToSize(long maxSize) {
+                        mPhoneNumberByText.clear();
+                        mE164PhoneNumberByText.clear();
+                    }
+                });
+    }
 
     /**
      * Convert an unformatted phone number to a E164 format one.
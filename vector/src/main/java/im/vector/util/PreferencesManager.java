@@ -154,6 +154,9 @@ public class PreferencesManager {
     private static final int MEDIA_SAVING_1_MONTH = 2;
     private static final int MEDIA_SAVING_FOREVER = 3;
 
+    // the media cache budget, the least recently used medias are deleted beyond it
+    private static final long MEDIA_CACHE_MAX_SIZE = 1024L * 1024L * 1024L;
+
     // some preferences keys must be kept after a logout
     private static final List<String> mKeysToKeepAfterLogout = Arrays.asList(
             SETTINGS_HIDE_READ_RECEIPTS_KEY,
@@ -188,6 +191,157 @@ public class PreferencesManager {
             SETTINGS_USE_RAGE_SHAKE_KEY
     );
 
+    /**
+     * Immutable snapshot of the typed preferences.
+     * It is built once and then rebuilt only after a preference update, so the hot paths
+     * (lists binding, messages display) read final fields instead of the shared preferences.
+     */
+    public static class Snapshot {
+        // true when the time is displayed in the 12h format
+        public final boolean mDisplayTimeIn12hFormat;
+        // true when the join and leave membership events are hidden
+        public final boolean mHideJoinLeaveMessages;
+        // true when the avatar and display name changes are hidden
+        public final boolean mHideAvatarDisplayNameChangeMessages;
+        // true when the native camera is used
+        public final boolean mUseNativeCamera;
+        // true when the voice messages can be sent
+        public final boolean mIsSendVoiceFeatureEnabled;
+        // true when the data save mode is enabled
+        public final boolean mUseDataSaveMode;
+        // true when the conference calls use jitsi
+        public final boolean mUseJitsiConfCall;
+        // true when the markdown is enabled
+        public final boolean mIsMarkdownEnabled;
+        // true when the read receipts are hidden
+        public final boolean mHideReadReceipts;
+        // true when the timestamps are always displayed
+        public final boolean mAlwaysShowTimeStamps;
+        // true when the typing notifications are not sent
+        public final boolean mDontSendTypingNotifs;
+        // true when the rooms with missed notifications are pinned
+        public final boolean mPinMissedNotifications;
+        // true when the unread rooms are pinned
+        public final boolean mPinUnreadMessages;
+        // true when the phone vibrates when mentioning
+        public final boolean mVibrateWhenMentioning;
+        // true when the analytics tracking is authorized
+        public final boolean mUseAnalytics;
+        // true when the medias are previewed before sending
+        public final boolean mPreviewMediaWhenSending;
+        // true when the rage shake is used
+        public final boolean mUseRageshake;
+        // true when all the events are displayed
+        public final boolean mDisplayAllEvents;
+        // the selected medias saving period
+        public final int mSelectedMediasSavingPeriod;
+
+        /**
+         * Constructor
+         *
+         * @param preferences the shared preferences
+         */
+        private Snapshot(SharedPreferences preferences) {
+            mDisplayTimeIn12hFormat = preferences.getBoolean(SETTINGS_12_24_TIMESTAMPS_KEY, false);
+            mHideJoinLeaveMessages = preferences.getBoolean(SETTINGS_HIDE_JOIN_LEAVE_MESSAGES_KEY, false);
+            mHideAvatarDisplayNameChangeMessages = preferences.getBoolean(SETTINGS_HIDE_AVATAR_DISPLAY_NAME_CHANGES_MESSAGES_KEY, false);
+            mUseNativeCamera = preferences.getBoolean(SETTINGS_USE_NATIVE_CAMERA_PREFERENCE_KEY, false);
+            mIsSendVoiceFeatureEnabled = preferences.getBoolean(SETTINGS_ENABLE_SEND_VOICE_FEATURE_PREFERENCE_KEY, false);
+            mUseDataSaveMode = preferences.getBoolean(SETTINGS_DATA_SAVE_MODE_PREFERENCE_KEY, false);
+            mUseJitsiConfCall = preferences.getBoolean(SETTINGS_USE_JITSI_CONF_PREFERENCE_KEY, true);
+            mIsMarkdownEnabled = !preferences.getBoolean(SETTINGS_DISABLE_MARKDOWN_KEY, false);
+            mHideReadReceipts = preferences.getBoolean(SETTINGS_HIDE_READ_RECEIPTS_KEY, false);
+            mAlwaysShowTimeStamps = preferences.getBoolean(SETTINGS_ALWAYS_SHOW_TIMESTAMPS_KEY, false);
+            mDontSendTypingNotifs = preferences.getBoolean(SETTINGS_DONT_SEND_TYPING_NOTIF_KEY, false);
+            mPinMissedNotifications = preferences.getBoolean(SETTINGS_PIN_MISSED_NOTIFICATIONS_PREFERENCE_KEY, true);
+            mPinUnreadMessages = preferences.getBoolean(SETTINGS_PIN_UNREAD_MESSAGES_PREFERENCE_KEY, true);
+            mVibrateWhenMentioning = preferences.getBoolean(SETTINGS_VIBRATE_ON_MENTION_KEY, false);
+            mUseAnalytics = preferences.getBoolean(SETTINGS_USE_ANALYTICS_KEY, false);
+            mPreviewMediaWhenSending = preferences.getBoolean(SETTINGS_PREVIEW_MEDIA_BEFORE_SENDING_KEY, false);
+            mUseRageshake = preferences.getBoolean(SETTINGS_USE_RAGE_SHAKE_KEY, true);
+            mDisplayAllEvents = preferences.getBoolean(SETTINGS_DISPLAY_ALL_EVENTS_KEY, false);
+            mSelectedMediasSavingPeriod = preferences.getInt(SETTINGS_MEDIA_SAVING_PERIOD_SELECTED_KEY, MEDIA_SAVING_1_WEEK);
+        }
+    }
+
+    // the current snapshot, null when it must be rebuilt
+    private static volatile Snapshot mSnapshot = null;
+
+    // incremented at each preference update, to discard a snapshot built with outdated values
+    private static int mSnapshotGeneration = 0;
+
+    // the shared preferences only keep a weak reference to their listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener mSnapshotListener = null;
+
+    // the shared preferences of the snapshot
+    private static SharedPreferences mSnapshotPreferences = null;
+
+    /**
+     * Provides the preferences snapshot.
+     *
+     * @param context the context
+     * @return the snapshot
+     */
+    public static Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = mSnapshot;
+
+        if (null != snapshot) {
+            return snapshot;
+        }
+
+        return getSnapshot(PreferenceManager.getDefaultSharedPreferences(context));
+    }
+
+    /**
+     * Provides the snapshot of some shared preferences.
+     * The snapshot is rebuilt when other shared preferences are provided.
+     *
+     * @param preferences the shared preferences
+     * @return the snapshot
+     */
+    static Snapshot getSnapshot(SharedPreferences preferences) {
+        int generation;
+
+        synchronized (PreferencesManager.class) {
+            if (null == mSnapshotListener) {
+                mSnapshotListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        synchronized (PreferencesManager.class) {
+                            mSnapshotGeneration++;
+                            mSnapshot = null;
+                        }
+                    }
+                };
+            }
+
+            if (preferences != mSnapshotPreferences) {
+                if (null != mSnapshotPreferences) {
+                    mSnapshotPreferences.unregisterOnSharedPreferenceChangeListener(mSnapshotListener);
+                }
+
+                preferences.registerOnSharedPreferenceChangeListener(mSnapshotListener);
+                mSnapshotPreferences = preferences;
+                mSnapshotGeneration++;
+                mSnapshot = null;
+            } else if (null != mSnapshot) {
+                return mSnapshot;
+            }
+
+            generation = mSnapshotGeneration;
+        }
+
+        Snapshot snapshot = new Snapshot(preferences);
+
+        synchronized (PreferencesManager.class) {
+            if (generation == mSnapshotGeneration) {
+                mSnapshot = snapshot;
+            }
+        }
+
+        return snapshot;
+    }
+
     /**
      * Clear the preferences.
      *
@@ -268,7 +422,7 @@ public class PreferencesManager {
      * @return true if the time must be displayed in 12h format
      */
     public static boolean displayTimeIn12hFormat(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_12_24_TIMESTAMPS_KEY, false);
+        return getSnapshot(context).mDisplayTimeIn12hFormat;
     }
 
     /**
@@ -278,7 +432,7 @@ public class PreferencesManager {
      * @return true if the join / leave membership events must be hidden in the messages list
      */
     public static boolean hideJoinLeaveMessages(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_HIDE_JOIN_LEAVE_MESSAGES_KEY, false);
+        return getSnapshot(context).mHideJoinLeaveMessages;
     }
 
     /**
@@ -288,7 +442,7 @@ public class PreferencesManager {
      * @return true true if the avatar / display name events must be hidden in the messages list.
      */
     public static boolean hideAvatarDisplayNameChangeMessages(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_HIDE_AVATAR_DISPLAY_NAME_CHANGES_MESSAGES_KEY, false);
+        return getSnapshot(context).mHideAvatarDisplayNameChangeMessages;
     }
 
     /**
@@ -298,7 +452,7 @@ public class PreferencesManager {
      * @return true to use the native camera app to record video or take photo.
      */
     public static boolean useNativeCamera(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_USE_NATIVE_CAMERA_PREFERENCE_KEY, false);
+        return getSnapshot(context).mUseNativeCamera;
     }
 
     /**
@@ -308,7 +462,7 @@ public class PreferencesManager {
      * @return true if the send voice feature is enabled.
      */
     public static boolean isSendVoiceFeatureEnabled(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_ENABLE_SEND_VOICE_FEATURE_PREFERENCE_KEY, false);
+        return getSnapshot(context).mIsSendVoiceFeatureEnabled;
     }
 
     /**
@@ -417,7 +571,7 @@ public class PreferencesManager {
      * @return true if the data save mode is enabled
      */
     public static boolean useDataSaveMode(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_DATA_SAVE_MODE_PREFERENCE_KEY, false);
+        return getSnapshot(context).mUseDataSaveMode;
     }
 
     /**
@@ -427,7 +581,7 @@ public class PreferencesManager {
      * @return true if the conference call must be done with jitsi.
      */
     public static boolean useJitsiConfCall(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_USE_JITSI_CONF_PREFERENCE_KEY, true);
+        return getSnapshot(context).mUseJitsiConfCall;
     }
 
     /**
@@ -474,7 +628,7 @@ public class PreferencesManager {
      * @return the selected period
      */
     public static int getSelectedMediasSavingPeriod(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getInt(SETTINGS_MEDIA_SAVING_PERIOD_SELECTED_KEY, MEDIA_SAVING_1_WEEK);
+        return getSnapshot(context).mSelectedMediasSavingPeriod;
     }
 
     /**
@@ -490,6 +644,22 @@ public class PreferencesManager {
                 .apply();
     }
 
+    /**
+     * Provides the media cache budget.
+     * The least recently used medias are deleted when the cache is larger.
+     * The cache is not bounded when the medias are saved forever.
+     *
+     * @param context the context
+     * @return the max cache size in bytes, 0 if it is not bounded
+     */
+    public static long getMediasCacheMaxSize(Context context) {
+        if (MEDIA_SAVING_FOREVER == getSelectedMediasSavingPeriod(context)) {
+            return 0;
+        }
+
+        return MEDIA_CACHE_MAX_SIZE;
+    }
+
     /**
      * Provides the minimum last access time to keep a media file.
      *
@@ -573,7 +743,7 @@ public class PreferencesManager {
      * @return true if the markdown is enabled
      */
     public static boolean isMarkdownEnabled(Context context) {
-        return !PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_DISABLE_MARKDOWN_KEY, false);
+        return getSnapshot(context).mIsMarkdownEnabled;
     }
 
     /**
@@ -596,7 +766,7 @@ public class PreferencesManager {
      * @return true if the read receipts must be hidden
      */
     public static boolean hideReadReceipts(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_HIDE_READ_RECEIPTS_KEY, false);
+        return getSnapshot(context).mHideReadReceipts;
     }
 
     /**
@@ -606,7 +776,7 @@ public class PreferencesManager {
      * @return true if the message timestamps must be always shown.
      */
     public static boolean alwaysShowTimeStamps(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_ALWAYS_SHOW_TIMESTAMPS_KEY, false);
+        return getSnapshot(context).mAlwaysShowTimeStamps;
     }
 
     /**
@@ -616,7 +786,7 @@ public class PreferencesManager {
      * @return true to do NOT send the typing notifs
      */
     public static boolean dontSendTypingNotifs(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_DONT_SEND_TYPING_NOTIF_KEY, false);
+        return getSnapshot(context).mDontSendTypingNotifs;
     }
 
     /**
@@ -626,7 +796,7 @@ public class PreferencesManager {
      * @return true to move the missed notifications to the left side
      */
     public static boolean pinMissedNotifications(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_PIN_MISSED_NOTIFICATIONS_PREFERENCE_KEY, true);
+        return getSnapshot(context).mPinMissedNotifications;
     }
 
     /**
@@ -636,7 +806,7 @@ public class PreferencesManager {
      * @return true to move the unread room to the left side
      */
     public static boolean pinUnreadMessages(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_PIN_UNREAD_MESSAGES_PREFERENCE_KEY, true);
+        return getSnapshot(context).mPinUnreadMessages;
     }
 
     /**
@@ -646,7 +816,7 @@ public class PreferencesManager {
      * @return true
      */
     public static boolean vibrateWhenMentioning(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_VIBRATE_ON_MENTION_KEY, false);
+        return getSnapshot(context).mVibrateWhenMentioning;
     }
 
     /**
@@ -678,7 +848,7 @@ public class PreferencesManager {
      * @return true if the analytics tracking is authorized
      */
     public static boolean useAnalytics(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_USE_ANALYTICS_KEY, false);
+        return getSnapshot(context).mUseAnalytics;
     }
 
     /**
@@ -701,7 +871,7 @@ public class PreferencesManager {
      * @return true to preview media
      */
     public static boolean previewMediaWhenSending(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_PREVIEW_MEDIA_BEFORE_SENDING_KEY, false);
+        return getSnapshot(context).mPreviewMediaWhenSending;
     }
 
     /**
@@ -711,7 +881,7 @@ public class PreferencesManager {
      * @return true if the rage shake is used
      */
     public static boolean useRageshake(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_USE_RAGE_SHAKE_KEY, true);
+        return getSnapshot(context).mUseRageshake;
     }
 
     /**
@@ -734,6 +904,6 @@ public class PreferencesManager {
      * @return true to display all the events even the redacted ones.
      */
     public static boolean displayAllEvents(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SETTINGS_DISPLAY_ALL_EVENTS_KEY, false);
+        return getSnapshot(context).mDisplayAllEvents;
     }
 }
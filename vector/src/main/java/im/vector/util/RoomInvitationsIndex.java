@@ -0,0 +1,313 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The pending room invitations of a session, split into the direct chat invitations and the other ones.
+ * Both lists are sorted with RoomUtils.getRoomsDateComparator(dataHandler, true).
+ * The index is built once from the summaries, then only the rooms updated by the membership events
+ * are removed or inserted at their sorted position.
+ * The methods must be called on the UI thread.
+ */
+public class RoomInvitationsIndex extends MXEventListener {
+    private static final String LOG_TAG = RoomInvitationsIndex.class.getSimpleName();
+
+    // the index by user id
+    private static final Map<String, RoomInvitationsIndex> sIndexByUserId = new HashMap<>();
+
+    private final String mUserId;
+    private final MXDataHandler mDataHandler;
+
+    // the sorted invitations
+    private final List<Room> mDirectChatInvitations = new ArrayList<>();
+    private final List<Room> mRoomInvitations = new ArrayList<>();
+
+    // the room ids of both lists
+    private final Set<String> mInvitationRoomIds = new HashSet<>();
+
+    // the rooms to check at the next read
+    private final Set<String> mUpdatedRoomIds = new HashSet<>();
+    private boolean mIsFullRefreshRequired = true;
+
+    /**
+     * Provides the invitations index of a session.
+     *
+     * @param session the session
+     * @return the invitations index
+     */
+    public static RoomInvitationsIndex getInstance(MXSession session) {
+        RoomInvitationsIndex index = sIndexByUserId.get(session.getMyUserId());
+
+        if ((null == index) || (index.mDataHandler != session.getDataHandler())) {
+            if (null != index) {
+                index.release();
+            }
+
+            index = new RoomInvitationsIndex(session.getMyUserId(), session.getDataHandler());
+            sIndexByUserId.put(session.getMyUserId(), index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Release the invitations index of a session.
+     *
+     * @param session the session
+     */
+    public static void removeInstance(MXSession session) {
+        RoomInvitationsIndex index = sIndexByUserId.remove(session.getMyUserId());
+
+        if (null != index) {
+            index.release();
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userId      the session user id
+     * @param dataHandler the session data handler
+     */
+    RoomInvitationsIndex(String userId, MXDataHandler dataHandler) {
+        mUserId = userId;
+        mDataHandler = dataHandler;
+        mDataHandler.addListener(this);
+    }
+
+    /**
+     * Stop tracking the session updates.
+     */
+    void release() {
+        if (mDataHandler.isAlive()) {
+            mDataHandler.removeListener(this);
+        }
+    }
+
+    /**
+     * @return the sorted direct chat invitations
+     */
+    public List<Room> getDirectChatInvitations() {
+        refresh();
+        return new ArrayList<>(mDirectChatInvitations);
+    }
+
+    /**
+     * @return the sorted room invitations which are not direct chats
+     */
+    public List<Room> getRoomInvitations() {
+        refresh();
+        return new ArrayList<>(mRoomInvitations);
+    }
+
+    /**
+     * @return all the sorted invitations
+     */
+    public List<Room> getAllInvitations() {
+        refresh();
+
+        // merge the sorted lists
+        Comparator<Room> comparator = RoomUtils.getRoomsDateComparator(mDataHandler, true);
+        List<Room> invitations = new ArrayList<>(mDirectChatInvitations.size() + mRoomInvitations.size());
+        int directChatIndex = 0;
+        int roomIndex = 0;
+
+        while ((directChatIndex < mDirectChatInvitations.size()) && (roomIndex < mRoomInvitations.size())) {
+            if (comparator.compare(mDirectChatInvitations.get(directChatIndex), mRoomInvitations.get(roomIndex)) <= 0) {
+                invitations.add(mDirectChatInvitations.get(directChatIndex++));
+            } else {
+                invitations.add(mRoomInvitations.get(roomIndex++));
+            }
+        }
+
+        invitations.addAll(mDirectChatInvitations.subList(directChatIndex, mDirectChatInvitations.size()));
+        invitations.addAll(mRoomInvitations.subList(roomIndex, mRoomInvitations.size()));
+
+        return invitations;
+    }
+
+    /**
+     * Apply the pending rooms updates.
+     */
+    private void refresh() {
+        IMXStore store = mDataHandler.isAlive() ? mDataHandler.getStore() : null;
+
+        if (null == store) {
+            Log.e(LOG_TAG, "## refresh() : null store");
+            mDirectChatInvitations.clear();
+            mRoomInvitations.clear();
+            mInvitationRoomIds.clear();
+            mIsFullRefreshRequired = true;
+            return;
+        }
+
+        // the comparator caches the summaries, so use a new one for each refresh
+        Comparator<Room> comparator = RoomUtils.getRoomsDateComparator(mDataHandler, true);
+
+        if (mIsFullRefreshRequired) {
+            mIsFullRefreshRequired = false;
+            mUpdatedRoomIds.clear();
+            mDirectChatInvitations.clear();
+            mRoomInvitations.clear();
+            mInvitationRoomIds.clear();
+
+            for (RoomSummary roomSummary : store.getSummaries()) {
+                // reported by rageshake
+                // i don't see how it is possible to have a null roomSummary
+                if (null != roomSummary) {
+                    Room room = store.getRoom(roomSummary.getRoomId());
+
+                    if (isInvitation(room)) {
+                        (room.isDirectChatInvitation() ? mDirectChatInvitations : mRoomInvitations).add(room);
+                        mInvitationRoomIds.add(room.getRoomId());
+                    }
+                }
+            }
+
+            Collections.sort(mDirectChatInvitations, comparator);
+            Collections.sort(mRoomInvitations, comparator);
+        } else if (!mUpdatedRoomIds.isEmpty()) {
+            // remove all the updated rooms before inserting them, so the binary searches run on sorted lists
+            for (String roomId : mUpdatedRoomIds) {
+                if (mInvitationRoomIds.remove(roomId)) {
+                    removeRoom(mDirectChatInvitations, roomId);
+                    removeRoom(mRoomInvitations, roomId);
+                }
+            }
+
+            for (String roomId : mUpdatedRoomIds) {
+                Room room = (null != store.getSummary(roomId)) ? store.getRoom(roomId) : null;
+
+                if (isInvitation(room)) {
+                    insertRoom(room.isDirectChatInvitation() ? mDirectChatInvitations : mRoomInvitations, room, comparator);
+                    mInvitationRoomIds.add(roomId);
+                }
+            }
+
+            mUpdatedRoomIds.clear();
+        }
+    }
+
+    /**
+     * Tell if a room is a displayed invitation.
+     *
+     * @param room the room
+     * @return true if the room is a pending invitation, the user conference rooms are not displayed.
+     */
+    private static boolean isInvitation(Room room) {
+        return (null != room) && !room.isConferenceUserRoom() && room.isInvited();
+    }
+
+    /**
+     * Remove a room from an invitations list.
+     *
+     * @param invitations the invitations list
+     * @param roomId      the room id
+     */
+    private static void removeRoom(List<Room> invitations, String roomId) {
+        for (int i = 0; i < invitations.size(); i++) {
+            if (roomId.equals(invitations.get(i).getRoomId())) {
+                invitations.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Insert a room at its sorted position.
+     *
+     * @param invitations the sorted invitations list
+     * @param room        the room
+     * @param comparator  the invitations comparator
+     */
+    private static void insertRoom(List<Room> invitations, Room room, Comparator<Room> comparator) {
+        int position = Collections.binarySearch(invitations, room, comparator);
+        invitations.add((position < 0) ? -(position + 1) : position, room);
+    }
+
+    /**
+     * Check a room at the next read.
+     *
+     * @param roomId the room id
+     */
+    private void onRoomUpdate(String roomId) {
+        if (null != roomId) {
+            mUpdatedRoomIds.add(roomId);
+        }
+    }
+
+    @Override
+    public void onLiveEvent(Event event, RoomState roomState) {
+        // the own membership updates, and the events which may move an invitation
+        if (Event.EVENT_TYPE_STATE_ROOM_MEMBER.equals(event.getType())) {
+            if (mUserId.equals(event.stateKey)) {
+                onRoomUpdate(event.roomId);
+            }
+        } else if ((null != event.roomId) && mInvitationRoomIds.contains(event.roomId)) {
+            onRoomUpdate(event.roomId);
+        }
+    }
+
+    @Override
+    public void onNewRoom(String roomId) {
+        onRoomUpdate(roomId);
+    }
+
+    @Override
+    public void onJoinRoom(String roomId) {
+        onRoomUpdate(roomId);
+    }
+
+    @Override
+    public void onLeaveRoom(String roomId) {
+        onRoomUpdate(roomId);
+    }
+
+    @Override
+    public void onRoomKick(String roomId) {
+        onRoomUpdate(roomId);
+    }
+
+    @Override
+    public void onStoreReady() {
+        mIsFullRefreshRequired = true;
+    }
+
+    @Override
+    public void onInitialSyncComplete(String toToken) {
+        mIsFullRefreshRequired = true;
+    }
+}
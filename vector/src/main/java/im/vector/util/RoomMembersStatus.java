@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.User;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keep the joined and active members counts of a room.
+ * The members list is only walked when the room state changes,
+ * then the counts are updated from the presence and membership events.
+ */
+public class RoomMembersStatus {
+    // the room state used to build the counters
+    private RoomState mRoomState;
+
+    // the joined members
+    private final Set<String> mJoinedMemberIds = new HashSet<>();
+
+    // the joined members which are currently active
+    private final Set<String> mActiveMemberIds = new HashSet<>();
+
+    /**
+     * Rebuild the counters if the room state is not the one used to build them.
+     *
+     * @param roomState the room state
+     * @param store     the store used to retrieve the users presence
+     */
+    public void refreshIfNeeded(RoomState roomState, IMXStore store) {
+        if (roomState != mRoomState) {
+            refresh(roomState, store);
+        }
+    }
+
+    /**
+     * Rebuild the counters from the room state members.
+     *
+     * @param roomState the room state
+     * @param store     the store used to retrieve the users presence
+     */
+    public void refresh(RoomState roomState, IMXStore store) {
+        mRoomState = roomState;
+        mJoinedMemberIds.clear();
+        mActiveMemberIds.clear();
+
+        if (null != roomState) {
+            Collection<RoomMember> members = roomState.getDisplayableMembers();
+
+            for (RoomMember member : members) {
+                onMembershipUpdate(member.getUserId(), member.membership, (null != store) ? store.getUser(member.getUserId()) : null);
+            }
+        }
+    }
+
+    /**
+     * Forget the counters, they will be rebuilt by the next refreshIfNeeded() call.
+     */
+    public void invalidate() {
+        mRoomState = null;
+        mJoinedMemberIds.clear();
+        mActiveMemberIds.clear();
+    }
+
+    /**
+     * Update the counters after a membership update.
+     *
+     * @param userId     the member user id
+     * @param membership the new membership
+     * @param user       the user (used to retrieve its presence), can be null
+     */
+    public void onMembershipUpdate(String userId, String membership, User user) {
+        if (null == userId) {
+            return;
+        }
+
+        if (RoomMember.MEMBERSHIP_JOIN.equals(membership)) {
+            mJoinedMemberIds.add(userId);
+            updateActiveState(userId, user);
+        } else {
+            mJoinedMemberIds.remove(userId);
+            mActiveMemberIds.remove(userId);
+        }
+    }
+
+    /**
+     * Update the counters after a presence update.
+     * The presence updates of the users which are not joined are ignored.
+     *
+     * @param user the updated user
+     */
+    public void onPresenceUpdate(User user) {
+        if ((null != user) && mJoinedMemberIds.contains(user.user_id)) {
+            updateActiveState(user.user_id, user);
+        }
+    }
+
+    private void updateActiveState(String userId, User user) {
+        if ((null != user) && user.isActive()) {
+            mActiveMemberIds.add(userId);
+        } else {
+            mActiveMemberIds.remove(userId);
+        }
+    }
+
+    /**
+     * @return the joined members count
+     */
+    public int getJoinedMembersCount() {
+        return mJoinedMemberIds.size();
+    }
+
+    /**
+     * @return the active members count
+     */
+    public int getActiveMembersCount() {
+        return mActiveMemberIds.size();
+    }
+}
@@ -36,6 +36,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.PopupMenu;
 
+import org.matrix.androidsdk.MXDataHandler;
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomAccountData;
@@ -98,6 +99,17 @@ public class RoomUtils {
      * @return comparator
      */
     public static Comparator<Room> getRoomsDateComparator(final MXSession session, final boolean reverseOrder) {
+        return getRoomsDateComparator((null == session) ? null : session.getDataHandler(), reverseOrder);
+    }
+
+    /**
+     * Return comparator to sort rooms by date
+     *
+     * @param dataHandler  the session data handler
+     * @param reverseOrder true to sort the latest rooms first
+     * @return comparator
+     */
+    public static Comparator<Room> getRoomsDateComparator(final MXDataHandler dataHandler, final boolean reverseOrder) {
         return new Comparator<Room>() {
             private Comparator<RoomSummary> mRoomSummaryComparator;
             private final Map<String, RoomSummary> mSummaryByRoomIdMap = new HashMap<>();
@@ -126,7 +138,7 @@ public class RoomUtils {
                 RoomSummary summary = mSummaryByRoomIdMap.get(roomId);
 
                 if (null == summary) {
-                    summary = session.getDataHandler().getStore().getSummary(roomId);
+                    summary = dataHandler.getStore().getSummary(roomId);
 
                     if (null != summary) {
                         mSummaryByRoomIdMap.put(roomId, summary);
@@ -189,7 +201,7 @@ public class RoomUtils {
                 RoomSummary summary = mSummaryByRoomIdMap.get(roomId);
 
                 if (null == summary) {
-                    summary = session.getDataHandler().getStore().getSummary(roomId);
+                    summary = dataHandler.getStore().getSummary(roomId);
 
                     if (null != summary) {
                         mSummaryByRoomIdMap.put(roomId, summary);
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single scheduled executor shared by the UI-adjacent timers (typing notifications, watchdogs, fading effects...).
+ * It replaces the java.util.Timer instances which used to create a dedicated thread per timer.
+ * The scheduled tasks must be short: they are run one after the other on the same thread.
+ */
+public class SharedScheduledExecutor {
+    private static final String LOG_TAG = SharedScheduledExecutor.class.getSimpleName();
+
+    private static final String THREAD_NAME = "Vector-Timers";
+
+    private static ScheduledThreadPoolExecutor sExecutor = null;
+
+    /**
+     * @return the shared executor, created at first call.
+     */
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (null == sExecutor) {
+            sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return sExecutor;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task    the task to run
+     * @param delayMs the delay before running it, in milliseconds
+     * @return the scheduled future to use to cancel the task, null if the task cannot be scheduled.
+     */
+    public static ScheduledFuture<?> schedule(final Runnable task, long delayMs) {
+        try {
+            return getExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        // an exception must not kill the shared thread
+                        Log.e(LOG_TAG, "## schedule() : the task failed " + e.getMessage(), e);
+                    }
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## schedule() failed " + e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Cancel a scheduled task.
+     *
+     * @param future the future returned by schedule(), can be null
+     */
+    public static void cancel(ScheduledFuture<?> future) {
+        if (null != future) {
+            future.cancel(false);
+            // remove the cancelled tasks from the queue
+            getExecutor().purge();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Application startup tasks, run according to their declared dependencies.
+ * The MAIN tasks are run on the main thread when the graph is started,
+ * the BACKGROUND tasks are run in the IO pool as soon as their dependencies are done,
+ * and the DEFERRED tasks are run on the main thread when it becomes idle, i.e. after the first frame.
+ * The duration of each task is recorded and provided when all the tasks are done.
+ * A MAIN task exception is thrown by start(): the application must not run half initialised.
+ * The BACKGROUND and DEFERRED tasks are optional, their exceptions are only logged.
+ */
+public class StartupTaskGraph {
+    private static final String LOG_TAG = StartupTaskGraph.class.getSimpleName();
+
+    /**
+     * The task running modes
+     */
+    public enum Mode {
+        MAIN,
+        BACKGROUND,
+        DEFERRED
+    }
+
+    /**
+     * Graph completion listener
+     */
+    public interface Listener {
+        /**
+         * All the tasks are done.
+         * Called on the main thread.
+         *
+         * @param durations the task durations in ms, by task name, in completion order
+         */
+        void onCompleted(Map<String, Long> durations);
+    }
+
+    /**
+     * A startup task
+     */
+    private static class Node {
+        final String mName;
+        final Mode mMode;
+        final Runnable mRunnable;
+        final List<String> mDependencies;
+        final List<Node> mDependents = new ArrayList<>();
+        // the dependencies which are not yet done
+        int mPendingCount;
+
+        Node(String name, Mode mode, Runnable runnable, List<String> dependencies) {
+            mName = name;
+            mMode = mode;
+            mRunnable = runnable;
+            mDependencies = dependencies;
+        }
+    }
+
+    private final Map<String, Node> mNodes = new LinkedHashMap<>();
+
+    // the task durations, in completion order
+    private final Map<String, Long> mDurations = new LinkedHashMap<>();
+
+    private Listener mListener;
+
+    /**
+     * Add a task.
+     * A MAIN task can only depend on MAIN tasks, which have to be added before it.
+     *
+     * @param name         the unique task name
+     * @param mode         the running mode
+     * @param runnable     the task
+     * @param dependencies the names of the tasks to run before it
+     * @return this graph
+     */
+    public StartupTaskGraph add(String name, Mode mode, Runnable runnable, String... dependencies) {
+        if (mNodes.containsKey(name)) {
+            throw new IllegalArgumentException("duplicated task " + name);
+        }
+
+        for (String dependency : dependencies) {
+            Node dependencyNode = mNodes.get(dependency);
+
+            // the dependencies must be added first, so the graph cannot contain a cycle
+            if (null == dependencyNode) {
+                throw new IllegalArgumentException("unknown dependency " + dependency + " of " + name);
+            }
+
+            if ((Mode.MAIN == mode) && (Mode.MAIN != dependencyNode.mMode)) {
+                throw new IllegalArgumentException("the main task " + name + " cannot depend on " + dependency);
+            }
+        }
+
+        mNodes.put(name, new Node(name, mode, runnable, Arrays.asList(dependencies)));
+        return this;
+    }
+
+    /**
+     * Start the tasks.
+     * It must be called on the main thread, it returns when the MAIN tasks are done.
+     *
+     * @param listener the completion listener
+     * @throws RuntimeException the exception thrown by a MAIN task
+     */
+    public void start(Listener listener) {
+        mListener = listener;
+
+        List<Node> readyNodes = new ArrayList<>();
+
+        synchronized (this) {
+            for (Node node : mNodes.values()) {
+                node.mPendingCount = node.mDependencies.size();
+
+                for (String dependency : node.mDependencies) {
+                    mNodes.get(dependency).mDependents.add(node);
+                }
+
+                if (0 == node.mPendingCount) {
+                    readyNodes.add(node);
+                }
+            }
+        }
+
+        // the MAIN tasks are added after their dependencies, so the insertion order is a valid running order
+        for (Node node : mNodes.values()) {
+            if (Mode.MAIN == node.mMode) {
+                run(node);
+            } else if (readyNodes.remove(node)) {
+                schedule(node);
+            }
+        }
+    }
+
+    /**
+     * Schedule a BACKGROUND or a DEFERRED task.
+     *
+     * @param node the task
+     */
+    private void schedule(final Node node) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                StartupTaskGraph.this.run(node);
+            }
+        };
+
+        if (Mode.BACKGROUND == node.mMode) {
+            runInBackground("startup." + node.mName, task);
+        } else {
+            runWhenIdle(task);
+        }
+    }
+
+    /**
+     * Run a task in the IO pool.
+     *
+     * @param name the task name
+     * @param task the task
+     */
+    void runInBackground(String name, Runnable task) {
+        AppExecutors.execute(AppExecutors.Pool.IO, name, task);
+    }
+
+    /**
+     * Run a task on the main thread when it becomes idle.
+     *
+     * @param task the task
+     */
+    void runWhenIdle(final Runnable task) {
+        AppExecutors.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        task.run();
+                        // run once
+                        return false;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Run a task on the main thread.
+     *
+     * @param task the task
+     */
+    void runOnMainThread(Runnable task) {
+        AppExecutors.runOnUiThread(task);
+    }
+
+    /**
+     * @return the time since the boot in milliseconds
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Run a task, then schedule its dependents which are ready.
+     * The ready MAIN dependents are run by start().
+     *
+     * @param node the task
+     */
+    private void run(Node node) {
+        long startTime = elapsedRealtime();
+
+        if (Mode.MAIN == node.mMode) {
+            node.mRunnable.run();
+        } else {
+            try {
+                node.mRunnable.run();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## run() : " + node.mName + " failed " + e.getMessage(), e);
+            }
+        }
+
+        long duration = elapsedRealtime() - startTime;
+        Log.d(LOG_TAG, "## run() : " + node.mName + " done in " + duration + " ms");
+
+        List<Node> readyNodes = new ArrayList<>();
+        final boolean isCompleted;
+
+        synchronized (this) {
+            mDurations.put(node.mName, duration);
+
+            for (Node dependent : node.mDependents) {
+                dependent.mPendingCount--;
+
+                if ((0 == dependent.mPendingCount) && (Mode.MAIN != dependent.mMode)) {
+                    readyNodes.add(dependent);
+                }
+            }
+
+            isCompleted = (mDurations.size() == mNodes.size());
+        }
+
+        for (Node readyNode : readyNodes) {
+            schedule(readyNode);
+        }
+
+        if (isCompleted && (null != mListener)) {
+            final Map<String, Long> durations;
+
+            synchronized (this) {
+                durations = new LinkedHashMap<>(mDurations);
+            }
+
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onCompleted(durations);
+                }
+            });
+        }
+    }
+}
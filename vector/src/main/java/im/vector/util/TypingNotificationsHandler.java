@@ -0,0 +1,291 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Typing notifications state machine.
+ * - a "start typing" notification is sent at most once per typing interval, while the user is typing.
+ * - a "stop typing" notification is always sent after a "start typing" one, when the user stops typing
+ * or when no typing has been observed during a full interval.
+ * The timers are run on the SharedScheduledExecutor by default.
+ * The notifications are sent without the state lock, in the order they were decided.
+ */
+public class TypingNotificationsHandler {
+    private static final String LOG_TAG = TypingNotificationsHandler.class.getSimpleName();
+
+    /**
+     * Send the typing notifications
+     */
+    public interface TypingNotificationSender {
+        /**
+         * Send a typing notification.
+         *
+         * @param isTyping  true if the user is typing
+         * @param timeoutMs the notification timeout in milliseconds, -1 if not typing
+         */
+        void sendTypingNotification(boolean isTyping, int timeoutMs);
+    }
+
+    /**
+     * Provides the current time
+     */
+    public interface Clock {
+        /**
+         * @return the current time in milliseconds
+         */
+        long currentTimeMillis();
+    }
+
+    /**
+     * Run the interval timers
+     */
+    public interface Scheduler {
+        /**
+         * Schedule a task.
+         *
+         * @param task    the task to run
+         * @param delayMs the delay before running it, in milliseconds
+         * @return the scheduled future to use to cancel the task, null if the task cannot be scheduled.
+         */
+        ScheduledFuture<?> schedule(Runnable task, long delayMs);
+
+        /**
+         * Cancel a scheduled task.
+         *
+         * @param future the future returned by schedule(), can be null
+         */
+        void cancel(ScheduledFuture<?> future);
+    }
+
+    // the system clock
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    // the shared timers thread
+    private static final Scheduler SHARED_SCHEDULER = new Scheduler() {
+        @Override
+        public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+            return SharedScheduledExecutor.schedule(task, delayMs);
+        }
+
+        @Override
+        public void cancel(ScheduledFuture<?> future) {
+            SharedScheduledExecutor.cancel(future);
+        }
+    };
+
+    /**
+     * A notification to send
+     */
+    private static class PendingNotification {
+        final boolean mIsTyping;
+        final int mTimeoutMs;
+        // the notifications are sent in this order
+        final long mSequenceNumber;
+
+        PendingNotification(boolean isTyping, int timeoutMs, long sequenceNumber) {
+            mIsTyping = isTyping;
+            mTimeoutMs = timeoutMs;
+            mSequenceNumber = sequenceNumber;
+        }
+    }
+
+    // the typing interval
+    private final int mTypingTimeoutMs;
+
+    private final TypingNotificationSender mSender;
+    private final Clock mClock;
+    private final Scheduler mScheduler;
+
+    // tell if a "start typing" notification has been sent without a "stop typing" one
+    private boolean mIsTypingNotified = false;
+
+    // the last time the user typed something
+    private long mLastTypingDate = 0;
+
+    // the end of the interval check
+    private ScheduledFuture<?> mIntervalFuture;
+
+    // the sequence number of the latest decided notification
+    private long mSequenceNumber = 0;
+
+    // the sequence number of the latest sent notification, guarded by mSendLock
+    private long mSentSequenceNumber = 0;
+    private final Object mSendLock = new Object();
+
+    /**
+     * Constructor
+     *
+     * @param typingTimeoutMs the typing interval in milliseconds
+     * @param sender          the notifications sender
+     */
+    public TypingNotificationsHandler(int typingTimeoutMs, TypingNotificationSender sender) {
+        this(typingTimeoutMs, sender, SYSTEM_CLOCK, SHARED_SCHEDULER);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param typingTimeoutMs the typing interval in milliseconds
+     * @param sender          the notifications sender
+     * @param clock           the clock
+     * @param scheduler       the interval timers scheduler
+     */
+    public TypingNotificationsHandler(int typingTimeoutMs, TypingNotificationSender sender, Clock clock, Scheduler scheduler) {
+        mTypingTimeoutMs = typingTimeoutMs;
+        mSender = sender;
+        mClock = clock;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * The user typing status has been updated.
+     *
+     * @param isTyping true if the user is typing
+     */
+    public void onTypingUpdate(boolean isTyping) {
+        PendingNotification notification = null;
+
+        synchronized (this) {
+            if (isTyping) {
+                mLastTypingDate = mClock.currentTimeMillis();
+
+                // the "start typing" has already been sent during this interval
+                if (!mIsTypingNotified) {
+                    notification = startTyping();
+                }
+            } else {
+                notification = stopTyping();
+            }
+        }
+
+        send(notification);
+    }
+
+    /**
+     * Stop the typing notifications.
+     * A "stop typing" notification is sent if a "start typing" one has been sent.
+     */
+    public void stop() {
+        PendingNotification notification;
+
+        synchronized (this) {
+            notification = stopTyping();
+        }
+
+        send(notification);
+    }
+
+    /**
+     * Reset the typing state.
+     * Must be called with the lock.
+     *
+     * @return the "stop typing" notification to send, null if there is none
+     */
+    private PendingNotification stopTyping() {
+        mScheduler.cancel(mIntervalFuture);
+        mIntervalFuture = null;
+        mLastTypingDate = 0;
+
+        if (mIsTypingNotified) {
+            mIsTypingNotified = false;
+            Log.d(LOG_TAG, "## stopTyping() : send end of typing");
+            return new PendingNotification(false, -1, ++mSequenceNumber);
+        }
+
+        return null;
+    }
+
+    /**
+     * Check the typing status at the end of the interval.
+     * Must be called with the lock.
+     *
+     * @return the "start typing" notification to send, null if the end of the typing cannot be checked
+     */
+    private PendingNotification startTyping() {
+        mIntervalFuture = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onIntervalEnd();
+            }
+        }, mTypingTimeoutMs);
+
+        // cannot check the end of the typing
+        if (null == mIntervalFuture) {
+            return stopTyping();
+        }
+
+        mIsTypingNotified = true;
+        // consider the double of the local typing timeout
+        return new PendingNotification(true, mTypingTimeoutMs * 2, ++mSequenceNumber);
+    }
+
+    /**
+     * The typing interval is over.
+     */
+    private void onIntervalEnd() {
+        PendingNotification notification;
+
+        synchronized (this) {
+            mIntervalFuture = null;
+
+            if (!mIsTypingNotified) {
+                return;
+            }
+
+            long lastTypingAge = mClock.currentTimeMillis() - mLastTypingDate;
+
+            if (lastTypingAge < mTypingTimeoutMs) {
+                // the user is still typing
+                notification = startTyping();
+            } else {
+                notification = stopTyping();
+            }
+        }
+
+        send(notification);
+    }
+
+    /**
+     * Send a notification, unless a more recent one has already been sent.
+     *
+     * @param notification the notification, null if there is none
+     */
+    private void send(PendingNotification notification) {
+        if (null == notification) {
+            return;
+        }
+
+        synchronized (mSendLock) {
+            if (notification.mSequenceNumber <= mSentSequenceNumber) {
+                Log.d(LOG_TAG, "## send() : ignore an outdated notification");
+                return;
+            }
+
+            mSentSequenceNumber = notification.mSequenceNumber;
+            mSender.sendTypingNotification(notification.mIsTyping, notification.mTimeoutMs);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomAccountData;
+import org.matrix.androidsdk.data.RoomTag;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.util.BingRulesManager;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unread counters of the home tabs (favourites, people and rooms).
+ * Each room contribution is kept, so the counters are updated by replacing the contributions
+ * of the updated rooms instead of scanning all the rooms.
+ * The methods must be called on the UI thread.
+ */
+public class UnreadBadgeCounters {
+    // the tabs
+    public static final int TAB_FAVOURITES = 0;
+    public static final int TAB_PEOPLE = 1;
+    public static final int TAB_ROOMS = 2;
+
+    private static final int TABS_COUNT = 3;
+
+    /**
+     * The contribution of a room to the tabs counters
+     */
+    private static class RoomContribution {
+        // the tabs containing the room, as (1 << tab) flags
+        int mTabsMask;
+        int mHighlightCount;
+        // true when the room is counted as unread
+        boolean mIsUnread;
+    }
+
+    private final MXDataHandler mDataHandler;
+
+    // the contribution by room id
+    private final Map<String, RoomContribution> mContributionByRoomId = new HashMap<>();
+
+    // the tabs aggregates
+    private final int[] mHighlightCountByTab = new int[TABS_COUNT];
+    private final int[] mUnreadRoomCountByTab = new int[TABS_COUNT];
+
+    // the known direct chat room ids
+    private Set<String> mDirectChatRoomIds = new HashSet<>();
+
+    // the rooms to update at the next refresh
+    private final Set<String> mUpdatedRoomIds = new HashSet<>();
+    private boolean mIsFullRefreshRequired = true;
+
+    /**
+     * Constructor
+     *
+     * @param session the session
+     */
+    public UnreadBadgeCounters(MXSession session) {
+        this(session.getDataHandler());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param dataHandler the session data handler
+     */
+    UnreadBadgeCounters(MXDataHandler dataHandler) {
+        mDataHandler = dataHandler;
+    }
+
+    /**
+     * Update the room contribution at the next refresh.
+     *
+     * @param roomId the room id
+     */
+    public void onRoomUpdate(String roomId) {
+        if (null != roomId) {
+            mUpdatedRoomIds.add(roomId);
+        }
+    }
+
+    /**
+     * Update the rooms whose direct chat status has changed at the next refresh.
+     */
+    public void onDirectChatRoomsUpdate() {
+        if (null == mDataHandler) {
+            mIsFullRefreshRequired = true;
+            return;
+        }
+
+        Set<String> directChatRoomIds = new HashSet<>(mDataHandler.getDirectChatRoomIdsList());
+
+        for (String roomId : directChatRoomIds) {
+            if (!mDirectChatRoomIds.contains(roomId)) {
+                mUpdatedRoomIds.add(roomId);
+            }
+        }
+
+        for (String roomId : mDirectChatRoomIds) {
+            if (!directChatRoomIds.contains(roomId)) {
+                mUpdatedRoomIds.add(roomId);
+            }
+        }
+
+        mDirectChatRoomIds = directChatRoomIds;
+    }
+
+    /**
+     * Compute again all the contributions at the next refresh.
+     */
+    public void invalidate() {
+        mIsFullRefreshRequired = true;
+    }
+
+    /**
+     * Update the counters with the pending rooms updates.
+     *
+     * @return false if the counters cannot be computed
+     */
+    public boolean refresh() {
+        // fix a crash reported by GA
+        if (null == mDataHandler) {
+            return false;
+        }
+
+        IMXStore store = mDataHandler.getStore();
+        // fix a crash reported by GA
+        if (null == store) {
+            return false;
+        }
+
+        if (mIsFullRefreshRequired) {
+            mIsFullRefreshRequired = false;
+            mUpdatedRoomIds.clear();
+
+            mContributionByRoomId.clear();
+            for (int tab = 0; tab < TABS_COUNT; tab++) {
+                mHighlightCountByTab[tab] = 0;
+                mUnreadRoomCountByTab[tab] = 0;
+            }
+
+            mDirectChatRoomIds = new HashSet<>(mDataHandler.getDirectChatRoomIdsList());
+
+            // only the known rooms can contribute
+            for (Room room : store.getRooms()) {
+                updateRoomContribution(store, mDataHandler.getBingRulesManager(), room.getRoomId());
+            }
+        } else if (!mUpdatedRoomIds.isEmpty()) {
+            for (String roomId : mUpdatedRoomIds) {
+                updateRoomContribution(store, mDataHandler.getBingRulesManager(), roomId);
+            }
+
+            mUpdatedRoomIds.clear();
+        }
+
+        return true;
+    }
+
+    /**
+     * Provides the number of unread rooms of a tab.
+     *
+     * @param tab the tab
+     * @return the unread rooms count
+     */
+    public int getUnreadRoomCount(int tab) {
+        return mUnreadRoomCountByTab[tab];
+    }
+
+    /**
+     * Provides the highlight count of a tab.
+     *
+     * @param tab the tab
+     * @return the highlight count
+     */
+    public int getHighlightCount(int tab) {
+        return mHighlightCountByTab[tab];
+    }
+
+    /**
+     * Replace the contribution of a room.
+     *
+     * @param store            the store
+     * @param bingRulesManager the bing rules manager
+     * @param roomId           the room id
+     */
+    private void updateRoomContribution(IMXStore store, BingRulesManager bingRulesManager, String roomId) {
+        RoomContribution contribution = mContributionByRoomId.remove(roomId);
+
+        if (null != contribution) {
+            applyContribution(contribution, -1);
+        }
+
+        contribution = computeRoomContribution(store, bingRulesManager, roomId);
+
+        if (null != contribution) {
+            mContributionByRoomId.put(roomId, contribution);
+            applyContribution(contribution, 1);
+        }
+    }
+
+    /**
+     * Add or remove a contribution to the tabs aggregates.
+     *
+     * @param contribution the room contribution
+     * @param sign         1 to add it, -1 to remove it
+     */
+    private void applyContribution(RoomContribution contribution, int sign) {
+        for (int tab = 0; tab < TABS_COUNT; tab++) {
+            if (0 != (contribution.mTabsMask & (1 << tab))) {
+                mHighlightCountByTab[tab] += sign * contribution.mHighlightCount;
+
+                if (contribution.mIsUnread) {
+                    mUnreadRoomCountByTab[tab] += sign;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the contribution of a room.
+     *
+     * @param store            the store
+     * @param bingRulesManager the bing rules manager
+     * @param roomId           the room id
+     * @return the contribution, null if the room is in no tab
+     */
+    private RoomContribution computeRoomContribution(IMXStore store, BingRulesManager bingRulesManager, String roomId) {
+        Room room = store.getRoom(roomId);
+
+        if (null == room) {
+            return null;
+        }
+
+        RoomAccountData accountData = room.getAccountData();
+        boolean isFavourite = (null != accountData) && (null != accountData.roomTag(RoomTag.ROOM_TAG_FAVOURITE));
+        boolean isLowPriority = (null != accountData) && (null != accountData.roomTag(RoomTag.ROOM_TAG_LOW_PRIORITY));
+
+        boolean hasSummary = (null != store.getSummary(roomId));
+        boolean isConferenceUserRoom = room.isConferenceUserRoom();
+        boolean isDirectChat = mDirectChatRoomIds.contains(roomId);
+        boolean isDirectChatInvitation = hasSummary && !isConferenceUserRoom && room.isDirectChatInvitation();
+
+        int tabsMask = 0;
+
+        if (isFavourite) {
+            tabsMask |= (1 << TAB_FAVOURITES);
+        }
+
+        if ((isDirectChat || isDirectChatInvitation) && !isLowPriority) {
+            tabsMask |= (1 << TAB_PEOPLE);
+        }
+
+        if (hasSummary && !isConferenceUserRoom && !isDirectChat && !(isDirectChatInvitation && room.isInvited()) && !isLowPriority) {
+            tabsMask |= (1 << TAB_ROOMS);
+        }
+
+        if (0 == tabsMask) {
+            return null;
+        }
+
+        RoomContribution contribution = new RoomContribution();
+        contribution.mTabsMask = tabsMask;
+        contribution.mHighlightCount = room.getHighlightCount();
+
+        if (room.isInvited()) {
+            contribution.mIsUnread = true;
+        } else {
+            int notificationCount = room.getNotificationCount();
+
+            if ((null != bingRulesManager) && bingRulesManager.isRoomMentionOnly(roomId)) {
+                notificationCount = room.getHighlightCount();
+            }
+
+            contribution.mIsUnread = (notificationCount > 0);
+        }
+
+        return contribution;
+    }
+}
@@ -20,8 +20,8 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.support.v4.content.res.ResourcesCompat;
+import android.support.v4.util.LruCache;
 
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.util.ContentManager;
@@ -29,6 +29,9 @@ import org.matrix.androidsdk.util.Log;
 
 import android.text.Html;
 
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -41,14 +44,49 @@ import im.vector.VectorApp;
 public class VectorImageGetter implements Html.ImageGetter {
     private final String LOG_TAG = VectorImageGetter.class.getSimpleName();
 
+    // the inline images are never decoded with a larger side,
+    // so several decoded images fit in the memory cache
+    private static final int MAX_IMAGE_SIDE_PIXELS = 512;
+
+    // the downloaded thumbnails are kept on disk
+    private static final String DISK_CACHE_DIRECTORY = "inline_images";
+    private static final long DISK_CACHE_SIZE_BYTES = 20 * 1024 * 1024;
+
     // application image placeholder
     private static Drawable mPlaceHolder = null;
 
-    // source to image map
-    private Map<String, Drawable> mBitmapCache = new HashMap<>();
+    // source to decoded image map, shared by all the getters
+    private static final LruCache<String, Bitmap> mBitmapCache = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 16)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight(); // size in bytes
+        }
+    };
+
+    static {
+        MemoryPressureCoordinator.register("inline images", MemoryPressureCoordinator.PRIORITY_NORMAL, MemoryPressureCoordinator.RELEASE_POLICY_TRIM,
+                new MemoryPressureCoordinator.MemoryCache() {
+                    @Override
+                    public long getSize() {
+                        return mBitmapCache.size();
+                    }
 
-    // pending source downloads
-    private Set<String> mPendingDownloads = new HashSet<>();
+                    @Override
+                    public long getMaxSize() {
+                        return mBitmapCache.maxSize();
+                    }
+
+                    @Override
+                    public void trimToSize(long maxSize) {
+                        mBitmapCache.trimToSize((int) maxSize);
+                    }
+                });
+    }
+
+    private static DiskLruFileCache mDiskCache = null;
+
+    // pending source downloads, with the getters waiting for them
+    private static final Map<String, Set<VectorImageGetter>> mPendingDownloads = new HashMap<>();
 
     /**
      * Image download listener
@@ -91,24 +129,32 @@ public class VectorImageGetter implements Html.ImageGetter {
 
         // allow only url which starts with mxc://
         if ((null != source) && source.toLowerCase().startsWith(ContentManager.MATRIX_CONTENT_URI_SCHEME)) {
-            if (mBitmapCache.containsKey(source)) {
+            Bitmap bitmap = mBitmapCache.get(source);
+
+            if (null != bitmap) {
                 Log.d(LOG_TAG, "## getDrawable() : " + source + " already cached");
-                return mBitmapCache.get(source);
+                Drawable drawable = new BitmapDrawable(VectorApp.getInstance().getResources(), bitmap);
+                drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+                return drawable;
             }
 
-            if (!mPendingDownloads.contains(source)) {
+            Set<VectorImageGetter> getters = mPendingDownloads.get(source);
+
+            if (null == getters) {
                 Log.d(LOG_TAG, "## getDrawable() : starts a task to download " + source);
-                try {
-                    new ImageDownloaderTask().execute(source);
-                    mPendingDownloads.add(source);
-                } catch (Throwable t) {
-                    Log.e(LOG_TAG, "## getDrawable() failed " + t.getMessage(), t);
+                getters = new HashSet<>();
+                getters.add(this);
+                mPendingDownloads.put(source, getters);
+
+                if (null == AppExecutors.execute(AppExecutors.Pool.IO, "VectorImageGetter", new ImageDownloaderTask(source))) {
+                    // the task has been rejected, the next call will retry
+                    mPendingDownloads.remove(source);
                 }
             } else {
                 Log.d(LOG_TAG, "## getDrawable() : " + source + " is downloading");
+                // the image getter will be notified when the download is done
+                getters.add(this);
             }
-
-
         }
 
         if (null == mPlaceHolder) {
@@ -119,47 +165,139 @@ public class VectorImageGetter implements Html.ImageGetter {
         return mPlaceHolder;
     }
 
+    /**
+     * @return the disk cache
+     */
+    private static synchronized DiskLruFileCache getDiskCache() {
+        if (null == mDiskCache) {
+            mDiskCache = new DiskLruFileCache(new File(VectorApp.getInstance().getCacheDir(), DISK_CACHE_DIRECTORY), DISK_CACHE_SIZE_BYTES);
+        }
+
+        return mDiskCache;
+    }
 
-    private class ImageDownloaderTask extends AsyncTask<Object, Void, Bitmap> {
-        private String mSource;
+    /**
+     * Decode an image file without exceeding a max side.
+     *
+     * @param file          the image file
+     * @param maxSidePixels the max side in pixels
+     * @return the bitmap, null if it cannot be decoded
+     */
+    private static Bitmap decodeSampledBitmap(File file, int maxSidePixels) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        // read the image size
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        int maxSide = Math.max(options.outWidth, options.outHeight);
+
+        while ((maxSide / sampleSize) > maxSidePixels) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+
+        // the JPEG images have no alpha channel, use half the memory
+        if ("image/jpeg".equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    private class ImageDownloaderTask extends AppExecutors.Task<Bitmap> {
+        private final String mSource;
+
+        ImageDownloaderTask(String source) {
+            mSource = source;
+        }
 
         @Override
-        protected Bitmap doInBackground(Object... params) {
-            mSource = (String) params[0];
-            // Check whether this source is a valid Matrix media content URI, and convert it in an actual url.
-            String downloadableUrl = mSession.getContentManager().getDownloadableUrl(mSource);
-            if (null != downloadableUrl)
-            {
-                Log.d(LOG_TAG, "## doInBackground() : " + mSource);
+        protected Bitmap doInBackground() {
+            DiskLruFileCache diskCache = getDiskCache();
+            File file = diskCache.get(mSource);
+
+            if (null == file) {
+                // Check whether this source is a valid Matrix media content URI, and convert it in an actual url.
+                // the server provides a thumbnail to avoid downloading a huge image
+                String downloadableUrl = mSession.getContentManager().getDownloadableThumbnailUrl(mSource,
+                        MAX_IMAGE_SIDE_PIXELS, MAX_IMAGE_SIDE_PIXELS, ContentManager.METHOD_SCALE);
+
+                if (null == downloadableUrl) {
+                    downloadableUrl = mSession.getContentManager().getDownloadableUrl(mSource);
+                }
+
+                if (null != downloadableUrl) {
+                    Log.d(LOG_TAG, "## doInBackground() : " + mSource);
+                    HttpURLConnection connection = null;
+                    InputStream inputStream = null;
+
+                    try {
+                        connection = (HttpURLConnection) new URL(downloadableUrl).openConnection();
+                        String contentType = connection.getContentType();
+
+                        // do not cache the error pages
+                        if ((HttpURLConnection.HTTP_OK == connection.getResponseCode())
+                                && (null != contentType) && contentType.toLowerCase().startsWith("image/")) {
+                            inputStream = connection.getInputStream();
+                            file = diskCache.put(mSource, inputStream);
+                        } else {
+                            Log.e(LOG_TAG, "## ImageDownloader() : unexpected response " + connection.getResponseCode() + " " + contentType);
+                        }
+                    } catch (Throwable t) {
+                        Log.e(LOG_TAG, "## ImageDownloader() failed " + t.getMessage(), t);
+                    } finally {
+                        if (null != inputStream) {
+                            try {
+                                inputStream.close();
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "## ImageDownloader() : close failed " + e.getMessage(), e);
+                            }
+                        }
+
+                        if (null != connection) {
+                            connection.disconnect();
+                        }
+                    }
+                }
+            }
+
+            if (null != file) {
                 try {
-                    return BitmapFactory.decodeStream(new URL(downloadableUrl).openConnection().getInputStream());
+                    // the server may not provide a thumbnail
+                    return decodeSampledBitmap(file, MAX_IMAGE_SIDE_PIXELS);
                 } catch (Throwable t) {
-                    Log.e(LOG_TAG, "## ImageDownloader() failed " + t.getMessage(), t);
+                    Log.e(LOG_TAG, "## ImageDownloader() : decode failed " + t.getMessage(), t);
                 }
             }
 
-
             return null;
         }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            Log.d(LOG_TAG, "## doInBackground() : bitmap " + bitmap);
+        protected void onResult(Bitmap bitmap) {
+            Log.d(LOG_TAG, "## onResult() : bitmap " + bitmap);
 
-            mPendingDownloads.remove(mSource);
+            Set<VectorImageGetter> getters = mPendingDownloads.remove(mSource);
 
-            if (null != bitmap) {
-                Drawable drawable = new BitmapDrawable(VectorApp.getInstance().getResources(), bitmap);
-                drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+            if ((null != bitmap) && (null != getters)) {
+                mBitmapCache.put(mSource, bitmap);
 
-                mBitmapCache.put(mSource, drawable);
-
-                try {
-                    if (null != mListener) {
-                        mListener.onImageDownloaded(mSource);
+                for (VectorImageGetter getter : getters) {
+                    try {
+                        if (null != getter.mListener) {
+                            getter.mListener.onImageDownloaded(mSource);
+                        }
+                    } catch (Throwable t) {
+                        Log.e(LOG_TAG, "## ImageDownloader() failed " + t.getMessage(), t);
                     }
-                } catch (Throwable t) {
-                    Log.e(LOG_TAG, "## ImageDownloader() failed " + t.getMessage(), t);
                 }
             }
         }
@@ -28,8 +28,7 @@ import android.webkit.WebView;
 
 import org.matrix.androidsdk.util.Log;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Markdown parser.
@@ -163,7 +162,7 @@ public class VectorMarkdownParser extends WebView {
         /**
          * Defines watchdog timer
          */
-        private Timer mWatchdogTimer;
+        private ScheduledFuture<?> mWatchdogFuture;
 
         /**
          * Init the search params.
@@ -182,26 +181,25 @@ public class VectorMarkdownParser extends WebView {
         public void start() {
             Log.d(LOG_TAG, "## start() : Markdown starts");
 
-            try {
-                // monitor the parsing as there is no way to detect if there was an error in the JS.
-                mWatchdogTimer = new Timer();
-                mWatchdogTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        if (null != mListener) {
-                            Log.d(LOG_TAG, "## start() : delay expires");
-
-                            try {
-                                mListener.onMarkdownParsed(mTextToParse, mTextToParse);
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, "## onMarkdownParsed() " + e.getMessage(), e);
-                            }
+            // monitor the parsing as there is no way to detect if there was an error in the JS.
+            mWatchdogFuture = SharedScheduledExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != mListener) {
+                        Log.d(LOG_TAG, "## start() : delay expires");
+
+                        try {
+                            mListener.onMarkdownParsed(mTextToParse, mTextToParse);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "## onMarkdownParsed() " + e.getMessage(), e);
                         }
-                        done();
                     }
-                }, MAX_DELAY_TO_WAIT_FOR_WEBVIEW_RESPONSE_MILLIS);
-            } catch (Throwable e) {
-                Log.e(LOG_TAG, "## start() : failed to starts " + e.getMessage(), e);
+                    done();
+                }
+            }, MAX_DELAY_TO_WAIT_FOR_WEBVIEW_RESPONSE_MILLIS);
+
+            if (null == mWatchdogFuture) {
+                Log.e(LOG_TAG, "## start() : failed to start the watchdog");
             }
         }
 
@@ -217,9 +215,9 @@ public class VectorMarkdownParser extends WebView {
          * The parsing is done
          */
         private void done() {
-            if (null != mWatchdogTimer) {
-                mWatchdogTimer.cancel();
-                mWatchdogTimer = null;
+            if (null != mWatchdogFuture) {
+                SharedScheduledExecutor.cancel(mWatchdogFuture);
+                mWatchdogFuture = null;
             }
             mListener = null;
         }
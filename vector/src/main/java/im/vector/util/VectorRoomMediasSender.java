@@ -20,11 +20,9 @@ package im.vector.util;
 import android.content.ClipDescription;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.support.v4.app.FragmentManager;
 import android.support.v7.app.AlertDialog;
@@ -40,10 +38,10 @@ import org.matrix.androidsdk.util.Log;
 import org.matrix.androidsdk.util.ResourceUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import im.vector.R;
 import im.vector.activity.VectorRoomActivity;
@@ -78,9 +76,8 @@ public class VectorRoomMediasSender {
     // the medias cache
     private final MXMediasCache mMediasCache;
 
-    // the background thread
-    private static HandlerThread mHandlerThread = null;
-    private static android.os.Handler mMediasSendingHandler = null;
+    // the medias are processed one after the other
+    private static final Executor mMediasSendingExecutor = AppExecutors.newSerialExecutor(LOG_TAG);
 
     // pending
     private List<RoomMediaMessage> mSharedDataItems;
@@ -95,13 +92,6 @@ public class VectorRoomMediasSender {
         mVectorRoomActivity = roomActivity;
         mVectorMessageListFragment = vectorMessageListFragment;
         mMediasCache = mediasCache;
-
-        if (null == mHandlerThread) {
-            mHandlerThread = new HandlerThread("VectorRoomMediasSender", Thread.MIN_PRIORITY);
-            mHandlerThread.start();
-
-            mMediasSendingHandler = new android.os.Handler(mHandlerThread.getLooper());
-        }
     }
 
     /**
@@ -165,7 +155,7 @@ public class VectorRoomMediasSender {
 
         Log.d(LOG_TAG, "sendMedias : " + mSharedDataItems.size() + " items to send");
 
-        mMediasSendingHandler.post(new Runnable() {
+        mMediasSendingExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 final RoomMediaMessage sharedDataItem = mSharedDataItems.get(0);
@@ -409,6 +399,11 @@ public class VectorRoomMediasSender {
 
     }
 
+    // the JPEG quality of the resized images
+    private static final int RESIZED_IMAGE_QUALITY = 75;
+    // the JPEG quality of the images which are only rotated
+    private static final int ROTATED_IMAGE_QUALITY = 100;
+
     // max image sizes
     private static final int LARGE_IMAGE_SIZE = 2048;
     private static final int MEDIUM_IMAGE_SIZE = 1024;
@@ -570,12 +565,27 @@ public class VectorRoomMediasSender {
     }
 
     /**
+     * Estimate the size of a resized image from the original image size.
+     * The bytes per pixel ratio of the original image is applied to the resized one,
+     * it is bounded by the one of a JPEG encoded with RESIZED_IMAGE_QUALITY (about 0.2 byte per pixel).
+     *
+     * @param imageSize     the resized image size
+     * @param fullImageSize the original image size
+     * @param fullFileSize  the original file size (in bytes)
      * @return the estimated file size (in bytes)
      */
-    private static int estimateFileSize(ImageSize imageSize) {
+    private static int estimateFileSize(ImageSize imageSize, ImageSize fullImageSize, int fullFileSize) {
         if (null != imageSize) {
+            long pixels = (long) imageSize.mWidth * imageSize.mHeight;
+            long estimatedSize = pixels * 2 / 10;
+
+            if ((null != fullImageSize) && (fullImageSize.mWidth > 0) && (fullImageSize.mHeight > 0) && (fullFileSize > 0)) {
+                long fullPixels = (long) fullImageSize.mWidth * fullImageSize.mHeight;
+                estimatedSize = Math.min(estimatedSize, pixels * fullFileSize / fullPixels);
+            }
+
             // rounded the size in 1024 multiplier
-            return imageSize.mWidth * imageSize.mHeight * 2 / 10 / 1024 * 1024;
+            return (int) (estimatedSize / 1024 * 1024);
         } else {
             return 0;
         }
@@ -611,11 +621,11 @@ public class VectorRoomMediasSender {
         addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_original), imageSizes.mFullImageSize,
                 imagefileSize);
         addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_large), imageSizes.mLargeImageSize,
-                Math.min(estimateFileSize(imageSizes.mLargeImageSize), imagefileSize));
+                Math.min(estimateFileSize(imageSizes.mLargeImageSize, imageSizes.mFullImageSize, imagefileSize), imagefileSize));
         addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_medium), imageSizes.mMediumImageSize,
-                Math.min(estimateFileSize(imageSizes.mMediumImageSize), imagefileSize));
+                Math.min(estimateFileSize(imageSizes.mMediumImageSize, imageSizes.mFullImageSize, imagefileSize), imagefileSize));
         addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_small), imageSizes.mSmallImageSize,
-                Math.min(estimateFileSize(imageSizes.mSmallImageSize), imagefileSize));
+                Math.min(estimateFileSize(imageSizes.mSmallImageSize, imageSizes.mFullImageSize, imagefileSize), imagefileSize));
 
         return textsList.toArray(new String[textsList.size()]);
     }
@@ -623,6 +633,7 @@ public class VectorRoomMediasSender {
     /**
      * Apply an image with an expected size.
      * A rotation might also be applied if provided.
+     * The image is decoded and encoded only once.
      *
      * @param anImageUrl    the image URI.
      * @param filename      the image filename.
@@ -635,35 +646,28 @@ public class VectorRoomMediasSender {
         String imageUrl = anImageUrl;
 
         try {
-            // got a dst image size
-            if (null != dstImageSize) {
-                FileInputStream imageStream = new FileInputStream(new File(filename));
-
-                InputStream resizeBitmapStream = null;
+            // nothing to do
+            if ((null == dstImageSize) && (0 == rotationAngle)) {
+                return imageUrl;
+            }
 
-                try {
-                    resizeBitmapStream = ImageUtils.resizeImage(imageStream, -1, (srcImageSize.mWidth + dstImageSize.mWidth - 1) / dstImageSize.mWidth, 75);
-                } catch (OutOfMemoryError ex) {
-                    Log.e(LOG_TAG, "resizeImage out of memory : " + ex.getMessage(), ex);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "resizeImage failed : " + e.getMessage(), e);
-                }
+            InputStream transcodedStream;
 
-                if (null != resizeBitmapStream) {
-                    String bitmapURL = mMediasCache.saveMedia(resizeBitmapStream, null, ResourceUtils.MIME_TYPE_JPEG);
+            if (null != dstImageSize) {
+                transcodedStream = ImageTranscoder.transcode(filename, dstImageSize.mWidth, dstImageSize.mHeight, rotationAngle, RESIZED_IMAGE_QUALITY);
+            } else {
+                // only apply the exif rotation
+                transcodedStream = ImageTranscoder.transcode(filename, srcImageSize.mWidth, srcImageSize.mHeight, rotationAngle, ROTATED_IMAGE_QUALITY);
+            }
 
-                    if (null != bitmapURL) {
-                        imageUrl = bitmapURL;
-                    }
+            if (null != transcodedStream) {
+                String bitmapURL = mMediasCache.saveMedia(transcodedStream, null, ResourceUtils.MIME_TYPE_JPEG);
 
-                    resizeBitmapStream.close();
+                if (null != bitmapURL) {
+                    imageUrl = bitmapURL;
                 }
-            }
 
-            // try to apply exif rotation
-            if (0 != rotationAngle) {
-                // rotate the image content
-                ImageUtils.rotateImage(mVectorRoomActivity, imageUrl, rotationAngle, mMediasCache);
+                transcodedStream.close();
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "resizeImage " + e.getMessage(), e);
@@ -695,7 +699,6 @@ public class VectorRoomMediasSender {
                 || ResourceUtils.MIME_TYPE_JPG.equals(anImageMimeType)
                 || ResourceUtils.MIME_TYPE_IMAGE_ALL.equals(anImageMimeType))) {
             System.gc();
-            FileInputStream imageStream;
 
             try {
                 Uri uri = Uri.parse(anImageUrl);
@@ -703,27 +706,13 @@ public class VectorRoomMediasSender {
 
                 final int rotationAngle = ImageUtils.getRotationAngleForBitmap(mVectorRoomActivity, uri);
 
-                imageStream = new FileInputStream(new File(filename));
+                int fileSize = (int) new File(filename).length();
 
-                int fileSize = imageStream.available();
-
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                options.outWidth = -1;
-                options.outHeight = -1;
-
-                // retrieve the image size
-                try {
-                    BitmapFactory.decodeStream(imageStream, null, options);
-                } catch (OutOfMemoryError e) {
-                    Log.e(LOG_TAG, "sendImageMessage out of memory error : " + e.getMessage(), e);
-                }
+                // retrieve the image size from its header
+                BitmapFactory.Options options = ImageTranscoder.decodeBounds(filename);
 
                 final ImageCompressionSizes imageSizes = computeImageSizes(options.outWidth, options.outHeight);
 
-                imageStream.close();
-
                 // the user already selects a compression
                 if (null != mImageCompressionDescription) {
                     isManaged = true;
@@ -767,7 +756,7 @@ public class VectorRoomMediasSender {
                                         public void run() {
                                             mVectorRoomActivity.showWaitingView();
 
-                                            Thread thread = new Thread(new Runnable() {
+                                            AppExecutors.execute(AppExecutors.Pool.COMPUTE, "resizeImage", new Runnable() {
                                                 @Override
                                                 public void run() {
                                                     ImageSize expectedSize = null;
@@ -793,9 +782,6 @@ public class VectorRoomMediasSender {
                                                     });
                                                 }
                                             });
-
-                                            thread.setPriority(Thread.MIN_PRIORITY);
-                                            thread.start();
                                         }
                                     });
                                 }
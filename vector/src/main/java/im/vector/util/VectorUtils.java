@@ -30,11 +30,9 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.support.v4.util.LruCache;
 import android.support.v7.app.AlertDialog;
 import android.text.TextUtils;
@@ -79,6 +77,7 @@ import java.util.regex.Pattern;
 import im.vector.R;
 import im.vector.VectorApp;
 import im.vector.adapters.ParticipantAdapterItem;
+import im.vector.view.AvatarPlaceholderDrawable;
 
 public class VectorUtils {
 
@@ -267,7 +266,33 @@ public class VectorUtils {
     //==============================================================================================================
 
     // avatars cache
-    static final private LruCache<String, Bitmap> mAvatarImageByKeyDict = new LruCache<>(20 * 1024 * 1024);
+    // the bitmaps are only used when a bitmap is required (notifications, avatar download failure)
+    static final private LruCache<String, Bitmap> mAvatarImageByKeyDict = new LruCache<String, Bitmap>(2 * 1024 * 1024) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight(); // size in bytes
+        }
+    };
+
+    static {
+        MemoryPressureCoordinator.register("avatars", MemoryPressureCoordinator.PRIORITY_HIGH, MemoryPressureCoordinator.RELEASE_POLICY_TRIM,
+                new MemoryPressureCoordinator.MemoryCache() {
+                    @Override
+                    public long getSize() {
+                        return mAvatarImageByKeyDict.size();
+                    }
+
+                    @Override
+                    public long getMaxSize() {
+                        return mAvatarImageByKeyDict.maxSize();
+                    }
+
+                    @Override
+                    public void trimToSize(long maxSize) {
+                        mAvatarImageByKeyDict.trimToSize((int) maxSize);
+                    }
+                });
+    }
     // the avatars background color
     static final private List<Integer> mColorList = new ArrayList<>(Arrays.asList(0xff76cfa6, 0xff50e2c2, 0xfff4c371));
 
@@ -387,6 +412,18 @@ public class VectorUtils {
         return firstChar.toUpperCase(VectorApp.getApplicationLocale());
     }
 
+    /**
+     * Provides an avatar placeholder from a text.
+     * The placeholder is drawn on demand, no bitmap is allocated.
+     *
+     * @param backgroundColor the background color.
+     * @param aText           the text.
+     * @return the placeholder drawable.
+     */
+    public static Drawable getAvatarPlaceholder(int backgroundColor, String aText) {
+        return new AvatarPlaceholderDrawable(backgroundColor, getInitialLetter(aText));
+    }
+
     /**
      * Returns an avatar from a text.
      *
@@ -410,37 +447,6 @@ public class VectorUtils {
         return thumbnail;
     }
 
-    /**
-     * Set the default vector avatar for a member.
-     *
-     * @param imageView   the imageView to set.
-     * @param userId      the member userId.
-     * @param displayName the member display name.
-     */
-    private static void setDefaultMemberAvatar(final ImageView imageView, final String userId, final String displayName) {
-        // sanity checks
-        if (null != imageView && !TextUtils.isEmpty(userId)) {
-            final Bitmap bitmap = VectorUtils.getAvatar(imageView.getContext(),
-                    VectorUtils.getAvatarColor(userId), TextUtils.isEmpty(displayName) ? userId : displayName, true);
-
-            if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
-                imageView.setImageBitmap(bitmap);
-            } else {
-                final String tag = userId + " - " + displayName;
-                imageView.setTag(tag);
-
-                mUIHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (TextUtils.equals(tag, (String) imageView.getTag())) {
-                            imageView.setImageBitmap(bitmap);
-                        }
-                    }
-                });
-            }
-        }
-    }
-
     /**
      * Set the room avatar in an imageView.
      *
@@ -566,11 +572,6 @@ public class VectorUtils {
         }
     }
 
-    // the background thread
-    private static HandlerThread mImagesThread = null;
-    private static android.os.Handler mImagesThreadHandler = null;
-    private static Handler mUIHandler = null;
-
     /**
      * Set the user avatar in an imageView.
      *
@@ -595,89 +596,19 @@ public class VectorUtils {
         // reset the imageView tag
         imageView.setTag(null);
 
-        if (session.getMediasCache().isAvatarThumbnailCached(avatarUrl, context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size))) {
-            session.getMediasCache().loadAvatarThumbnail(session.getHomeServerConfig(),
-                    imageView, avatarUrl, context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size));
-        } else {
-            if (null == mImagesThread) {
-                mImagesThread = new HandlerThread("ImagesThread", Thread.MIN_PRIORITY);
-                mImagesThread.start();
-                mImagesThreadHandler = new android.os.Handler(mImagesThread.getLooper());
-                mUIHandler = new Handler(Looper.getMainLooper());
-            }
+        int avatarSize = context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size);
 
-            final Bitmap bitmap = VectorUtils.getAvatar(imageView.getContext(),
-                    VectorUtils.getAvatarColor(userId), TextUtils.isEmpty(displayName) ? userId : displayName, false);
-
-            // test if the default avatar has been computed
-            if (null != bitmap) {
-                imageView.setImageBitmap(bitmap);
+        if (session.getMediasCache().isAvatarThumbnailCached(avatarUrl, avatarSize)) {
+            session.getMediasCache().loadAvatarThumbnail(session.getHomeServerConfig(), imageView, avatarUrl, avatarSize);
+        } else {
+            String text = TextUtils.isEmpty(displayName) ? userId : displayName;
+            int backgroundColor = VectorUtils.getAvatarColor(userId);
 
-                if (!TextUtils.isEmpty(avatarUrl)) {
-                    final String tag = avatarUrl + userId + displayName;
-                    imageView.setTag(tag);
+            // display the placeholder until the avatar is loaded
+            imageView.setImageDrawable(getAvatarPlaceholder(backgroundColor, text));
 
-                    if (!MXMediasCache.isMediaUrlUnreachable(avatarUrl)) {
-                        mImagesThreadHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (TextUtils.equals(tag, (String) imageView.getTag())) {
-                                    session.getMediasCache().loadAvatarThumbnail(session.getHomeServerConfig(),
-                                            imageView, avatarUrl, context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size), bitmap);
-                                }
-                            }
-                        });
-                    }
-                }
-            } else {
-                final String tmpTag0 = "00" + avatarUrl + "-" + userId + "--" + displayName;
-                imageView.setTag(tmpTag0);
-
-                // create the default avatar in the background thread
-                mImagesThreadHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (TextUtils.equals(tmpTag0, (String) imageView.getTag())) {
-                            imageView.setTag(null);
-                            setDefaultMemberAvatar(imageView, userId, displayName);
-
-                            if (!TextUtils.isEmpty(avatarUrl) && !MXMediasCache.isMediaUrlUnreachable(avatarUrl)) {
-                                final String tmpTag1 = "11" + avatarUrl + "-" + userId + "--" + displayName;
-                                imageView.setTag(tmpTag1);
-
-                                // wait that it is rendered to load the right one
-                                mUIHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        // test if the imageView tag has not been updated
-                                        if (TextUtils.equals(tmpTag1, (String) imageView.getTag())) {
-                                            final String tmptag2 = "22" + avatarUrl + userId + displayName;
-                                            imageView.setTag(tmptag2);
-
-                                            mImagesThreadHandler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    // test if the imageView tag has not been updated
-                                                    if (TextUtils.equals(tmptag2, (String) imageView.getTag())) {
-                                                        final Bitmap bitmap = VectorUtils.getAvatar(imageView.getContext(),
-                                                                VectorUtils.getAvatarColor(userId),
-                                                                TextUtils.isEmpty(displayName) ? userId : displayName,
-                                                                false);
-                                                        session.getMediasCache().loadAvatarThumbnail(session.getHomeServerConfig(),
-                                                                imageView,
-                                                                avatarUrl,
-                                                                context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size),
-                                                                bitmap);
-                                                    }
-                                                }
-                                            });
-                                        }
-                                    }
-                                });
-                            }
-                        }
-                    }
-                });
+            if (!TextUtils.isEmpty(avatarUrl) && !MXMediasCache.isMediaUrlUnreachable(avatarUrl)) {
+                AvatarLoader.load(context, session, imageView, avatarUrl, avatarSize);
             }
         }
     }
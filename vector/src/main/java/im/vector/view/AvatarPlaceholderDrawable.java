@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.view;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+/**
+ * Default avatar: a letter drawn on a coloured circle.
+ * Nothing is rasterised: the shape and the letter are drawn with paints shared by all the placeholders,
+ * so displaying thousands of placeholders does not allocate any bitmap.
+ * The alpha and the colour filter of a placeholder are applied to the shared paints while it is drawn,
+ * so the drawables must be drawn on the UI thread.
+ */
+public class AvatarPlaceholderDrawable extends Drawable {
+    // the shape paints by background color
+    private static final SparseArray<Paint> sShapePaints = new SparseArray<>();
+
+    // the letters paint
+    private static Paint sTextPaint = null;
+
+    private static final Rect sTextBounds = new Rect();
+
+    private final String mLetter;
+    private final Paint mShapePaint;
+
+    private int mAlpha = 255;
+    private ColorFilter mColorFilter = null;
+
+    /**
+     * Constructor
+     *
+     * @param backgroundColor the background color
+     * @param letter          the letter to display
+     */
+    public AvatarPlaceholderDrawable(int backgroundColor, String letter) {
+        mLetter = letter;
+        mShapePaint = getShapePaint(backgroundColor);
+    }
+
+    private static Paint getShapePaint(int backgroundColor) {
+        Paint paint = sShapePaints.get(backgroundColor);
+
+        if (null == paint) {
+            paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(backgroundColor);
+            paint.setStyle(Paint.Style.FILL);
+            sShapePaints.put(backgroundColor, paint);
+        }
+
+        return paint;
+    }
+
+    private static Paint getTextPaint() {
+        if (null == sTextPaint) {
+            sTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            sTextPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.BOLD));
+            sTextPaint.setColor(Color.WHITE);
+        }
+
+        return sTextPaint;
+    }
+
+    /**
+     * @return the displayed letter
+     */
+    public String getLetter() {
+        return mLetter;
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas) {
+        Rect bounds = getBounds();
+        int side = Math.min(bounds.width(), bounds.height());
+
+        if (side <= 0) {
+            return;
+        }
+
+        int shapeAlpha = mShapePaint.getAlpha();
+        mShapePaint.setAlpha(shapeAlpha * mAlpha / 255);
+        mShapePaint.setColorFilter(mColorFilter);
+
+        canvas.drawCircle(bounds.exactCenterX(), bounds.exactCenterY(), side / 2.0f, mShapePaint);
+
+        // restore the shared paint
+        mShapePaint.setAlpha(shapeAlpha);
+        mShapePaint.setColorFilter(null);
+
+        Paint textPaint = getTextPaint();
+        // the text size is proportional to the avatar size.
+        textPaint.setTextSize(side * 2 / 3);
+        textPaint.setAlpha(mAlpha);
+        textPaint.setColorFilter(mColorFilter);
+        textPaint.getTextBounds(mLetter, 0, mLetter.length(), sTextBounds);
+
+        // draw the text in center
+        canvas.drawText(mLetter,
+                bounds.left + (bounds.width() - sTextBounds.width() - sTextBounds.left) / 2,
+                bounds.top + (bounds.height() + sTextBounds.height() - sTextBounds.bottom) / 2,
+                textPaint);
+
+        // restore the shared paint
+        textPaint.setAlpha(255);
+        textPaint.setColorFilter(null);
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        if (mAlpha != alpha) {
+            mAlpha = alpha;
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public int getAlpha() {
+        return mAlpha;
+    }
+
+    @Override
+    public void setColorFilter(@Nullable ColorFilter colorFilter) {
+        if (mColorFilter != colorFilter) {
+            mColorFilter = colorFilter;
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
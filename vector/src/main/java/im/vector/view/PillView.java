@@ -160,8 +160,7 @@ public class PillView extends LinearLayout {
                         } else {
                             // Here the room is not joined by the user yet.
                             // Display the default avatar based on the room alias.
-                            final Bitmap bitmap = VectorUtils.getAvatar(VectorApp.getInstance(), VectorUtils.getAvatarColor(roomId), linkedUrl, true);
-                            mAvatarView.setImageBitmap(bitmap);
+                            mAvatarView.setImageDrawable(VectorUtils.getAvatarPlaceholder(VectorUtils.getAvatarColor(roomId), linkedUrl));
 
                             // Fetch the preview data to display the room avatar if any.
                             final RoomPreviewData roomPreviewData = new RoomPreviewData(session, roomId, null, linkedUrl, null);
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.widget.OverScroller;
+
+import org.matrix.androidsdk.util.ImageUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import im.vector.util.AppExecutors;
+
+/**
+ * Display a large image without decoding it at full resolution.
+ * A subsampled preview of the whole image is decoded first, then the visible regions
+ * are decoded with a BitmapRegionDecoder at the resolution matching the zoom level.
+ * The image can be zoomed with a pinch or a double tap, and panned.
+ */
+public class TiledImageView extends View {
+    private static final String LOG_TAG = TiledImageView.class.getSimpleName();
+
+    // the tile size in decoded pixels
+    private static final int TILE_SIZE = 512;
+
+    // the max preview side in pixels
+    private static final int MAX_PREVIEW_SIDE = 2048;
+
+    // the max zoom, relative to the image pixels
+    private static final float MAX_SCALE = 2.0f;
+
+    // the double tap zoom, relative to the fit scale
+    private static final float DOUBLE_TAP_ZOOM = 2.5f;
+
+    /**
+     * An image region decoded at a given sample size
+     */
+    private static class Tile {
+        // the region in image pixels
+        final Rect mImageRect;
+        final int mSampleSize;
+
+        Bitmap mBitmap;
+        volatile boolean mIsCancelled;
+
+        Tile(Rect imageRect, int sampleSize) {
+            mImageRect = imageRect;
+            mSampleSize = sampleSize;
+        }
+    }
+
+    // the decodings are run in order: the decoder is not shared between threads
+    private final Executor mDecodingExecutor = AppExecutors.newSerialExecutor(LOG_TAG);
+
+    // the displayed file
+    private File mFile;
+    private int mRotationAngle;
+    // incremented each time the image is changed, to ignore the obsolete decodings
+    private int mGeneration;
+    // true when the image has been released because the view has been detached
+    private boolean mIsReleased;
+
+    // the image size in pixels, before rotation
+    private int mImageWidth;
+    private int mImageHeight;
+
+    private BitmapRegionDecoder mDecoder;
+    private Bitmap mPreview;
+    private int mPreviewSampleSize;
+
+    // the decoded tiles by key
+    private final Map<String, Tile> mTiles = new HashMap<>();
+
+    // image pixels -> rotated image pixels
+    private final Matrix mRotationMatrix = new Matrix();
+    // image pixels -> view pixels
+    private final Matrix mDrawMatrix = new Matrix();
+    private final Matrix mInverseMatrix = new Matrix();
+
+    // rotated image pixels -> view pixels
+    private float mScale;
+    private float mMinScale;
+    private float mTranslateX;
+    private float mTranslateY;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mImageBounds = new Rect();
+    private final RectF mVisibleRect = new RectF();
+
+    private final ScaleGestureDetector mScaleGestureDetector;
+    private final GestureDetector mGestureDetector;
+    private final OverScroller mScroller;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        mScroller = new OverScroller(context);
+
+        mScaleGestureDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomTo(mScale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                mScroller.forceFinished(true);
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapConfirmed(MotionEvent e) {
+                return performClick();
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                zoomTo((mScale > mMinScale) ? mMinScale : mMinScale * DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+                return true;
+            }
+
+            @Override
+            public void onLongPress(MotionEvent e) {
+                performLongClick();
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                translateTo(mTranslateX - distanceX, mTranslateY - distanceY);
+                return true;
+            }
+
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+                int minX = Math.min(0, (int) (getWidth() - getScaledWidth()));
+                int minY = Math.min(0, (int) (getHeight() - getScaledHeight()));
+
+                mScroller.fling((int) mTranslateX, (int) mTranslateY, (int) velocityX, (int) velocityY, minX, 0, minY, 0);
+                postInvalidateOnAnimation();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Display an image file.
+     * The file is decoded in the background.
+     *
+     * @param file          the image file
+     * @param rotationAngle the rotation angle, Integer.MAX_VALUE to read it from the exif metadata
+     */
+    public void setImage(final File file, final int rotationAngle) {
+        releaseImage();
+
+        mIsReleased = false;
+        mFile = file;
+        mRotationAngle = rotationAngle;
+
+        final int generation = ++mGeneration;
+        final Context context = getContext();
+        final int maxPreviewSide = getMaxPreviewSide();
+
+        mDecodingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int angle = (Integer.MAX_VALUE == rotationAngle) ? ImageUtils.getRotationAngleForBitmap(context, Uri.fromFile(file)) : rotationAngle;
+
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(file.getPath(), options);
+
+                final int imageWidth = options.outWidth;
+                final int imageHeight = options.outHeight;
+
+                if ((imageWidth <= 0) || (imageHeight <= 0)) {
+                    Log.e(LOG_TAG, "## setImage() : cannot decode " + file.getPath());
+                    return;
+                }
+
+                int sampleSize = 1;
+
+                while ((Math.max(imageWidth, imageHeight) / sampleSize) > maxPreviewSide) {
+                    sampleSize *= 2;
+                }
+
+                BitmapRegionDecoder decoder = null;
+                Bitmap preview = null;
+
+                try {
+                    decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+                } catch (Exception e) {
+                    // the format is not supported: only the preview is displayed
+                    Log.e(LOG_TAG, "## setImage() : cannot create the region decoder " + e.getMessage(), e);
+                }
+
+                try {
+                    options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    preview = BitmapFactory.decodeFile(file.getPath(), options);
+                } catch (OutOfMemoryError oom) {
+                    Log.e(LOG_TAG, "## setImage() : cannot decode the preview " + oom.getMessage(), oom);
+                }
+
+                final BitmapRegionDecoder fDecoder = decoder;
+                final Bitmap fPreview = preview;
+                final int fSampleSize = sampleSize;
+
+                AppExecutors.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            recycleDecoder(fDecoder);
+                            return;
+                        }
+
+                        mDecoder = fDecoder;
+                        mPreview = fPreview;
+                        mPreviewSampleSize = fSampleSize;
+                        mImageWidth = imageWidth;
+                        mImageHeight = imageHeight;
+                        mRotationAngle = angle;
+
+                        resetZoom();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Display the whole image and release the tiles.
+     */
+    public void resetZoom() {
+        if ((0 == mImageWidth) || (0 == getWidth()) || (0 == getHeight())) {
+            return;
+        }
+
+        mRotationMatrix.reset();
+        mRotationMatrix.postRotate(mRotationAngle);
+
+        // move the rotated image to the origin
+        RectF rotatedBounds = new RectF(0, 0, mImageWidth, mImageHeight);
+        mRotationMatrix.mapRect(rotatedBounds);
+        mRotationMatrix.postTranslate(-rotatedBounds.left, -rotatedBounds.top);
+
+        mMinScale = Math.min(getWidth() / getRotatedWidth(), getHeight() / getRotatedHeight());
+        mScale = mMinScale;
+        mScroller.forceFinished(true);
+        translateTo(0, 0);
+    }
+
+    private float getRotatedWidth() {
+        return ((mRotationAngle % 180) == 0) ? mImageWidth : mImageHeight;
+    }
+
+    private float getRotatedHeight() {
+        return ((mRotationAngle % 180) == 0) ? mImageHeight : mImageWidth;
+    }
+
+    private float getScaledWidth() {
+        return getRotatedWidth() * mScale;
+    }
+
+    private float getScaledHeight() {
+        return getRotatedHeight() * mScale;
+    }
+
+    /**
+     * @return the max preview side, it is not larger than the screen
+     */
+    private int getMaxPreviewSide() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return Math.min(MAX_PREVIEW_SIDE, Math.max(metrics.widthPixels, metrics.heightPixels));
+    }
+
+    /**
+     * Update the zoom level
+     *
+     * @param scale  the new scale
+     * @param focusX the zoom center X
+     * @param focusY the zoom center Y
+     */
+    private void zoomTo(float scale, float focusX, float focusY) {
+        if (0 == mMinScale) {
+            return;
+        }
+
+        float newScale = Math.max(mMinScale, Math.min(scale, Math.max(MAX_SCALE, mMinScale * DOUBLE_TAP_ZOOM)));
+        float ratio = newScale / mScale;
+
+        mScale = newScale;
+        translateTo(focusX - (focusX - mTranslateX) * ratio, focusY - (focusY - mTranslateY) * ratio);
+    }
+
+    /**
+     * Update the image position.
+     * The image is centered when it is smaller than the view, else it cannot leave the view borders.
+     *
+     * @param translateX the new X translation
+     * @param translateY the new Y translation
+     */
+    private void translateTo(float translateX, float translateY) {
+        mTranslateX = clampTranslation(translateX, getWidth(), getScaledWidth());
+        mTranslateY = clampTranslation(translateY, getHeight(), getScaledHeight());
+
+        mDrawMatrix.set(mRotationMatrix);
+        mDrawMatrix.postScale(mScale, mScale);
+        mDrawMatrix.postTranslate(mTranslateX, mTranslateY);
+        mDrawMatrix.invert(mInverseMatrix);
+
+        refreshTiles();
+        invalidate();
+    }
+
+    private static float clampTranslation(float translation, float viewSize, float contentSize) {
+        if (contentSize <= viewSize) {
+            return (viewSize - contentSize) / 2;
+        }
+
+        return Math.max(viewSize - contentSize, Math.min(0, translation));
+    }
+
+    /**
+     * Compute the tiles covering the visible part of the image at the current zoom level.
+     * The missing tiles are decoded in the background, the useless ones are released.
+     */
+    private void refreshTiles() {
+        int sampleSize = 1;
+        // the decoded pixels should not be smaller than the screen pixels
+        while ((sampleSize * 2) * mScale <= 1.0f) {
+            sampleSize *= 2;
+        }
+
+        // the preview is enough
+        if ((null == mDecoder) || (sampleSize >= mPreviewSampleSize)) {
+            releaseTiles(null);
+            return;
+        }
+
+        mVisibleRect.set(0, 0, getWidth(), getHeight());
+        mInverseMatrix.mapRect(mVisibleRect);
+
+        int tileSide = TILE_SIZE * sampleSize;
+        int left = Math.max(0, (int) mVisibleRect.left / tileSide);
+        int top = Math.max(0, (int) mVisibleRect.top / tileSide);
+        int right = Math.min((mImageWidth - 1) / tileSide, (int) mVisibleRect.right / tileSide);
+        int bottom = Math.min((mImageHeight - 1) / tileSide, (int) mVisibleRect.bottom / tileSide);
+
+        Map<String, Tile> visibleTiles = new HashMap<>();
+
+        for (int x = left; x <= right; x++) {
+            for (int y = top; y <= bottom; y++) {
+                String key = sampleSize + "_" + x + "_" + y;
+                Tile tile = mTiles.get(key);
+
+                if (null == tile) {
+                    tile = new Tile(new Rect(x * tileSide, y * tileSide,
+                            Math.min(mImageWidth, (x + 1) * tileSide), Math.min(mImageHeight, (y + 1) * tileSide)), sampleSize);
+                    decodeTile(tile);
+                }
+
+                visibleTiles.put(key, tile);
+            }
+        }
+
+        releaseTiles(visibleTiles);
+        mTiles.putAll(visibleTiles);
+    }
+
+    /**
+     * Decode a tile in the background.
+     *
+     * @param tile the tile
+     */
+    private void decodeTile(final Tile tile) {
+        final BitmapRegionDecoder decoder = mDecoder;
+
+        mDecodingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (tile.mIsCancelled) {
+                    return;
+                }
+
+                Bitmap bitmap = null;
+
+                try {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = tile.mSampleSize;
+                    bitmap = decoder.decodeRegion(tile.mImageRect, options);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## decodeTile() : failed " + e.getMessage(), e);
+                } catch (OutOfMemoryError oom) {
+                    Log.e(LOG_TAG, "## decodeTile() : failed " + oom.getMessage(), oom);
+                }
+
+                final Bitmap fBitmap = bitmap;
+
+                AppExecutors.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (null == fBitmap) {
+                            return;
+                        }
+
+                        if (tile.mIsCancelled) {
+                            fBitmap.recycle();
+                        } else {
+                            tile.mBitmap = fBitmap;
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Release the decoded tiles.
+     *
+     * @param tilesToKeep the tiles to keep, null to release all the tiles
+     */
+    private void releaseTiles(Map<String, Tile> tilesToKeep) {
+        Iterator<Map.Entry<String, Tile>> iterator = mTiles.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Tile> entry = iterator.next();
+
+            if ((null == tilesToKeep) || !tilesToKeep.containsKey(entry.getKey())) {
+                Tile tile = entry.getValue();
+                tile.mIsCancelled = true;
+
+                if (null != tile.mBitmap) {
+                    tile.mBitmap.recycle();
+                    tile.mBitmap = null;
+                }
+
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Release the decoded image.
+     */
+    private void releaseImage() {
+        mGeneration++;
+        releaseTiles(null);
+
+        if (null != mPreview) {
+            mPreview.recycle();
+            mPreview = null;
+        }
+
+        recycleDecoder(mDecoder);
+        mDecoder = null;
+        mImageWidth = 0;
+        mImageHeight = 0;
+        mMinScale = 0;
+        invalidate();
+    }
+
+    /**
+     * Recycle a decoder after the pending decodings.
+     *
+     * @param decoder the decoder
+     */
+    private void recycleDecoder(final BitmapRegionDecoder decoder) {
+        if (null != decoder) {
+            mDecodingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decoder.recycle();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        // the image has been released when the view was detached
+        if ((null != mFile) && mIsReleased) {
+            setImage(mFile, mRotationAngle);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseImage();
+        mIsReleased = true;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetZoom();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if ((null != getParent()) && (event.getPointerCount() > 1)) {
+            // the pinch must not be caught by the view pager
+            getParent().requestDisallowInterceptTouchEvent(true);
+        }
+
+        mScaleGestureDetector.onTouchEvent(event);
+
+        if (!mScaleGestureDetector.isInProgress()) {
+            mGestureDetector.onTouchEvent(event);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean canScrollHorizontally(int direction) {
+        if (direction < 0) {
+            return mTranslateX < -0.5f;
+        } else {
+            return (mTranslateX + getScaledWidth()) > (getWidth() + 0.5f);
+        }
+    }
+
+    @Override
+    public void computeScroll() {
+        if (mScroller.computeScrollOffset()) {
+            translateTo(mScroller.getCurrX(), mScroller.getCurrY());
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (null == mPreview) {
+            return;
+        }
+
+        canvas.save();
+        canvas.concat(mDrawMatrix);
+
+        mImageBounds.set(0, 0, mImageWidth, mImageHeight);
+        canvas.drawBitmap(mPreview, null, mImageBounds, mPaint);
+
+        for (Tile tile : mTiles.values()) {
+            if (null != tile.mBitmap) {
+                canvas.drawBitmap(tile.mBitmap, null, tile.mImageRect, mPaint);
+            }
+        }
+
+        canvas.restore();
+    }
+}
@@ -0,0 +1,688 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.widgets;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.util.Log;
+
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import im.vector.R;
+import im.vector.util.AppExecutors;
+
+/**
+ * Provides the scalar tokens, by session and integration server.
+ * The tokens are cached in memory and persisted in the shared preferences, encrypted with a key of the
+ * Android keystore when it is available (API 23+).
+ * The concurrent requests of a missing token share the same OpenID / register exchange.
+ * The keystore is only used from a background thread.
+ * A token older than TOKEN_RENEWAL_AGE_MS is still provided, but it is renewed in background.
+ */
+class ScalarTokenBroker {
+    private static final String LOG_TAG = ScalarTokenBroker.class.getSimpleName();
+
+    // the former preference key, the token was stored in plain text by user id
+    private static final String SCALAR_TOKEN_PREFERENCE_KEY = "SCALAR_TOKEN_PREFERENCE_KEY";
+
+    // the token records preference keys prefix
+    private static final String SCALAR_TOKEN_RECORD_PREFERENCE_KEY = "SCALAR_TOKEN_RECORD_PREFERENCE_KEY_";
+
+    // the stored values prefixes
+    private static final String PLAIN_VALUE_PREFIX = "v0:";
+    private static final String ENCRYPTED_VALUE_PREFIX = "v1:";
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "ScalarTokenBroker";
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the age after which a token is renewed in background
+    private static final long TOKEN_RENEWAL_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * A cached token
+     */
+    private static class TokenEntry {
+        final String mToken;
+        // the time when the token has been provided by the integration server
+        final long mCreationTime;
+
+        TokenEntry(String token, long creationTime) {
+            mToken = token;
+            mCreationTime = creationTime;
+        }
+    }
+
+    private static ScalarTokenBroker mInstance = null;
+
+    private final Context mContext;
+
+    // the cached tokens by key (see getKey())
+    private final Map<String, TokenEntry> mTokens = new HashMap<>();
+
+    // the callbacks waiting for a pending load or exchange, by key
+    private final Map<String, List<ApiCallback<String>>> mPendingCallbacks = new HashMap<>();
+
+    // the tokens generation by key, a cleared key gets a new one (see getGeneration())
+    // the results of the loads and exchanges started with an older generation are ignored
+    private final Map<String, Integer> mGenerations = new HashMap<>();
+
+    // the last provided generation, the generations are never reused
+    private int mLastGeneration = 0;
+
+    /**
+     * @param context the context
+     * @return the token broker
+     */
+    static synchronized ScalarTokenBroker getInstance(Context context) {
+        if (null == mInstance) {
+            mInstance = new ScalarTokenBroker(context.getApplicationContext());
+        }
+
+        return mInstance;
+    }
+
+    ScalarTokenBroker(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Provides the cache key of a session token.
+     *
+     * @param userId the session user id
+     * @return the key
+     */
+    private String getKey(String userId) {
+        return userId + "|" + mContext.getString(R.string.integrations_rest_url);
+    }
+
+    /**
+     * Provides the current tokens generation of a key.
+     *
+     * @param key the cache key
+     * @return the generation
+     */
+    private synchronized int getGeneration(String key) {
+        Integer generation = mGenerations.get(key);
+
+        if (null == generation) {
+            generation = ++mLastGeneration;
+            mGenerations.put(key, generation);
+        }
+
+        return generation;
+    }
+
+    /**
+     * Provides the scalar token of a session.
+     * The stored token is read and decrypted in background, the callback is called on the UI thread.
+     *
+     * @param session  the session
+     * @param callback the asynchronous callback
+     */
+    void getToken(final MXSession session, final ApiCallback<String> callback) {
+        getToken(session.getMyUserId(), session, callback);
+    }
+
+    /**
+     * Provides the scalar token of a user.
+     *
+     * @param userId   the session user id
+     * @param session  the session, only used to request a new token (see requestScalarToken())
+     * @param callback the asynchronous callback
+     */
+    void getToken(final String userId, final MXSession session, final ApiCallback<String> callback) {
+        final String key = getKey(userId);
+        final TokenEntry entry;
+        final int generation;
+        boolean startLoad = false;
+        boolean startExchange = false;
+
+        synchronized (this) {
+            entry = mTokens.get(key);
+            generation = getGeneration(key);
+
+            if ((null == entry) || (System.currentTimeMillis() - entry.mCreationTime > TOKEN_RENEWAL_AGE_MS)) {
+                List<ApiCallback<String>> callbacks = mPendingCallbacks.get(key);
+
+                if (null == callbacks) {
+                    callbacks = new ArrayList<>();
+                    mPendingCallbacks.put(key, callbacks);
+
+                    // the stored token is read before requesting a new one
+                    startLoad = (null == entry);
+                    startExchange = !startLoad;
+                }
+
+                // the callers without a token wait for the pending load or exchange
+                if ((null == entry) && (null != callback)) {
+                    callbacks.add(callback);
+                }
+            }
+        }
+
+        if (null != entry) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != callback) {
+                        callback.onSuccess(entry.mToken);
+                    }
+                }
+            });
+        }
+
+        if (startLoad) {
+            loadTokenEntry(userId, session, key, generation);
+        } else if (startExchange) {
+            Log.d(LOG_TAG, "## getToken() : renew the token of " + userId);
+            exchangeToken(session, key, generation);
+        }
+    }
+
+    /**
+     * Forget the token of a session, to force a token renewal.
+     * The pending exchange result is ignored and its callers are released.
+     *
+     * @param session the session
+     */
+    void clearToken(MXSession session) {
+        clearToken(session.getMyUserId());
+    }
+
+    /**
+     * Forget the token of a user, to force a token renewal.
+     * The pending load or exchange of this user is ignored and its callers are released,
+     * the ones of the other users go on.
+     *
+     * @param userId the session user id
+     */
+    void clearToken(String userId) {
+        String key = getKey(userId);
+        List<ApiCallback<String>> callbacks;
+
+        synchronized (this) {
+            mGenerations.remove(key);
+            mTokens.remove(key);
+            callbacks = mPendingCallbacks.remove(key);
+
+            getPreferences()
+                    .edit()
+                    .remove(SCALAR_TOKEN_RECORD_PREFERENCE_KEY + key)
+                    .remove(SCALAR_TOKEN_PREFERENCE_KEY + userId)
+                    .apply();
+        }
+
+        releaseCallbacks(callbacks);
+    }
+
+    /**
+     * Forget all the tokens (logout).
+     * The pending exchanges results are ignored and their callers are released.
+     */
+    void clear() {
+        List<ApiCallback<String>> callbacks = new ArrayList<>();
+
+        synchronized (this) {
+            mGenerations.clear();
+            mTokens.clear();
+
+            for (List<ApiCallback<String>> keyCallbacks : mPendingCallbacks.values()) {
+                callbacks.addAll(keyCallbacks);
+            }
+            mPendingCallbacks.clear();
+
+            SharedPreferences preferences = getPreferences();
+            SharedPreferences.Editor editor = preferences.edit();
+
+            for (String preferenceKey : preferences.getAll().keySet()) {
+                if (preferenceKey.startsWith(SCALAR_TOKEN_RECORD_PREFERENCE_KEY) || preferenceKey.startsWith(SCALAR_TOKEN_PREFERENCE_KEY)) {
+                    editor.remove(preferenceKey);
+                }
+            }
+
+            editor.apply();
+        }
+
+        releaseCallbacks(callbacks);
+    }
+
+    /**
+     * Warn the callers waiting for a cleared token.
+     *
+     * @param callbacks the callbacks, null if there is none
+     */
+    private void releaseCallbacks(final List<ApiCallback<String>> callbacks) {
+        if ((null == callbacks) || callbacks.isEmpty()) {
+            return;
+        }
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (ApiCallback<String> callback : callbacks) {
+                    callback.onUnexpectedError(new Exception("the scalar token has been cleared"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the stored token of a session in background, and request a new one if there is none.
+     *
+     * @param userId     the session user id
+     * @param session    the session
+     * @param key        the cache key
+     * @param generation the tokens generation when the load started
+     */
+    private void loadTokenEntry(final String userId, final MXSession session, final String key, final int generation) {
+        runInBackground("loadTokenEntry", new Runnable() {
+            @Override
+            public void run() {
+                final TokenEntry entry = readTokenEntry(userId, key, generation);
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTokenEntryLoaded(userId, session, key, generation, entry);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Provide the loaded token to the callers, and request a new one if there is none or if it is too old.
+     *
+     * @param userId     the session user id
+     * @param session    the session
+     * @param key        the cache key
+     * @param generation the tokens generation when the load started
+     * @param entry      the stored token entry, null if there is none
+     */
+    private void onTokenEntryLoaded(String userId, MXSession session, String key, int generation, TokenEntry entry) {
+        List<ApiCallback<String>> callbacks = null;
+        boolean renew = false;
+
+        synchronized (this) {
+            // the token has been cleared, the callers have been released
+            if (generation != getGeneration(key)) {
+                return;
+            }
+
+            if (null != entry) {
+                mTokens.put(key, entry);
+                callbacks = mPendingCallbacks.remove(key);
+                renew = (System.currentTimeMillis() - entry.mCreationTime > TOKEN_RENEWAL_AGE_MS);
+
+                if (renew) {
+                    mPendingCallbacks.put(key, new ArrayList<ApiCallback<String>>());
+                }
+            }
+        }
+
+        if (null == entry) {
+            Log.d(LOG_TAG, "## loadTokenEntry() : request the token of " + userId);
+            exchangeToken(session, key, generation);
+            return;
+        }
+
+        if (null != callbacks) {
+            for (ApiCallback<String> callback : callbacks) {
+                callback.onSuccess(entry.mToken);
+            }
+        }
+
+        if (renew) {
+            Log.d(LOG_TAG, "## loadTokenEntry() : renew the token of " + userId);
+            exchangeToken(session, key, generation);
+        }
+    }
+
+    /**
+     * Read the stored token of a session, the former plain text token is migrated.
+     * It is called from a background thread, without the broker lock.
+     *
+     * @param userId     the session user id
+     * @param key        the cache key
+     * @param generation the tokens generation when the load started
+     * @return the token entry, null if there is no token
+     */
+    private TokenEntry readTokenEntry(String userId, String key, int generation) {
+        SharedPreferences preferences = getPreferences();
+        String record = preferences.getString(SCALAR_TOKEN_RECORD_PREFERENCE_KEY + key, null);
+        TokenEntry entry = null;
+
+        if (null != record) {
+            entry = decodeRecord(record);
+
+            if (null == entry) {
+                preferences.edit().remove(SCALAR_TOKEN_RECORD_PREFERENCE_KEY + key).apply();
+            }
+        } else {
+            // migrate the former plain text token
+            String formerPreferenceKey = SCALAR_TOKEN_PREFERENCE_KEY + userId;
+            String token = preferences.getString(formerPreferenceKey, null);
+
+            if (null != token) {
+                // its creation time is unknown, it will be renewed in background
+                entry = new TokenEntry(token, 0);
+                writeTokenEntry(key, entry, generation);
+                preferences.edit().remove(formerPreferenceKey).apply();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Store a token entry in the preferences.
+     * The record is encrypted without the broker lock, it is not saved if the token has been cleared meanwhile.
+     *
+     * @param key        the cache key
+     * @param entry      the token entry
+     * @param generation the tokens generation of the entry
+     */
+    private void writeTokenEntry(String key, TokenEntry entry, int generation) {
+        String record = encodeRecord(entry);
+
+        if (null == record) {
+            return;
+        }
+
+        synchronized (this) {
+            if (generation == getGeneration(key)) {
+                getPreferences()
+                        .edit()
+                        .putString(SCALAR_TOKEN_RECORD_PREFERENCE_KEY + key, record)
+                        .apply();
+            }
+        }
+    }
+
+    /**
+     * Request a new scalar token, and provide it to the callers.
+     * The result is ignored if the token has been cleared meanwhile.
+     *
+     * @param session    the session
+     * @param key        the cache key
+     * @param generation the tokens generation when the exchange started
+     */
+    private void exchangeToken(MXSession session, final String key, final int generation) {
+        requestScalarToken(session, new ApiCallback<Map<String, String>>() {
+            @Override
+            public void onSuccess(Map<String, String> response) {
+                final String token = response.get("scalar_token");
+
+                if (null != token) {
+                    final TokenEntry entry = new TokenEntry(token, System.currentTimeMillis());
+
+                    synchronized (ScalarTokenBroker.this) {
+                        if (generation == getGeneration(key)) {
+                            mTokens.put(key, entry);
+                        }
+                    }
+
+                    // the keystore is not used on the UI thread
+                    runInBackground("writeTokenEntry", new Runnable() {
+                        @Override
+                        public void run() {
+                            writeTokenEntry(key, entry, generation);
+                        }
+                    });
+                }
+
+                for (ApiCallback<String> callback : takePendingCallbacks(key, generation)) {
+                    callback.onSuccess(token);
+                }
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                for (ApiCallback<String> callback : takePendingCallbacks(key, generation)) {
+                    callback.onNetworkError(e);
+                }
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                for (ApiCallback<String> callback : takePendingCallbacks(key, generation)) {
+                    callback.onMatrixError(e);
+                }
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                for (ApiCallback<String> callback : takePendingCallbacks(key, generation)) {
+                    callback.onUnexpectedError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Terminate a pending exchange.
+     *
+     * @param key        the cache key
+     * @param generation the tokens generation when the exchange started
+     * @return the callbacks waiting for it, none if the token has been cleared meanwhile
+     */
+    private synchronized List<ApiCallback<String>> takePendingCallbacks(String key, int generation) {
+        // the callers have been released by the clear, the pending callbacks belong to a newer exchange
+        if (generation != getGeneration(key)) {
+            return new ArrayList<>();
+        }
+
+        List<ApiCallback<String>> callbacks = mPendingCallbacks.remove(key);
+        return (null != callbacks) ? callbacks : new ArrayList<ApiCallback<String>>();
+    }
+
+    /**
+     * Request an OpenID token, then register it to the integration server to get a scalar token.
+     *
+     * @param session  the session
+     * @param callback the integration server response callback
+     */
+    void requestScalarToken(MXSession session, final ApiCallback<Map<String, String>> callback) {
+        session.openIdToken(new ApiCallback<Map<Object, Object>>() {
+            @Override
+            public void onSuccess(Map<Object, Object> tokensMap) {
+                new WidgetsRestClient(mContext).register(tokensMap, callback);
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                callback.onNetworkError(e);
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                callback.onMatrixError(e);
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                callback.onUnexpectedError(e);
+            }
+        });
+    }
+
+    /**
+     * @return the preferences storing the tokens
+     */
+    SharedPreferences getPreferences() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    /**
+     * Run a runnable on the IO pool.
+     *
+     * @param name     the task name, used for the metrics
+     * @param runnable the runnable
+     */
+    void runInBackground(String name, Runnable runnable) {
+        AppExecutors.execute(AppExecutors.Pool.IO, LOG_TAG + "_" + name, runnable);
+    }
+
+    /**
+     * Run a runnable on the UI thread.
+     *
+     * @param runnable the runnable
+     */
+    void runOnUiThread(Runnable runnable) {
+        AppExecutors.runOnUiThread(runnable);
+    }
+
+    /**
+     * Encode a token entry to be stored.
+     *
+     * @param entry the token entry
+     * @return the encoded record, null on failure
+     */
+    private String encodeRecord(TokenEntry entry) {
+        String value = entry.mCreationTime + ":" + entry.mToken;
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return PLAIN_VALUE_PREFIX + value;
+        }
+
+        try {
+            return ENCRYPTED_VALUE_PREFIX + encrypt(value);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## encodeRecord() failed " + e.getMessage(), e);
+        }
+
+        // the token is only kept in memory
+        return null;
+    }
+
+    /**
+     * Decode a stored token entry.
+     *
+     * @param record the stored record
+     * @return the token entry, null on failure
+     */
+    private TokenEntry decodeRecord(String record) {
+        try {
+            String value;
+
+            if (record.startsWith(ENCRYPTED_VALUE_PREFIX) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)) {
+                value = decrypt(record.substring(ENCRYPTED_VALUE_PREFIX.length()));
+            } else if (record.startsWith(PLAIN_VALUE_PREFIX)) {
+                value = record.substring(PLAIN_VALUE_PREFIX.length());
+            } else {
+                return null;
+            }
+
+            int separatorPos = value.indexOf(':');
+            return new TokenEntry(value.substring(separatorPos + 1), Long.parseLong(value.substring(0, separatorPos)));
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## decodeRecord() failed " + e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides the keystore key, it is created at the first call.
+     *
+     * @return the secret key
+     * @throws Exception if the keystore cannot be used
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey getSecretKey() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keyStore.load(null);
+
+        if (keyStore.containsAlias(KEY_ALIAS)) {
+            return ((KeyStore.SecretKeyEntry) keyStore.getEntry(KEY_ALIAS, null)).getSecretKey();
+        }
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+
+        return keyGenerator.generateKey();
+    }
+
+    /**
+     * Encrypt a value with the keystore key.
+     *
+     * @param value the value
+     * @return the base 64 of the IV and of the encrypted value
+     * @throws Exception if the encryption fails
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static String encrypt(String value) throws Exception {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getSecretKey());
+
+        byte[] iv = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(value.getBytes(UTF8));
+
+        byte[] output = new byte[iv.length + encrypted.length];
+        System.arraycopy(iv, 0, output, 0, iv.length);
+        System.arraycopy(encrypted, 0, output, iv.length, encrypted.length);
+
+        return Base64.encodeToString(output, Base64.NO_WRAP);
+    }
+
+    /**
+     * Decrypt a value encrypted by encrypt().
+     *
+     * @param encoded the encrypted value
+     * @return the value
+     * @throws Exception if the decryption fails
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static String decrypt(String encoded) throws Exception {
+        byte[] input = Base64.decode(encoded, Base64.NO_WRAP);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), new GCMParameterSpec(GCM_TAG_LENGTH_BITS, input, 0, GCM_IV_LENGTH));
+
+        byte[] decrypted = cipher.doFinal(input, GCM_IV_LENGTH, input.length - GCM_IV_LENGTH);
+
+        return new String(decrypted, UTF8);
+    }
+}
@@ -16,9 +16,8 @@
 
 package im.vector.widgets;
 
-import android.text.TextUtils;
-
 import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.MyUser;
 import org.matrix.androidsdk.rest.model.Event;
 
 import java.io.Serializable;
@@ -39,25 +38,36 @@ public class Widget implements Serializable {
      * @param widgetEvent the widget event
      */
     public Widget(MXSession session, Event widgetEvent) throws Exception {
-        if (!TextUtils.equals(widgetEvent.type, WidgetsManager.WIDGET_EVENT_TYPE)) {
+        this(session.getMyUserId(), session.getMyUser(), widgetEvent);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userId      the session user id
+     * @param myUser      the session user, its display name and its avatar are set in the url
+     * @param widgetEvent the widget event
+     */
+    Widget(String userId, MyUser myUser, Event widgetEvent) throws Exception {
+        if (!WidgetsManager.WIDGET_EVENT_TYPE.equals(widgetEvent.type)) {
             throw new Exception("unsupported event type " + widgetEvent.type);
         }
 
         mWidgetId = widgetEvent.stateKey;
         mWidgetEvent = widgetEvent;
-        mSessionId = session.getMyUserId();
+        mSessionId = userId;
 
         mWidgetContent = WidgetContent.toWidgetContent(widgetEvent.getContentAsJsonObject());
         mUrl = mWidgetContent.url;
 
         if (null != mUrl) {
             // Format the url string with user data
-            mUrl = mUrl.replace("$matrix_user_id", session.getMyUserId());
+            mUrl = mUrl.replace("$matrix_user_id", userId);
 
-            String displayName = session.getMyUser().displayname;
-            mUrl = mUrl.replace("$matrix_display_name", (null != displayName) ? displayName : session.getMyUserId());
+            String displayName = (null != myUser) ? myUser.displayname : null;
+            mUrl = mUrl.replace("$matrix_display_name", (null != displayName) ? displayName : userId);
 
-            String avatarUrl = session.getMyUser().getAvatarUrl();
+            String avatarUrl = (null != myUser) ? myUser.getAvatarUrl() : null;
             mUrl = mUrl.replace("$matrix_avatar_url", (null != avatarUrl) ? avatarUrl : "");
         }
 
@@ -100,7 +110,7 @@ public class Widget implements Serializable {
         return mWidgetEvent.roomId;
     }
 
-    private String getType() {
+    String getType() {
         return mWidgetContent.type;
     }
 
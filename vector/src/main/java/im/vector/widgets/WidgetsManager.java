@@ -18,15 +18,15 @@
 package im.vector.widgets;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
-import android.preference.PreferenceManager;
-import android.text.TextUtils;
 
 import com.google.gson.JsonObject;
 
+import org.matrix.androidsdk.MXDataHandler;
 import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.MyUser;
 import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
@@ -34,8 +34,6 @@ import org.matrix.androidsdk.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -65,11 +63,6 @@ public class WidgetsManager {
      */
     private static final String WIDGET_TYPE_JITSI = "jitsi";
 
-    /**
-     * Widget preferences
-     */
-    private static final String SCALAR_TOKEN_PREFERENCE_KEY = "SCALAR_TOKEN_PREFERENCE_KEY";
-
     /**
      * Widget error code
      */
@@ -118,91 +111,326 @@ public class WidgetsManager {
     }
 
     /**
-     * List all active widgets in a room.
+     * The widgets of a room, built from its state and updated by the live widget events.
+     */
+    private static class RoomWidgetsIndex {
+        // the room state used to build the index, the index is rebuilt when the room state is replaced
+        RoomState mRoomState;
+        // the user display name and avatar used to build the widgets urls
+        String mDisplayName;
+        String mAvatarUrl;
+        // widget id -> widget, from its latest widget event
+        final Map<String, Widget> mWidgets = new HashMap<>();
+        // the active widgets, null when they must be computed again
+        List<Widget> mActiveWidgets;
+    }
+
+    /**
+     * The widgets indexes by session user id, then by room id
+     */
+    private final Map<String, Map<String, RoomWidgetsIndex>> mRoomWidgetsIndexes = new HashMap<>();
+
+    /**
+     * The live events listeners by session user id
+     */
+    private final Map<String, MXEventListener> mLiveEventListeners = new HashMap<>();
+
+    /**
+     * The live events listener of a session, it updates the widgets indexes of this session.
+     */
+    private class SessionWidgetsListener extends MXEventListener {
+        private final String mUserId;
+        private final MXDataHandler mDataHandler;
+
+        SessionWidgetsListener(String userId, MXDataHandler dataHandler) {
+            mUserId = userId;
+            mDataHandler = dataHandler;
+        }
+
+        @Override
+        public void onLiveEvent(Event event, RoomState roomState) {
+            WidgetsManager.this.onLiveEvent(mUserId, mDataHandler.getMyUser(), event);
+        }
+
+        @Override
+        public void onRoomFlush(String roomId) {
+            // the room state may have been updated without live events
+            resetRoomWidgets(mUserId, roomId);
+        }
+
+        @Override
+        public void onJoinRoom(String roomId) {
+            resetRoomWidgets(mUserId, roomId);
+        }
+
+        @Override
+        public void onInitialSyncComplete(String toToken) {
+            resetRoomWidgets(mUserId, null);
+        }
+    }
+
+    /**
+     * Provides the live events listener which updates the widgets of a session.
      *
-     * @param session       the session.
-     * @param room          the room to check.
-     * @param widgetTypes   the widget types
-     * @param excludedTypes the excluded widget types
-     * @return the active widgets list
+     * @param session the session
+     * @return the events listener
      */
-    private List<Widget> getActiveWidgets(final MXSession session, final Room room, final Set<String> widgetTypes, final Set<String> excludedTypes) {
+    public MXEventListener getLiveEventListener(MXSession session) {
+        return getLiveEventListener(session.getMyUserId(), session.getDataHandler());
+    }
+
+    /**
+     * Provides the live events listener which updates the widgets of a session.
+     *
+     * @param userId      the session user id
+     * @param dataHandler the session data handler
+     * @return the events listener
+     */
+    MXEventListener getLiveEventListener(String userId, MXDataHandler dataHandler) {
+        synchronized (mLiveEventListeners) {
+            MXEventListener listener = mLiveEventListeners.get(userId);
+
+            if (null == listener) {
+                listener = new SessionWidgetsListener(userId, dataHandler);
+                mLiveEventListeners.put(userId, listener);
+            }
+
+            return listener;
+        }
+    }
+
+    /**
+     * Forget a session: its listener and its widgets indexes, which reference its rooms states.
+     *
+     * @param userId the session user id
+     */
+    public void removeSession(String userId) {
+        synchronized (mLiveEventListeners) {
+            mLiveEventListeners.remove(userId);
+        }
+
+        synchronized (mRoomWidgetsIndexes) {
+            mRoomWidgetsIndexes.remove(userId);
+        }
+    }
+
+    /**
+     * Create a widget from its event.
+     *
+     * @param userId      the session user id
+     * @param myUser      the session user
+     * @param widgetEvent the widget event
+     * @return the widget, null if it cannot be decoded
+     */
+    private static Widget buildWidget(String userId, MyUser myUser, Event widgetEvent) {
+        try {
+            return new Widget(userId, myUser, widgetEvent);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## getWidgets() : widget creation failed " + e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides the widgets index of a room, built from the room state if it is not yet indexed.
+     *
+     * @param userId the session user id
+     * @param myUser the session user
+     * @param room   the room
+     * @return the widgets index
+     */
+    private RoomWidgetsIndex getRoomWidgetsIndex(String userId, MyUser myUser, Room room) {
+        Map<String, RoomWidgetsIndex> sessionIndexes = mRoomWidgetsIndexes.get(userId);
+
+        if (null == sessionIndexes) {
+            sessionIndexes = new HashMap<>();
+            mRoomWidgetsIndexes.put(userId, sessionIndexes);
+        }
+
+        RoomWidgetsIndex index = sessionIndexes.get(room.getRoomId());
+
+        String displayName = (null != myUser) ? myUser.displayname : null;
+        String avatarUrl = (null != myUser) ? myUser.getAvatarUrl() : null;
+
+        if ((null != index)
+                && (index.mRoomState == room.getState())
+                && isSameString(index.mDisplayName, displayName)
+                && isSameString(index.mAvatarUrl, avatarUrl)) {
+            return index;
+        }
+
+        index = new RoomWidgetsIndex();
+        index.mRoomState = room.getState();
+        index.mDisplayName = displayName;
+        index.mAvatarUrl = avatarUrl;
+
         // Get all im.vector.modular.widgets state events in the room
         List<Event> widgetEvents = room.getState().getStateEvents(new HashSet<>(Arrays.asList(WIDGET_EVENT_TYPE)));
 
-        // Widget id -> widget
-        Map<String, Widget> widgets = new HashMap<>();
-
-        // Order widgetEvents with the last event first
         // There can be several im.vector.modular.widgets state events for a same widget but
         // only the last one must be considered.
+        Map<String, Event> lastEventByWidgetId = new HashMap<>();
 
-        Collections.sort(widgetEvents, new Comparator<Event>() {
-            @Override
-            public int compare(Event e1, Event e2) {
-                long diff = e1.getOriginServerTs() - e2.getOriginServerTs();
-                return (diff < 0) ? +1 : ((diff > 0) ? -1 : 0);
+        for (Event widgetEvent : widgetEvents) {
+            // widgetEvent.stateKey = widget id
+            if (null != widgetEvent.stateKey) {
+                Event lastEvent = lastEventByWidgetId.get(widgetEvent.stateKey);
+
+                if ((null == lastEvent) || (widgetEvent.getOriginServerTs() > lastEvent.getOriginServerTs())) {
+                    lastEventByWidgetId.put(widgetEvent.stateKey, widgetEvent);
+                }
             }
-        });
+        }
 
         // Create each widget from its latest im.vector.modular.widgets state event
-        for (Event widgetEvent : widgetEvents) {
-            // Filter widget types if required
-            if ((null != widgetTypes) || (null != excludedTypes)) {
-                String widgetType = null;
+        for (Event widgetEvent : lastEventByWidgetId.values()) {
+            if (null == widgetEvent.roomId) {
+                Log.e(LOG_TAG, "## getWidgets() : set the room id to the event " + widgetEvent.eventId);
+                widgetEvent.roomId = room.getRoomId();
+            }
 
-                try {
-                    JsonObject jsonObject = widgetEvent.getContentAsJsonObject();
+            Widget widget = buildWidget(userId, myUser, widgetEvent);
 
-                    if (jsonObject.has("type")) {
-                        widgetType = jsonObject.get("type").getAsString();
-                    }
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "## getWidgets() failed : " + e.getMessage(), e);
-                }
+            if (null != widget) {
+                index.mWidgets.put(widget.getWidgetId(), widget);
+            }
+        }
 
-                if (null != widgetType) {
-                    if ((null != widgetTypes) && !widgetTypes.contains(widgetType)) {
-                        continue;
-                    }
+        sessionIndexes.put(room.getRoomId(), index);
 
-                    if ((null != excludedTypes) && excludedTypes.contains(widgetType)) {
-                        continue;
+        return index;
+    }
+
+    private static boolean isSameString(String string1, String string2) {
+        return (null == string1) ? (null == string2) : string1.equals(string2);
+    }
+
+    /**
+     * List all active widgets in a room.
+     *
+     * @param session       the session.
+     * @param room          the room to check.
+     * @param widgetTypes   the widget types
+     * @param excludedTypes the excluded widget types
+     * @return the active widgets list
+     */
+    private List<Widget> getActiveWidgets(final MXSession session, final Room room, final Set<String> widgetTypes, final Set<String> excludedTypes) {
+        return getActiveWidgets(session.getMyUserId(), session.getMyUser(), room, widgetTypes, excludedTypes);
+    }
+
+    /**
+     * List all active widgets in a room.
+     * The widgets are read from the room index, they are not created again at each call.
+     *
+     * @param userId        the session user id
+     * @param myUser        the session user
+     * @param room          the room to check.
+     * @param widgetTypes   the widget types
+     * @param excludedTypes the excluded widget types
+     * @return the active widgets list
+     */
+    List<Widget> getActiveWidgets(String userId, MyUser myUser, Room room, Set<String> widgetTypes, Set<String> excludedTypes) {
+        List<Widget> activeWidgets;
+
+        synchronized (mRoomWidgetsIndexes) {
+            RoomWidgetsIndex index = getRoomWidgetsIndex(userId, myUser, room);
+
+            if (null == index.mActiveWidgets) {
+                index.mActiveWidgets = new ArrayList<>();
+
+                for (Widget widget : index.mWidgets.values()) {
+                    if (widget.isActive()) {
+                        index.mActiveWidgets.add(widget);
                     }
                 }
             }
 
-            // widgetEvent.stateKey = widget id
-            if ((null != widgetEvent.stateKey) && !widgets.containsKey(widgetEvent.stateKey)) {
-                Widget widget = null;
+            activeWidgets = index.mActiveWidgets;
+        }
 
-                try {
-                    if (null == widgetEvent.roomId) {
-                        Log.e(LOG_TAG, "## getWidgets() : set the room id to the event " + widgetEvent.eventId);
-                        widgetEvent.roomId = room.getRoomId();
-                    }
+        if ((null == widgetTypes) && (null == excludedTypes)) {
+            return new ArrayList<>(activeWidgets);
+        }
 
-                    widget = new Widget(session, widgetEvent);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "## getWidgets() : widget creation failed " + e.getMessage(), e);
-                }
+        // Filter widget types if required
+        List<Widget> filteredWidgets = new ArrayList<>();
 
-                if (null != widget) {
-                    widgets.put(widget.getWidgetId(), widget);
-                }
+        for (Widget widget : activeWidgets) {
+            String widgetType = widget.getType();
+
+            if ((null != widgetTypes) && !widgetTypes.contains(widgetType)) {
+                continue;
+            }
+
+            if ((null != excludedTypes) && excludedTypes.contains(widgetType)) {
+                continue;
             }
+
+            filteredWidgets.add(widget);
         }
 
-        // Return active widgets only
-        List<Widget> activeWidgets = new ArrayList<>();
+        return filteredWidgets;
+    }
+
+    /**
+     * Update the room widgets index with a live widget event.
+     *
+     * @param userId the session user id
+     * @param event  the widget event
+     * @param widget the widget built from the event, null if it cannot be decoded
+     */
+    private void updateRoomWidgetsIndex(String userId, Event event, Widget widget) {
+        if ((null == event.roomId) || (null == event.stateKey)) {
+            return;
+        }
+
+        synchronized (mRoomWidgetsIndexes) {
+            Map<String, RoomWidgetsIndex> sessionIndexes = mRoomWidgetsIndexes.get(userId);
+            RoomWidgetsIndex index = (null != sessionIndexes) ? sessionIndexes.get(event.roomId) : null;
+
+            // the index is built at the first read
+            if (null == index) {
+                return;
+            }
+
+            Widget indexedWidget = index.mWidgets.get(event.stateKey);
+
+            if ((null != indexedWidget) && (indexedWidget.getWidgetEvent().getOriginServerTs() > event.getOriginServerTs())) {
+                return;
+            }
 
-        for (Widget widget : widgets.values()) {
-            if (widget.isActive()) {
-                activeWidgets.add(widget);
+            if (null != widget) {
+                index.mWidgets.put(event.stateKey, widget);
+            } else {
+                index.mWidgets.remove(event.stateKey);
             }
+
+            index.mActiveWidgets = null;
         }
+    }
 
-        return activeWidgets;
+    /**
+     * Forget the widgets of a room, they are read again from the room state at the next call.
+     * To call when the room state is updated without live events (timeline flush, join...).
+     *
+     * @param userId the session user id
+     * @param roomId the room id, null to forget all the rooms of the session
+     */
+    void resetRoomWidgets(String userId, String roomId) {
+        synchronized (mRoomWidgetsIndexes) {
+            Map<String, RoomWidgetsIndex> sessionIndexes = mRoomWidgetsIndexes.get(userId);
+
+            if (null == sessionIndexes) {
+                return;
+            }
+
+            if (null == roomId) {
+                sessionIndexes.clear();
+            } else {
+                sessionIndexes.remove(roomId);
+            }
+        }
     }
 
     /**
@@ -436,22 +664,35 @@ public class WidgetsManager {
      * @param event   the event
      */
     public void onLiveEvent(MXSession session, Event event) {
-        if (TextUtils.equals(WIDGET_EVENT_TYPE, event.getType())) {
+        onLiveEvent(session.getMyUserId(), session.getMyUser(), event);
+    }
+
+    /**
+     * Manage the live event
+     *
+     * @param userId the session user id
+     * @param myUser the session user
+     * @param event  the event
+     */
+    void onLiveEvent(String userId, MyUser myUser, Event event) {
+        if (WIDGET_EVENT_TYPE.equals(event.getType())) {
             // stateKey = widgetId
             String widgetId = event.stateKey;
 
-            final String callbackKey = session.getMyUserId() + "_" + widgetId;
+            final String callbackKey = userId + "_" + widgetId;
 
             Log.d(LOG_TAG, "## onLiveEvent() : New widget detected: " + widgetId + " in room " + event.roomId);
 
             Widget widget = null;
 
             try {
-                widget = new Widget(session, event);
+                widget = new Widget(userId, myUser, event);
             } catch (Exception e) {
                 Log.e(LOG_TAG, "## onLiveEvent () : widget creation failed " + e.getMessage(), e);
             }
 
+            updateRoomWidgetsIndex(userId, event, widget);
+
             if (null != widget) {
                 // If it is a widget we have just created, indicate its creation is complete
                 if (mPendingWidgetCreationCallbacks.containsKey(callbackKey)) {
@@ -523,94 +764,15 @@ public class WidgetsManager {
 
 
     /**
-     * Retrieve the scalar token
+     * Retrieve the scalar token.
+     * The concurrent requests share the same token exchange (see ScalarTokenBroker).
      *
      * @param context  the context
      * @param session  the session
      * @param callback the asynchronous callback
      */
     public static void getScalarToken(final Context context, final MXSession session, final ApiCallback<String> callback) {
-        final String preferenceKey = SCALAR_TOKEN_PREFERENCE_KEY + session.getMyUserId();
-
-        final String scalarToken = PreferenceManager.getDefaultSharedPreferences(context).getString(preferenceKey, null);
-
-        if (null != scalarToken) {
-            (new Handler(Looper.getMainLooper())).post(new Runnable() {
-                @Override
-                public void run() {
-                    if (null != scalarToken) {
-                        callback.onSuccess(scalarToken);
-                    }
-                }
-            });
-        } else {
-            session.openIdToken(new ApiCallback<Map<Object, Object>>() {
-                @Override
-                public void onSuccess(Map<Object, Object> tokensMap) {
-                    WidgetsRestClient widgetsRestClient = new WidgetsRestClient(context);
-
-                    widgetsRestClient.register(tokensMap, new ApiCallback<Map<String, String>>() {
-                        @Override
-                        public void onSuccess(Map<String, String> response) {
-                            String token = response.get("scalar_token");
-
-                            if (null != token) {
-                                PreferenceManager.getDefaultSharedPreferences(context)
-                                        .edit()
-                                        .putString(preferenceKey, token)
-                                        .apply();
-                            }
-
-                            if (null != callback) {
-                                callback.onSuccess(token);
-                            }
-                        }
-
-                        @Override
-                        public void onNetworkError(Exception e) {
-                            if (null != callback) {
-                                callback.onNetworkError(e);
-                            }
-                        }
-
-                        @Override
-                        public void onMatrixError(MatrixError e) {
-                            if (null != callback) {
-                                callback.onMatrixError(e);
-                            }
-                        }
-
-                        @Override
-                        public void onUnexpectedError(Exception e) {
-                            if (null != callback) {
-                                callback.onUnexpectedError(e);
-                            }
-                        }
-                    });
-                }
-
-                @Override
-                public void onNetworkError(Exception e) {
-                    if (null != callback) {
-                        callback.onNetworkError(e);
-                    }
-                }
-
-                @Override
-                public void onMatrixError(MatrixError e) {
-                    if (null != callback) {
-                        callback.onMatrixError(e);
-                    }
-                }
-
-                @Override
-                public void onUnexpectedError(Exception e) {
-                    if (null != callback) {
-                        callback.onUnexpectedError(e);
-                    }
-                }
-            });
-        }
+        ScalarTokenBroker.getInstance(context).getToken(session, callback);
     }
 
     /**
@@ -620,11 +782,15 @@ public class WidgetsManager {
      * @param session current session, to retrieve the current user
      */
     public static void clearScalarToken(Context context, final MXSession session) {
-        final String preferenceKey = SCALAR_TOKEN_PREFERENCE_KEY + session.getMyUserId();
+        ScalarTokenBroker.getInstance(context).clearToken(session);
+    }
 
-        PreferenceManager.getDefaultSharedPreferences(context)
-                .edit()
-                .remove(preferenceKey)
-                .apply();
+    /**
+     * Clear the scalar tokens of all the users (logout).
+     *
+     * @param context Android context
+     */
+    public static void clearScalarTokens(Context context) {
+        ScalarTokenBroker.getInstance(context).clear();
     }
 }
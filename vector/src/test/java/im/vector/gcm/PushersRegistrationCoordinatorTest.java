@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.gcm;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.MatrixError;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PushersRegistrationCoordinatorTest {
+    /**
+     * A pending addPusher request
+     */
+    private static class AddPusherRequest {
+        final String mUserId;
+        final boolean mAppend;
+        final ApiCallback<Void> mCallback;
+
+        AddPusherRequest(String userId, boolean append, ApiCallback<Void> callback) {
+            mUserId = userId;
+            mAppend = append;
+            mCallback = callback;
+        }
+    }
+
+    /**
+     * A scheduled retry
+     */
+    private static class Retry {
+        final Runnable mTask;
+        final long mDelayMs;
+
+        Retry(Runnable task, long delayMs) {
+            mTask = task;
+            mDelayMs = delayMs;
+        }
+    }
+
+    private final List<AddPusherRequest> mRequests = new ArrayList<>();
+    private final List<Retry> mRetries = new ArrayList<>();
+    private boolean mIsRegistrationActive;
+
+    // the results
+    private int mRegisteredCount;
+    private int mFailedCount;
+    private MatrixError mFailureError;
+
+    private PushersRegistrationCoordinator mCoordinator;
+
+    @Before
+    public void setUp() {
+        mRequests.clear();
+        mRetries.clear();
+        mIsRegistrationActive = true;
+        mRegisteredCount = 0;
+        mFailedCount = 0;
+        mFailureError = null;
+
+        mCoordinator = new PushersRegistrationCoordinator(new PushersRegistrationCoordinator.PusherRegistrar() {
+            @Override
+            public void addPusher(String userId, boolean append, ApiCallback<Void> callback) {
+                mRequests.add(new AddPusherRequest(userId, append, callback));
+            }
+
+            @Override
+            public boolean isRegistrationActive(String userId) {
+                return mIsRegistrationActive;
+            }
+        }) {
+            @Override
+            void scheduleRetry(Runnable task, long delayMs) {
+                mRetries.add(new Retry(task, delayMs));
+            }
+        };
+    }
+
+    private void register(List<String> userIds) {
+        mCoordinator.register(userIds, new PushersRegistrationCoordinator.RegistrationListener() {
+            @Override
+            public void onRegistered() {
+                mRegisteredCount++;
+            }
+
+            @Override
+            public void onRegistrationFailed(MatrixError matrixError) {
+                mFailedCount++;
+                mFailureError = matrixError;
+            }
+        });
+    }
+
+    private Retry takeRetry() {
+        assertEquals(1, mRetries.size());
+        return mRetries.remove(0);
+    }
+
+    @Test
+    public void register_withoutSession_succeeds() {
+        register(Collections.<String>emptyList());
+
+        assertEquals(1, mRegisteredCount);
+        assertEquals(0, mFailedCount);
+    }
+
+    @Test
+    public void register_registersTheFirstSessionAlone() {
+        register(Arrays.asList("@user1:matrix.org", "@user2:matrix.org", "@user3:matrix.org"));
+
+        // the first session replaces the pushers using the same push key
+        assertEquals(1, mRequests.size());
+        assertEquals("@user1:matrix.org", mRequests.get(0).mUserId);
+        assertFalse(mRequests.get(0).mAppend);
+
+        mRequests.get(0).mCallback.onSuccess(null);
+
+        // then the other sessions are registered concurrently
+        assertEquals(3, mRequests.size());
+        assertEquals("@user2:matrix.org", mRequests.get(1).mUserId);
+        assertTrue(mRequests.get(1).mAppend);
+        assertEquals("@user3:matrix.org", mRequests.get(2).mUserId);
+        assertTrue(mRequests.get(2).mAppend);
+
+        mRequests.get(2).mCallback.onSuccess(null);
+        assertEquals(0, mRegisteredCount);
+
+        mRequests.get(1).mCallback.onSuccess(null);
+        assertEquals(1, mRegisteredCount);
+        assertEquals(0, mFailedCount);
+    }
+
+    @Test
+    public void register_stopsWhenTheFirstSessionFails() {
+        MatrixError error = new MatrixError();
+        error.errcode = MatrixError.FORBIDDEN;
+
+        register(Arrays.asList("@user1:matrix.org", "@user2:matrix.org"));
+
+        mRequests.get(0).mCallback.onMatrixError(error);
+
+        assertEquals(1, mRequests.size());
+        assertEquals(0, mRegisteredCount);
+        assertEquals(1, mFailedCount);
+        assertSame(error, mFailureError);
+    }
+
+    @Test
+    public void register_reportsTheFailureOfAnotherSession() {
+        register(Arrays.asList("@user1:matrix.org", "@user2:matrix.org", "@user3:matrix.org"));
+
+        mRequests.get(0).mCallback.onSuccess(null);
+        mRequests.get(1).mCallback.onUnexpectedError(new Exception("unexpected"));
+        assertEquals(0, mFailedCount);
+
+        mRequests.get(2).mCallback.onSuccess(null);
+
+        assertEquals(0, mRegisteredCount);
+        assertEquals(1, mFailedCount);
+        assertNull(mFailureError);
+    }
+
+    @Test
+    public void register_retriesAfterANetworkErrorWithABackoff() {
+        register(Collections.singletonList("@user1:matrix.org"));
+
+        mRequests.get(0).mCallback.onNetworkError(new Exception("network"));
+        Retry retry = takeRetry();
+        assertEquals(PushersRegistrationCoordinator.RETRY_DELAY_MS, retry.mDelayMs);
+
+        retry.mTask.run();
+        assertEquals(2, mRequests.size());
+        assertEquals("@user1:matrix.org", mRequests.get(1).mUserId);
+        assertFalse(mRequests.get(1).mAppend);
+
+        mRequests.get(1).mCallback.onNetworkError(new Exception("network"));
+        retry = takeRetry();
+        assertEquals(2 * PushersRegistrationCoordinator.RETRY_DELAY_MS, retry.mDelayMs);
+
+        retry.mTask.run();
+        mRequests.get(2).mCallback.onSuccess(null);
+
+        assertEquals(1, mRegisteredCount);
+        assertEquals(0, mFailedCount);
+    }
+
+    @Test
+    public void register_backsOffEachSessionIndependently() {
+        register(Arrays.asList("@user1:matrix.org", "@user2:matrix.org", "@user3:matrix.org"));
+
+        mRequests.get(0).mCallback.onNetworkError(new Exception("network"));
+        takeRetry().mTask.run();
+        mRequests.get(1).mCallback.onSuccess(null);
+
+        // the first session failures do not delay the other sessions retries
+        mRequests.get(2).mCallback.onNetworkError(new Exception("network"));
+        assertEquals(PushersRegistrationCoordinator.RETRY_DELAY_MS, takeRetry().mDelayMs);
+
+        mRequests.get(3).mCallback.onNetworkError(new Exception("network"));
+        Retry retry = takeRetry();
+        assertEquals(PushersRegistrationCoordinator.RETRY_DELAY_MS, retry.mDelayMs);
+
+        retry.mTask.run();
+        mRequests.get(4).mCallback.onNetworkError(new Exception("network"));
+        assertEquals(2 * PushersRegistrationCoordinator.RETRY_DELAY_MS, takeRetry().mDelayMs);
+    }
+
+    @Test
+    public void register_capsTheRetryDelay() {
+        register(Collections.singletonList("@user1:matrix.org"));
+
+        long delay = 0;
+
+        for (int i = 0; i < 20; i++) {
+            mRequests.get(i).mCallback.onNetworkError(new Exception("network"));
+            Retry retry = takeRetry();
+            assertTrue(retry.mDelayMs >= delay);
+            delay = retry.mDelayMs;
+            retry.mTask.run();
+        }
+
+        assertEquals(PushersRegistrationCoordinator.MAX_RETRY_DELAY_MS, delay);
+    }
+
+    @Test
+    public void register_startsTheBackoffAgain() {
+        register(Collections.singletonList("@user1:matrix.org"));
+
+        mRequests.get(0).mCallback.onNetworkError(new Exception("network"));
+        takeRetry().mTask.run();
+        mRequests.get(1).mCallback.onNetworkError(new Exception("network"));
+        takeRetry();
+
+        register(Collections.singletonList("@user1:matrix.org"));
+
+        mRequests.get(2).mCallback.onNetworkError(new Exception("network"));
+        assertEquals(PushersRegistrationCoordinator.RETRY_DELAY_MS, takeRetry().mDelayMs);
+    }
+
+    @Test
+    public void register_dropsTheRetryOfAnInactiveRegistration() {
+        register(Arrays.asList("@user1:matrix.org", "@user2:matrix.org"));
+
+        mRequests.get(0).mCallback.onSuccess(null);
+        mRequests.get(1).mCallback.onNetworkError(new Exception("network"));
+
+        mIsRegistrationActive = false;
+        takeRetry().mTask.run();
+
+        // no retry and no result
+        assertEquals(2, mRequests.size());
+        assertEquals(0, mRegisteredCount);
+        assertEquals(0, mFailedCount);
+    }
+
+    @Test
+    public void register_ignoresTheResultsOfACancelledRegistration() {
+        register(Arrays.asList("@user1:matrix.org", "@user2:matrix.org", "@user3:matrix.org"));
+
+        mRequests.get(0).mCallback.onSuccess(null);
+        mRequests.get(1).mCallback.onNetworkError(new Exception("network"));
+
+        mIsRegistrationActive = false;
+        takeRetry().mTask.run();
+
+        mRequests.get(2).mCallback.onMatrixError(new MatrixError());
+
+        assertEquals(0, mRegisteredCount);
+        assertEquals(0, mFailedCount);
+    }
+}
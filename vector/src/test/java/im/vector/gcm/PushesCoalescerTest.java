@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.gcm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class PushesCoalescerTest {
+    private static final int PUSHES_COUNT = 500;
+
+    // the pushes are processed in order, on the calling thread
+    private final Executor mDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<Integer> mUnreadCountUpdates = new ArrayList<>();
+    private int mCatchupsCount;
+
+    // the scheduled tasks and their virtual dates
+    private final List<Long> mDates = new ArrayList<>();
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private long mNow;
+    private boolean mIsSchedulerAvailable;
+
+    private PushesCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        mUnreadCountUpdates.clear();
+        mCatchupsCount = 0;
+        mDates.clear();
+        mTasks.clear();
+        mNow = 0;
+        mIsSchedulerAvailable = true;
+
+        mCoalescer = new PushesCoalescer(mDirectExecutor, new PushesCoalescer.Listener() {
+            @Override
+            public void onUnreadCountUpdate(int unreadCount) {
+                mUnreadCountUpdates.add(unreadCount);
+            }
+
+            @Override
+            public void onCatchupRequest() {
+                mCatchupsCount++;
+            }
+        }) {
+            @Override
+            ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+                if (!mIsSchedulerAvailable) {
+                    return null;
+                }
+
+                mDates.add(mNow + delayMs);
+                mTasks.add(task);
+                return mock(ScheduledFuture.class);
+            }
+        };
+    }
+
+    /**
+     * Move the virtual clock forward, and run the tasks which are due.
+     */
+    private void advance(long durationMs) {
+        long end = mNow + durationMs;
+
+        while (!mDates.isEmpty() && (mDates.get(0) <= end)) {
+            mNow = mDates.remove(0);
+            mTasks.remove(0).run();
+        }
+
+        mNow = end;
+    }
+
+    /**
+     * Simulate a push as the service processes it.
+     */
+    private void push(String eventId, int unreadCount) {
+        mCoalescer.onUnreadCount(unreadCount);
+
+        if (!mCoalescer.isDuplicatedPush(eventId)) {
+            mCoalescer.onCatchupRequest();
+        }
+    }
+
+    @Test
+    public void pushes_areCoalescedOncePerWindow() {
+        // 500 pushes, 10 ms apart, each event is pushed twice
+        for (int i = 0; i < PUSHES_COUNT; i++) {
+            push("$event" + (i / 2), i);
+            advance(10);
+        }
+
+        advance(PushesCoalescer.COALESCING_DELAY_MS);
+
+        // 5 s of pushes give 10 coalescing windows
+        long windowsCount = PUSHES_COUNT * 10 / PushesCoalescer.COALESCING_DELAY_MS;
+
+        assertEquals(windowsCount, mUnreadCountUpdates.size());
+        assertEquals(windowsCount, mCatchupsCount);
+
+        // each window ends with the latest pushed unread count
+        int pushesPerWindow = (int) (PushesCoalescer.COALESCING_DELAY_MS / 10);
+
+        for (int i = 0; i < mUnreadCountUpdates.size(); i++) {
+            assertEquals((i + 1) * pushesPerWindow - 1, (int) mUnreadCountUpdates.get(i));
+        }
+
+        assertTrue(mTasks.isEmpty());
+    }
+
+    @Test
+    public void duplicatedPushes_doNotTriggerACatchup() {
+        push("$event", 1);
+        advance(PushesCoalescer.COALESCING_DELAY_MS);
+
+        assertEquals(1, mCatchupsCount);
+
+        // the same event is pushed again in the next burst: only the badge is updated
+        for (int i = 0; i < PUSHES_COUNT; i++) {
+            push("$event", 2);
+        }
+
+        advance(PushesCoalescer.COALESCING_DELAY_MS);
+
+        assertEquals(1, mCatchupsCount);
+        assertEquals(2, mUnreadCountUpdates.size());
+        assertEquals(2, (int) mUnreadCountUpdates.get(1));
+    }
+
+    @Test
+    public void isDuplicatedPush_forgetsTheOldestEventIds() {
+        for (int i = 0; i < PUSHES_COUNT; i++) {
+            assertFalse(mCoalescer.isDuplicatedPush("$event" + i));
+        }
+
+        // the latest ones are remembered
+        for (int i = PUSHES_COUNT - PushesCoalescer.MAX_RECENT_EVENT_IDS; i < PUSHES_COUNT; i++) {
+            assertTrue(mCoalescer.isDuplicatedPush("$event" + i));
+        }
+
+        // the oldest ones are forgotten
+        assertFalse(mCoalescer.isDuplicatedPush("$event0"));
+    }
+
+    @Test
+    public void pushes_areFlushedImmediatelyWithoutScheduler() {
+        mIsSchedulerAvailable = false;
+
+        for (int i = 0; i < PUSHES_COUNT; i++) {
+            push("$event" + i, i);
+        }
+
+        assertEquals(PUSHES_COUNT, mUnreadCountUpdates.size());
+        assertEquals(PUSHES_COUNT, mCatchupsCount);
+        assertEquals(PUSHES_COUNT - 1, (int) mUnreadCountUpdates.get(PUSHES_COUNT - 1));
+    }
+}
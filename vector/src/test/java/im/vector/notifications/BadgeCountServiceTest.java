@@ -0,0 +1,307 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.notifications;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.BingRulesManager;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BadgeCountServiceTest {
+    private static final String USER_ID = "@alice:matrix.org";
+
+    // the launcher badge writes
+    private final List<Integer> mWrittenBadgeCounts = new ArrayList<>();
+
+    // the scheduled tasks and their virtual dates
+    private final List<Long> mDates = new ArrayList<>();
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private long mNow;
+
+    private boolean mIsBadgeCountPushed;
+
+    private BadgeCountService mService;
+
+    @Before
+    public void setUp() {
+        mWrittenBadgeCounts.clear();
+        mDates.clear();
+        mTasks.clear();
+        mNow = 1000000L;
+        mIsBadgeCountPushed = false;
+
+        mService = new BadgeCountService(mock(Context.class)) {
+            @Override
+            boolean isBadgeCountPushed() {
+                return mIsBadgeCountPushed;
+            }
+
+            @Override
+            long elapsedRealtime() {
+                return mNow;
+            }
+
+            @Override
+            ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+                mDates.add(mNow + delayMs);
+                mTasks.add(task);
+                return mock(ScheduledFuture.class);
+            }
+
+            @Override
+            void cancel(ScheduledFuture<?> future) {
+                mDates.clear();
+                mTasks.clear();
+            }
+
+            @Override
+            void writeToLauncher(int badgeCount) {
+                mWrittenBadgeCounts.add(badgeCount);
+            }
+        };
+    }
+
+    /**
+     * Move the virtual clock forward, and run the tasks which are due.
+     */
+    private void advance(long durationMs) {
+        long end = mNow + durationMs;
+
+        while (!mDates.isEmpty() && (mDates.get(0) <= end)) {
+            mNow = mDates.remove(0);
+            mTasks.remove(0).run();
+        }
+
+        mNow = end;
+    }
+
+    /**
+     * A session store with joined rooms.
+     */
+    private static class SessionRooms {
+        final Map<String, Room> mRooms = new HashMap<>();
+        final IMXStore mStore = mock(IMXStore.class);
+        final BingRulesManager mBingRulesManager = mock(BingRulesManager.class);
+        final MXDataHandler mDataHandler = mock(MXDataHandler.class);
+
+        SessionRooms() {
+            when(mStore.getRooms()).thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    return new ArrayList<>(mRooms.values());
+                }
+            });
+            when(mStore.getRoom(anyString())).thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    return mRooms.get(invocation.<String>getArgument(0));
+                }
+            });
+
+            when(mDataHandler.isAlive()).thenReturn(true);
+            when(mDataHandler.getStore()).thenReturn(mStore);
+            when(mDataHandler.getBingRulesManager()).thenReturn(mBingRulesManager);
+        }
+
+        Room addRoom(String roomId, int notificationCount, int highlightCount) {
+            Room room = mock(Room.class);
+            when(room.getRoomId()).thenReturn(roomId);
+            setCounts(room, notificationCount, highlightCount);
+            mRooms.put(roomId, room);
+            return room;
+        }
+    }
+
+    private static void setCounts(Room room, int notificationCount, int highlightCount) {
+        when(room.getNotificationCount()).thenReturn(notificationCount);
+        when(room.getHighlightCount()).thenReturn(highlightCount);
+    }
+
+    private static void onLiveEvent(MXEventListener listener, String roomId) {
+        Event event = new Event();
+        event.roomId = roomId;
+        listener.onLiveEvent(event, null);
+    }
+
+    @Test
+    public void setBadgeCount_writesAtMostOncePerInterval() {
+        // a new badge value every 10 ms during 10 s
+        for (int i = 1; i <= 1000; i++) {
+            mService.setBadgeCount(i);
+            advance(10);
+        }
+
+        advance(BadgeCountService.MIN_WRITE_INTERVAL_MS);
+
+        assertTrue(mWrittenBadgeCounts.size() <= 10 * 1000 / BadgeCountService.MIN_WRITE_INTERVAL_MS + 1);
+
+        // the latest value is written
+        assertEquals(1000, (int) mWrittenBadgeCounts.get(mWrittenBadgeCounts.size() - 1));
+        assertEquals(1000, mService.getBadgeCount());
+    }
+
+    @Test
+    public void setBadgeCount_writesAtOnceAfterAQuietInterval() {
+        mService.setBadgeCount(1);
+        assertEquals(1, mWrittenBadgeCounts.size());
+
+        advance(BadgeCountService.MIN_WRITE_INTERVAL_MS);
+
+        mService.setBadgeCount(2);
+        assertEquals(2, mWrittenBadgeCounts.size());
+        assertEquals(2, (int) mWrittenBadgeCounts.get(1));
+
+        // the same value is not written again
+        advance(BadgeCountService.MIN_WRITE_INTERVAL_MS);
+        mService.setBadgeCount(2);
+        assertEquals(2, mWrittenBadgeCounts.size());
+    }
+
+    @Test
+    public void setBadgeCount_skipsTheIntermediateValues() {
+        mService.setBadgeCount(1);
+        mService.setBadgeCount(2);
+        mService.setBadgeCount(1);
+
+        // the written value is restored before the end of the interval: no write
+        advance(BadgeCountService.MIN_WRITE_INTERVAL_MS);
+        assertEquals(1, mWrittenBadgeCounts.size());
+    }
+
+    @Test
+    public void clearBadgeCount_writesAtOnce() {
+        mService.setBadgeCount(5);
+        mService.setBadgeCount(6);
+
+        mService.clearBadgeCount();
+
+        assertEquals(2, mWrittenBadgeCounts.size());
+        assertEquals(0, (int) mWrittenBadgeCounts.get(1));
+
+        // the pending write is cancelled
+        advance(BadgeCountService.MIN_WRITE_INTERVAL_MS);
+        assertEquals(2, mWrittenBadgeCounts.size());
+    }
+
+    @Test
+    public void liveEvents_updateOnlyTheUpdatedRooms() {
+        SessionRooms sessionRooms = new SessionRooms();
+
+        for (int i = 0; i < 3000; i++) {
+            sessionRooms.addRoom("!room" + i, (0 == (i % 3)) ? 1 : 0, 0);
+        }
+
+        MXEventListener listener = mService.getLiveEventListener(USER_ID, sessionRooms.mDataHandler);
+        listener.onInitialSyncComplete(null);
+
+        assertEquals(1000, mService.getUnreadRoomsCount());
+        assertEquals(1000, mService.getBadgeCount());
+        verify(sessionRooms.mStore, times(1)).getRooms();
+
+        // a chunk updates a single room
+        clearInvocations(sessionRooms.mStore);
+        setCounts(sessionRooms.mRooms.get("!room1"), 2, 0);
+
+        onLiveEvent(listener, "!room1");
+        listener.onLiveEventsChunkProcessed(null, null);
+
+        assertEquals(1001, mService.getUnreadRoomsCount());
+        verify(sessionRooms.mStore, never()).getRooms();
+        verify(sessionRooms.mStore, times(1)).getRoom(anyString());
+
+        // the room is read
+        setCounts(sessionRooms.mRooms.get("!room1"), 0, 0);
+        listener.onReceiptEvent("!room1", null);
+        listener.onLiveEventsChunkProcessed(null, null);
+
+        assertEquals(1000, mService.getUnreadRoomsCount());
+        verify(sessionRooms.mStore, never()).getRooms();
+        verify(sessionRooms.mStore, times(2)).getRoom(anyString());
+    }
+
+    @Test
+    public void unreadRoomsCount_countsTheInvitationsAndTheMentionOnlyRooms() {
+        SessionRooms sessionRooms = new SessionRooms();
+        when(sessionRooms.addRoom("!invitation", 0, 0).isInvited()).thenReturn(true);
+        sessionRooms.addRoom("!mentionOnly", 3, 0);
+        sessionRooms.addRoom("!mentionOnlyHighlighted", 3, 1);
+        when(sessionRooms.mBingRulesManager.isRoomMentionOnly("!mentionOnly")).thenReturn(true);
+        when(sessionRooms.mBingRulesManager.isRoomMentionOnly("!mentionOnlyHighlighted")).thenReturn(true);
+
+        mService.getLiveEventListener(USER_ID, sessionRooms.mDataHandler).onInitialSyncComplete(null);
+
+        assertEquals(2, mService.getUnreadRoomsCount());
+    }
+
+    @Test
+    public void unreadRoomsCount_isTheTotalOfTheSessions() {
+        SessionRooms sessionRooms1 = new SessionRooms();
+        sessionRooms1.addRoom("!room1", 1, 0);
+
+        SessionRooms sessionRooms2 = new SessionRooms();
+        sessionRooms2.addRoom("!room2", 1, 0);
+        sessionRooms2.addRoom("!room3", 1, 0);
+
+        mService.getLiveEventListener(USER_ID, sessionRooms1.mDataHandler).onInitialSyncComplete(null);
+        mService.getLiveEventListener("@bob:matrix.org", sessionRooms2.mDataHandler).onInitialSyncComplete(null);
+
+        assertEquals(3, mService.getUnreadRoomsCount());
+
+        mService.removeSession("@bob:matrix.org");
+
+        assertEquals(1, mService.getUnreadRoomsCount());
+        assertEquals(1, mService.getBadgeCount());
+    }
+
+    @Test
+    public void refreshBadgeCount_keepsThePushedBadgeValue() {
+        SessionRooms sessionRooms = new SessionRooms();
+        sessionRooms.addRoom("!room1", 1, 0);
+
+        mIsBadgeCountPushed = true;
+        mService.setBadgeCount(7);
+
+        mService.getLiveEventListener(USER_ID, sessionRooms.mDataHandler).onInitialSyncComplete(null);
+
+        assertEquals(1, mService.getUnreadRoomsCount());
+        assertEquals(7, mService.getBadgeCount());
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.notifications;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import im.vector.test.InMemorySharedPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class NotifiedEventIdsTest {
+    private InMemorySharedPreferences mPreferences;
+
+    // the fake clock
+    private long mNow;
+
+    // the scheduled saves, run manually
+    private final List<Runnable> mScheduledSaves = new ArrayList<>();
+    private boolean mIsSchedulerAvailable;
+
+    @Before
+    public void setUp() {
+        mPreferences = new InMemorySharedPreferences();
+        mNow = 1000000L;
+        mScheduledSaves.clear();
+        mIsSchedulerAvailable = true;
+    }
+
+    private NotifiedEventIds createNotifiedEventIds() {
+        return new NotifiedEventIds(mPreferences) {
+            @Override
+            long currentTimeMillis() {
+                return mNow;
+            }
+
+            @Override
+            ScheduledFuture<?> scheduleSave(Runnable task, long delayMs) {
+                if (!mIsSchedulerAvailable) {
+                    return null;
+                }
+
+                assertEquals(SAVE_DELAY_MS, delayMs);
+                mScheduledSaves.add(task);
+                return mock(ScheduledFuture.class);
+            }
+
+            @Override
+            void cancelSave(ScheduledFuture<?> future) {
+            }
+        };
+    }
+
+    private void runScheduledSaves() {
+        List<Runnable> saves = new ArrayList<>(mScheduledSaves);
+        mScheduledSaves.clear();
+
+        for (Runnable save : saves) {
+            save.run();
+        }
+    }
+
+    @Test
+    public void add_rejectsDuplicatedIds() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        assertTrue(ids.add("$event1"));
+        assertTrue(ids.add("$event2"));
+        assertFalse(ids.add("$event1"));
+        assertEquals(2, ids.size());
+    }
+
+    @Test
+    public void add_forgetsTheOldestIdWhenFull() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        for (int i = 0; i < NotifiedEventIds.MAX_COUNT; i++) {
+            assertTrue(ids.add("$event" + i));
+        }
+
+        assertEquals(NotifiedEventIds.MAX_COUNT, ids.size());
+
+        assertTrue(ids.add("$newEvent"));
+        assertEquals(NotifiedEventIds.MAX_COUNT, ids.size());
+
+        // the oldest id has been forgotten, the next one is still tracked
+        assertTrue(ids.add("$event0"));
+        assertFalse(ids.add("$event2"));
+    }
+
+    @Test
+    public void add_forgetsTheExpiredIds() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        ids.add("$event1");
+        mNow += NotifiedEventIds.MAX_AGE_MS / 2;
+        ids.add("$event2");
+
+        mNow += NotifiedEventIds.MAX_AGE_MS / 2 + 1;
+
+        assertTrue(ids.add("$event1"));
+        assertFalse(ids.add("$event2"));
+        assertEquals(2, ids.size());
+    }
+
+    @Test
+    public void load_restoresTheSavedIds() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+        ids.add("$event1");
+        mNow += NotifiedEventIds.MAX_AGE_MS / 2;
+        ids.add("$event2");
+        ids.flush();
+
+        NotifiedEventIds reloadedIds = createNotifiedEventIds();
+        assertEquals(2, reloadedIds.size());
+        assertFalse(reloadedIds.add("$event1"));
+        assertFalse(reloadedIds.add("$event2"));
+    }
+
+    @Test
+    public void load_ignoresTheExpiredIds() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+        ids.add("$event1");
+        mNow += NotifiedEventIds.MAX_AGE_MS / 2;
+        ids.add("$event2");
+        ids.flush();
+
+        mNow += NotifiedEventIds.MAX_AGE_MS / 2 + 1;
+
+        NotifiedEventIds reloadedIds = createNotifiedEventIds();
+        assertEquals(1, reloadedIds.size());
+        assertTrue(reloadedIds.add("$event1"));
+    }
+
+    @Test
+    public void add_batchesTheSaves() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        ids.add("$event1");
+        ids.add("$event2");
+        ids.add("$event3");
+
+        // a single save is scheduled
+        assertEquals(0, mPreferences.getWritesCount());
+        assertEquals(1, mScheduledSaves.size());
+
+        runScheduledSaves();
+        assertEquals(1, mPreferences.getWritesCount());
+        assertEquals(3, createNotifiedEventIds().size());
+
+        // a duplicated id is not saved
+        ids.add("$event1");
+        assertEquals(0, mScheduledSaves.size());
+    }
+
+    @Test
+    public void add_savesWhenTheBatchIsFull() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        for (int i = 0; i < NotifiedEventIds.SAVE_BATCH_SIZE; i++) {
+            ids.add("$event" + i);
+        }
+
+        assertEquals(1, mPreferences.getWritesCount());
+        assertEquals(NotifiedEventIds.SAVE_BATCH_SIZE, createNotifiedEventIds().size());
+
+        // the scheduled save has nothing to write
+        runScheduledSaves();
+        assertEquals(1, mPreferences.getWritesCount());
+    }
+
+    @Test
+    public void add_savesNowWhenTheSaveCannotBeScheduled() {
+        mIsSchedulerAvailable = false;
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        ids.add("$event1");
+        ids.add("$event2");
+
+        assertEquals(2, mPreferences.getWritesCount());
+    }
+
+    @Test
+    public void flush_savesTheUnsavedIdsOnce() {
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        ids.add("$event1");
+        ids.flush();
+        ids.flush();
+
+        assertEquals(1, mPreferences.getWritesCount());
+        assertEquals(1, createNotifiedEventIds().size());
+    }
+
+    @Test
+    public void add_isBoundedAfterAMillionIds() {
+        final int idsCount = 1000000;
+        NotifiedEventIds ids = createNotifiedEventIds();
+
+        // a notification every 50 ms during more than half a day, the ids do not expire
+        for (int i = 0; i < idsCount; i++) {
+            assertTrue(ids.add("$event" + i));
+            mNow += 50;
+        }
+
+        ids.flush();
+
+        // the tracked ids are bounded
+        assertEquals(NotifiedEventIds.MAX_COUNT, ids.size());
+
+        // the latest ids are still tracked, the older ones have been forgotten
+        assertFalse(ids.add("$event" + (idsCount - 1)));
+        assertFalse(ids.add("$event" + (idsCount - NotifiedEventIds.MAX_COUNT)));
+        assertTrue(ids.add("$event" + (idsCount - NotifiedEventIds.MAX_COUNT - 1)));
+        assertTrue(ids.add("$event0"));
+        assertEquals(NotifiedEventIds.MAX_COUNT, ids.size());
+
+        // the saved ids are bounded too
+        for (Object value : mPreferences.getAll().values()) {
+            assertTrue(((String) value).split("\n").length <= NotifiedEventIds.MAX_COUNT);
+        }
+
+        assertEquals(NotifiedEventIds.MAX_COUNT, createNotifiedEventIds().size());
+
+        // the saves are batched
+        assertTrue(mPreferences.getWritesCount() <= idsCount / NotifiedEventIds.SAVE_BATCH_SIZE + 1);
+    }
+}
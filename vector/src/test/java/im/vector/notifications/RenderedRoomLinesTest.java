@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.notifications;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class RenderedRoomLinesTest {
+    private static final int ROOMS_COUNT = 200;
+    private static final String USER_ID = "@alice:matrix.org";
+
+    private RenderedRoomLines mLines;
+    private int mRendersCount;
+
+    // the latest notified event of each room
+    private final List<Event> mLatestEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mLines = new RenderedRoomLines();
+        mRendersCount = 0;
+        mLatestEvents.clear();
+
+        for (int i = 0; i < ROOMS_COUNT; i++) {
+            mLatestEvents.add(createEvent("$event" + i));
+        }
+    }
+
+    private static Event createEvent(String eventId) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        return event;
+    }
+
+    private static String roomId(int index) {
+        return "!room" + index + ":matrix.org";
+    }
+
+    /**
+     * Get the lines of all the rooms, as the multi rooms notification does.
+     */
+    private List<RenderedRoomLines.RenderedRoomLine> renderAll(String userId) {
+        List<RenderedRoomLines.RenderedRoomLine> lines = new ArrayList<>();
+
+        for (int i = 0; i < ROOMS_COUNT; i++) {
+            final Event latestEvent = mLatestEvents.get(i);
+            final String roomName = "Room " + i;
+
+            lines.add(mLines.getLine(userId, roomId(i), latestEvent, "Bob", 1, roomName, false, new RenderedRoomLines.Renderer() {
+                @Override
+                public RenderedRoomLines.RenderedRoomLine render() {
+                    mRendersCount++;
+
+                    RenderedRoomLines.RenderedRoomLine line = new RenderedRoomLines.RenderedRoomLine();
+                    line.mLatestEventId = latestEvent.eventId;
+                    line.mIsLatestEventRedacted = latestEvent.isRedacted();
+                    line.mIsLatestEventUndecrypted = RenderedRoomLines.RenderedRoomLine.isUndecrypted(latestEvent);
+                    line.mSenderName = "Bob";
+                    line.mNotifiedEventsCount = 1;
+                    line.mRoomName = roomName;
+                    line.mIsInvited = false;
+                    return line;
+                }
+            }));
+        }
+
+        return lines;
+    }
+
+    @Test
+    public void getLine_rendersEachRoomOnce() {
+        List<RenderedRoomLines.RenderedRoomLine> lines = renderAll(USER_ID);
+        assertEquals(ROOMS_COUNT, mRendersCount);
+
+        // nothing has changed
+        for (int i = 0; i < 10; i++) {
+            List<RenderedRoomLines.RenderedRoomLine> cachedLines = renderAll(USER_ID);
+
+            for (int j = 0; j < ROOMS_COUNT; j++) {
+                assertSame(lines.get(j), cachedLines.get(j));
+            }
+        }
+
+        assertEquals(ROOMS_COUNT, mRendersCount);
+    }
+
+    @Test
+    public void getLine_rendersTheUpdatedRoomsOnly() {
+        renderAll(USER_ID);
+
+        // a new message in a room
+        mLatestEvents.set(10, createEvent("$event10bis"));
+        renderAll(USER_ID);
+
+        assertEquals(ROOMS_COUNT + 1, mRendersCount);
+
+        // a room name update
+        RenderedRoomLines.RenderedRoomLine line = renderAll(USER_ID).get(20);
+        RenderedRoomLines.RenderedRoomLine renamedLine = mLines.getLine(USER_ID, roomId(20), mLatestEvents.get(20), "Bob", 1, "Renamed", false,
+                new RenderedRoomLines.Renderer() {
+                    @Override
+                    public RenderedRoomLines.RenderedRoomLine render() {
+                        mRendersCount++;
+                        return new RenderedRoomLines.RenderedRoomLine();
+                    }
+                });
+
+        assertNotSame(line, renamedLine);
+        assertEquals(ROOMS_COUNT + 2, mRendersCount);
+    }
+
+    @Test
+    public void getLine_keepsTheSessionsApart() {
+        List<RenderedRoomLines.RenderedRoomLine> aliceLines = renderAll(USER_ID);
+
+        // another session shares the same rooms ids
+        List<RenderedRoomLines.RenderedRoomLine> bobLines = renderAll("@bob:matrix.org");
+
+        assertEquals(2 * ROOMS_COUNT, mRendersCount);
+
+        for (int i = 0; i < ROOMS_COUNT; i++) {
+            assertNotSame(aliceLines.get(i), bobLines.get(i));
+        }
+
+        // the second session did not evict the first one lines
+        renderAll(USER_ID);
+        assertEquals(2 * ROOMS_COUNT, mRendersCount);
+    }
+
+    @Test
+    public void retainRooms_forgetsTheReadRooms() {
+        renderAll(USER_ID);
+        renderAll("@bob:matrix.org");
+
+        List<String> roomIds = new ArrayList<>();
+
+        for (int i = 0; i < ROOMS_COUNT / 2; i++) {
+            roomIds.add(roomId(i));
+        }
+
+        mLines.retainRooms(USER_ID, roomIds);
+        renderAll(USER_ID);
+
+        // the forgotten rooms have been rendered again, the other session is untouched
+        assertEquals(2 * ROOMS_COUNT + ROOMS_COUNT / 2, mRendersCount);
+
+        renderAll("@bob:matrix.org");
+        assertEquals(2 * ROOMS_COUNT + ROOMS_COUNT / 2, mRendersCount);
+    }
+
+    @Test
+    public void clear_forgetsAllTheLines() {
+        renderAll(USER_ID);
+        mLines.clear();
+        renderAll(USER_ID);
+
+        assertEquals(2 * ROOMS_COUNT, mRendersCount);
+    }
+}
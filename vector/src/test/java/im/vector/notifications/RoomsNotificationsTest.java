@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.notifications;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RoomsNotificationsTest {
+    private static final String FILE_NAME = "ROOMS_NOTIFICATIONS_FILE_NAME";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Context mContext;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        File cacheDir = mFolder.newFolder("cache");
+        mFile = new File(cacheDir, FILE_NAME);
+
+        mContext = mock(Context.class);
+        when(mContext.getApplicationContext()).thenReturn(mContext);
+        when(mContext.getCacheDir()).thenReturn(cacheDir);
+
+        RoomsNotifications.deleteCachedRoomNotifications(mContext);
+    }
+
+    private static RoomsNotifications create(String summaryText, int roomsCount) {
+        RoomsNotifications roomsNotifications = new RoomsNotifications();
+        roomsNotifications.mSessionId = "@alice:matrix.org";
+        roomsNotifications.mRoomId = "!room0:matrix.org";
+        roomsNotifications.mSummaryText = summaryText;
+        roomsNotifications.mQuickReplyBody = null;
+        roomsNotifications.mWearableMessage = "Bob: hello";
+        roomsNotifications.mIsInvitationEvent = true;
+        roomsNotifications.mContentTs = 1234567890L;
+        roomsNotifications.mContentTitle = "Room 0";
+        roomsNotifications.mContentText = "hello \u00e9\u00e8 \ud83d\ude00";
+        roomsNotifications.mSenderName = "Bob";
+
+        for (int i = 0; i < roomsCount; i++) {
+            RoomNotifications roomNotifications = new RoomNotifications();
+            roomNotifications.mRoomId = "!room" + i + ":matrix.org";
+            roomNotifications.mRoomName = "Room " + i;
+            roomNotifications.mMessageHeader = "Room " + i + ": ";
+            roomNotifications.mMessagesSummary = "Room " + i + ": " + i + " messages";
+            roomNotifications.mLatestEventTs = i;
+            roomNotifications.mSenderName = (0 == (i % 2)) ? null : "Bob";
+            roomNotifications.mUnreadMessagesCount = i;
+            roomsNotifications.mRoomNotifications.add(roomNotifications);
+        }
+
+        roomsNotifications.mReversedMessagesList.add("Bob: hello");
+        roomsNotifications.mReversedMessagesList.add(null);
+
+        return roomsNotifications;
+    }
+
+    private static byte[] serialise(RoomsNotifications roomsNotifications) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        roomsNotifications.writeTo(out);
+        out.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static RoomsNotifications deserialise(byte[] content) throws IOException {
+        RoomsNotifications roomsNotifications = new RoomsNotifications();
+        roomsNotifications.readFrom(new DataInputStream(new ByteArrayInputStream(content)));
+        return roomsNotifications;
+    }
+
+    private void writeFile(byte[] content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(mFile);
+        outputStream.write(content);
+        outputStream.close();
+    }
+
+    @Test
+    public void writeTo_roundTrips() throws Exception {
+        RoomsNotifications roomsNotifications = create("10 messages in 3 rooms", 3);
+        RoomsNotifications readNotifications = deserialise(serialise(roomsNotifications));
+
+        assertEquals(roomsNotifications.mSessionId, readNotifications.mSessionId);
+        assertEquals(roomsNotifications.mRoomId, readNotifications.mRoomId);
+        assertEquals(roomsNotifications.mSummaryText, readNotifications.mSummaryText);
+        assertNull(readNotifications.mQuickReplyBody);
+        assertEquals(roomsNotifications.mWearableMessage, readNotifications.mWearableMessage);
+        assertTrue(readNotifications.mIsInvitationEvent);
+        assertEquals(roomsNotifications.mContentTs, readNotifications.mContentTs);
+        assertEquals(roomsNotifications.mContentTitle, readNotifications.mContentTitle);
+        assertEquals(roomsNotifications.mContentText, readNotifications.mContentText);
+        assertEquals(roomsNotifications.mSenderName, readNotifications.mSenderName);
+
+        assertEquals(3, readNotifications.mRoomNotifications.size());
+
+        for (int i = 0; i < 3; i++) {
+            RoomNotifications expected = roomsNotifications.mRoomNotifications.get(i);
+            RoomNotifications read = readNotifications.mRoomNotifications.get(i);
+
+            assertEquals(expected.mRoomId, read.mRoomId);
+            assertEquals(expected.mRoomName, read.mRoomName);
+            assertEquals(expected.mMessageHeader, read.mMessageHeader);
+            assertEquals(expected.mMessagesSummary.toString(), read.mMessagesSummary.toString());
+            assertEquals(expected.mLatestEventTs, read.mLatestEventTs);
+            assertEquals(expected.mSenderName, read.mSenderName);
+            assertEquals(expected.mUnreadMessagesCount, read.mUnreadMessagesCount);
+        }
+
+        assertEquals(Arrays.<CharSequence>asList("Bob: hello", null), readNotifications.mReversedMessagesList);
+
+        // the same content gives the same bytes
+        assertTrue(Arrays.equals(serialise(roomsNotifications), serialise(readNotifications)));
+    }
+
+    @Test
+    public void readFrom_rejectsTheTruncatedContents() throws Exception {
+        byte[] content = serialise(create("summary", 3));
+
+        for (int length = 0; length < content.length; length++) {
+            try {
+                deserialise(Arrays.copyOf(content, length));
+                fail("the truncated content must be rejected");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void readFrom_rejectsTheHugeStringLengths() throws Exception {
+        byte[] content = serialise(create("summary", 1));
+
+        // the session id length follows the header
+        content[8] = 0x7f;
+
+        try {
+            deserialise(content);
+            fail("the corrupted content must be rejected");
+        } catch (IOException e) {
+            // expected, without allocating 2 GB
+        }
+    }
+
+    @Test
+    public void loadRoomsNotifications_deletesTheCorruptedFiles() throws Exception {
+        writeFile("not a notifications file".getBytes("UTF-8"));
+
+        assertNull(RoomsNotifications.loadRoomsNotifications(mContext));
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void saveRoomNotifications_roundTrips() throws Exception {
+        RoomsNotifications.saveRoomNotifications(mContext, create("summary", 3));
+
+        RoomsNotifications roomsNotifications = RoomsNotifications.loadRoomsNotifications(mContext);
+
+        assertNotNull(roomsNotifications);
+        assertEquals("summary", roomsNotifications.mSummaryText);
+        assertEquals(3, roomsNotifications.mRoomNotifications.size());
+
+        // no temporary file is left
+        assertEquals(1, mFile.getParentFile().listFiles().length);
+    }
+
+    @Test
+    public void saveRoomNotifications_doesNotRewriteAnUnchangedContent() throws Exception {
+        RoomsNotifications.saveRoomNotifications(mContext, create("summary", 3));
+        assertTrue(mFile.setLastModified(1000));
+
+        // the same content is saved on each notification refresh
+        for (int i = 0; i < 100; i++) {
+            RoomsNotifications.saveRoomNotifications(mContext, create("summary", 3));
+        }
+
+        assertEquals(1000, mFile.lastModified());
+
+        // a new content is written
+        RoomsNotifications.saveRoomNotifications(mContext, create("another summary", 3));
+        assertTrue(1000 != mFile.lastModified());
+    }
+
+    @Test
+    public void loadRoomsNotifications_seedsTheSavedContentHash() throws Exception {
+        byte[] content = serialise(create("loaded summary", 2));
+
+        // the saved hash is the one of another content
+        RoomsNotifications.saveRoomNotifications(mContext, create("summary", 3));
+        writeFile(content);
+
+        // after a restart, the loaded content is saved again as is
+        RoomsNotifications roomsNotifications = RoomsNotifications.loadRoomsNotifications(mContext);
+        assertTrue(mFile.setLastModified(1000));
+
+        RoomsNotifications.saveRoomNotifications(mContext, roomsNotifications);
+
+        assertEquals(1000, mFile.lastModified());
+    }
+
+    @Test
+    public void saveRoomNotifications_deletesTheFileWithoutNotifications() throws Exception {
+        RoomsNotifications.saveRoomNotifications(mContext, create("summary", 3));
+        RoomsNotifications.saveRoomNotifications(mContext, create("summary", 0));
+
+        assertFalse(mFile.exists());
+        assertNull(RoomsNotifications.loadRoomsNotifications(mContext));
+    }
+}
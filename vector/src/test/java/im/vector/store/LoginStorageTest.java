@@ -0,0 +1,260 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.store;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.HomeServerConnectionConfig;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import im.vector.test.InMemorySharedPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class LoginStorageTest {
+    private static final String PREFS_KEY_CONNECTION_CONFIGS = "PREFS_KEY_CONNECTION_CONFIGS";
+
+    private InMemorySharedPreferences mPreferences;
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mPreferences = new InMemorySharedPreferences();
+
+        mContext = mock(Context.class);
+        when(mContext.getApplicationContext()).thenReturn(mContext);
+        when(mContext.getSharedPreferences(anyString(), anyInt())).thenReturn(mPreferences);
+    }
+
+    /**
+     * A login storage of stand-in configs: the SDK configs need the android Uri.
+     * A config is serialized with its user id and its access token.
+     */
+    private LoginStorage createLoginStorage() {
+        return new LoginStorage(mContext) {
+            @Override
+            HomeServerConnectionConfig fromJson(JSONObject json) throws JSONException {
+                Credentials credentials = null;
+
+                if (json.has("user_id")) {
+                    credentials = new Credentials();
+                    credentials.userId = json.getString("user_id");
+                    credentials.accessToken = json.getString("access_token");
+                }
+
+                return config(credentials);
+            }
+
+            @Override
+            JSONObject toJson(HomeServerConnectionConfig config) throws JSONException {
+                return json(config.getCredentials().userId, config.getCredentials().accessToken);
+            }
+        };
+    }
+
+    private static HomeServerConnectionConfig config(Credentials credentials) {
+        HomeServerConnectionConfig config = mock(HomeServerConnectionConfig.class, withSettings().stubOnly());
+        when(config.getCredentials()).thenReturn(credentials);
+        return config;
+    }
+
+    private static HomeServerConnectionConfig config(String userId, String accessToken) {
+        Credentials credentials = new Credentials();
+        credentials.userId = userId;
+        credentials.accessToken = accessToken;
+        return config(credentials);
+    }
+
+    private static JSONObject json(String userId, String accessToken) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("user_id", userId);
+        json.put("access_token", accessToken);
+        return json;
+    }
+
+    private static List<String> userIds(List<HomeServerConnectionConfig> configs) {
+        List<String> userIds = new ArrayList<>();
+
+        for (HomeServerConnectionConfig config : configs) {
+            userIds.add(config.getCredentials().userId);
+        }
+
+        return userIds;
+    }
+
+    @Test
+    public void getCredentialsList_migratesTheFormerArray() throws Exception {
+        JSONObject configWithoutCredentials = new JSONObject();
+        configWithoutCredentials.put("home_server_url", "https://matrix.org");
+
+        JSONArray configs = new JSONArray();
+        configs.put(json("@alice:matrix.org", "token1"));
+        configs.put(configWithoutCredentials);
+        configs.put(json("@bob:matrix.org", "token2"));
+        mPreferences.edit().putString(PREFS_KEY_CONNECTION_CONFIGS, configs.toString()).apply();
+
+        List<String> expectedUserIds = Arrays.asList("@alice:matrix.org", "@bob:matrix.org");
+
+        assertEquals(expectedUserIds, userIds(createLoginStorage().getCredentialsList()));
+
+        // the former array is replaced in a single write
+        assertEquals(2, mPreferences.getWritesCount());
+        assertFalse(mPreferences.contains(PREFS_KEY_CONNECTION_CONFIGS));
+
+        // the config without credentials is kept aside
+        JSONArray keptConfigs = new JSONArray(mPreferences.getString(LoginStorage.PREFS_KEY_CONNECTION_CONFIGS_WITHOUT_CREDENTIALS, null));
+        assertEquals(1, keptConfigs.length());
+        assertEquals("https://matrix.org", keptConfigs.getJSONObject(0).getString("home_server_url"));
+
+        // the records are read at the next start
+        assertEquals(expectedUserIds, userIds(createLoginStorage().getCredentialsList()));
+        assertEquals(2, mPreferences.getWritesCount());
+    }
+
+    @Test
+    public void getCredentialsList_migratesAgainAfterAnInterruptedMigration() throws Exception {
+        JSONArray configs = new JSONArray();
+        configs.put(json("@alice:matrix.org", "token1"));
+        configs.put(json("@bob:matrix.org", "token2"));
+        mPreferences.edit().putString(PREFS_KEY_CONNECTION_CONFIGS, configs.toString()).apply();
+
+        // the process is killed before the migration is written
+        mPreferences.setWritesLost(true);
+        assertEquals(2, createLoginStorage().getCredentialsList().size());
+
+        assertEquals(configs.toString(), mPreferences.getString(PREFS_KEY_CONNECTION_CONFIGS, null));
+        assertEquals(1, mPreferences.getAll().size());
+
+        // the next start migrates the array again
+        mPreferences.setWritesLost(false);
+
+        List<String> expectedUserIds = Arrays.asList("@alice:matrix.org", "@bob:matrix.org");
+
+        assertEquals(expectedUserIds, userIds(createLoginStorage().getCredentialsList()));
+        assertFalse(mPreferences.contains(PREFS_KEY_CONNECTION_CONFIGS));
+        assertEquals(expectedUserIds, userIds(createLoginStorage().getCredentialsList()));
+    }
+
+    @Test
+    public void updates_anInterruptedWriteKeepsThePreviousAccounts() {
+        LoginStorage loginStorage = createLoginStorage();
+        loginStorage.addCredentials(config("@alice:matrix.org", "token1"));
+        loginStorage.addCredentials(config("@bob:matrix.org", "token2"));
+
+        // the process is killed before the updates are written
+        mPreferences.setWritesLost(true);
+        loginStorage.addCredentials(config("@carol:matrix.org", "token3"));
+        loginStorage.removeCredentials(config("@alice:matrix.org", "token1"));
+        loginStorage.replaceCredentials(config("@bob:matrix.org", "token4"));
+        mPreferences.setWritesLost(false);
+
+        // the next start reads the previous accounts, the index and the records match
+        List<HomeServerConnectionConfig> configs = createLoginStorage().getCredentialsList();
+
+        assertEquals(Arrays.asList("@alice:matrix.org", "@bob:matrix.org"), userIds(configs));
+        assertEquals("token2", configs.get(1).getCredentials().accessToken);
+        assertNull(mPreferences.getString("PREFS_KEY_CONNECTION_CONFIG_RECORD_@carol:matrix.org", null));
+    }
+
+    @Test
+    public void updates_areReadAtTheNextStart() {
+        LoginStorage loginStorage = createLoginStorage();
+        loginStorage.addCredentials(config("@alice:matrix.org", "token1"));
+        loginStorage.addCredentials(config("@bob:matrix.org", "token2"));
+        loginStorage.addCredentials(config("@carol:matrix.org", "token3"));
+
+        loginStorage.removeCredentials(config("@bob:matrix.org", "token2"));
+        loginStorage.replaceCredentials(config("@alice:matrix.org", "token4"));
+
+        // not stored, it is not a known account
+        loginStorage.replaceCredentials(config("@dave:matrix.org", "token5"));
+
+        // an account is stored once
+        loginStorage.addCredentials(config("@carol:matrix.org", "token6"));
+
+        List<HomeServerConnectionConfig> configs = createLoginStorage().getCredentialsList();
+
+        assertEquals(Arrays.asList("@alice:matrix.org", "@carol:matrix.org"), userIds(configs));
+        assertEquals("token4", configs.get(0).getCredentials().accessToken);
+        assertEquals("token6", configs.get(1).getCredentials().accessToken);
+    }
+
+    @Test
+    public void getCredentialsList_returnsCopies() {
+        LoginStorage loginStorage = createLoginStorage();
+        HomeServerConnectionConfig config = config("@alice:matrix.org", "token1");
+        loginStorage.addCredentials(config);
+
+        // the sessions update their config
+        config.getCredentials().accessToken = "token2";
+
+        HomeServerConnectionConfig storedConfig = loginStorage.getCredentialsList().get(0);
+        assertEquals("token1", storedConfig.getCredentials().accessToken);
+
+        storedConfig.getCredentials().accessToken = "token3";
+
+        HomeServerConnectionConfig readConfig = loginStorage.getCredentialsList().get(0);
+        assertNotSame(storedConfig, readConfig);
+        assertEquals("token1", readConfig.getCredentials().accessToken);
+    }
+
+    @Test
+    public void getCredentialsList_skipsACorruptedRecord() {
+        LoginStorage loginStorage = createLoginStorage();
+        loginStorage.addCredentials(config("@alice:matrix.org", "token1"));
+        loginStorage.addCredentials(config("@bob:matrix.org", "token2"));
+
+        mPreferences.edit().putString("PREFS_KEY_CONNECTION_CONFIG_RECORD_@alice:matrix.org", "{").apply();
+
+        assertEquals(Arrays.asList("@bob:matrix.org"), userIds(createLoginStorage().getCredentialsList()));
+    }
+
+    @Test
+    public void clear_removesTheAccounts() throws Exception {
+        JSONArray configs = new JSONArray();
+        configs.put(json("@alice:matrix.org", "token1"));
+        configs.put(new JSONObject());
+        mPreferences.edit().putString(PREFS_KEY_CONNECTION_CONFIGS, configs.toString()).apply();
+
+        LoginStorage loginStorage = createLoginStorage();
+        assertEquals(1, loginStorage.getCredentialsList().size());
+
+        loginStorage.clear();
+
+        assertTrue(loginStorage.getCredentialsList().isEmpty());
+        assertTrue(mPreferences.getAll().isEmpty());
+        assertTrue(createLoginStorage().getCredentialsList().isEmpty());
+    }
+}
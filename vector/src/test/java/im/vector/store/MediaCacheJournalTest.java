@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.store;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MediaCacheJournalTest {
+    private static final int DIRECTORIES_COUNT = 100;
+    private static final int FILES_PER_DIRECTORY = 1000;
+
+    // an old modification time, trusted by the journal
+    private static final long LAST_MODIFIED = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRootDirectory;
+
+    // the journal entries by directory
+    private final Map<String, Map<String, MediaCacheJournal.JournaledFile>> mJournal = new HashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mRootDirectory = mFolder.newFolder("MXMediaStore3");
+        mJournal.clear();
+    }
+
+    private static void writeFile(File file, byte[] content, long lastModified) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(content);
+        outputStream.close();
+
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    /**
+     * Compare the whole media cache with the journal, and journal the updates.
+     *
+     * @return the updated and the deleted file paths
+     */
+    private List<String> reconcile(long now) {
+        List<String> updatedPaths = new ArrayList<>();
+        ArrayDeque<File> directories = new ArrayDeque<>();
+        directories.add(mRootDirectory);
+
+        while (!directories.isEmpty()) {
+            File directory = directories.poll();
+            Map<String, MediaCacheJournal.JournaledFile> knownFiles = mJournal.get(directory.getPath());
+
+            if (null == knownFiles) {
+                knownFiles = new HashMap<>();
+                mJournal.put(directory.getPath(), knownFiles);
+            }
+
+            Map<String, MediaCacheJournal.JournaledFile> remainingFiles = new HashMap<>(knownFiles);
+
+            for (File file : MediaCacheJournal.getUpdatedFiles(directory.listFiles(), remainingFiles, directories)) {
+                updatedPaths.add(file.getPath());
+                knownFiles.put(file.getPath(), new MediaCacheJournal.JournaledFile(file.length(),
+                        MediaCacheJournal.getStableLastModified(file.lastModified(), now)));
+            }
+
+            // the deleted files
+            for (String path : remainingFiles.keySet()) {
+                updatedPaths.add(path);
+                knownFiles.remove(path);
+            }
+        }
+
+        Collections.sort(updatedPaths);
+        return updatedPaths;
+    }
+
+    @Test
+    public void getUpdatedFiles_detectsTheChangesAmong100kFiles() throws Exception {
+        byte[] content = new byte[]{1, 2, 3, 4};
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < DIRECTORIES_COUNT; i++) {
+            File directory = new File(mRootDirectory, "directory" + i);
+            assertTrue(directory.mkdir());
+
+            for (int j = 0; j < FILES_PER_DIRECTORY; j++) {
+                File file = new File(directory, "file" + j);
+                writeFile(file, content, LAST_MODIFIED);
+                files.add(file);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+
+        // the first reconciliation journals every file
+        assertEquals(DIRECTORIES_COUNT * FILES_PER_DIRECTORY, reconcile(now).size());
+
+        // nothing has changed
+        assertTrue(reconcile(now).isEmpty());
+
+        // a file is rewritten with the same size, another one grows, another one is deleted
+        File rewrittenFile = files.get(12345);
+        File grownFile = files.get(54321);
+        File deletedFile = files.get(99999);
+
+        writeFile(rewrittenFile, new byte[]{4, 3, 2, 1}, LAST_MODIFIED + 1000);
+        writeFile(grownFile, new byte[]{1, 2, 3, 4, 5}, LAST_MODIFIED);
+        assertTrue(deletedFile.delete());
+
+        List<String> expectedPaths = new ArrayList<>(Arrays.asList(rewrittenFile.getPath(), grownFile.getPath(), deletedFile.getPath()));
+        Collections.sort(expectedPaths);
+
+        assertEquals(expectedPaths, reconcile(now));
+        assertTrue(reconcile(now).isEmpty());
+    }
+
+    @Test
+    public void getUpdatedFiles_checksAgainTheRecentlyModifiedFiles() throws Exception {
+        long now = System.currentTimeMillis();
+        File file = new File(mRootDirectory, "file");
+        writeFile(file, new byte[]{1, 2, 3, 4}, now);
+
+        assertEquals(Collections.singletonList(file.getPath()), reconcile(now));
+
+        // the modification time is too recent to be trusted
+        assertEquals(Collections.singletonList(file.getPath()), reconcile(now));
+
+        // it is trusted once it is old enough
+        now += MediaCacheJournal.LAST_MODIFIED_GRANULARITY_MS + 1000;
+        assertEquals(Collections.singletonList(file.getPath()), reconcile(now));
+        assertTrue(reconcile(now).isEmpty());
+    }
+
+    @Test
+    public void getStableLastModified_flagsTheRecentModifications() {
+        long now = LAST_MODIFIED + MediaCacheJournal.LAST_MODIFIED_GRANULARITY_MS * 10;
+
+        assertEquals(LAST_MODIFIED, MediaCacheJournal.getStableLastModified(LAST_MODIFIED, now));
+        assertEquals(MediaCacheJournal.UNSTABLE_LAST_MODIFIED, MediaCacheJournal.getStableLastModified(now - 1, now));
+    }
+}
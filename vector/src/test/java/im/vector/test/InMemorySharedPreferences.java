@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.test;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory SharedPreferences, for the local unit tests.
+ * The listeners are called on the committing thread, once per updated or removed key.
+ */
+public class InMemorySharedPreferences implements SharedPreferences {
+    private final Map<String, Object> mValues = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> mListeners = new ArrayList<>();
+
+    // the number of committed or applied editors
+    private int mWritesCount = 0;
+
+    // true to lose the writes, as if the process was killed before they reach the disk
+    private boolean mAreWritesLost = false;
+
+    /**
+     * @return the number of committed or applied editors
+     */
+    public synchronized int getWritesCount() {
+        return mWritesCount;
+    }
+
+    /**
+     * Lose the next writes, as if the process was killed before they reach the disk.
+     *
+     * @param areWritesLost true to lose the writes
+     */
+    public synchronized void setWritesLost(boolean areWritesLost) {
+        mAreWritesLost = areWritesLost;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return (String) getValue(key, defValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return (Set<String>) getValue(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return (Integer) getValue(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return (Long) getValue(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return (Float) getValue(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return (Boolean) getValue(key, defValue);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new InMemoryEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private synchronized Object getValue(String key, Object defValue) {
+        return mValues.containsKey(key) ? mValues.get(key) : defValue;
+    }
+
+    /**
+     * The editor, the updates are applied when it is committed.
+     */
+    private class InMemoryEditor implements Editor {
+        private final Map<String, Object> mUpdates = new HashMap<>();
+        private final Set<String> mRemovedKeys = new HashSet<>();
+        private boolean mIsCleared = false;
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, (null == values) ? null : new HashSet<>(values));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mUpdates.remove(key);
+            mRemovedKeys.add(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mIsCleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            Set<String> updatedKeys = new HashSet<>();
+            List<OnSharedPreferenceChangeListener> listeners;
+
+            synchronized (InMemorySharedPreferences.this) {
+                if (mAreWritesLost) {
+                    return false;
+                }
+
+                if (mIsCleared) {
+                    mValues.clear();
+                }
+
+                for (String key : mRemovedKeys) {
+                    if (mValues.containsKey(key)) {
+                        mValues.remove(key);
+                        updatedKeys.add(key);
+                    }
+                }
+
+                for (Map.Entry<String, Object> entry : mUpdates.entrySet()) {
+                    Object previousValue;
+
+                    if (null == entry.getValue()) {
+                        previousValue = mValues.remove(entry.getKey());
+                    } else {
+                        previousValue = mValues.put(entry.getKey(), entry.getValue());
+                    }
+
+                    if ((null == previousValue) ? (null != entry.getValue()) : !previousValue.equals(entry.getValue())) {
+                        updatedKeys.add(entry.getKey());
+                    }
+                }
+
+                mWritesCount++;
+                listeners = new ArrayList<>(mListeners);
+            }
+
+            for (String key : updatedKeys) {
+                for (OnSharedPreferenceChangeListener listener : listeners) {
+                    listener.onSharedPreferenceChanged(InMemorySharedPreferences.this, key);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+
+        private Editor put(String key, Object value) {
+            mRemovedKeys.remove(key);
+            mUpdates.put(key, value);
+            return this;
+        }
+    }
+}
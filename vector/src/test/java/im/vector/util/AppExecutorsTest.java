@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AppExecutorsTest {
+    private static final int TASKS_COUNT = 500;
+
+    /**
+     * Task recording the running threads and the max concurrency
+     */
+    private static class LoadTask implements Runnable {
+        final Set<String> mThreadNames = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger mRunningCount = new AtomicInteger();
+        final AtomicInteger mMaxRunningCount = new AtomicInteger();
+        final CountDownLatch mDoneLatch;
+
+        LoadTask(int count) {
+            mDoneLatch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void run() {
+            int running = mRunningCount.incrementAndGet();
+
+            synchronized (mMaxRunningCount) {
+                mMaxRunningCount.set(Math.max(mMaxRunningCount.get(), running));
+            }
+
+            mThreadNames.add(Thread.currentThread().getName());
+
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            mRunningCount.decrementAndGet();
+            mDoneLatch.countDown();
+        }
+    }
+
+    private static LoadTask runLoad(AppExecutors.Pool pool) throws InterruptedException {
+        LoadTask task = new LoadTask(TASKS_COUNT);
+
+        for (int i = 0; i < TASKS_COUNT; i++) {
+            AppExecutors.execute(pool, "test." + pool, task);
+        }
+
+        assertTrue(task.mDoneLatch.await(30, TimeUnit.SECONDS));
+        return task;
+    }
+
+    @Test
+    public void execute_boundsTheIoThreads() throws Exception {
+        LoadTask task = runLoad(AppExecutors.Pool.IO);
+
+        assertTrue(task.mMaxRunningCount.get() <= 4);
+        assertTrue(task.mThreadNames.size() <= 4);
+    }
+
+    @Test
+    public void execute_boundsTheComputeThreads() throws Exception {
+        LoadTask task = runLoad(AppExecutors.Pool.COMPUTE);
+
+        assertTrue(task.mMaxRunningCount.get() <= 4);
+        assertTrue(task.mThreadNames.size() <= 4);
+    }
+
+    @Test
+    public void execute_runsTheSerialTasksOnASingleThread() throws Exception {
+        LoadTask task = runLoad(AppExecutors.Pool.SERIAL);
+
+        assertEquals(1, task.mMaxRunningCount.get());
+        assertEquals(1, task.mThreadNames.size());
+    }
+
+    @Test
+    public void execute_recordsTheTasksMetrics() throws Exception {
+        LoadTask task = new LoadTask(10);
+
+        for (int i = 0; i < 10; i++) {
+            AppExecutors.execute(AppExecutors.Pool.IO, "test.metrics", task);
+        }
+
+        assertTrue(task.mDoneLatch.await(30, TimeUnit.SECONDS));
+
+        // the metrics are updated after the runs
+        long timeout = System.currentTimeMillis() + 30000;
+
+        while (!AppExecutors.getTaskStatsDescription().contains("test.metrics : count 10 ") && (System.currentTimeMillis() < timeout)) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(AppExecutors.getTaskStatsDescription().contains("test.metrics : count 10 "));
+    }
+
+    @Test
+    public void newSerialExecutor_runsTheTasksInOrder() throws Exception {
+        Executor executor = AppExecutors.newSerialExecutor("test.serial");
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final LoadTask loadTask = new LoadTask(TASKS_COUNT);
+
+        for (int i = 0; i < TASKS_COUNT; i++) {
+            final int index = i;
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                    loadTask.run();
+                }
+            });
+        }
+
+        assertTrue(loadTask.mDoneLatch.await(30, TimeUnit.SECONDS));
+
+        assertEquals(1, loadTask.mMaxRunningCount.get());
+
+        for (int i = 0; i < TASKS_COUNT; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void newSerialExecutor_goesOnAfterARejection() throws Exception {
+        final AtomicInteger submitsCount = new AtomicInteger();
+
+        Executor executor = new AppExecutors.SerialExecutor("test.rejection") {
+            @Override
+            Future<?> submit(Runnable task) {
+                // the first task is rejected
+                if (0 == submitsCount.getAndIncrement()) {
+                    return null;
+                }
+
+                return super.submit(task);
+            }
+        };
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicInteger runsCount = new AtomicInteger();
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runsCount.incrementAndGet();
+                latch.countDown();
+            }
+        };
+
+        executor.execute(task);
+        executor.execute(task);
+        executor.execute(task);
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        assertEquals(2, runsCount.get());
+    }
+}
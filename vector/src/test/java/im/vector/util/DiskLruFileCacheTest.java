@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class DiskLruFileCacheTest {
+    private static final long MAX_SIZE_BYTES = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private DiskLruFileCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mFolder.newFolder("cache");
+        mCache = new DiskLruFileCache(mDirectory, MAX_SIZE_BYTES);
+    }
+
+    private File put(String key, int length) throws IOException {
+        return mCache.put(key, new ByteArrayInputStream(new byte[length]));
+    }
+
+    @Test
+    public void put_evictsTheLeastRecentlyUsedFiles() throws Exception {
+        put("a", 400);
+        put("b", 400);
+        assertNotNull(mCache.get("a"));
+
+        put("c", 400);
+
+        assertNull(mCache.get("b"));
+        assertNotNull(mCache.get("a"));
+        assertNotNull(mCache.get("c"));
+        assertEquals(800, mCache.getSize());
+    }
+
+    @Test
+    public void put_abortsTheContentLargerThanTheCache() throws Exception {
+        put("a", 400);
+
+        try {
+            put("huge", 10 * (int) MAX_SIZE_BYTES);
+            fail("the content must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // nothing has been evicted and no temporary file is left
+        assertNull(mCache.get("huge"));
+        assertNotNull(mCache.get("a"));
+        assertEquals(400, mCache.getSize());
+        assertEquals(1, mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void put_acceptsAContentOfTheCacheSize() throws Exception {
+        put("full", (int) MAX_SIZE_BYTES);
+
+        assertNotNull(mCache.get("full"));
+        assertEquals(MAX_SIZE_BYTES, mCache.getSize());
+    }
+
+    @Test
+    public void cache_isReloadedFromTheDirectory() throws Exception {
+        put("a", 100);
+        put("b", 200);
+
+        DiskLruFileCache cache = new DiskLruFileCache(mDirectory, MAX_SIZE_BYTES);
+
+        assertEquals(300, cache.getSize());
+        assertNotNull(cache.get("b"));
+    }
+}
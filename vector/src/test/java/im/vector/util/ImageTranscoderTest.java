@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageTranscoderTest {
+
+    @Test
+    public void computeSampleSize_keepsTheSizeWithoutExpectedSize() {
+        assertEquals(1, ImageTranscoder.computeSampleSize(4000, 3000, -1, -1));
+        assertEquals(1, ImageTranscoder.computeSampleSize(4000, 3000, 0, 1000));
+    }
+
+    @Test
+    public void computeSampleSize_doesNotUpscale() {
+        assertEquals(1, ImageTranscoder.computeSampleSize(800, 600, 800, 600));
+        assertEquals(1, ImageTranscoder.computeSampleSize(800, 600, 1600, 1200));
+    }
+
+    @Test
+    public void computeSampleSize_returnsTheLargestPowerOfTwo() {
+        // 12 MP photo to a 1024x768 upload
+        assertEquals(2, ImageTranscoder.computeSampleSize(4000, 3000, 1024, 768));
+        assertEquals(4, ImageTranscoder.computeSampleSize(4096, 3072, 1024, 768));
+        assertEquals(8, ImageTranscoder.computeSampleSize(4000, 3000, 480, 360));
+    }
+
+    @Test
+    public void computeSampleSize_isBoundedByTheSmallestRatio() {
+        // a panorama: the height gives the sample size
+        assertEquals(2, ImageTranscoder.computeSampleSize(8000, 1000, 1000, 500));
+    }
+
+    @Test
+    public void computeSampleSize_neverDecodesSmallerThanExpected() {
+        int[] sides = {1, 99, 100, 640, 1000, 1023, 1024, 1025, 3000, 4000, 8191};
+
+        for (int srcWidth : sides) {
+            for (int srcHeight : sides) {
+                for (int dstWidth : sides) {
+                    for (int dstHeight : sides) {
+                        int sampleSize = ImageTranscoder.computeSampleSize(srcWidth, srcHeight, dstWidth, dstHeight);
+
+                        // a power of 2
+                        assertTrue(sampleSize >= 1);
+                        assertEquals(0, sampleSize & (sampleSize - 1));
+
+                        if (sampleSize > 1) {
+                            // the decoded image is not smaller than the expected one
+                            assertTrue(srcWidth / sampleSize >= dstWidth);
+                            assertTrue(srcHeight / sampleSize >= dstHeight);
+                        }
+
+                        // and the next sample size would be too large
+                        assertTrue((srcWidth / (sampleSize * 2) < dstWidth) || (srcHeight / (sampleSize * 2) < dstHeight));
+                    }
+                }
+            }
+        }
+    }
+}
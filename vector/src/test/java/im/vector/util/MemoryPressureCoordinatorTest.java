@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryPressureCoordinatorTest {
+    /**
+     * A cache whose entries are 1 byte long
+     */
+    private static class FakeCache implements MemoryPressureCoordinator.MemoryCache {
+        long mSize;
+        final long mMaxSize;
+        int mTrimsCount;
+
+        FakeCache(long size, long maxSize) {
+            mSize = size;
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        public long getSize() {
+            return mSize;
+        }
+
+        @Override
+        public long getMaxSize() {
+            return mMaxSize;
+        }
+
+        @Override
+        public void trimToSize(long maxSize) {
+            mTrimsCount++;
+            mSize = Math.min(mSize, maxSize);
+        }
+    }
+
+    private FakeCache mLowTrimCache;
+    private FakeCache mLowClearCache;
+    private FakeCache mNormalTrimCache;
+    private FakeCache mHighTrimCache;
+
+    @Before
+    public void setUp() {
+        MemoryPressureCoordinator.unregisterAll();
+
+        mLowTrimCache = register("lowTrim", MemoryPressureCoordinator.PRIORITY_LOW, MemoryPressureCoordinator.RELEASE_POLICY_TRIM);
+        mLowClearCache = register("lowClear", MemoryPressureCoordinator.PRIORITY_LOW, MemoryPressureCoordinator.RELEASE_POLICY_CLEAR);
+        mNormalTrimCache = register("normalTrim", MemoryPressureCoordinator.PRIORITY_NORMAL, MemoryPressureCoordinator.RELEASE_POLICY_TRIM);
+        mHighTrimCache = register("highTrim", MemoryPressureCoordinator.PRIORITY_HIGH, MemoryPressureCoordinator.RELEASE_POLICY_TRIM);
+    }
+
+    @After
+    public void tearDown() {
+        MemoryPressureCoordinator.unregisterAll();
+    }
+
+    private static FakeCache register(String name, int priority, int releasePolicy) {
+        FakeCache cache = new FakeCache(100, 100);
+        MemoryPressureCoordinator.register(name, priority, releasePolicy, cache);
+        return cache;
+    }
+
+    @Test
+    public void onTrimMemory_ignoresTheLevelsWithoutPressure() {
+        assertEquals(0, MemoryPressureCoordinator.onTrimMemory(0));
+
+        assertEquals(0, mLowTrimCache.mTrimsCount);
+        assertEquals(0, mLowClearCache.mTrimsCount);
+    }
+
+    @Test
+    public void onTrimMemory_releasesTheLowPriorityCachesFirst() {
+        long released = MemoryPressureCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals(50, mLowTrimCache.mSize);
+        assertEquals(0, mLowClearCache.mSize);
+        assertEquals(100, mNormalTrimCache.mSize);
+        assertEquals(100, mHighTrimCache.mSize);
+        assertEquals(150, released);
+    }
+
+    @Test
+    public void onTrimMemory_mapsTheRunningLevels() {
+        MemoryPressureCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        // same step as TRIM_MEMORY_BACKGROUND
+        assertEquals(0, mLowTrimCache.mSize);
+        assertEquals(50, mNormalTrimCache.mSize);
+        assertEquals(100, mHighTrimCache.mSize);
+    }
+
+    @Test
+    public void onTrimMemory_clearsTheCachesTrimmedAtThePreviousStep() {
+        MemoryPressureCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        long released = MemoryPressureCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+
+        assertEquals(0, mLowTrimCache.mSize);
+        assertEquals(50, mNormalTrimCache.mSize);
+        assertEquals(100, mHighTrimCache.mSize);
+        assertEquals(100, released);
+
+        MemoryPressureCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+
+        assertEquals(0, mNormalTrimCache.mSize);
+        assertEquals(50, mHighTrimCache.mSize);
+    }
+
+    @Test
+    public void onLowMemory_clearsAllTheCaches() {
+        long released = MemoryPressureCoordinator.onLowMemory();
+
+        assertEquals(0, mLowTrimCache.mSize);
+        assertEquals(0, mLowClearCache.mSize);
+        assertEquals(0, mNormalTrimCache.mSize);
+        assertEquals(0, mHighTrimCache.mSize);
+        assertEquals(400, released);
+    }
+
+    @Test
+    public void onTrimMemory_doesNotTrimTheSmallCaches() {
+        mLowTrimCache.mSize = 40;
+
+        MemoryPressureCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals(0, mLowTrimCache.mTrimsCount);
+        assertEquals(40, mLowTrimCache.mSize);
+    }
+
+    @Test
+    public void onTrimMemory_goesOnAfterACacheFailure() {
+        MemoryPressureCoordinator.register("failing", MemoryPressureCoordinator.PRIORITY_LOW, MemoryPressureCoordinator.RELEASE_POLICY_CLEAR, new FakeCache(100, 100) {
+            @Override
+            public void trimToSize(long maxSize) {
+                throw new IllegalStateException("failure");
+            }
+        });
+
+        FakeCache cache = register("afterFailing", MemoryPressureCoordinator.PRIORITY_LOW, MemoryPressureCoordinator.RELEASE_POLICY_CLEAR);
+
+        MemoryPressureCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals(0, cache.mSize);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import im.vector.test.InMemorySharedPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PreferencesManagerTest {
+    private static final String HIDE_READ_RECEIPTS_KEY = "SETTINGS_HIDE_READ_RECEIPTS_KEY";
+    private static final String ALWAYS_SHOW_TIMESTAMPS_KEY = "SETTINGS_ALWAYS_SHOW_TIMESTAMPS_KEY";
+    private static final String MEDIA_SAVING_PERIOD_SELECTED_KEY = "SETTINGS_MEDIA_SAVING_PERIOD_SELECTED_KEY";
+
+    private InMemorySharedPreferences mPreferences;
+
+    @Before
+    public void setUp() {
+        mPreferences = new InMemorySharedPreferences();
+    }
+
+    @Test
+    public void getSnapshot_isReusedUntilAPreferenceChanges() {
+        PreferencesManager.Snapshot snapshot = PreferencesManager.getSnapshot(mPreferences);
+
+        assertFalse(snapshot.mHideReadReceipts);
+        assertSame(snapshot, PreferencesManager.getSnapshot(mPreferences));
+
+        mPreferences.edit().putBoolean(HIDE_READ_RECEIPTS_KEY, true).apply();
+
+        PreferencesManager.Snapshot updatedSnapshot = PreferencesManager.getSnapshot(mPreferences);
+
+        assertNotSame(snapshot, updatedSnapshot);
+        assertTrue(updatedSnapshot.mHideReadReceipts);
+        assertSame(updatedSnapshot, PreferencesManager.getSnapshot(mPreferences));
+
+        // the same value is written again
+        mPreferences.edit().putBoolean(HIDE_READ_RECEIPTS_KEY, true).apply();
+        assertSame(updatedSnapshot, PreferencesManager.getSnapshot(mPreferences));
+
+        // the preference is removed
+        mPreferences.edit().remove(HIDE_READ_RECEIPTS_KEY).apply();
+        assertFalse(PreferencesManager.getSnapshot(mPreferences).mHideReadReceipts);
+    }
+
+    @Test
+    public void getSnapshot_isRebuiltForOtherPreferences() {
+        mPreferences.edit().putBoolean(ALWAYS_SHOW_TIMESTAMPS_KEY, true).apply();
+        PreferencesManager.Snapshot snapshot = PreferencesManager.getSnapshot(mPreferences);
+        assertTrue(snapshot.mAlwaysShowTimeStamps);
+
+        InMemorySharedPreferences otherPreferences = new InMemorySharedPreferences();
+        PreferencesManager.Snapshot otherSnapshot = PreferencesManager.getSnapshot(otherPreferences);
+        assertFalse(otherSnapshot.mAlwaysShowTimeStamps);
+
+        // the previous preferences are not listened anymore
+        mPreferences.edit().putBoolean(ALWAYS_SHOW_TIMESTAMPS_KEY, false).apply();
+        assertSame(otherSnapshot, PreferencesManager.getSnapshot(otherPreferences));
+    }
+
+    @Test
+    public void getSnapshot_doesNotKeepASnapshotBuiltDuringAChange() {
+        final InMemorySharedPreferences preferences = new InMemorySharedPreferences() {
+            private boolean mIsUpdated = false;
+
+            @Override
+            public int getInt(String key, int defValue) {
+                int value = super.getInt(key, defValue);
+
+                // another thread updates a preference while the snapshot is read
+                if (!mIsUpdated) {
+                    mIsUpdated = true;
+                    edit().putBoolean(HIDE_READ_RECEIPTS_KEY, true).apply();
+                }
+
+                return value;
+            }
+        };
+
+        // the snapshot is built with the previous value, the update is read at the next call
+        PreferencesManager.Snapshot snapshot = PreferencesManager.getSnapshot(preferences);
+        PreferencesManager.Snapshot updatedSnapshot = PreferencesManager.getSnapshot(preferences);
+
+        assertNotSame(snapshot, updatedSnapshot);
+        assertTrue(updatedSnapshot.mHideReadReceipts);
+        assertSame(updatedSnapshot, PreferencesManager.getSnapshot(preferences));
+    }
+
+    @Test
+    public void getSnapshot_readsTheMediasSavingPeriod() {
+        assertEquals(1, PreferencesManager.getSnapshot(mPreferences).mSelectedMediasSavingPeriod);
+
+        mPreferences.edit().putInt(MEDIA_SAVING_PERIOD_SELECTED_KEY, 3).apply();
+
+        assertEquals(3, PreferencesManager.getSnapshot(mPreferences).mSelectedMediasSavingPeriod);
+    }
+}
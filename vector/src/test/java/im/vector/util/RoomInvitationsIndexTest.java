@@ -0,0 +1,267 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.model.Event;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class RoomInvitationsIndexTest {
+    private static final String USER_ID = "@alice:matrix.org";
+
+    private final Map<String, Room> mRooms = new HashMap<>();
+    private final Map<String, RoomSummary> mSummaries = new HashMap<>();
+
+    // the store reads
+    private int mGetSummariesCount;
+    private int mGetRoomCount;
+
+    private MXDataHandler mDataHandler;
+
+    @Before
+    public void setUp() {
+        mRooms.clear();
+        mSummaries.clear();
+        mGetSummariesCount = 0;
+        mGetRoomCount = 0;
+
+        // the stub only mocks do not record the invocations of the large tests
+        IMXStore store = mock(IMXStore.class, withSettings().stubOnly());
+        when(store.getSummaries()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                mGetSummariesCount++;
+                return new ArrayList<>(mSummaries.values());
+            }
+        });
+        when(store.getSummary(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return mSummaries.get(invocation.<String>getArgument(0));
+            }
+        });
+        when(store.getRoom(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                mGetRoomCount++;
+                return mRooms.get(invocation.<String>getArgument(0));
+            }
+        });
+
+        mDataHandler = mock(MXDataHandler.class);
+        when(mDataHandler.isAlive()).thenReturn(true);
+        when(mDataHandler.getStore()).thenReturn(store);
+    }
+
+    /**
+     * Add a room with a summary.
+     *
+     * @param roomId    the room id
+     * @param ts        the latest event timestamp
+     * @param isInvited true if the user is invited
+     * @param isDirect  true if it is a direct chat invitation
+     * @return the room
+     */
+    private Room addRoom(String roomId, long ts, boolean isInvited, boolean isDirect) {
+        Room room = mock(Room.class, withSettings().stubOnly());
+        when(room.getRoomId()).thenReturn(roomId);
+        when(room.isInvited()).thenReturn(isInvited);
+        when(room.isDirectChatInvitation()).thenReturn(isDirect);
+        mRooms.put(roomId, room);
+
+        setLatestEventTs(roomId, ts);
+
+        return room;
+    }
+
+    private void setLatestEventTs(String roomId, long ts) {
+        Event event = new Event();
+        event.roomId = roomId;
+        event.originServerTs = ts;
+
+        RoomSummary summary = mock(RoomSummary.class, withSettings().stubOnly());
+        when(summary.getRoomId()).thenReturn(roomId);
+        when(summary.getLatestReceivedEvent()).thenReturn(event);
+        mSummaries.put(roomId, summary);
+    }
+
+    private static Event membershipEvent(String roomId, String stateKey) {
+        Event event = new Event();
+        event.roomId = roomId;
+        event.type = Event.EVENT_TYPE_STATE_ROOM_MEMBER;
+        event.stateKey = stateKey;
+        return event;
+    }
+
+    private static List<String> roomIds(List<Room> rooms) {
+        List<String> roomIds = new ArrayList<>();
+
+        for (Room room : rooms) {
+            roomIds.add(room.getRoomId());
+        }
+
+        return roomIds;
+    }
+
+    @Test
+    public void getInvitations_splitsAndSortsTheInvitations() {
+        addRoom("!room", 50, false, false);
+        addRoom("!invite1", 10, true, false);
+        addRoom("!invite2", 30, true, false);
+        addRoom("!direct1", 20, true, true);
+        addRoom("!direct2", 40, true, true);
+
+        RoomInvitationsIndex index = new RoomInvitationsIndex(USER_ID, mDataHandler);
+
+        // the oldest ones first
+        assertEquals(Arrays.asList("!direct1", "!direct2"), roomIds(index.getDirectChatInvitations()));
+        assertEquals(Arrays.asList("!invite1", "!invite2"), roomIds(index.getRoomInvitations()));
+        assertEquals(Arrays.asList("!invite1", "!direct1", "!invite2", "!direct2"), roomIds(index.getAllInvitations()));
+    }
+
+    @Test
+    public void onLiveEvent_updatesOnlyTheOwnMemberships() {
+        addRoom("!invite1", 10, true, false);
+        Room room = addRoom("!room", 20, false, false);
+
+        RoomInvitationsIndex index = new RoomInvitationsIndex(USER_ID, mDataHandler);
+        assertEquals(1, index.getRoomInvitations().size());
+
+        // another member is invited
+        when(room.isInvited()).thenReturn(true);
+        index.onLiveEvent(membershipEvent("!room", "@bob:matrix.org"), null);
+        assertEquals(Arrays.asList("!invite1"), roomIds(index.getRoomInvitations()));
+
+        // the user is invited
+        index.onLiveEvent(membershipEvent("!room", USER_ID), null);
+        assertEquals(Arrays.asList("!invite1", "!room"), roomIds(index.getRoomInvitations()));
+
+        // the user joins
+        when(room.isInvited()).thenReturn(false);
+        index.onJoinRoom("!room");
+        assertEquals(Arrays.asList("!invite1"), roomIds(index.getRoomInvitations()));
+    }
+
+    @Test
+    public void onLeaveRoom_removesTheRejectedInvitations() {
+        addRoom("!invite1", 10, true, false);
+        addRoom("!direct1", 20, true, true);
+
+        RoomInvitationsIndex index = new RoomInvitationsIndex(USER_ID, mDataHandler);
+        assertEquals(2, index.getAllInvitations().size());
+
+        mRooms.remove("!direct1");
+        mSummaries.remove("!direct1");
+        index.onLeaveRoom("!direct1");
+
+        assertEquals(Arrays.asList("!invite1"), roomIds(index.getAllInvitations()));
+        assertTrue(index.getDirectChatInvitations().isEmpty());
+    }
+
+    @Test
+    public void onLiveEvent_movesAnInvitationWithANewEvent() {
+        addRoom("!invite1", 10, true, false);
+        addRoom("!invite2", 20, true, false);
+
+        RoomInvitationsIndex index = new RoomInvitationsIndex(USER_ID, mDataHandler);
+        assertEquals(Arrays.asList("!invite1", "!invite2"), roomIds(index.getRoomInvitations()));
+
+        setLatestEventTs("!invite1", 30);
+
+        Event event = new Event();
+        event.roomId = "!invite1";
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        index.onLiveEvent(event, null);
+
+        assertEquals(Arrays.asList("!invite2", "!invite1"), roomIds(index.getRoomInvitations()));
+    }
+
+    @Test
+    public void updates_matchAFullBuildWithoutScanningTheSummaries() {
+        final int roomsCount = 5000;
+        final int updatesCount = 2000;
+        Random random = new Random(42);
+        List<Room> rooms = new ArrayList<>();
+
+        for (int i = 0; i < roomsCount; i++) {
+            // the timestamps are unique to get a single sorted order
+            rooms.add(addRoom("!room" + i, (long) random.nextInt(1000000) * roomsCount + i, 0 == (i % 5), 0 == (i % 3)));
+        }
+
+        RoomInvitationsIndex index = new RoomInvitationsIndex(USER_ID, mDataHandler);
+        assertEquals(roomsCount / 5, index.getAllInvitations().size());
+
+        mGetSummariesCount = 0;
+        mGetRoomCount = 0;
+
+        for (int i = 0; i < updatesCount; i++) {
+            int roomIndex = random.nextInt(roomsCount);
+            Room room = rooms.get(roomIndex);
+
+            // the user is invited, or joins
+            when(room.isInvited()).thenReturn(random.nextBoolean());
+            setLatestEventTs(room.getRoomId(), (long) random.nextInt(1000000) * roomsCount + roomIndex);
+            index.onLiveEvent(membershipEvent(room.getRoomId(), USER_ID), null);
+
+            // the lists are read after some updates
+            if (0 == (i % 50)) {
+                index.getAllInvitations();
+            }
+        }
+
+        index.getAllInvitations();
+
+        // only the updated rooms are read
+        assertEquals(0, mGetSummariesCount);
+        assertTrue(mGetRoomCount <= updatesCount);
+
+        RoomInvitationsIndex fullBuildIndex = new RoomInvitationsIndex(USER_ID, mDataHandler);
+
+        assertEquals(roomIds(fullBuildIndex.getDirectChatInvitations()), roomIds(index.getDirectChatInvitations()));
+        assertEquals(roomIds(fullBuildIndex.getRoomInvitations()), roomIds(index.getRoomInvitations()));
+    }
+
+    @Test
+    public void release_stopsTrackingTheSession() {
+        RoomInvitationsIndex index = new RoomInvitationsIndex(USER_ID, mDataHandler);
+        verify(mDataHandler).addListener(index);
+
+        index.release();
+        verify(mDataHandler).removeListener(index);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.User;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RoomMembersStatusTest {
+    private static final int MEMBERS_COUNT = 10000;
+
+    private final Map<String, User> mUsers = new HashMap<>();
+    private final List<RoomMember> mMembers = new ArrayList<>();
+
+    private RoomState mRoomState;
+    private IMXStore mStore;
+    private RoomMembersStatus mStatus;
+
+    @Before
+    public void setUp() {
+        mUsers.clear();
+        mMembers.clear();
+
+        // a member out of 10 is active
+        for (int i = 0; i < MEMBERS_COUNT; i++) {
+            String userId = userId(i);
+
+            RoomMember member = new RoomMember();
+            member.setUserId(userId);
+            member.membership = RoomMember.MEMBERSHIP_JOIN;
+            mMembers.add(member);
+
+            mUsers.put(userId, createUser(userId, 0 == (i % 10)));
+        }
+
+        mRoomState = mock(RoomState.class);
+        when(mRoomState.getDisplayableMembers()).thenReturn(mMembers);
+
+        mStore = mock(IMXStore.class);
+        when(mStore.getUser(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return mUsers.get(invocation.<String>getArgument(0));
+            }
+        });
+
+        mStatus = new RoomMembersStatus();
+    }
+
+    private static String userId(int index) {
+        return "@user" + index + ":matrix.org";
+    }
+
+    private static User createUser(String userId, boolean isActive) {
+        User user = new User();
+        user.user_id = userId;
+        user.currently_active = isActive;
+        return user;
+    }
+
+    @Test
+    public void refresh_countsTheMembers() {
+        mStatus.refreshIfNeeded(mRoomState, mStore);
+
+        assertEquals(MEMBERS_COUNT, mStatus.getJoinedMembersCount());
+        assertEquals(MEMBERS_COUNT / 10, mStatus.getActiveMembersCount());
+    }
+
+    @Test
+    public void onPresenceUpdate_doesNotWalkTheMembers() {
+        mStatus.refreshIfNeeded(mRoomState, mStore);
+
+        // a presence burst: every member becomes active, then inactive
+        for (boolean isActive : new boolean[]{true, false}) {
+            for (int i = 0; i < MEMBERS_COUNT; i++) {
+                mStatus.onPresenceUpdate(createUser(userId(i), isActive));
+                mStatus.refreshIfNeeded(mRoomState, mStore);
+            }
+
+            assertEquals(isActive ? MEMBERS_COUNT : 0, mStatus.getActiveMembersCount());
+        }
+
+        // the members list has been walked once
+        verify(mRoomState, times(1)).getDisplayableMembers();
+        verify(mStore, times(MEMBERS_COUNT)).getUser(anyString());
+        assertEquals(MEMBERS_COUNT, mStatus.getJoinedMembersCount());
+    }
+
+    @Test
+    public void onPresenceUpdate_ignoresTheOtherUsers() {
+        mStatus.refreshIfNeeded(mRoomState, mStore);
+
+        mStatus.onPresenceUpdate(createUser("@stranger:matrix.org", true));
+
+        assertEquals(MEMBERS_COUNT / 10, mStatus.getActiveMembersCount());
+    }
+
+    @Test
+    public void onMembershipUpdate_updatesTheCounts() {
+        mStatus.refreshIfNeeded(mRoomState, mStore);
+
+        // an active member leaves
+        mStatus.onMembershipUpdate(userId(0), RoomMember.MEMBERSHIP_LEAVE, null);
+
+        assertEquals(MEMBERS_COUNT - 1, mStatus.getJoinedMembersCount());
+        assertEquals(MEMBERS_COUNT / 10 - 1, mStatus.getActiveMembersCount());
+
+        // an active user joins
+        mStatus.onMembershipUpdate("@newcomer:matrix.org", RoomMember.MEMBERSHIP_JOIN, createUser("@newcomer:matrix.org", true));
+
+        assertEquals(MEMBERS_COUNT, mStatus.getJoinedMembersCount());
+        assertEquals(MEMBERS_COUNT / 10, mStatus.getActiveMembersCount());
+
+        verify(mRoomState, times(1)).getDisplayableMembers();
+    }
+
+    @Test
+    public void invalidate_walksTheMembersAgain() {
+        mStatus.refreshIfNeeded(mRoomState, mStore);
+        mStatus.invalidate();
+        mStatus.refreshIfNeeded(mRoomState, mStore);
+
+        verify(mRoomState, times(2)).getDisplayableMembers();
+        assertEquals(MEMBERS_COUNT, mStatus.getJoinedMembersCount());
+    }
+
+    @Test
+    public void refreshIfNeeded_walksTheMembersOfANewRoomState() {
+        mStatus.refreshIfNeeded(mRoomState, mStore);
+
+        RoomState roomState = mock(RoomState.class);
+        when(roomState.getDisplayableMembers()).thenReturn(mMembers.subList(0, 10));
+
+        mStatus.refreshIfNeeded(roomState, mStore);
+
+        assertEquals(10, mStatus.getJoinedMembersCount());
+        assertEquals(1, mStatus.getActiveMembersCount());
+    }
+}
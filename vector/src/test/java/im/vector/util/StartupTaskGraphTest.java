@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupTaskGraphTest {
+    // the tasks run order
+    private final List<String> mRunTasks = new ArrayList<>();
+
+    // the queued tasks, run manually
+    private final List<Runnable> mBackgroundTasks = new ArrayList<>();
+    private final List<Runnable> mIdleTasks = new ArrayList<>();
+    private final List<Runnable> mMainThreadTasks = new ArrayList<>();
+
+    // the fake clock
+    private long mNow;
+
+    private Map<String, Long> mDurations;
+
+    private StartupTaskGraph mGraph;
+
+    @Before
+    public void setUp() {
+        mRunTasks.clear();
+        mBackgroundTasks.clear();
+        mIdleTasks.clear();
+        mMainThreadTasks.clear();
+        mNow = 0;
+        mDurations = null;
+
+        mGraph = new StartupTaskGraph() {
+            @Override
+            void runInBackground(String name, Runnable task) {
+                mBackgroundTasks.add(task);
+            }
+
+            @Override
+            void runWhenIdle(Runnable task) {
+                mIdleTasks.add(task);
+            }
+
+            @Override
+            void runOnMainThread(Runnable task) {
+                mMainThreadTasks.add(task);
+            }
+
+            @Override
+            long elapsedRealtime() {
+                return mNow;
+            }
+        };
+    }
+
+    /**
+     * Create a task which records its run and lasts durationMs.
+     */
+    private Runnable task(final String name, final long durationMs) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRunTasks.add(name);
+                mNow += durationMs;
+            }
+        };
+    }
+
+    private void start() {
+        mGraph.start(new StartupTaskGraph.Listener() {
+            @Override
+            public void onCompleted(Map<String, Long> durations) {
+                mDurations = durations;
+            }
+        });
+    }
+
+    /**
+     * Run the queued tasks until there is none.
+     */
+    private void runQueuedTasks() {
+        while (!mBackgroundTasks.isEmpty() || !mIdleTasks.isEmpty() || !mMainThreadTasks.isEmpty()) {
+            List<Runnable> tasks = new ArrayList<>(mBackgroundTasks);
+            tasks.addAll(mIdleTasks);
+            tasks.addAll(mMainThreadTasks);
+
+            mBackgroundTasks.clear();
+            mIdleTasks.clear();
+            mMainThreadTasks.clear();
+
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    @Test
+    public void start_runsTheMainTasksSynchronously() {
+        mGraph.add("main1", StartupTaskGraph.Mode.MAIN, task("main1", 1))
+                .add("background", StartupTaskGraph.Mode.BACKGROUND, task("background", 1))
+                .add("main2", StartupTaskGraph.Mode.MAIN, task("main2", 1), "main1");
+
+        start();
+
+        assertEquals(Arrays.asList("main1", "main2"), mRunTasks);
+        assertEquals(1, mBackgroundTasks.size());
+        assertNull(mDurations);
+    }
+
+    @Test
+    public void start_throwsTheMainTasksExceptions() {
+        final IllegalStateException exception = new IllegalStateException("failure");
+
+        mGraph.add("main1", StartupTaskGraph.Mode.MAIN, new Runnable() {
+            @Override
+            public void run() {
+                throw exception;
+            }
+        }).add("main2", StartupTaskGraph.Mode.MAIN, task("main2", 1));
+
+        try {
+            start();
+            fail("the main task exception must be thrown");
+        } catch (IllegalStateException e) {
+            assertSame(exception, e);
+        }
+
+        // the application start is stopped
+        assertTrue(mRunTasks.isEmpty());
+    }
+
+    @Test
+    public void start_logsTheOptionalTasksExceptions() {
+        mGraph.add("background", StartupTaskGraph.Mode.BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failure");
+            }
+        }).add("deferred", StartupTaskGraph.Mode.DEFERRED, task("deferred", 1), "background");
+
+        start();
+        runQueuedTasks();
+
+        // the dependents are run and the completion is reported
+        assertEquals(Collections.singletonList("deferred"), mRunTasks);
+        assertEquals(2, mDurations.size());
+    }
+
+    @Test
+    public void start_runsTheTasksAfterTheirDependencies() {
+        mGraph.add("main", StartupTaskGraph.Mode.MAIN, task("main", 1))
+                .add("background1", StartupTaskGraph.Mode.BACKGROUND, task("background1", 1), "main")
+                .add("background2", StartupTaskGraph.Mode.BACKGROUND, task("background2", 1))
+                .add("deferred", StartupTaskGraph.Mode.DEFERRED, task("deferred", 1), "background1", "background2");
+
+        start();
+
+        assertEquals(Collections.singletonList("main"), mRunTasks);
+        assertEquals(2, mBackgroundTasks.size());
+
+        mBackgroundTasks.remove(0).run();
+
+        // a dependency is still pending
+        assertTrue(mIdleTasks.isEmpty());
+
+        mBackgroundTasks.remove(0).run();
+
+        // the deferred tasks wait for the main thread to be idle
+        assertEquals(1, mIdleTasks.size());
+        assertEquals(3, mRunTasks.size());
+
+        mIdleTasks.remove(0).run();
+
+        assertEquals("deferred", mRunTasks.get(3));
+    }
+
+    @Test
+    public void start_reportsTheDurationsOnTheMainThread() {
+        mGraph.add("main", StartupTaskGraph.Mode.MAIN, task("main", 5))
+                .add("background", StartupTaskGraph.Mode.BACKGROUND, task("background", 20), "main")
+                .add("deferred", StartupTaskGraph.Mode.DEFERRED, task("deferred", 3), "background");
+
+        start();
+
+        mBackgroundTasks.remove(0).run();
+        mIdleTasks.remove(0).run();
+
+        assertNull(mDurations);
+        assertEquals(1, mMainThreadTasks.size());
+        mMainThreadTasks.remove(0).run();
+
+        assertEquals(Arrays.asList("main", "background", "deferred"), new ArrayList<>(mDurations.keySet()));
+        assertEquals(5L, (long) mDurations.get("main"));
+        assertEquals(20L, (long) mDurations.get("background"));
+        assertEquals(3L, (long) mDurations.get("deferred"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsTheDuplicatedTasks() {
+        mGraph.add("task", StartupTaskGraph.Mode.MAIN, task("task", 1))
+                .add("task", StartupTaskGraph.Mode.BACKGROUND, task("task", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsTheUnknownDependencies() {
+        mGraph.add("task", StartupTaskGraph.Mode.BACKGROUND, task("task", 1), "unknown");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsTheMainTasksDependingOnAnOptionalTask() {
+        mGraph.add("background", StartupTaskGraph.Mode.BACKGROUND, task("background", 1))
+                .add("main", StartupTaskGraph.Mode.MAIN, task("main", 1), "background");
+    }
+}
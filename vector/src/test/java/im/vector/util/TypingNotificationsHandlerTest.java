@@ -0,0 +1,363 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class TypingNotificationsHandlerTest {
+    private static final int TYPING_TIMEOUT_MS = 10000;
+
+    /**
+     * A scheduler running the tasks when the virtual clock reaches their date
+     */
+    private class VirtualScheduler implements TypingNotificationsHandler.Scheduler, TypingNotificationsHandler.Clock {
+        private final List<Long> mDates = new ArrayList<>();
+        private final List<Runnable> mTasks = new ArrayList<>();
+        private final List<ScheduledFuture<?>> mFutures = new ArrayList<>();
+        private long mNow = 1000000L;
+        boolean mIsAvailable = true;
+
+        @Override
+        public synchronized long currentTimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public synchronized ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+            if (!mIsAvailable) {
+                return null;
+            }
+
+            ScheduledFuture<?> future = mock(ScheduledFuture.class);
+            mDates.add(mNow + delayMs);
+            mTasks.add(task);
+            mFutures.add(future);
+            return future;
+        }
+
+        @Override
+        public synchronized void cancel(ScheduledFuture<?> future) {
+            int index = mFutures.indexOf(future);
+
+            if (index >= 0) {
+                mDates.remove(index);
+                mTasks.remove(index);
+                mFutures.remove(index);
+            }
+        }
+
+        synchronized int getScheduledCount() {
+            return mTasks.size();
+        }
+
+        /**
+         * Move the clock forward, and run the tasks which are due.
+         */
+        void advance(long durationMs) {
+            long end;
+
+            synchronized (this) {
+                end = mNow + durationMs;
+            }
+
+            while (true) {
+                Runnable task = null;
+
+                synchronized (this) {
+                    int index = -1;
+
+                    for (int i = 0; i < mDates.size(); i++) {
+                        if ((mDates.get(i) <= end) && ((index < 0) || (mDates.get(i) < mDates.get(index)))) {
+                            index = i;
+                        }
+                    }
+
+                    if (index < 0) {
+                        mNow = end;
+                        return;
+                    }
+
+                    mNow = mDates.remove(index);
+                    task = mTasks.remove(index);
+                    mFutures.remove(index);
+                }
+
+                task.run();
+            }
+        }
+    }
+
+    // the sent notifications, true for "start typing"
+    private final List<Boolean> mSentNotifications = Collections.synchronizedList(new ArrayList<Boolean>());
+
+    private final TypingNotificationsHandler.TypingNotificationSender mSender = new TypingNotificationsHandler.TypingNotificationSender() {
+        @Override
+        public void sendTypingNotification(boolean isTyping, int timeoutMs) {
+            assertEquals(isTyping ? 2 * TYPING_TIMEOUT_MS : -1, timeoutMs);
+            mSentNotifications.add(isTyping);
+        }
+    };
+
+    private VirtualScheduler mScheduler;
+    private TypingNotificationsHandler mHandler;
+
+    @Before
+    public void setUp() {
+        mSentNotifications.clear();
+        mScheduler = new VirtualScheduler();
+        mHandler = new TypingNotificationsHandler(TYPING_TIMEOUT_MS, mSender, mScheduler, mScheduler);
+    }
+
+    private int countStarts() {
+        int count = 0;
+
+        synchronized (mSentNotifications) {
+            for (boolean isTyping : mSentNotifications) {
+                if (isTyping) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    @Test
+    public void onTypingUpdate_sendsOneStartPerInterval() {
+        // type every 100 ms until the end of the 5th interval
+        for (int i = 0; i < 5 * TYPING_TIMEOUT_MS / 100 - 1; i++) {
+            mHandler.onTypingUpdate(true);
+            mScheduler.advance(100);
+        }
+
+        assertEquals(5, countStarts());
+        assertEquals(5, mSentNotifications.size());
+        assertEquals(1, mScheduler.getScheduledCount());
+
+        mHandler.onTypingUpdate(false);
+
+        assertEquals(6, mSentNotifications.size());
+        assertFalse(mSentNotifications.get(5));
+        assertEquals(0, mScheduler.getScheduledCount());
+    }
+
+    @Test
+    public void onTypingUpdate_sendsAStopWhenTheTypingStops() {
+        mHandler.onTypingUpdate(true);
+        mScheduler.advance(TYPING_TIMEOUT_MS / 2);
+        mHandler.onTypingUpdate(true);
+
+        // no typing during the next interval
+        mScheduler.advance(TYPING_TIMEOUT_MS);
+        assertEquals(2, mSentNotifications.size());
+        assertTrue(mSentNotifications.get(0));
+        assertTrue(mSentNotifications.get(1));
+
+        mScheduler.advance(TYPING_TIMEOUT_MS);
+        assertEquals(3, mSentNotifications.size());
+        assertFalse(mSentNotifications.get(2));
+        assertEquals(0, mScheduler.getScheduledCount());
+
+        // nothing more to send
+        mHandler.stop();
+        mScheduler.advance(10 * TYPING_TIMEOUT_MS);
+        assertEquals(3, mSentNotifications.size());
+    }
+
+    @Test
+    public void stop_sendsNothingWithoutAStart() {
+        mHandler.onTypingUpdate(false);
+        mHandler.stop();
+
+        assertTrue(mSentNotifications.isEmpty());
+    }
+
+    @Test
+    public void onTypingUpdate_sendsNoStartWithoutTimer() {
+        mScheduler.mIsAvailable = false;
+
+        mHandler.onTypingUpdate(true);
+        mHandler.stop();
+
+        // a start could not be followed by a stop
+        assertTrue(mSentNotifications.isEmpty());
+    }
+
+    @Test
+    public void onTypingUpdate_endsWithAStopWhenTheUpdatesAreConcurrent() throws Exception {
+        final int threadsCount = 8;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < threadsCount; i++) {
+            final Random random = new Random(i);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int j = 0; j < 2000; j++) {
+                        if (random.nextInt(10) == 0) {
+                            mScheduler.advance(random.nextInt(TYPING_TIMEOUT_MS));
+                        } else {
+                            mHandler.onTypingUpdate(random.nextBoolean());
+                        }
+                    }
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        startLatch.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        mHandler.stop();
+        mScheduler.advance(10 * TYPING_TIMEOUT_MS);
+
+        // the notifications decided concurrently can be sent out of order, the outdated ones are dropped,
+        // but the latest one is always a stop
+        assertFalse(mSentNotifications.isEmpty());
+        assertFalse(mSentNotifications.get(mSentNotifications.size() - 1));
+        assertEquals(0, mScheduler.getScheduledCount());
+    }
+
+    /**
+     * Wait until a thread is blocked or waiting.
+     */
+    private static void waitUntilBlocked(Thread thread) throws InterruptedException {
+        while ((Thread.State.BLOCKED != thread.getState()) && (Thread.State.WAITING != thread.getState())) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void onTypingUpdate_dropsTheOutdatedNotifications() throws Exception {
+        final CountDownLatch sendingLatch = new CountDownLatch(1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+
+        final TypingNotificationsHandler handler = new TypingNotificationsHandler(TYPING_TIMEOUT_MS, new TypingNotificationsHandler.TypingNotificationSender() {
+            @Override
+            public void sendTypingNotification(boolean isTyping, int timeoutMs) {
+                // the first "start typing" is slow to send
+                if (mSentNotifications.isEmpty()) {
+                    sendingLatch.countDown();
+
+                    try {
+                        releaseLatch.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                mSentNotifications.add(isTyping);
+            }
+        }, mScheduler, mScheduler);
+
+        Thread startThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                handler.onTypingUpdate(true);
+            }
+        });
+        startThread.start();
+        sendingLatch.await();
+
+        // a stop then a start are decided while the first start is being sent
+        Thread stopThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                handler.onTypingUpdate(false);
+            }
+        });
+        stopThread.start();
+        waitUntilBlocked(stopThread);
+
+        Thread restartThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                handler.onTypingUpdate(true);
+            }
+        });
+        restartThread.start();
+        waitUntilBlocked(restartThread);
+
+        releaseLatch.countDown();
+        startThread.join();
+        stopThread.join();
+        restartThread.join();
+
+        // the stop is sent before the second start, or it is dropped when the second start has been sent first
+        assertTrue(mSentNotifications.equals(Arrays.asList(true, false, true))
+                || mSentNotifications.equals(Arrays.asList(true, true)));
+
+        // the user is still typing, the stop is sent at the end of the interval
+        mScheduler.advance(2 * TYPING_TIMEOUT_MS);
+        assertFalse(mSentNotifications.get(mSentNotifications.size() - 1));
+    }
+
+    @Test
+    public void handlers_shareASingleTimerThread() throws Exception {
+        List<TypingNotificationsHandler> handlers = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++) {
+            TypingNotificationsHandler handler = new TypingNotificationsHandler(TYPING_TIMEOUT_MS, mSender);
+            handler.onTypingUpdate(true);
+            handlers.add(handler);
+        }
+
+        int timerThreadsCount = 0;
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("Vector-Timers".equals(thread.getName())) {
+                timerThreadsCount++;
+            }
+        }
+
+        assertEquals(1, timerThreadsCount);
+        assertEquals(200, countStarts());
+
+        for (TypingNotificationsHandler handler : handlers) {
+            handler.stop();
+        }
+
+        assertEquals(400, mSentNotifications.size());
+    }
+}
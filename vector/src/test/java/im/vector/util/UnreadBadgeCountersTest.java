@@ -0,0 +1,313 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomAccountData;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.data.RoomTag;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.util.BingRulesManager;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UnreadBadgeCountersTest {
+    private final Map<String, Room> mRooms = new HashMap<>();
+    private final Map<String, RoomSummary> mSummaries = new HashMap<>();
+    private final List<String> mDirectChatRoomIds = new ArrayList<>();
+
+    private IMXStore mStore;
+    private BingRulesManager mBingRulesManager;
+    private MXDataHandler mDataHandler;
+    private UnreadBadgeCounters mCounters;
+
+    @Before
+    public void setUp() {
+        mRooms.clear();
+        mSummaries.clear();
+        mDirectChatRoomIds.clear();
+
+        mStore = mock(IMXStore.class);
+        when(mStore.getRooms()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return new ArrayList<>(mRooms.values());
+            }
+        });
+        when(mStore.getRoom(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return mRooms.get(invocation.<String>getArgument(0));
+            }
+        });
+        when(mStore.getSummary(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return mSummaries.get(invocation.<String>getArgument(0));
+            }
+        });
+
+        mBingRulesManager = mock(BingRulesManager.class);
+
+        mDataHandler = mock(MXDataHandler.class);
+        when(mDataHandler.getStore()).thenReturn(mStore);
+        when(mDataHandler.getBingRulesManager()).thenReturn(mBingRulesManager);
+        when(mDataHandler.getDirectChatRoomIdsList()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return new ArrayList<>(mDirectChatRoomIds);
+            }
+        });
+
+        mCounters = new UnreadBadgeCounters(mDataHandler);
+    }
+
+    /**
+     * Add a joined room with a summary.
+     *
+     * @param roomId            the room id
+     * @param notificationCount the notification count
+     * @param highlightCount    the highlight count
+     * @return the room
+     */
+    private Room addRoom(String roomId, int notificationCount, int highlightCount) {
+        Room room = mock(Room.class);
+        when(room.getRoomId()).thenReturn(roomId);
+        when(room.getAccountData()).thenReturn(mock(RoomAccountData.class));
+        setCounts(room, notificationCount, highlightCount);
+
+        mRooms.put(roomId, room);
+        mSummaries.put(roomId, mock(RoomSummary.class));
+
+        return room;
+    }
+
+    private static void setCounts(Room room, int notificationCount, int highlightCount) {
+        when(room.getNotificationCount()).thenReturn(notificationCount);
+        when(room.getHighlightCount()).thenReturn(highlightCount);
+    }
+
+    private static void setTag(Room room, String tag) {
+        when(room.getAccountData().roomTag(tag)).thenReturn(new RoomTag(tag, null));
+    }
+
+    private void assertCounters(int tab, int unreadRoomCount, int highlightCount) {
+        assertEquals(unreadRoomCount, mCounters.getUnreadRoomCount(tab));
+        assertEquals(highlightCount, mCounters.getHighlightCount(tab));
+    }
+
+    @Test
+    public void refresh_countsTheRoomsByTab() {
+        addRoom("!room1", 2, 1);
+        addRoom("!room2", 0, 0);
+        setTag(addRoom("!favourite", 3, 2), RoomTag.ROOM_TAG_FAVOURITE);
+        setTag(addRoom("!lowPriority", 5, 4), RoomTag.ROOM_TAG_LOW_PRIORITY);
+        addRoom("!direct", 1, 1);
+        mDirectChatRoomIds.add("!direct");
+
+        assertTrue(mCounters.refresh());
+
+        assertCounters(UnreadBadgeCounters.TAB_FAVOURITES, 1, 2);
+        assertCounters(UnreadBadgeCounters.TAB_PEOPLE, 1, 1);
+        // the favourite room is also displayed in the rooms tab, the low priority one is not
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 2, 3);
+    }
+
+    @Test
+    public void refresh_countsTheInvitationsAsUnread() {
+        Room room = addRoom("!invitation", 0, 0);
+        when(room.isInvited()).thenReturn(true);
+
+        mCounters.refresh();
+
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 1, 0);
+    }
+
+    @Test
+    public void refresh_countsTheHighlightsOfTheMentionOnlyRooms() {
+        addRoom("!mentionOnly", 3, 0);
+        addRoom("!mentionOnlyHighlighted", 3, 1);
+        when(mBingRulesManager.isRoomMentionOnly("!mentionOnly")).thenReturn(true);
+        when(mBingRulesManager.isRoomMentionOnly("!mentionOnlyHighlighted")).thenReturn(true);
+
+        mCounters.refresh();
+
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 1, 1);
+    }
+
+    @Test
+    public void refresh_updatesOnlyTheUpdatedRooms() {
+        Room room1 = addRoom("!room1", 1, 0);
+        addRoom("!room2", 1, 1);
+
+        mCounters.refresh();
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 2, 1);
+
+        clearInvocations(mStore);
+        setCounts(room1, 4, 3);
+
+        // no update is pending
+        mCounters.refresh();
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 2, 1);
+
+        mCounters.onRoomUpdate("!room1");
+        mCounters.refresh();
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 2, 4);
+
+        verify(mStore, never()).getRooms();
+        verify(mStore, never()).getRoom("!room2");
+    }
+
+    @Test
+    public void refresh_removesTheLeftRooms() {
+        addRoom("!room1", 1, 1);
+        addRoom("!room2", 1, 0);
+
+        mCounters.refresh();
+
+        mRooms.remove("!room1");
+        mCounters.onRoomUpdate("!room1");
+        mCounters.refresh();
+
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 1, 0);
+    }
+
+    @Test
+    public void onDirectChatRoomsUpdate_movesTheRooms() {
+        addRoom("!room1", 1, 1);
+        addRoom("!room2", 1, 0);
+
+        mCounters.refresh();
+        assertCounters(UnreadBadgeCounters.TAB_PEOPLE, 0, 0);
+
+        mDirectChatRoomIds.add("!room1");
+        mCounters.onDirectChatRoomsUpdate();
+        mCounters.refresh();
+
+        assertCounters(UnreadBadgeCounters.TAB_PEOPLE, 1, 1);
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 1, 0);
+
+        mDirectChatRoomIds.clear();
+        mCounters.onDirectChatRoomsUpdate();
+        mCounters.refresh();
+
+        assertCounters(UnreadBadgeCounters.TAB_PEOPLE, 0, 0);
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 2, 1);
+    }
+
+    @Test
+    public void invalidate_computesAgainAllTheRooms() {
+        Room room1 = addRoom("!room1", 1, 0);
+        Room room2 = addRoom("!room2", 1, 0);
+
+        mCounters.refresh();
+
+        setCounts(room1, 0, 0);
+        setCounts(room2, 2, 2);
+
+        mCounters.invalidate();
+        mCounters.refresh();
+
+        assertCounters(UnreadBadgeCounters.TAB_ROOMS, 1, 2);
+    }
+
+    @Test
+    public void refresh_incrementalReplayMatchesAFullScan() {
+        final int roomsCount = 3000;
+        final int eventsCount = 10000;
+        Random random = new Random(42);
+        List<Room> rooms = new ArrayList<>();
+
+        for (int i = 0; i < roomsCount; i++) {
+            Room room = addRoom("!room" + i, random.nextInt(3), random.nextInt(2));
+
+            if (0 == (i % 10)) {
+                setTag(room, RoomTag.ROOM_TAG_FAVOURITE);
+            } else if (0 == (i % 15)) {
+                mDirectChatRoomIds.add("!room" + i);
+            }
+
+            rooms.add(room);
+        }
+
+        mCounters.refresh();
+
+        for (int i = 0; i < eventsCount; i++) {
+            Room room = rooms.get(random.nextInt(roomsCount));
+
+            if (random.nextBoolean()) {
+                // a receipt of the current user: the room is read
+                setCounts(room, 0, 0);
+            } else {
+                // a new message
+                setCounts(room, room.getNotificationCount() + 1, room.getHighlightCount() + random.nextInt(2));
+            }
+
+            mCounters.onRoomUpdate(room.getRoomId());
+
+            // the counters are refreshed at the end of each events chunk
+            if (0 == (i % 50)) {
+                mCounters.refresh();
+            }
+
+            if (0 == (i % 2500)) {
+                assertSameAsFullScan();
+            }
+        }
+
+        mCounters.refresh();
+        assertSameAsFullScan();
+    }
+
+    /**
+     * Check the counters against new counters computed from all the rooms.
+     */
+    private void assertSameAsFullScan() {
+        UnreadBadgeCounters fullScanCounters = new UnreadBadgeCounters(mDataHandler);
+        assertTrue(fullScanCounters.refresh());
+
+        for (int tab = UnreadBadgeCounters.TAB_FAVOURITES; tab <= UnreadBadgeCounters.TAB_ROOMS; tab++) {
+            assertCounters(tab, fullScanCounters.getUnreadRoomCount(tab), fullScanCounters.getHighlightCount(tab));
+        }
+    }
+
+    @Test
+    public void refresh_failsWithoutStore() {
+        when(mDataHandler.getStore()).thenReturn(null);
+
+        assertFalse(mCounters.refresh());
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.widgets;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.MatrixError;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.vector.test.InMemorySharedPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ScalarTokenBrokerTest {
+    private static final String ALICE = "@alice:matrix.org";
+    private static final String BOB = "@bob:matrix.org";
+    private static final String INTEGRATIONS_REST_URL = "https://scalar.vector.im/api";
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private InMemorySharedPreferences mPreferences;
+
+    // the IO pool and the UI thread, their tasks run in order (see flushExecutors())
+    private ExecutorService mBackgroundExecutor;
+    private ExecutorService mUiExecutor;
+
+    // the stand-in integration server: the requests wait for a response of the test
+    private final BlockingQueue<ApiCallback<Map<String, String>>> mServerRequests = new LinkedBlockingQueue<>();
+    private final AtomicInteger mServerRequestsCount = new AtomicInteger();
+
+    private ScalarTokenBroker mBroker;
+
+    /**
+     * A callback waiting for the token.
+     */
+    private static class TokenCallback implements ApiCallback<String> {
+        private final CountDownLatch mLatch;
+        private volatile String mToken;
+        private volatile Exception mError;
+
+        TokenCallback() {
+            this(new CountDownLatch(1));
+        }
+
+        TokenCallback(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        public void onSuccess(String token) {
+            mToken = token;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onNetworkError(Exception e) {
+            mError = e;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onMatrixError(MatrixError e) {
+            mError = new Exception(e.getMessage());
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onUnexpectedError(Exception e) {
+            mError = e;
+            mLatch.countDown();
+        }
+
+        String await() throws InterruptedException {
+            assertTrue("the callback is not called", mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertNull(mError);
+            return mToken;
+        }
+
+        Exception awaitError() throws InterruptedException {
+            assertTrue("the callback is not called", mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertNotNull(mError);
+            return mError;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mPreferences = new InMemorySharedPreferences();
+        mBackgroundExecutor = Executors.newSingleThreadExecutor();
+        mUiExecutor = Executors.newSingleThreadExecutor();
+        mServerRequests.clear();
+        mServerRequestsCount.set(0);
+
+        Context context = mock(Context.class);
+        when(context.getString(anyInt())).thenReturn(INTEGRATIONS_REST_URL);
+
+        mBroker = new ScalarTokenBroker(context) {
+            @Override
+            void requestScalarToken(MXSession session, ApiCallback<Map<String, String>> callback) {
+                mServerRequestsCount.incrementAndGet();
+                mServerRequests.add(callback);
+            }
+
+            @Override
+            SharedPreferences getPreferences() {
+                return mPreferences;
+            }
+
+            @Override
+            void runInBackground(String name, Runnable runnable) {
+                mBackgroundExecutor.execute(runnable);
+            }
+
+            @Override
+            void runOnUiThread(Runnable runnable) {
+                mUiExecutor.execute(runnable);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mBackgroundExecutor.shutdownNow();
+        mUiExecutor.shutdownNow();
+    }
+
+    /**
+     * Wait for the next request of the integration server.
+     */
+    private ApiCallback<Map<String, String>> takeServerRequest() throws InterruptedException {
+        ApiCallback<Map<String, String>> request = mServerRequests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("the integration server is not requested", request);
+        return request;
+    }
+
+    /**
+     * Answer a request of the integration server from its network thread.
+     */
+    private void respond(final ApiCallback<Map<String, String>> request, String token) {
+        final Map<String, String> response = new HashMap<>();
+        response.put("scalar_token", token);
+
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                request.onSuccess(response);
+            }
+        });
+    }
+
+    /**
+     * Wait until the background and the UI tasks are done.
+     */
+    private void flushExecutors() throws InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            for (ExecutorService executor : new ExecutorService[]{mBackgroundExecutor, mUiExecutor}) {
+                final CountDownLatch latch = new CountDownLatch(1);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                });
+                assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    private String getToken(String userId) throws InterruptedException {
+        TokenCallback callback = new TokenCallback();
+        mBroker.getToken(userId, null, callback);
+        return callback.await();
+    }
+
+    @Test
+    public void getToken_concurrentCallersShareASingleExchange() throws Exception {
+        final int callersCount = 50;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch requestedLatch = new CountDownLatch(callersCount);
+        final CountDownLatch tokensLatch = new CountDownLatch(callersCount);
+        final List<TokenCallback> callbacks = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < callersCount; i++) {
+            final TokenCallback callback = new TokenCallback(tokensLatch);
+            callbacks.add(callback);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        mBroker.getToken(ALICE, null, callback);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    requestedLatch.countDown();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        // the callers request the token at the same time
+        startLatch.countDown();
+        assertTrue(requestedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        respond(takeServerRequest(), "token1");
+        assertTrue(tokensLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        for (TokenCallback callback : callbacks) {
+            assertEquals("token1", callback.await());
+        }
+
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MS);
+        }
+
+        // the next callers use the cached token
+        assertEquals("token1", getToken(ALICE));
+        assertEquals(1, mServerRequestsCount.get());
+
+        // the token is stored for the next start
+        flushExecutors();
+        assertEquals(1, mPreferences.getAll().size());
+    }
+
+    @Test
+    public void clearToken_keepsTheExchangesOfTheOtherUsers() throws Exception {
+        TokenCallback aliceCallback = new TokenCallback();
+        mBroker.getToken(ALICE, null, aliceCallback);
+        ApiCallback<Map<String, String>> aliceRequest = takeServerRequest();
+
+        TokenCallback bobCallback = new TokenCallback();
+        mBroker.getToken(BOB, null, bobCallback);
+        ApiCallback<Map<String, String>> bobRequest = takeServerRequest();
+
+        // the token of Bob is cleared while both exchanges are pending
+        mBroker.clearToken(BOB);
+        bobCallback.awaitError();
+
+        // another caller of Alice waits for the pending exchange
+        TokenCallback aliceCallback2 = new TokenCallback();
+        mBroker.getToken(ALICE, null, aliceCallback2);
+
+        respond(aliceRequest, "aliceToken");
+        assertEquals("aliceToken", aliceCallback.await());
+        assertEquals("aliceToken", aliceCallback2.await());
+
+        // the former exchange of Bob is ignored
+        respond(bobRequest, "staleBobToken");
+        flushExecutors();
+
+        TokenCallback bobCallback2 = new TokenCallback();
+        mBroker.getToken(BOB, null, bobCallback2);
+        respond(takeServerRequest(), "bobToken");
+        assertEquals("bobToken", bobCallback2.await());
+
+        assertEquals("aliceToken", getToken(ALICE));
+        assertEquals(3, mServerRequestsCount.get());
+    }
+
+    @Test
+    public void clear_releasesAllTheCallersAndIgnoresThePendingExchanges() throws Exception {
+        TokenCallback aliceCallback = new TokenCallback();
+        mBroker.getToken(ALICE, null, aliceCallback);
+        ApiCallback<Map<String, String>> aliceRequest = takeServerRequest();
+
+        TokenCallback bobCallback = new TokenCallback();
+        mBroker.getToken(BOB, null, bobCallback);
+        takeServerRequest();
+
+        mBroker.clear();
+        aliceCallback.awaitError();
+        bobCallback.awaitError();
+
+        // the token provided after the logout is neither cached nor stored
+        respond(aliceRequest, "staleAliceToken");
+        flushExecutors();
+        assertTrue(mPreferences.getAll().isEmpty());
+
+        TokenCallback aliceCallback2 = new TokenCallback();
+        mBroker.getToken(ALICE, null, aliceCallback2);
+        respond(takeServerRequest(), "aliceToken");
+        assertEquals("aliceToken", aliceCallback2.await());
+        assertEquals(3, mServerRequestsCount.get());
+    }
+}
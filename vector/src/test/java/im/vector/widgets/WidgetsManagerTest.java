@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.widgets;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.MyUser;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WidgetsManagerTest {
+    private static final String ALICE = "@alice:matrix.org";
+    private static final String BOB = "@bob:matrix.org";
+    private static final String ROOM_ID = "!room:matrix.org";
+
+    // the widget events of the room state
+    private final List<Event> mStateEvents = new ArrayList<>();
+    private int mStateReadsCount;
+
+    private Room mRoom;
+    private MyUser mAlice;
+    private MyUser mBob;
+    private MXDataHandler mAliceDataHandler;
+    private MXDataHandler mBobDataHandler;
+
+    private WidgetsManager mWidgetsManager;
+
+    @Before
+    public void setUp() {
+        mStateEvents.clear();
+        mStateReadsCount = 0;
+
+        RoomState roomState = mock(RoomState.class);
+        when(roomState.getStateEvents(anySet())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                mStateReadsCount++;
+                return new ArrayList<>(mStateEvents);
+            }
+        });
+
+        mRoom = mock(Room.class);
+        when(mRoom.getRoomId()).thenReturn(ROOM_ID);
+        when(mRoom.getState()).thenReturn(roomState);
+
+        mAlice = myUser("Alice");
+        mBob = myUser("Bob");
+
+        mAliceDataHandler = mock(MXDataHandler.class);
+        when(mAliceDataHandler.getMyUser()).thenReturn(mAlice);
+        mBobDataHandler = mock(MXDataHandler.class);
+        when(mBobDataHandler.getMyUser()).thenReturn(mBob);
+
+        mWidgetsManager = new WidgetsManager();
+    }
+
+    private static MyUser myUser(String displayName) {
+        MyUser myUser = mock(MyUser.class);
+        myUser.displayname = displayName;
+        return myUser;
+    }
+
+    /**
+     * A widget state event, without type when the widget is closed.
+     */
+    private static Event widgetEvent(String widgetId, String type, long ts) {
+        JsonObject content = new JsonObject();
+
+        if (null != type) {
+            content.addProperty("type", type);
+            content.addProperty("url", "https://example.org/" + widgetId + "?user=$matrix_user_id&name=$matrix_display_name");
+        }
+
+        Event event = new Event();
+        event.eventId = "$" + widgetId + ts;
+        event.roomId = ROOM_ID;
+        event.type = WidgetsManager.WIDGET_EVENT_TYPE;
+        event.stateKey = widgetId;
+        event.originServerTs = ts;
+        event.content = content;
+        return event;
+    }
+
+    private List<String> activeWidgetIds(String userId, MyUser myUser) {
+        List<String> widgetIds = new ArrayList<>();
+
+        for (Widget widget : mWidgetsManager.getActiveWidgets(userId, myUser, mRoom, null, null)) {
+            widgetIds.add(widget.getWidgetId());
+        }
+
+        Collections.sort(widgetIds);
+        return widgetIds;
+    }
+
+    @Test
+    public void getActiveWidgets_usesTheLatestStateEventOfEachWidget() {
+        mStateEvents.add(widgetEvent("widget1", "customwidget", 20));
+        mStateEvents.add(widgetEvent("widget1", null, 30));
+        mStateEvents.add(widgetEvent("widget2", "jitsi", 20));
+        mStateEvents.add(widgetEvent("widget2", null, 10));
+        mStateEvents.add(widgetEvent("widget3", "customwidget", 10));
+
+        assertEquals(Arrays.asList("widget2", "widget3"), activeWidgetIds(ALICE, mAlice));
+
+        List<Widget> jitsiWidgets = mWidgetsManager.getActiveWidgets(ALICE, mAlice, mRoom, new HashSet<>(Arrays.asList("jitsi")), null);
+        assertEquals(1, jitsiWidgets.size());
+        assertEquals("widget2", jitsiWidgets.get(0).getWidgetId());
+
+        // the index is built once
+        activeWidgetIds(ALICE, mAlice);
+        assertEquals(1, mStateReadsCount);
+    }
+
+    @Test
+    public void liveEvents_updateTheIndexInOrder() {
+        mStateEvents.add(widgetEvent("widget1", "customwidget", 10));
+        assertEquals(Arrays.asList("widget1"), activeWidgetIds(ALICE, mAlice));
+
+        MXEventListener listener = mWidgetsManager.getLiveEventListener(ALICE, mAliceDataHandler);
+
+        // a widget is added
+        listener.onLiveEvent(widgetEvent("widget2", "customwidget", 20), null);
+        assertEquals(Arrays.asList("widget1", "widget2"), activeWidgetIds(ALICE, mAlice));
+
+        // an older event of this widget does not replace it
+        listener.onLiveEvent(widgetEvent("widget2", null, 15), null);
+        assertEquals(Arrays.asList("widget1", "widget2"), activeWidgetIds(ALICE, mAlice));
+
+        // the widgets are closed
+        listener.onLiveEvent(widgetEvent("widget1", null, 30), null);
+        assertEquals(Arrays.asList("widget2"), activeWidgetIds(ALICE, mAlice));
+
+        listener.onLiveEvent(widgetEvent("widget2", null, 40), null);
+        assertTrue(activeWidgetIds(ALICE, mAlice).isEmpty());
+
+        // a widget is opened again
+        listener.onLiveEvent(widgetEvent("widget1", "jitsi", 50), null);
+        assertEquals(Arrays.asList("widget1"), activeWidgetIds(ALICE, mAlice));
+
+        // the live events do not read the room state again
+        assertEquals(1, mStateReadsCount);
+    }
+
+    @Test
+    public void liveEvents_updateOnlyTheOwningSession() {
+        assertTrue(activeWidgetIds(ALICE, mAlice).isEmpty());
+        assertTrue(activeWidgetIds(BOB, mBob).isEmpty());
+
+        // the room state is updated by the sync of Bob
+        Event event = widgetEvent("widget1", "customwidget", 10);
+        mStateEvents.add(event);
+        mWidgetsManager.getLiveEventListener(BOB, mBobDataHandler).onLiveEvent(event, null);
+
+        List<Widget> bobWidgets = mWidgetsManager.getActiveWidgets(BOB, mBob, mRoom, null, null);
+        assertEquals(1, bobWidgets.size());
+        assertEquals(BOB, bobWidgets.get(0).getSessionId());
+        assertEquals("https://example.org/widget1?user=" + BOB + "&name=Bob", bobWidgets.get(0).getUrl());
+
+        // the sync of Alice has not delivered it yet
+        assertTrue(activeWidgetIds(ALICE, mAlice).isEmpty());
+
+        mWidgetsManager.getLiveEventListener(ALICE, mAliceDataHandler).onLiveEvent(event, null);
+
+        List<Widget> aliceWidgets = mWidgetsManager.getActiveWidgets(ALICE, mAlice, mRoom, null, null);
+        assertEquals(1, aliceWidgets.size());
+        assertEquals("https://example.org/widget1?user=" + ALICE + "&name=Alice", aliceWidgets.get(0).getUrl());
+    }
+
+    @Test
+    public void sessionEvents_resetOnlyTheSessionIndexes() {
+        activeWidgetIds(ALICE, mAlice);
+        activeWidgetIds(BOB, mBob);
+        assertEquals(2, mStateReadsCount);
+
+        // the room state is updated without live events
+        mStateEvents.add(widgetEvent("widget1", "customwidget", 10));
+
+        MXEventListener aliceListener = mWidgetsManager.getLiveEventListener(ALICE, mAliceDataHandler);
+
+        aliceListener.onRoomFlush(ROOM_ID);
+        assertEquals(Arrays.asList("widget1"), activeWidgetIds(ALICE, mAlice));
+        assertTrue(activeWidgetIds(BOB, mBob).isEmpty());
+
+        mStateEvents.add(widgetEvent("widget2", "customwidget", 20));
+
+        aliceListener.onJoinRoom(ROOM_ID);
+        assertEquals(Arrays.asList("widget1", "widget2"), activeWidgetIds(ALICE, mAlice));
+
+        mStateEvents.add(widgetEvent("widget3", "customwidget", 30));
+
+        aliceListener.onInitialSyncComplete(null);
+        assertEquals(Arrays.asList("widget1", "widget2", "widget3"), activeWidgetIds(ALICE, mAlice));
+        assertTrue(activeWidgetIds(BOB, mBob).isEmpty());
+    }
+
+    @Test
+    public void getActiveWidgets_isRebuiltWhenTheDisplayNameChanges() {
+        mStateEvents.add(widgetEvent("widget1", "customwidget", 10));
+
+        assertEquals("https://example.org/widget1?user=" + ALICE + "&name=Alice",
+                mWidgetsManager.getActiveWidgets(ALICE, mAlice, mRoom, null, null).get(0).getUrl());
+
+        mAlice.displayname = "Alice2";
+
+        assertEquals("https://example.org/widget1?user=" + ALICE + "&name=Alice2",
+                mWidgetsManager.getActiveWidgets(ALICE, mAlice, mRoom, null, null).get(0).getUrl());
+        assertEquals(2, mStateReadsCount);
+    }
+
+    @Test
+    public void removeSession_dropsTheSessionIndexesAndListener() {
+        MXEventListener listener = mWidgetsManager.getLiveEventListener(ALICE, mAliceDataHandler);
+        assertSame(listener, mWidgetsManager.getLiveEventListener(ALICE, mAliceDataHandler));
+
+        activeWidgetIds(ALICE, mAlice);
+        activeWidgetIds(BOB, mBob);
+
+        mWidgetsManager.removeSession(ALICE);
+
+        assertNotSame(listener, mWidgetsManager.getLiveEventListener(ALICE, mAliceDataHandler));
+
+        // the index of Alice is built again, the one of Bob is kept
+        activeWidgetIds(BOB, mBob);
+        assertEquals(2, mStateReadsCount);
+
+        activeWidgetIds(ALICE, mAlice);
+        assertEquals(3, mStateReadsCount);
+    }
+}